@@ -0,0 +1,58 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.benchmark;
+
+import java.net.InetSocketAddress;
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.rocketmq.common.TopicFilterType;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+
+/**
+ * Messages shared by the benchmarks.
+ */
+final class BenchmarkMessages {
+
+    static final String TOPIC = "benchmark-topic";
+    static final String[] TAGS = {"TagA", "TagB", "TagC", "TagD"};
+
+    private BenchmarkMessages() {
+    }
+
+    /**
+     * Create a message like the send processor does before it's encoded.
+     */
+    static MessageExtBrokerInner newMessage(int bodySize, int propertyCount, String tags) {
+        byte[] body = new byte[bodySize];
+        ThreadLocalRandom.current().nextBytes(body);
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setBody(body);
+        msg.setQueueId(0);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setStoreTimestamp(System.currentTimeMillis());
+        msg.setBornHost(new InetSocketAddress("127.0.0.1", 10911));
+        msg.setStoreHost(new InetSocketAddress("127.0.0.1", 10911));
+        msg.setTagsCode(MessageExtBrokerInner.tagsString2tagsCode(TopicFilterType.SINGLE_TAG, tags));
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_TAGS, tags);
+        for (int i = 0; i < propertyCount; i++) {
+            MessageAccessor.putProperty(msg, "property-" + i, "value-" + i);
+        }
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+        return msg;
+    }
+}
@@ -0,0 +1,93 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
+
+/**
+ * Benchmark the conversion between the RoP offsets and the Pulsar message ids.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MessageIdUtilsBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    /**
+     * The number of messages in an entry, offsets with a non-zero batch index map to batch message ids.
+     */
+    @Param({"1", "16", "64"})
+    private int batchSize;
+
+    private final long[] ledgerIds = new long[SAMPLES];
+    private final long[] entryIds = new long[SAMPLES];
+    private final int[] partitionIds = new int[SAMPLES];
+    private final int[] batchIndexes = new int[SAMPLES];
+    private final long[] offsets = new long[SAMPLES];
+    private int index;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(0);
+        for (int i = 0; i < SAMPLES; i++) {
+            ledgerIds[i] = random.nextInt(1 << 20);
+            entryIds[i] = random.nextInt((int) MessageIdUtils.MAX_ENTRY_ID);
+            partitionIds[i] = random.nextInt((int) MessageIdUtils.MAX_PARTITION_ID);
+            batchIndexes[i] = random.nextInt(batchSize);
+            offsets[i] = MessageIdUtils.getOffset(ledgerIds[i], entryIds[i], partitionIds[i], batchIndexes[i]);
+        }
+    }
+
+    private int next() {
+        index = (index + 1) & (SAMPLES - 1);
+        return index;
+    }
+
+    @Benchmark
+    public long getOffset() {
+        int i = next();
+        return MessageIdUtils.getOffset(ledgerIds[i], entryIds[i], partitionIds[i], batchIndexes[i]);
+    }
+
+    @Benchmark
+    public MessageIdImpl getMessageId() {
+        return MessageIdUtils.getMessageId(offsets[next()]);
+    }
+
+    @Benchmark
+    public PositionImpl getPosition() {
+        return MessageIdUtils.getPosition(offsets[next()]);
+    }
+}
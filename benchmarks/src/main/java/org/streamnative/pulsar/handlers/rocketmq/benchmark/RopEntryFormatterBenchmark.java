@@ -0,0 +1,110 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.streamnative.pulsar.handlers.rocketmq.inner.format.RopEntryFormatter;
+import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
+
+/**
+ * Benchmark the encoding of the sent messages and the decoding of the pulled entries.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RopEntryFormatterBenchmark {
+
+    @Param({"128", "1024", "16384"})
+    private int bodySize;
+
+    @Param({"1", "16", "64"})
+    private int batchSize;
+
+    @Param({"0", "8", "32"})
+    private int propertyCount;
+
+    private final RopEntryFormatter formatter = new RopEntryFormatter();
+    private final List<ByteBuf> messages = new ArrayList<>(MessageIdUtils.MAX_BATCH_SIZE);
+    private MessageExtBrokerInner message;
+    private List<MessageExtBrokerInner> msgs;
+    private ByteBuf entry;
+    private long baseOffset;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        message = BenchmarkMessages.newMessage(bodySize, propertyCount, BenchmarkMessages.TAGS[0]);
+        msgs = new ArrayList<>(batchSize);
+        for (int i = 0; i < batchSize; i++) {
+            msgs.add(BenchmarkMessages.newMessage(bodySize, propertyCount, BenchmarkMessages.TAGS[0]));
+        }
+        entry = batchSize == 1 ? formatter.encodeEntry(message) : formatter.encodeEntry(msgs);
+        baseOffset = MessageIdUtils.getOffset(10L, 20L, 1);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        entry.release();
+    }
+
+    @Benchmark
+    public List<byte[]> encodeMessage() throws Exception {
+        return formatter.encode(message, 1);
+    }
+
+    @Benchmark
+    public void encodeMessageEntry(Blackhole blackhole) throws Exception {
+        ByteBuf buf = formatter.encodeEntry(message);
+        blackhole.consume(buf);
+        buf.release();
+    }
+
+    @Benchmark
+    public void encodeEntry(Blackhole blackhole) throws Exception {
+        ByteBuf buf = batchSize == 1 ? formatter.encodeEntry(message) : formatter.encodeEntry(msgs);
+        blackhole.consume(buf);
+        buf.release();
+    }
+
+    @Benchmark
+    public long decodeEntry() {
+        long lastOffset = formatter.decodePulsarMessage(entry.duplicate(), baseOffset, baseOffset, null, messages);
+        for (ByteBuf msg : messages) {
+            msg.release();
+        }
+        messages.clear();
+        return lastOffset;
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.benchmark;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.concurrent.TimeUnit;
+import org.apache.rocketmq.common.filter.FilterAPI;
+import org.apache.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.streamnative.pulsar.handlers.rocketmq.inner.format.RopEntryFormatter;
+import org.streamnative.pulsar.handlers.rocketmq.inner.format.RopMessageFilter;
+
+/**
+ * Benchmark the tag filter applied to every pulled message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RopMessageFilterBenchmark {
+
+    private static final int MESSAGES = 64;
+
+    @Param({"*", "TagA", "TagA || TagB || TagC"})
+    private String subscription;
+
+    @Param({"128", "1024"})
+    private int bodySize;
+
+    @Param({"0", "8"})
+    private int propertyCount;
+
+    private final ByteBuf[] payloads = new ByteBuf[MESSAGES];
+    private RopMessageFilter filter;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        SubscriptionData subscriptionData = FilterAPI.buildSubscriptionData("benchmark-group",
+                BenchmarkMessages.TOPIC, subscription);
+        filter = new RopMessageFilter(subscriptionData);
+        RopEntryFormatter formatter = new RopEntryFormatter();
+        for (int i = 0; i < MESSAGES; i++) {
+            String tags = BenchmarkMessages.TAGS[i % BenchmarkMessages.TAGS.length];
+            byte[] record = formatter.encode(BenchmarkMessages.newMessage(bodySize, propertyCount, tags), 1).get(0);
+            payloads[i] = Unpooled.wrappedBuffer(record);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public int filter() {
+        int matched = 0;
+        for (ByteBuf payload : payloads) {
+            if (filter.test(payload)) {
+                matched++;
+            }
+        }
+        return matched;
+    }
+}
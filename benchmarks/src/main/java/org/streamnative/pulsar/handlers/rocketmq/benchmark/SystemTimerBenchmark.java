@@ -0,0 +1,119 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.streamnative.pulsar.handlers.rocketmq.inner.timer.SystemTimer;
+import org.streamnative.pulsar.handlers.rocketmq.inner.timer.TimerTask;
+
+/**
+ * Benchmark the timing wheel used by the send timeout reaper and the delayed messages.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SystemTimerBenchmark {
+
+    // the tasks of the cancel benchmark never expire during the measurement
+    private static final long LONG_DELAY_MS = 60 * 60 * 1000L;
+    private static final long MAX_SHORT_DELAY_MS = 20;
+
+    @Param({"1000", "10000", "100000"})
+    private int taskCount;
+
+    private SystemTimer timer;
+    private long[] delays;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        timer = SystemTimer.builder().executorName("benchmark-timer").build();
+        Random random = new Random(0);
+        delays = new long[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            delays[i] = random.nextInt((int) MAX_SHORT_DELAY_MS) + 1;
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        timer.shutdown();
+    }
+
+    /**
+     * Add tasks which are completed before they expire, like the send timeout tasks.
+     */
+    @Benchmark
+    public int addAndCancel() {
+        BenchmarkTask[] tasks = new BenchmarkTask[taskCount];
+        for (int i = 0; i < taskCount; i++) {
+            tasks[i] = new BenchmarkTask(LONG_DELAY_MS + delays[i], null);
+            timer.add(tasks[i]);
+        }
+        for (BenchmarkTask task : tasks) {
+            task.cancel();
+        }
+        return timer.size();
+    }
+
+    /**
+     * Add tasks and advance the clock until all of them are expired and run.
+     */
+    @Benchmark
+    public long addAndExpire() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(taskCount);
+        for (int i = 0; i < taskCount; i++) {
+            timer.add(new BenchmarkTask(delays[i], latch));
+        }
+        while (latch.getCount() > 0) {
+            timer.advanceClock(1);
+        }
+        return latch.getCount();
+    }
+
+    private static final class BenchmarkTask extends TimerTask {
+
+        private final CountDownLatch latch;
+
+        private BenchmarkTask(long delayMs, CountDownLatch latch) {
+            super(delayMs);
+            this.latch = latch;
+        }
+
+        @Override
+        public void run() {
+            if (latch != null) {
+                latch.countDown();
+            }
+        }
+    }
+}
@@ -30,6 +30,7 @@ import org.apache.pulsar.broker.protocol.ProtocolHandler;
 import org.apache.pulsar.broker.service.BrokerService;
 import org.streamnative.pulsar.handlers.rocketmq.inner.RocketMQBrokerController;
 import org.streamnative.pulsar.handlers.rocketmq.utils.ConfigurationUtils;
+import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
 import org.streamnative.pulsar.handlers.rocketmq.utils.RocketMQTopic;
 
 /**
@@ -77,6 +78,8 @@ public class RocketMQProtocolHandler implements ProtocolHandler {
             // when loaded with PulsarService as NAR, `conf` will be type of ServiceConfiguration
             rocketmqConfig = ConfigurationUtils.create(conf.getProperties(), RocketMQServiceConfiguration.class);
         }
+        limitEntriesPerLedger(conf);
+        limitEntriesPerLedger(rocketmqConfig);
 
         this.bindAddress = ServiceConfigurationUtils.getDefaultOrConfiguredAddress(rocketmqConfig.getBindAddress());
         this.rocketMQBroker = new RocketMQBrokerController(rocketmqConfig);
@@ -85,6 +88,19 @@ public class RocketMQProtocolHandler implements ProtocolHandler {
                 rocketmqConfig.getRocketmqTenant(), rocketmqConfig.getRocketmqNamespace());
     }
 
+    /**
+     * The rop offset only has room for {@link MessageIdUtils#MAX_ENTRY_ID} entries per ledger, the broker config is
+     * clamped so the ledgers are rolled over before their entry ids overflow the offset.
+     */
+    static void limitEntriesPerLedger(ServiceConfiguration conf) {
+        int maxEntriesPerLedger = (int) (MessageIdUtils.MAX_ENTRY_ID + 1);
+        if (conf.getManagedLedgerMaxEntriesPerLedger() > maxEntriesPerLedger) {
+            log.warn("managedLedgerMaxEntriesPerLedger [{}] exceeds the entries addressable by the rop offset, "
+                    + "use [{}] instead.", conf.getManagedLedgerMaxEntriesPerLedger(), maxEntriesPerLedger);
+            conf.setManagedLedgerMaxEntriesPerLedger(maxEntriesPerLedger);
+        }
+    }
+
     @Override
     public String getProtocolDataToAdvertise() {
         if (log.isDebugEnabled()) {
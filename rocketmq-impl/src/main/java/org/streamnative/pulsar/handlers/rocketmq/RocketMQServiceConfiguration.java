@@ -14,6 +14,7 @@
 
 package org.streamnative.pulsar.handlers.rocketmq;
 
+import java.io.File;
 import lombok.Data;
 import org.apache.pulsar.broker.ServiceConfiguration;
 import org.apache.pulsar.common.configuration.Category;
@@ -163,6 +164,18 @@ public class RocketMQServiceConfiguration extends ServiceConfiguration {
     )
     private int filterDataCleanTimeSpan = 24 * 3600 * 1000;
 
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "Whether the consumers can filter messages by SQL92 expressions over the message properties.\n"
+    )
+    private boolean enablePropertyFilter = true;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "Max number of the cached compiled filter expressions of the consumer groups.\n"
+    )
+    private int ropCompiledFilterCacheSize = 4096;
+
 
     @FieldContext(
             category = CATEGORY_ROCKETMQ,
@@ -304,9 +317,38 @@ public class RocketMQServiceConfiguration extends ServiceConfiguration {
     @FieldContext(
             category = CATEGORY_ROCKETMQ,
             doc = "Whether enable transfer message by heap.\n"
+                    + "If disabled, pulled messages are written from the entry buffers without copying.\n"
     )
     private boolean transferMsgByHeap = true;
 
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "The interval in milliseconds between two samples of the partition time index.\n"
+                    + "A smaller interval narrows the search by timestamp but updates the metadata more often.\n"
+    )
+    private long ropTimeIndexIntervalMs = 60 * 1000L;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "Number of the entries in a range of the partition tag index, the pulls with tag subscriptions skip"
+                    + " the ranges which don't contain their tags. 0 to disable the tag index.\n"
+    )
+    private int ropTagIndexRangeSize = 1024;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "The directory of the message key index files, each file takes about 420 MB.\n"
+                    + "A relative path is resolved against the working directory of the broker, like the other\n"
+                    + "local data directories of Pulsar, e.g. data/bookkeeper.\n"
+    )
+    private String ropIndexStorePath = "data" + File.separator + "rop" + File.separator + "index";
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "The reserved time in hours of the message key index files.\n"
+    )
+    private int ropIndexFileReservedTime = 72;
+
     @FieldContext(
             category = CATEGORY_ROCKETMQ,
             doc = "Max number of default query.\n"
@@ -365,6 +407,31 @@ public class RocketMQServiceConfiguration extends ServiceConfiguration {
     )
     private int maxDelayLevelNum = 16;
 
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "Number of the threads delivering the due delayed messages.\n"
+    )
+    private int ropDelayedDeliveryThreads = 4;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "Time range covered by a bucket topic of the messages delivered at an arbitrary time.\n"
+    )
+    private int ropDelayBucketSizeInSeconds = 60;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "Number of the bucket topics reused in a ring, the messages delivered later than a lap of the ring"
+                    + " are read again by every lap until they're due.\n"
+    )
+    private int ropDelayBucketRingSize = 60;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "Max delay of the messages delivered at an arbitrary time, longer delays are rejected.\n"
+    )
+    private long ropMaxDelayInSeconds = 3 * 24 * 3600L;
+
     @FieldContext(
             category = CATEGORY_ROCKETMQ,
             doc = "rocketmq rest server port.\n"
@@ -377,6 +444,52 @@ public class RocketMQServiceConfiguration extends ServiceConfiguration {
     )
     private boolean ropAclEnable = true;
 
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "rocketmq Acl authorization decision cache expire time in seconds.\n"
+    )
+    private long ropAclCacheExpireTimeInSeconds = 60;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "The in-flight publish bytes of a RocketMQ channel to stop reading from it, the channel is read again"
+                    + " when they drop to half of it. 0 or negative to disable the limit.\n"
+    )
+    private int ropMaxPublishBufferSizePerChannelInMB = 16;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "The in-flight publish bytes of the broker to reject the send requests with SYSTEM_BUSY, -1 means"
+                    + " twice the maxMessagePublishBufferSizeInMB. 0 to disable the limit.\n"
+    )
+    private int ropMaxPublishBufferSizeInMB = -1;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "The pooled producers of the partitions owned by other brokers are closed after being unused for"
+                    + " this time in seconds.\n"
+    )
+    private long ropProducerPoolIdleTimeoutInSeconds = 300;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "Size of the broker wide cache of the recently published entries, which is shared by the consumer"
+                    + " groups pulling the tail of the partitions. 0 to disable the cache.\n"
+    )
+    private int ropEntryCacheSizeInMB = 64;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "The cursors of the consumer groups are deleted after being unused for this time in seconds.\n"
+    )
+    private long ropCursorIdleTimeoutInSeconds = 600;
+
+    @FieldContext(
+            category = CATEGORY_ROCKETMQ,
+            doc = "Max number of the consumer offsets being persisted to the subscriptions at the same time.\n"
+    )
+    private int ropMaxPendingOffsetFlushes = 256;
+
     @FieldContext(
             category = CATEGORY_ROCKETMQ,
             doc = "rocketmq Transaction feature switch.\n"
@@ -21,7 +21,9 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.logging.log4j.util.Strings;
 import org.apache.pulsar.common.naming.TopicName;
@@ -131,6 +133,16 @@ public class Broker2Client {
                 .getTopicBrokerAddr(TopicName.get(lookupTopic),
                         ConfigurationUtils.getDefaultListenerName(brokerController.getServerConfig()));
 
+        // search the offsets of all queues concurrently
+        ClientGroupAndTopicName groupAndTopicName = new ClientGroupAndTopicName(Strings.EMPTY, topic);
+        Map<Integer, CompletableFuture<Long>> searchOffsetFutures = new HashMap<>();
+        if (timeStamp != -1) {
+            for (int i = 0; i < topicConfig.getWriteQueueNums(); i++) {
+                searchOffsetFutures.put(i, this.brokerController.getConsumerOffsetManager()
+                        .searchOffsetByTimestampAsync(groupAndTopicName, i, timeStamp));
+            }
+        }
+
         for (int i = 0; i < topicConfig.getWriteQueueNums(); i++) {
             MessageQueue mq = new MessageQueue();
             mq.setBrokerName(topicBrokerAddr.get(i).getHostName());
@@ -147,10 +159,13 @@ public class Broker2Client {
             }
 
             long timeStampOffset;
-            ClientGroupAndTopicName groupAndTopicName = new ClientGroupAndTopicName(Strings.EMPTY, topic);
             if (timeStamp != -1) {
-                timeStampOffset = this.brokerController.getConsumerOffsetManager()
-                        .searchOffsetByTimestamp(groupAndTopicName, i, timeStamp);
+                try {
+                    timeStampOffset = searchOffsetFutures.get(i).get(5, TimeUnit.SECONDS);
+                } catch (Exception e) {
+                    log.warn("[reset-offset] search offset timeout. topic={}, queueId={}", topic, i);
+                    timeStampOffset = -1L;
+                }
             } else {
                 try {
                     timeStampOffset = this.brokerController.getConsumerOffsetManager()
@@ -14,14 +14,24 @@
 
 package org.streamnative.pulsar.handlers.rocketmq.inner;
 
+import io.netty.channel.Channel;
 import java.net.InetSocketAddress;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.pulsar.broker.service.Producer;
 import org.apache.pulsar.broker.service.ServerCnx;
+import org.apache.pulsar.broker.service.Topic;
+import org.streamnative.pulsar.handlers.rocketmq.inner.producer.RopPublishThrottler;
 
 /**
  * InternalServerCnx, this only used to construct internalProducer / internalConsumer.
+ *
+ * <p>The internal producer of a topic is shared by all the RocketMQ channels publishing to it, so the auto read
+ * requests of the topic are forwarded to these channels, and the in-flight bytes of the topic are reported to the
+ * message publish buffer monitor of the broker.
  */
 @Slf4j
 public class InternalServerCnx extends ServerCnx {
@@ -29,9 +39,17 @@ public class InternalServerCnx extends ServerCnx {
     @Getter
     RopServerCnx ropServerCnx;
 
+    private final RopPublishThrottler publishThrottler;
+    private final boolean preciseTopicPublishRateLimitingEnable;
+    private final Set<Channel> publishChannels = ConcurrentHashMap.newKeySet();
+    private final AtomicLong publishBufferSize = new AtomicLong();
+
     public InternalServerCnx(RopServerCnx ropServerCnx) {
         super(ropServerCnx.getBrokerController().getBrokerService().pulsar());
         this.ropServerCnx = ropServerCnx;
+        this.publishThrottler = ropServerCnx.getBrokerController().getPublishThrottler();
+        this.preciseTopicPublishRateLimitingEnable = ropServerCnx.getBrokerController().getBrokerService().pulsar()
+                .getConfiguration().isPreciseTopicPublishRateLimiterEnable();
         // this is the client address that connect to this server.
         this.remoteAddress = ropServerCnx.getRemoteAddress();
 
@@ -52,18 +70,60 @@ public class InternalServerCnx extends ServerCnx {
         this.remoteAddress = ropServerCnx.getRemoteAddress();
     }
 
+    /**
+     * Called before the entry received from the channel is published to the topic, the same as
+     * {@link ServerCnx#startSendOperation} does for the Pulsar producers.
+     */
+    public void startSendOperation(Channel channel, Topic topic, int msgSize, int numMessages) {
+        publishBufferSize.addAndGet(msgSize);
+        if (publishChannels.add(channel)) {
+            channel.closeFuture().addListener(future -> publishChannels.remove(channel));
+        }
+        boolean isPublishRateExceeded;
+        if (preciseTopicPublishRateLimitingEnable) {
+            if (topic.isTopicPublishRateExceeded(numMessages, msgSize)) {
+                topic.disableCnxAutoRead();
+                return;
+            }
+            isPublishRateExceeded = topic.isBrokerPublishRateExceeded();
+        } else {
+            isPublishRateExceeded = topic.isPublishRateExceeded();
+        }
+        if (isPublishRateExceeded) {
+            publishThrottler.disableAutoRead(channel, RopPublishThrottler.RATE_LIMITING);
+        }
+    }
+
+    @Override
+    public void completedSendOperation(boolean isNonPersistentTopic, int msgSize) {
+        publishBufferSize.addAndGet(-msgSize);
+    }
+
+    @Override
+    public long getMessagePublishBufferSize() {
+        return publishBufferSize.get();
+    }
+
     @Override
     public void enableCnxAutoRead() {
-        // do nothing is this mock
+        publishChannels.forEach(channel -> publishThrottler.enableAutoRead(channel,
+                RopPublishThrottler.TOPIC_LIMITING));
     }
 
     @Override
     public void disableCnxAutoRead() {
-        // do nothing is this mock
+        publishChannels.forEach(channel -> publishThrottler.disableAutoRead(channel,
+                RopPublishThrottler.TOPIC_LIMITING));
+    }
+
+    @Override
+    public void cancelPublishRateLimiting() {
+        publishChannels.forEach(channel -> publishThrottler.enableAutoRead(channel,
+                RopPublishThrottler.RATE_LIMITING));
     }
 
     @Override
     public void cancelPublishBufferLimiting() {
-        // do nothing is this mock
+        publishThrottler.cancelPublishBufferLimiting();
     }
 }
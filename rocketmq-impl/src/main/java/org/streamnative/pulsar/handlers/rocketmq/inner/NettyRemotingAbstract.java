@@ -27,6 +27,8 @@ import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map.Entry;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
@@ -52,6 +54,8 @@ import org.apache.rocketmq.remoting.netty.RequestTask;
 import org.apache.rocketmq.remoting.netty.ResponseFuture;
 import org.apache.rocketmq.remoting.protocol.RemotingCommand;
 import org.apache.rocketmq.remoting.protocol.RemotingSysResponseCode;
+import org.streamnative.pulsar.handlers.rocketmq.inner.acl.RopAclChecker;
+import org.streamnative.pulsar.handlers.rocketmq.inner.processor.AsyncNettyRequestProcessor;
 
 /**
  * Netty remoting abstract.
@@ -98,6 +102,10 @@ public abstract class NettyRemotingAbstract {
      * custom rpc hooks.
      */
     protected List<RPCHook> rpcHooks = new ArrayList<RPCHook>();
+    /**
+     * ACL checker of the requests, the requests are not checked if it's null.
+     */
+    protected volatile RopAclChecker aclChecker;
 
     /**
      * Constructor, specifying capacity of one-way and asynchronous semaphores.
@@ -164,6 +172,41 @@ public abstract class NettyRemotingAbstract {
         }
     }
 
+    private void writeResponse(final ChannelHandlerContext ctx, final RemotingCommand cmd,
+            final RemotingCommand response) {
+        if (!cmd.isOnewayRPC()) {
+            if (response != null) {
+                response.setOpaque(cmd.getOpaque());
+                response.markResponseType();
+                try {
+                    if (log.isDebugEnabled()) {
+                        log.debug("Will write and flush the response{} to channel", response);
+                    }
+                    ctx.writeAndFlush(response);
+                } catch (Throwable e) {
+                    log.error("process request over, but response failed", e);
+                    log.error(cmd.toString());
+                    log.error(response.toString());
+                }
+            } else {
+                //log.warn("The response is null, please check.");
+            }
+        }
+    }
+
+    private void writeSystemError(final ChannelHandlerContext ctx, final RemotingCommand cmd, final Throwable e) {
+        log.error("process request exception", e);
+        log.error(cmd.toString());
+
+        if (!cmd.isOnewayRPC()) {
+            final RemotingCommand response = RemotingCommand.createResponseCommand(
+                    RemotingSysResponseCode.SYSTEM_ERROR,
+                    RemotingHelper.exceptionSimpleDesc(e));
+            response.setOpaque(cmd.getOpaque());
+            ctx.writeAndFlush(response);
+        }
+    }
+
     protected void doBeforeRpcHooks(String addr, RemotingCommand request) {
         if (rpcHooks.size() > 0) {
             for (RPCHook rpcHook : rpcHooks) {
@@ -202,38 +245,36 @@ public abstract class NettyRemotingAbstract {
                 public void run() {
                     try {
                         doBeforeRpcHooks(RemotingHelper.parseChannelRemoteAddr(ctx.channel()), cmd);
-                        final RemotingCommand response = pair.getObject1().processRequest(ctx, cmd);
-                        doAfterRpcHooks(RemotingHelper.parseChannelRemoteAddr(ctx.channel()), cmd, response);
-
-                        if (!cmd.isOnewayRPC()) {
-                            if (response != null) {
-                                response.setOpaque(opaque);
-                                response.markResponseType();
-                                try {
-                                    if (log.isDebugEnabled()) {
-                                        log.debug("Will write and flush the response{} to channel", response);
-                                    }
-                                    ctx.writeAndFlush(response);
-                                } catch (Throwable e) {
-                                    log.error("process request over, but response failed", e);
-                                    log.error(cmd.toString());
-                                    log.error(response.toString());
-                                }
-                            } else {
-                                //log.warn("The response is null, please check.");
+                        RopAclChecker checker = aclChecker;
+                        CompletableFuture<Void> checkFuture =
+                                checker == null ? null : checker.check(ctx.channel(), cmd);
+                        if (checkFuture == null || checkFuture.isDone()) {
+                            if (checkFuture != null) {
+                                joinCheckFuture(checkFuture);
                             }
+                            dispatchRequest(ctx, cmd, pair.getObject1());
+                            return;
                         }
+                        // the decision isn't cached yet, dispatch the request once it's allowed
+                        checkFuture.whenComplete((ignore, e) -> {
+                            if (e != null) {
+                                writeSystemError(ctx, cmd, e instanceof CompletionException ? e.getCause() : e);
+                                return;
+                            }
+                            try {
+                                pair.getObject2().submit(new RequestTask(() -> {
+                                    try {
+                                        dispatchRequest(ctx, cmd, pair.getObject1());
+                                    } catch (Throwable t) {
+                                        writeSystemError(ctx, cmd, t);
+                                    }
+                                }, ctx.channel(), cmd));
+                            } catch (RejectedExecutionException rejected) {
+                                writeSystemBusy(ctx, cmd, pair.getObject2());
+                            }
+                        });
                     } catch (Throwable e) {
-                        log.error("process request exception", e);
-                        log.error(cmd.toString());
-
-                        if (!cmd.isOnewayRPC()) {
-                            final RemotingCommand response = RemotingCommand.createResponseCommand(
-                                    RemotingSysResponseCode.SYSTEM_ERROR,
-                                    RemotingHelper.exceptionSimpleDesc(e));
-                            response.setOpaque(opaque);
-                            ctx.writeAndFlush(response);
-                        }
+                        writeSystemError(ctx, cmd, e);
                     }
                 }
             };
@@ -251,20 +292,7 @@ public abstract class NettyRemotingAbstract {
                 final RequestTask requestTask = new RequestTask(run, ctx.channel(), cmd);
                 pair.getObject2().submit(requestTask);
             } catch (RejectedExecutionException e) {
-                if ((System.currentTimeMillis() % 10000) == 0) {
-                    log.warn(RemotingHelper.parseChannelRemoteAddr(ctx.channel())
-                            + ", too many requests and system thread pool busy, RejectedExecutionException "
-                            + pair.getObject2().toString()
-                            + " request code: " + cmd.getCode());
-                }
-
-                if (!cmd.isOnewayRPC()) {
-                    final RemotingCommand response = RemotingCommand
-                            .createResponseCommand(RemotingSysResponseCode.SYSTEM_BUSY,
-                                    "[OVERLOAD]system busy, start flow control for a while");
-                    response.setOpaque(opaque);
-                    ctx.writeAndFlush(response);
-                }
+                writeSystemBusy(ctx, cmd, pair.getObject2());
             }
         } else {
             String error = " request type " + cmd.getCode() + " not supported";
@@ -276,6 +304,51 @@ public abstract class NettyRemotingAbstract {
         }
     }
 
+    private void dispatchRequest(final ChannelHandlerContext ctx, final RemotingCommand cmd,
+            final NettyRequestProcessor requestProcessor) throws Exception {
+        if (requestProcessor instanceof AsyncNettyRequestProcessor) {
+            AsyncNettyRequestProcessor processor = (AsyncNettyRequestProcessor) requestProcessor;
+            processor.asyncProcessRequest(ctx, cmd).whenComplete((response, e) -> {
+                if (e != null) {
+                    writeSystemError(ctx, cmd, e);
+                    return;
+                }
+                doAfterRpcHooks(RemotingHelper.parseChannelRemoteAddr(ctx.channel()), cmd, response);
+                writeResponse(ctx, cmd, response);
+            });
+        } else {
+            final RemotingCommand response = requestProcessor.processRequest(ctx, cmd);
+            doAfterRpcHooks(RemotingHelper.parseChannelRemoteAddr(ctx.channel()), cmd, response);
+            writeResponse(ctx, cmd, response);
+        }
+    }
+
+    private static void joinCheckFuture(CompletableFuture<Void> checkFuture) throws Throwable {
+        try {
+            checkFuture.join();
+        } catch (CompletionException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void writeSystemBusy(final ChannelHandlerContext ctx, final RemotingCommand cmd,
+            final ExecutorService executor) {
+        if ((System.currentTimeMillis() % 10000) == 0) {
+            log.warn(RemotingHelper.parseChannelRemoteAddr(ctx.channel())
+                    + ", too many requests and system thread pool busy, RejectedExecutionException "
+                    + executor.toString()
+                    + " request code: " + cmd.getCode());
+        }
+
+        if (!cmd.isOnewayRPC()) {
+            final RemotingCommand response = RemotingCommand
+                    .createResponseCommand(RemotingSysResponseCode.SYSTEM_BUSY,
+                            "[OVERLOAD]system busy, start flow control for a while");
+            response.setOpaque(cmd.getOpaque());
+            ctx.writeAndFlush(response);
+        }
+    }
+
     /**
      * Process response from remote peer to the previous issued requests.
      *
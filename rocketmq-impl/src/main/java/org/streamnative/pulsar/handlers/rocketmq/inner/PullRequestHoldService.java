@@ -14,72 +14,96 @@
 
 package org.streamnative.pulsar.handlers.rocketmq.inner;
 
+import io.prometheus.client.Collector;
+import io.prometheus.client.CollectorRegistry;
+import io.prometheus.client.GaugeMetricFamily;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.EqualsAndHashCode;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.rocketmq.broker.longpolling.ManyPullRequest;
 import org.apache.rocketmq.broker.longpolling.PullRequest;
 import org.apache.rocketmq.common.ServiceThread;
-import org.apache.rocketmq.common.SystemClock;
 import org.streamnative.pulsar.handlers.rocketmq.inner.exception.RopPersistentTopicException;
 import org.streamnative.pulsar.handlers.rocketmq.inner.producer.ClientTopicName;
+import org.streamnative.pulsar.handlers.rocketmq.inner.timer.ExpirationReaper;
+import org.streamnative.pulsar.handlers.rocketmq.inner.timer.SystemTimer;
+import org.streamnative.pulsar.handlers.rocketmq.inner.timer.TimerTask;
 
 /**
  * Pull request hold service.
+ *
+ * <p>The suspended pull requests are held per partition, and each of them has a timer task which wakes it up when
+ * its suspend timeout expires. The service thread re-checks the partitions which received messages as soon as the
+ * local publishes notify them, and all the partitions with held requests every {@link #HELD_CHECK_INTERVAL_MS}, so
+ * the messages written without a local notification, e.g. through another broker or a native Pulsar producer, are
+ * picked up long before the suspend timeout.
  */
 @Slf4j
 public class PullRequestHoldService extends ServiceThread {
 
-    private static final String TOPIC_QUEUEID_SEPARATOR = "@";
-    private final RocketMQBrokerController brokerController;
-    private final SystemClock systemClock = new SystemClock();
+    static final long HELD_CHECK_INTERVAL_MS = 1000L;
 
-    // key       => topicName@partitionId
-    // topicName => tenant/ns/topicName
-    private final ConcurrentMap<String, ManyPullRequest> pullRequestTable = new ConcurrentHashMap<>(1024);
+    private final RocketMQBrokerController brokerController;
+    private final ConcurrentHashMap<PartitionKey, HeldPartition> pullRequestTable = new ConcurrentHashMap<>(1024);
+    // the partitions which received messages since the last wakeup, each of them is queued once
+    private final Queue<HeldPartition> arrivedPartitions = new ConcurrentLinkedQueue<>();
+    private final SystemTimer suspendTimer = SystemTimer.builder().executorName("pull-suspend-timer").build();
+    private final ExpirationReaper suspendReaper =
+            new ExpirationReaper("PullRequestHoldService-suspendReaper-thread", suspendTimer);
+    private final HeldRequestsCollector heldRequestsCollector = new HeldRequestsCollector();
 
     public PullRequestHoldService(final RocketMQBrokerController brokerController) {
         this.brokerController = brokerController;
     }
 
     public void suspendPullRequest(final String topic, final int queueId, final PullRequest pullRequest) {
-        String key = this.buildKey(topic, queueId);
-
-        ManyPullRequest mpr = this.pullRequestTable.get(key);
-        if (null == mpr) {
-            mpr = new ManyPullRequest();
-            ManyPullRequest prev = this.pullRequestTable.putIfAbsent(key, mpr);
-            if (prev != null) {
-                mpr = prev;
-            }
-        }
+        HeldRequest[] heldRequest = new HeldRequest[1];
+        // added under the lock of the table entry, so that an emptied partition is never removed concurrently
+        this.pullRequestTable.compute(new PartitionKey(topic, queueId), (key, partition) -> {
+            HeldPartition held = partition != null ? partition : new HeldPartition(key);
+            heldRequest[0] = held.add(pullRequest);
+            return held;
+        });
+        this.suspendTimer.add(heldRequest[0]);
+    }
 
-        mpr.addPullRequest(pullRequest);
+    @Override
+    public void start() {
+        super.start();
+        this.suspendReaper.start();
+        this.heldRequestsCollector.register();
     }
 
-    private String buildKey(final String topic, final int queueId) {
-        return topic + TOPIC_QUEUEID_SEPARATOR + queueId;
+    @Override
+    public void shutdown() {
+        CollectorRegistry.defaultRegistry.unregister(this.heldRequestsCollector);
+        this.suspendReaper.shutdown();
+        super.shutdown();
     }
 
     @Override
     public void run() {
         log.info("{} service started", this.getServiceName());
+        long lastCheckTime = System.currentTimeMillis();
         while (!this.isStopped()) {
             try {
-                if (this.brokerController.getServerConfig().isLongPollingEnable()) {
-                    this.waitForRunning(5 * 1000);
-                } else {
-                    this.waitForRunning(this.brokerController.getServerConfig().getShortPollingTimeMills());
-                }
-
-                long beginLockTimestamp = this.systemClock.now();
-                this.checkHoldRequest();
-                long costTime = this.systemClock.now() - beginLockTimestamp;
-                if (costTime > 5 * 1000) {
-                    log.info("[NOTIFYME] check hold request cost {} ms.", costTime);
+                // woken up by scheduleNotifyMessageArriving when messages arrive
+                this.waitForRunning(Math.max(lastCheckTime + HELD_CHECK_INTERVAL_MS - System.currentTimeMillis(),
+                        1L));
+                this.notifyArrivedMessages();
+                if (System.currentTimeMillis() - lastCheckTime >= HELD_CHECK_INTERVAL_MS) {
+                    lastCheckTime = System.currentTimeMillis();
+                    this.checkHeldPartitions();
                 }
             } catch (Throwable e) {
                 log.warn(this.getServiceName() + " service has exception. ", e);
@@ -94,85 +118,240 @@ public class PullRequestHoldService extends ServiceThread {
         return PullRequestHoldService.class.getSimpleName();
     }
 
-    private void checkHoldRequest() {
-        for (String key : this.pullRequestTable.keySet()) {
-            String[] kArray = key.split(TOPIC_QUEUEID_SEPARATOR);
-            if (2 == kArray.length) {
-                String topic = kArray[0];
-                int queueId = Integer.parseInt(kArray[1]);
-                long offset = Long.MAX_VALUE;
-                try {
-                    ClientTopicName clientTopicName = new ClientTopicName(topic);
-                    if (this.brokerController.getTopicConfigManager()
-                            .isPartitionTopicOwner(clientTopicName.toPulsarTopicName(), queueId)) {
-                        offset = this.brokerController.getConsumerOffsetManager()
-                                .getMaxOffsetInQueue(new ClientTopicName(topic), queueId);
-                    }
-                } catch (RopPersistentTopicException e) {
-                    //
-                }
-                try {
-                    this.notifyMessageArriving(topic, queueId, offset);
-                } catch (Throwable th) {
-                    log.warn("check hold request failed. topic: {}, queueId: {} ", topic, queueId, th);
-                }
+    /**
+     * Record that messages up to maxOffset have been published and wake up the service thread.
+     * Notifications for the same partition are coalesced until the service thread handles them,
+     * so a burst of publishes triggers a single wakeup of the suspended pull requests.
+     */
+    public void scheduleNotifyMessageArriving(final String topic, final int queueId, final long maxOffset) {
+        HeldPartition partition = this.pullRequestTable.get(new PartitionKey(topic, queueId));
+        if (partition == null) {
+            return;
+        }
+        partition.arrivedOffset.accumulateAndGet(maxOffset, Math::max);
+        if (partition.arrived.compareAndSet(false, true)) {
+            this.arrivedPartitions.offer(partition);
+            this.wakeup();
+        }
+    }
+
+    private void notifyArrivedMessages() {
+        HeldPartition partition;
+        while ((partition = this.arrivedPartitions.poll()) != null) {
+            partition.arrived.set(false);
+            long maxOffset = partition.arrivedOffset.getAndSet(-1L);
+            try {
+                notifyMessageArriving(partition, maxOffset);
+            } catch (Throwable th) {
+                log.warn("notify message arriving failed. topic: {}, queueId: {}, maxOffset: {} ",
+                        partition.key.topic, partition.key.queueId, maxOffset, th);
             }
         }
     }
 
+    /**
+     * Check the max offset of every partition with held requests, which also covers the messages published without
+     * a local notification and the requests suspended while their messages were arriving.
+     */
+    private void checkHeldPartitions() {
+        this.pullRequestTable.values().forEach(partition -> {
+            try {
+                notifyMessageArriving(partition, -1L);
+            } catch (Throwable th) {
+                log.warn("check held requests failed. topic: {}, queueId: {}", partition.key.topic,
+                        partition.key.queueId, th);
+            }
+        });
+    }
+
     public void notifyMessageArriving(final String topic, final int queueId, final long maxOffset) {
-        notifyMessageArriving(topic, queueId, maxOffset, null, 0, null, null);
-    }
-
-    public void notifyMessageArriving(final String topic, final int queueId, final long maxOffset, final Long tagsCode,
-            long msgStoreTime, byte[] filterBitMap, Map<String, String> properties) {
-        String key = this.buildKey(topic, queueId);
-        ManyPullRequest mpr = this.pullRequestTable.get(key);
-        if (mpr != null) {
-            List<PullRequest> requestList = mpr.cloneListAndClear();
-            if (requestList != null) {
-                List<PullRequest> replayList = new ArrayList<PullRequest>();
-
-                for (PullRequest request : requestList) {
-                    long newestOffset = maxOffset;
-                    if (newestOffset <= request.getPullFromThisOffset()) {
-                        try {
-                            newestOffset = this.brokerController.getConsumerOffsetManager()
-                                    .getMaxOffsetInQueue(new ClientTopicName(topic), queueId);
-                        } catch (RopPersistentTopicException e) {
-                            newestOffset = Long.MAX_VALUE;
-                        }
-                    }
-
-                    if (newestOffset > request.getPullFromThisOffset()) {
-                        try {
-                            this.brokerController.getPullMessageProcessor()
-                                    .executeRequestWhenWakeup(request.getClientChannel(),
-                                            request.getRequestCommand());
-                        } catch (Throwable e) {
-                            log.error("execute request when wakeup failed.", e);
-                        }
-                        continue;
-                    }
-
-                    if (System.currentTimeMillis() >= (request.getSuspendTimestamp() + request.getTimeoutMillis())) {
-                        try {
-                            this.brokerController.getPullMessageProcessor()
-                                    .executeRequestWhenWakeup(request.getClientChannel(),
-                                            request.getRequestCommand());
-                        } catch (Throwable e) {
-                            log.error("execute request when wakeup failed.", e);
-                        }
-                        continue;
-                    }
-
-                    replayList.add(request);
-                }
+        HeldPartition partition = this.pullRequestTable.get(new PartitionKey(topic, queueId));
+        if (partition != null) {
+            notifyMessageArriving(partition, maxOffset);
+        }
+    }
+
+    private void notifyMessageArriving(HeldPartition partition, long maxOffset) {
+        long newestOffset = partition.updateMaxOffset(maxOffset);
+        if (newestOffset <= partition.getHighestRequestedOffset()) {
+            // some requests are ahead of the known max offset, which is queried at most once per notification
+            try {
+                newestOffset = partition.updateMaxOffset(this.brokerController.getConsumerOffsetManager()
+                        .getMaxOffsetInQueue(new ClientTopicName(partition.key.topic), partition.key.queueId));
+            } catch (RopPersistentTopicException e) {
+                log.warn("get max offset failed, skip the held requests. topic: {}, queueId: {}",
+                        partition.key.topic, partition.key.queueId, e);
+            }
+        }
+        List<HeldRequest> arrivedRequests = partition.removeArrived(newestOffset);
+        if (arrivedRequests.isEmpty()) {
+            return;
+        }
+        this.pullRequestTable.computeIfPresent(partition.key, (key, held) -> held.isEmpty() ? null : held);
+        for (HeldRequest request : arrivedRequests) {
+            request.cancel();
+            executeRequestWhenWakeup(request.pullRequest);
+        }
+    }
+
+    private boolean remove(HeldRequest request) {
+        HeldPartition partition = request.partition;
+        if (!partition.remove(request)) {
+            return false;
+        }
+        this.pullRequestTable.computeIfPresent(partition.key, (key, held) -> held.isEmpty() ? null : held);
+        return true;
+    }
+
+    private void executeRequestWhenWakeup(PullRequest request) {
+        try {
+            this.brokerController.getPullMessageProcessor()
+                    .executeRequestWhenWakeup(request.getClientChannel(), request.getRequestCommand());
+        } catch (Throwable e) {
+            log.error("execute request when wakeup failed.", e);
+        }
+    }
 
-                if (!replayList.isEmpty()) {
-                    mpr.addPullRequest(replayList);
+    /**
+     * Get the number of the suspended pull requests.
+     */
+    public int getHeldRequestCount() {
+        return this.pullRequestTable.values().stream().mapToInt(HeldPartition::size).sum();
+    }
+
+    @EqualsAndHashCode
+    private static final class PartitionKey {
+        private final String topic;
+        private final int queueId;
+
+        private PartitionKey(String topic, int queueId) {
+            this.topic = topic;
+            this.queueId = queueId;
+        }
+    }
+
+    /**
+     * The suspended pull requests of a partition, guarded by itself.
+     * There's only one instance per partition while it has suspended requests.
+     *
+     * <p>The lowest and highest offsets of the held requests are cached along with the known max offset of the
+     * partition, so a check which can't wake up any request neither queries the max offset nor walks the requests.
+     */
+    private final class HeldPartition {
+        private final PartitionKey key;
+        private final Set<HeldRequest> requests = new LinkedHashSet<>();
+        private final AtomicLong arrivedOffset = new AtomicLong(-1L);
+        private final AtomicBoolean arrived = new AtomicBoolean();
+        private final AtomicLong maxOffset = new AtomicLong(-1L);
+        private long lowestRequestedOffset = Long.MAX_VALUE;
+        private long highestRequestedOffset = Long.MIN_VALUE;
+        // set when a request is removed by its timer, the cached bounds are recomputed on the next check
+        private boolean boundsStale;
+
+        private HeldPartition(PartitionKey key) {
+            this.key = key;
+        }
+
+        private synchronized HeldRequest add(PullRequest pullRequest) {
+            HeldRequest request = new HeldRequest(this, pullRequest);
+            requests.add(request);
+            lowestRequestedOffset = Math.min(lowestRequestedOffset, pullRequest.getPullFromThisOffset());
+            highestRequestedOffset = Math.max(highestRequestedOffset, pullRequest.getPullFromThisOffset());
+            return request;
+        }
+
+        private synchronized boolean remove(HeldRequest request) {
+            boolean removed = requests.remove(request);
+            boundsStale |= removed;
+            return removed;
+        }
+
+        private long updateMaxOffset(long offset) {
+            return maxOffset.accumulateAndGet(offset, Math::max);
+        }
+
+        private synchronized long getHighestRequestedOffset() {
+            refreshBounds();
+            return highestRequestedOffset;
+        }
+
+        /**
+         * Remove the requests which pull from an offset below newestOffset.
+         */
+        private synchronized List<HeldRequest> removeArrived(long newestOffset) {
+            refreshBounds();
+            if (newestOffset <= lowestRequestedOffset) {
+                return Collections.emptyList();
+            }
+            List<HeldRequest> arrivedRequests = new ArrayList<>();
+            Iterator<HeldRequest> iterator = requests.iterator();
+            while (iterator.hasNext()) {
+                HeldRequest request = iterator.next();
+                if (newestOffset > request.pullRequest.getPullFromThisOffset()) {
+                    iterator.remove();
+                    arrivedRequests.add(request);
                 }
             }
+            boundsStale = true;
+            refreshBounds();
+            return arrivedRequests;
+        }
+
+        private void refreshBounds() {
+            if (!boundsStale) {
+                return;
+            }
+            boundsStale = false;
+            lowestRequestedOffset = Long.MAX_VALUE;
+            highestRequestedOffset = Long.MIN_VALUE;
+            for (HeldRequest request : requests) {
+                lowestRequestedOffset = Math.min(lowestRequestedOffset, request.pullRequest.getPullFromThisOffset());
+                highestRequestedOffset = Math.max(highestRequestedOffset, request.pullRequest.getPullFromThisOffset());
+            }
+        }
+
+        private synchronized boolean isEmpty() {
+            return requests.isEmpty();
+        }
+
+        private synchronized int size() {
+            return requests.size();
+        }
+    }
+
+    /**
+     * A suspended pull request, which is woken up by the timer when its suspend timeout expires.
+     */
+    private final class HeldRequest extends TimerTask {
+        private final HeldPartition partition;
+        private final PullRequest pullRequest;
+
+        private HeldRequest(HeldPartition partition, PullRequest pullRequest) {
+            super(Math.max(pullRequest.getSuspendTimestamp() + pullRequest.getTimeoutMillis()
+                    - System.currentTimeMillis(), 0L));
+            this.partition = partition;
+            this.pullRequest = pullRequest;
+        }
+
+        @Override
+        public void run() {
+            if (remove(this)) {
+                executeRequestWhenWakeup(pullRequest);
+            }
+        }
+    }
+
+    /**
+     * Export the number of the suspended pull requests of each partition when it's scraped.
+     */
+    private final class HeldRequestsCollector extends Collector {
+        @Override
+        public List<MetricFamilySamples> collect() {
+            GaugeMetricFamily heldRequests = new GaugeMetricFamily("rop_held_pull_requests",
+                    "Number of the suspended pull requests of the partition", Arrays.asList("topic", "queue_id"));
+            pullRequestTable.forEach((key, partition) -> heldRequests.addMetric(
+                    Arrays.asList(key.topic, String.valueOf(key.queueId)), partition.size()));
+            return Collections.singletonList(heldRequests);
         }
     }
-}
\ No newline at end of file
+}
@@ -28,13 +28,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.logging.log4j.util.Strings;
 import org.apache.pulsar.broker.PulsarServerException;
-import org.apache.pulsar.broker.authentication.AuthenticationDataCommand;
-import org.apache.pulsar.broker.authentication.AuthenticationService;
 import org.apache.pulsar.broker.service.BrokerService;
-import org.apache.pulsar.common.naming.TopicName;
-import org.apache.pulsar.common.policies.data.TopicOperation;
 import org.apache.rocketmq.acl.common.AclException;
-import org.apache.rocketmq.acl.common.SessionCredentials;
 import org.apache.rocketmq.broker.client.ConsumerIdsChangeListener;
 import org.apache.rocketmq.broker.latency.BrokerFixedThreadPoolExecutor;
 import org.apache.rocketmq.broker.mqtrace.ConsumeMessageHook;
@@ -43,18 +38,22 @@ import org.apache.rocketmq.broker.util.ServiceProvider;
 import org.apache.rocketmq.common.ThreadFactoryImpl;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.protocol.RequestCode;
-import org.apache.rocketmq.common.protocol.header.PullMessageRequestHeader;
-import org.apache.rocketmq.common.protocol.header.SendMessageRequestHeader;
 import org.apache.rocketmq.remoting.RPCHook;
 import org.apache.rocketmq.remoting.netty.NettyRequestProcessor;
-import org.apache.rocketmq.remoting.protocol.RemotingCommand;
 import org.apache.rocketmq.store.MessageArrivingListener;
 import org.apache.rocketmq.store.stats.BrokerStats;
 import org.apache.rocketmq.store.stats.BrokerStatsManager;
 import org.streamnative.pulsar.handlers.rocketmq.RocketMQServiceConfiguration;
+import org.streamnative.pulsar.handlers.rocketmq.inner.acl.RopAclChecker;
+import org.streamnative.pulsar.handlers.rocketmq.inner.cache.RopEntryCache;
+import org.streamnative.pulsar.handlers.rocketmq.inner.consumer.ConsumerFilterManager;
 import org.streamnative.pulsar.handlers.rocketmq.inner.consumer.ConsumerManager;
 import org.streamnative.pulsar.handlers.rocketmq.inner.consumer.ConsumerOffsetManager;
+import org.streamnative.pulsar.handlers.rocketmq.inner.consumer.RopCursorManager;
 import org.streamnative.pulsar.handlers.rocketmq.inner.consumer.SubscriptionGroupManager;
+import org.streamnative.pulsar.handlers.rocketmq.inner.index.KeyIndexService;
+import org.streamnative.pulsar.handlers.rocketmq.inner.index.TagIndexManager;
+import org.streamnative.pulsar.handlers.rocketmq.inner.index.TimeIndexManager;
 import org.streamnative.pulsar.handlers.rocketmq.inner.listener.AbstractTransactionalMessageCheckListener;
 import org.streamnative.pulsar.handlers.rocketmq.inner.listener.DefaultConsumerIdsChangeListener;
 import org.streamnative.pulsar.handlers.rocketmq.inner.listener.DefaultTransactionalMessageCheckListener;
@@ -68,8 +67,11 @@ import org.streamnative.pulsar.handlers.rocketmq.inner.processor.EndTransactionP
 import org.streamnative.pulsar.handlers.rocketmq.inner.processor.PullMessageProcessor;
 import org.streamnative.pulsar.handlers.rocketmq.inner.processor.QueryMessageProcessor;
 import org.streamnative.pulsar.handlers.rocketmq.inner.processor.SendMessageProcessor;
-import org.streamnative.pulsar.handlers.rocketmq.inner.producer.ClientTopicName;
 import org.streamnative.pulsar.handlers.rocketmq.inner.producer.ProducerManager;
+import org.streamnative.pulsar.handlers.rocketmq.inner.producer.RopProducerPool;
+import org.streamnative.pulsar.handlers.rocketmq.inner.producer.RopPublishThrottler;
+import org.streamnative.pulsar.handlers.rocketmq.inner.timer.ExpirationReaper;
+import org.streamnative.pulsar.handlers.rocketmq.inner.timer.SystemTimer;
 
 /**
  * RocketMQ broker controller.
@@ -78,6 +80,8 @@ import org.streamnative.pulsar.handlers.rocketmq.inner.producer.ProducerManager;
 @Slf4j
 public class RocketMQBrokerController {
 
+    private static final long MB = 1024 * 1024;
+
     private final RocketMQServiceConfiguration serverConfig;
     private final ConsumerOffsetManager consumerOffsetManager;
     private final ConsumerManager consumerManager;
@@ -87,6 +91,15 @@ public class RocketMQBrokerController {
     private final PullRequestHoldService pullRequestHoldService;
     private final MessageArrivingListener messageArrivingListener;
     private final SubscriptionGroupManager subscriptionGroupManager;
+    private final TimeIndexManager timeIndexManager;
+    private final TagIndexManager tagIndexManager;
+    private final KeyIndexService keyIndexService;
+    private RopAclChecker aclChecker;
+    private final RopPublishThrottler publishThrottler;
+    private final RopProducerPool producerPool;
+    private final RopEntryCache entryCache;
+    private final RopCursorManager cursorManager;
+    private final ConsumerFilterManager consumerFilterManager;
     private final ConsumerIdsChangeListener consumerIdsChangeListener;
     private final RebalancedLockManager rebalancedLockManager = new RebalancedLockManager();
     private final ScheduledExecutorService scheduledExecutorService = Executors
@@ -106,6 +119,9 @@ public class RocketMQBrokerController {
     private final List<ConsumeMessageHook> consumeMessageHookList = new ArrayList<>();
     private final RocketMQRemoteServer remotingServer;
     private final Broker2Client broker2Client = new Broker2Client(this);
+    private final SystemTimer sendTimeoutTimer = SystemTimer.builder().executorName("send-timeout-timer").build();
+    private final ExpirationReaper sendTimeoutReaper =
+            new ExpirationReaper("RocketMQBrokerController-sendTimeoutReaper-thread", sendTimeoutTimer);
 
     private MQTopicManager topicConfigManager;
     private ExecutorService sendMessageExecutor;
@@ -139,6 +155,22 @@ public class RocketMQBrokerController {
         this.producerManager = new ProducerManager();
         this.clientHousekeepingService = new ClientHousekeepingService(this);
         this.subscriptionGroupManager = new SubscriptionGroupManager(this);
+        this.timeIndexManager = new TimeIndexManager(serverConfig.getRopTimeIndexIntervalMs());
+        this.tagIndexManager = new TagIndexManager(serverConfig.getRopTagIndexRangeSize());
+        this.keyIndexService = new KeyIndexService(serverConfig.getRopIndexStorePath(),
+                serverConfig.getRopIndexFileReservedTime());
+        this.publishThrottler = new RopPublishThrottler(() -> brokerService,
+                serverConfig.getRopMaxPublishBufferSizePerChannelInMB() * MB,
+                (serverConfig.getRopMaxPublishBufferSizeInMB() < 0
+                        ? 2L * serverConfig.getMaxMessagePublishBufferSizeInMB()
+                        : serverConfig.getRopMaxPublishBufferSizeInMB()) * MB);
+        this.producerPool = new RopProducerPool(() -> brokerService.pulsar().getClient(),
+                TimeUnit.SECONDS.toMillis(serverConfig.getRopProducerPoolIdleTimeoutInSeconds()));
+        this.entryCache = new RopEntryCache(serverConfig.getRopEntryCacheSizeInMB() * MB);
+        this.cursorManager = new RopCursorManager(
+                TimeUnit.SECONDS.toMillis(serverConfig.getRopCursorIdleTimeoutInSeconds()));
+        this.consumerFilterManager = new ConsumerFilterManager(serverConfig.getRopCompiledFilterCacheSize(),
+                serverConfig.getFilterDataCleanTimeSpan());
 
         this.sendThreadPoolQueue = new LinkedBlockingQueue<Runnable>(
                 this.serverConfig.getSendThreadPoolQueueCapacity());
@@ -223,6 +255,10 @@ public class RocketMQBrokerController {
 
         this.registerProcessor();
 
+        if (!this.keyIndexService.load()) {
+            log.error("Load message key index failed, the messages indexed before may not be found.");
+        }
+
         final long initialDelay = UtilAll.computeNextMorningTimeMillis() - System.currentTimeMillis();
         final long period = 1000 * 60 * 60 * 24;
         this.scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
@@ -284,112 +320,10 @@ public class RocketMQBrokerController {
         String[] parts = StringUtils.split(originalAuthToken, ":");
         String authToken = parts[1];
 
-        getRemotingServer().registerRPCHook(new RPCHook() {
-            @Override
-            public void doBeforeRequest(String remoteAddr, RemotingCommand request) {
-                if (request.getExtFields() == null) {
-                    // If request's extFields is null,then return "".
-                    return;
-                }
-
-                // token authorization logic
-                String token = request.getExtFields().get(SessionCredentials.ACCESS_KEY);
-                if (Strings.EMPTY.equals(token)) {
-                    log.error("The access key is null, please check.");
-                    throw new AclException("No accessKey is configured");
-                }
-                AuthenticationService authService = brokerService.getAuthenticationService();
-                AuthenticationDataCommand authCommand = new AuthenticationDataCommand(token);
-
-                log.info("The user upload token is: {} and the superuser token is: {}", token, authToken);
-                if (RequestCode.SEND_MESSAGE == request.getCode()
-                        || RequestCode.SEND_MESSAGE_V2 == request.getCode()
-                        || RequestCode.CONSUMER_SEND_MSG_BACK == request.getCode()
-                        || RequestCode.SEND_BATCH_MESSAGE == request.getCode()) {
-
-                    try {
-                        SendMessageRequestHeader requestHeader = SendMessageProcessor
-                                .parseRequestHeader(request);
-                        if (requestHeader == null) {
-                            log.warn("Parse send message request header.");
-                            return;
-                        }
-
-                        log.info("The use topic is: {}", requestHeader.getTopic());
-                        String roleSubject = authService.authenticate(authCommand, "token");
-                        if (Strings.EMPTY.equals(roleSubject)) {
-                            log.error("The upload token:{} is wrong.", token);
-                            throw new AclException("[PRODUCE] The uploaded token is wrong");
-                        }
-
-                        ClientTopicName clientTopicName = new ClientTopicName(requestHeader.getTopic());
-                        String topicName = clientTopicName.getPulsarTopicName();
-
-                        Boolean authOK = brokerService.getAuthorizationService()
-                                .allowTopicOperationAsync(TopicName.get(topicName), TopicOperation.PRODUCE,
-                                        roleSubject,
-                                        authCommand).get();
-                        if (!authOK) {
-                            log.error("[PRODUCE] Token authentication failed, please check");
-                            throw new AclException("[PRODUCE] Token authentication failed, please check");
-                        }
-
-                        log.info("Successfully for send auth: {}", authOK);
-                    } catch (Exception e) {
-                        log.error("[PRODUCE] Throws exception:{}", e.getMessage());
-                        throw new RuntimeException(e);
-                    }
-                } else if (RequestCode.PULL_MESSAGE == request.getCode()) {
-                    try {
-                        final PullMessageRequestHeader requestHeader =
-                                (PullMessageRequestHeader) request
-                                        .decodeCommandCustomHeader(PullMessageRequestHeader.class);
-
-                        String roleSubject = authService.authenticate(authCommand, "token");
-                        if (Strings.EMPTY.equals(roleSubject)) {
-                            log.error("The upload token:{} is wrong.", token);
-                            throw new AclException("[CONSUME] The uploaded token is wrong");
-                        }
-
-                        ClientTopicName clientTopicName = new ClientTopicName(requestHeader.getTopic());
-                        String topicName = clientTopicName.getPulsarTopicName();
-                        Boolean authOK = brokerService.getAuthorizationService()
-                                .allowTopicOperationAsync(TopicName.get(topicName), TopicOperation.PRODUCE,
-                                        roleSubject,
-                                        authCommand).get();
-                        if (!authOK) {
-                            log.error("[CONSUME] Token authentication failed, please check");
-                            throw new AclException("[CONSUME] Token authentication failed, please check");
-                        }
-                        log.info("Successfully for receive auth");
-                    } catch (Exception e) {
-                        log.error("[CONSUME] Throws exception:{}", e.getMessage());
-                        throw new RuntimeException(e);
-                    }
-                } else if (RequestCode.UPDATE_AND_CREATE_TOPIC == request.getCode()
-                        || RequestCode.DELETE_TOPIC_IN_BROKER == request.getCode()
-                        || RequestCode.UPDATE_BROKER_CONFIG == request.getCode()
-                        || RequestCode.UPDATE_AND_CREATE_SUBSCRIPTIONGROUP == request.getCode()
-                        || RequestCode.DELETE_SUBSCRIPTIONGROUP == request.getCode()
-                        || RequestCode.INVOKE_BROKER_TO_RESET_OFFSET == request.getCode()) {
-
-                    log.info("Into admin auth logic and the check is: {}", authToken.equals(token));
-                    if (!authToken.equals(token)) {
-                        log.error("[ADMIN] Token authentication failed, please check");
-                        throw new AclException("[ADMIN] Token authentication failed, please check");
-                    }
-                    log.info("Successfully for admin auth");
-                } else {
-                    log.info("No auth check.");
-                }
-
-            }
-
-            @Override
-            public void doAfterResponse(String remoteAddr, RemotingCommand request, RemotingCommand response) {
-            }
-        });
-
+        this.aclChecker = new RopAclChecker(() -> brokerService.getAuthenticationService(),
+                () -> brokerService.getAuthorizationService(), authToken,
+                this.serverConfig.getRopAclCacheExpireTimeInSeconds());
+        getRemotingServer().registerAclChecker(this.aclChecker);
     }
 
     private void initialRpcHooks() {
@@ -569,10 +503,17 @@ public class RocketMQBrokerController {
             this.pullRequestHoldService.shutdown();
         }
 
+        this.keyIndexService.shutdown();
+
         if (this.remotingServer != null) {
             this.remotingServer.shutdown();
         }
 
+        this.sendTimeoutReaper.shutdown();
+        this.producerPool.close();
+        this.entryCache.clear();
+        this.cursorManager.close();
+
         this.scheduledExecutorService.shutdown();
         try {
             this.scheduledExecutorService.awaitTermination(5000, TimeUnit.MILLISECONDS);
@@ -632,6 +573,49 @@ public class RocketMQBrokerController {
             this.pullRequestHoldService.start();
         }
 
+        this.sendTimeoutReaper.start();
+        this.keyIndexService.start();
+
+        int publishBufferCheckInterval =
+                this.brokerService.pulsar().getConfiguration().getMessagePublishBufferCheckIntervalInMillis();
+        if (publishBufferCheckInterval > 0) {
+            this.scheduledExecutorService.scheduleWithFixedDelay(() -> {
+                try {
+                    this.publishThrottler.checkPublishBuffer();
+                } catch (Throwable e) {
+                    log.error("check publish buffer error.", e);
+                }
+            }, publishBufferCheckInterval, publishBufferCheckInterval, TimeUnit.MILLISECONDS);
+        }
+
+        this.scheduledExecutorService.scheduleAtFixedRate(() -> {
+            try {
+                this.producerPool.evictIdleProducers();
+            } catch (Throwable e) {
+                log.error("evict idle pooled producers error.", e);
+            }
+            try {
+                this.cursorManager.evictIdleCursors();
+            } catch (Throwable e) {
+                log.error("evict idle cursors error.", e);
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+
+        if (this.tagIndexManager.isEnabled()) {
+            this.scheduledExecutorService.scheduleWithFixedDelay(() -> {
+                try {
+                    this.tagIndexManager.flush();
+                } catch (Throwable e) {
+                    log.error("flush tag indexes error.", e);
+                }
+            }, 10, 10, TimeUnit.SECONDS);
+        }
+
+        if (this.aclChecker != null) {
+            this.aclChecker.registerPoliciesListener(
+                    this.brokerService.pulsar().getConfigurationCache().policiesCache());
+        }
+
         if (this.clientHousekeepingService != null) {
             this.clientHousekeepingService.start();
         }
@@ -54,6 +54,7 @@ import org.apache.rocketmq.remoting.netty.TlsHelper;
 import org.apache.rocketmq.remoting.netty.TlsSystemConfig;
 import org.apache.rocketmq.remoting.protocol.RemotingCommand;
 import org.streamnative.pulsar.handlers.rocketmq.RocketMQServiceConfiguration;
+import org.streamnative.pulsar.handlers.rocketmq.inner.acl.RopAclChecker;
 import org.streamnative.pulsar.handlers.rocketmq.utils.FileRegionEncoder;
 
 /**
@@ -187,6 +188,10 @@ public class RocketMQRemoteServer extends NettyRemotingAbstract implements Remot
         }
     }
 
+    public void registerAclChecker(RopAclChecker aclChecker) {
+        this.aclChecker = aclChecker;
+    }
+
     @Override
     public void registerProcessor(int requestCode, NettyRequestProcessor processor, ExecutorService executor) {
         ExecutorService executorThis = executor;
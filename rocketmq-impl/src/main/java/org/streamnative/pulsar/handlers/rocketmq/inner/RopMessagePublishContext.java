@@ -14,6 +14,7 @@
 
 package org.streamnative.pulsar.handlers.rocketmq.inner;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.util.Recycler;
 import io.netty.util.Recycler.Handle;
 import java.util.concurrent.CompletableFuture;
@@ -21,6 +22,8 @@ import java.util.concurrent.TimeUnit;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.pulsar.broker.service.Topic;
 import org.apache.pulsar.broker.service.Topic.PublishContext;
+import org.apache.rocketmq.store.MessageArrivingListener;
+import org.streamnative.pulsar.handlers.rocketmq.inner.cache.RopEntryCache;
 import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
 
 /**
@@ -33,6 +36,12 @@ public final class RopMessagePublishContext implements PublishContext {
     private Topic topic;
     private long startTimeNs;
     private long partitionId;
+    private String rmqTopic;
+    private int numMessages;
+    private MessageArrivingListener messageArrivingListener;
+    private RopEntryCache entryCache;
+    private String partitionTopic;
+    private ByteBuf entry;
 
     /**
      * Executed from managed ledger thread when the message is persisted.
@@ -44,6 +53,9 @@ public final class RopMessagePublishContext implements PublishContext {
             log.error("Failed write entry: ledgerId: {}, entryId: {}. triggered send callback.",
                     ledgerId, entryId);
             offsetFuture.completeExceptionally(exception);
+            if (entry != null) {
+                entry.release();
+            }
         } else {
             if (log.isDebugEnabled()) {
                 log.debug("Success write topic: {}, ledgerId: {}, entryId: {}"
@@ -53,22 +65,49 @@ public final class RopMessagePublishContext implements PublishContext {
 
             topic.recordAddLatency(System.nanoTime() - startTimeNs, TimeUnit.MICROSECONDS);
 
-            offsetFuture.complete(MessageIdUtils.getOffset(ledgerId, entryId, partitionId));
+            // cache the entry before the pull requests are woken up, so they can read it from the cache
+            if (entry != null) {
+                entryCache.put(partitionTopic, ledgerId, entryId, entry);
+            }
+
+            long offset = MessageIdUtils.getOffset(ledgerId, entryId, partitionId);
+            offsetFuture.complete(offset);
+
+            // wake up the pull requests suspended on this partition
+            if (messageArrivingListener != null) {
+                messageArrivingListener.arriving(rmqTopic, (int) partitionId, offset + numMessages - 1,
+                        0L, 0L, null, null);
+            }
         }
 
         recycle();
     }
 
-    // recycler
+    /**
+     * Get a publish context from the recycler, if the entry is not null it's put into the entry cache once it's
+     * persisted, the context takes the ownership of the retained entry buffer.
+     */
     public static RopMessagePublishContext get(CompletableFuture<Long> offsetFuture,
             Topic topic,
             long startTimeNs,
-            long partitionId) {
+            long partitionId,
+            String rmqTopic,
+            int numMessages,
+            MessageArrivingListener messageArrivingListener,
+            RopEntryCache entryCache,
+            String partitionTopic,
+            ByteBuf entry) {
         RopMessagePublishContext callback = RECYCLER.get();
         callback.offsetFuture = offsetFuture;
         callback.topic = topic;
         callback.startTimeNs = startTimeNs;
         callback.partitionId = partitionId;
+        callback.rmqTopic = rmqTopic;
+        callback.numMessages = numMessages;
+        callback.messageArrivingListener = messageArrivingListener;
+        callback.entryCache = entryCache;
+        callback.partitionTopic = partitionTopic;
+        callback.entry = entry;
         return callback;
     }
 
@@ -89,6 +128,11 @@ public final class RopMessagePublishContext implements PublishContext {
         offsetFuture = null;
         topic = null;
         startTimeNs = -1;
+        rmqTopic = null;
+        messageArrivingListener = null;
+        entryCache = null;
+        partitionTopic = null;
+        entry = null;
         recyclerHandle.recycle(this);
     }
 }
@@ -14,10 +14,6 @@
 
 package org.streamnative.pulsar.handlers.rocketmq.inner;
 
-import static org.streamnative.pulsar.handlers.rocketmq.utils.CommonUtils.SLASH_CHAR;
-
-import com.google.common.base.Function;
-import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheBuilder;
@@ -25,41 +21,38 @@ import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import java.net.SocketAddress;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.ReentrantLock;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
 import org.apache.bookkeeper.mledger.Entry;
 import org.apache.bookkeeper.mledger.ManagedCursor;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
 import org.apache.bookkeeper.mledger.impl.PositionImpl;
-import org.apache.bookkeeper.mledger.util.Futures;
 import org.apache.commons.compress.utils.Lists;
 import org.apache.commons.lang.exception.ExceptionUtils;
-import org.apache.pulsar.broker.PulsarServerException;
 import org.apache.pulsar.broker.service.BrokerService;
 import org.apache.pulsar.broker.service.persistent.PersistentTopic;
 import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.api.MessageId;
-import org.apache.pulsar.client.api.Producer;
 import org.apache.pulsar.client.api.PulsarClientException;
 import org.apache.pulsar.client.api.Reader;
 import org.apache.pulsar.client.impl.ClientCnx;
 import org.apache.pulsar.client.impl.MessageIdImpl;
-import org.apache.pulsar.client.impl.ProducerImpl;
 import org.apache.pulsar.common.naming.TopicName;
 import org.apache.pulsar.common.util.FutureUtil;
-import org.apache.pulsar.common.util.collections.ConcurrentLongHashMap;
 import org.apache.rocketmq.common.SystemClock;
 import org.apache.rocketmq.common.message.MessageAccessor;
 import org.apache.rocketmq.common.message.MessageConst;
@@ -76,14 +69,23 @@ import org.apache.rocketmq.store.MessageExtBrokerInner;
 import org.apache.rocketmq.store.PutMessageResult;
 import org.apache.rocketmq.store.PutMessageStatus;
 import org.streamnative.pulsar.handlers.rocketmq.RocketMQProtocolHandler;
+import org.streamnative.pulsar.handlers.rocketmq.inner.cache.RopEntryCache;
+import org.streamnative.pulsar.handlers.rocketmq.inner.consumer.RopCursorManager.CursorLease;
 import org.streamnative.pulsar.handlers.rocketmq.inner.consumer.RopGetMessageResult;
 import org.streamnative.pulsar.handlers.rocketmq.inner.exception.RopEncodeException;
 import org.streamnative.pulsar.handlers.rocketmq.inner.exception.RopPersistentTopicException;
 import org.streamnative.pulsar.handlers.rocketmq.inner.format.RopEntryFormatter;
+import org.streamnative.pulsar.handlers.rocketmq.inner.format.RopEntryFormatter.BatchEntry;
 import org.streamnative.pulsar.handlers.rocketmq.inner.format.RopMessageFilter;
+import org.streamnative.pulsar.handlers.rocketmq.inner.index.KeyIndexService;
+import org.streamnative.pulsar.handlers.rocketmq.inner.index.TagIndex;
+import org.streamnative.pulsar.handlers.rocketmq.inner.index.TimeIndex;
 import org.streamnative.pulsar.handlers.rocketmq.inner.producer.ClientTopicName;
+import org.streamnative.pulsar.handlers.rocketmq.inner.producer.RopProducerPool;
+import org.streamnative.pulsar.handlers.rocketmq.inner.producer.RopProducerPool.PooledProducer;
 import org.streamnative.pulsar.handlers.rocketmq.inner.pulsar.PulsarMessageStore;
 import org.streamnative.pulsar.handlers.rocketmq.inner.request.PullRequestFilterKey;
+import org.streamnative.pulsar.handlers.rocketmq.inner.timer.TimerTask;
 import org.streamnative.pulsar.handlers.rocketmq.utils.CommonUtils;
 import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
 import org.streamnative.pulsar.handlers.rocketmq.utils.RocketMQTopic;
@@ -95,16 +97,13 @@ import org.streamnative.pulsar.handlers.rocketmq.utils.RocketMQTopic;
 @Getter
 public class RopServerCnx extends ChannelInboundHandlerAdapter implements PulsarMessageStore {
 
-    private static final int sendTimeoutInSec = 500;
-    private static final int maxBatchMessageNum = 20;
+    private static final int sendTimeoutInMs = 500;
     private static final int fetchTimeoutInMs = 100;
     private static final String ropHandlerName = "RopServerCnxHandler";
     private final BrokerService service;
-    private final ConcurrentLongHashMap<Producer<byte[]>> producers;
-    private final ConcurrentHashMap<String, ManagedCursor> cursors;
+    private final ConcurrentHashMap<String, PooledProducer> producers;
     private final HashMap<Long, Reader<byte[]>> lookMsgReaders;
     private final RopEntryFormatter entryFormatter = new RopEntryFormatter();
-    private final ReentrantLock readLock = new ReentrantLock();
     private final ReentrantLock lookMsgLock = new ReentrantLock();
     private final SystemClock systemClock = new SystemClock();
     private RocketMQBrokerController brokerController;
@@ -127,14 +126,15 @@ public class RopServerCnx extends ChannelInboundHandlerAdapter implements Pulsar
         this.ctx = ctx;
         this.remoteAddress = ctx.channel().remoteAddress();
         this.state = State.Connected;
-        this.producers = new ConcurrentLongHashMap(2, 1);
+        this.producers = new ConcurrentHashMap<>(4);
         this.lookMsgReaders = new HashMap<>();
-        this.cursors = new ConcurrentHashMap<>(4);
         synchronized (ctx) {
             if (ctx.pipeline().get(ropHandlerName) == null) {
                 ctx.pipeline().addLast(ropHandlerName, this);
             }
         }
+        // there may be several cnx of a channel, but only one of them is in the pipeline
+        ctx.channel().closeFuture().addListener(future -> releaseProducers());
     }
 
     @Override
@@ -146,11 +146,6 @@ public class RopServerCnx extends ChannelInboundHandlerAdapter implements Pulsar
     public void channelInactive(ChannelHandlerContext ctx) throws Exception {
         super.channelInactive(ctx);
         log.info("Closed connection from {}", remoteAddress);
-        // Connection is gone, close the resources immediately
-        producers.values().forEach(Producer::closeAsync);
-        cursors.values().forEach(v -> v.asyncClose(new Futures.CloseFuture(), null));
-        producers.clear();
-        cursors.clear();
     }
 
     @Override
@@ -174,18 +169,45 @@ public class RopServerCnx extends ChannelInboundHandlerAdapter implements Pulsar
     }
 
     @Override
-    public PutMessageResult putMessage(MessageExtBrokerInner messageInner, String producerGroup) {
+    public CompletableFuture<PutMessageResult> putMessage(MessageExtBrokerInner messageInner, String producerGroup) {
         Preconditions.checkNotNull(messageInner);
         Preconditions.checkNotNull(producerGroup);
         RocketMQTopic rmqTopic = new RocketMQTopic(messageInner.getTopic());
         int partitionId = messageInner.getQueueId();
         String pTopic = rmqTopic.getPartitionName(partitionId);
+        // the bucket topic of the message delivered at an arbitrary time
+        CompletableFuture<String> delayedBucketTopic = null;
+        // a delayed message is indexed when it's republished into its real topic
+        boolean delayed = false;
 
         final int tranType = MessageSysFlag.getTransactionValue(messageInner.getSysFlag());
         if (tranType == MessageSysFlag.TRANSACTION_NOT_TYPE
                 || tranType == MessageSysFlag.TRANSACTION_COMMIT_TYPE) {
+            long startDeliverTime = ScheduleMessageService.getStartDeliverTime(messageInner);
+            long now = System.currentTimeMillis();
             // Delay Delivery
-            if (messageInner.getDelayTimeLevel() > 0 && !rmqTopic.isDLQTopic()) {
+            if (messageInner.getDelayTimeLevel() <= 0 && startDeliverTime > now && !rmqTopic.isDLQTopic()) {
+                long maxDelayMs = TimeUnit.SECONDS.toMillis(this.brokerController.getServerConfig()
+                        .getRopMaxDelayInSeconds());
+                if (startDeliverTime - now > maxDelayMs) {
+                    log.warn("PutMessage the start deliver time [{}] of the message exceeds the max delay.",
+                            startDeliverTime);
+                    return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL,
+                            new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR)));
+                }
+                delayedBucketTopic = this.brokerController.getDelayedMessageService()
+                        .getDelayedBucketTopic(startDeliverTime);
+                delayed = true;
+
+                MessageAccessor.putProperty(messageInner, MessageConst.PROPERTY_REAL_TOPIC, messageInner.getTopic());
+                MessageAccessor.putProperty(messageInner, MessageConst.PROPERTY_REAL_QUEUE_ID,
+                        String.valueOf(messageInner.getQueueId()));
+                messageInner.setPropertiesString(MessageDecoder.messageProperties2String(messageInner.getProperties()));
+                partitionId = 0;
+                pTopic = this.brokerController.getDelayedMessageService().getDelayedBucketPartition(startDeliverTime);
+                messageInner.setTopic(pTopic);
+                messageInner.setQueueId(partitionId);
+            } else if (messageInner.getDelayTimeLevel() > 0 && !rmqTopic.isDLQTopic()) {
                 if (messageInner.getDelayTimeLevel() > this.brokerController.getServerConfig().getMaxDelayLevelNum()) {
                     messageInner.setDelayTimeLevel(this.brokerController.getServerConfig().getMaxDelayLevelNum());
                 }
@@ -194,6 +216,7 @@ public class RopServerCnx extends ChannelInboundHandlerAdapter implements Pulsar
                 partitionId = partitionId % totalQueueNum;
                 pTopic = this.brokerController.getDelayedMessageService()
                         .getDelayedTopicName(messageInner.getDelayTimeLevel(), partitionId);
+                delayed = true;
 
                 MessageAccessor.putProperty(messageInner, MessageConst.PROPERTY_REAL_TOPIC, messageInner.getTopic());
                 MessageAccessor.putProperty(messageInner, MessageConst.PROPERTY_REAL_QUEUE_ID,
@@ -205,219 +228,300 @@ public class RopServerCnx extends ChannelInboundHandlerAdapter implements Pulsar
             }
         }
 
-        try {
-            List<byte[]> body = this.entryFormatter.encode(messageInner, 1);
-            long offset;
+        final String topic = messageInner.getTopic();
+        final String partitionTopic = pTopic;
+        final int queueId = partitionId;
+        final int wroteBytes;
 
+        CompletableFuture<Long> offsetFuture;
+        try {
             /*
              * Optimize the production performance of publish messages.
-             * If the broker is the owner of the current partitioned topic, directly use the PersistentTopic interface
-             * for publish message.
+             * If the broker is the owner of the current partitioned topic, directly use the PersistentTopic
+             * interface for publish message, the message is encoded into the entry buffer without copies.
              */
-            if (this.brokerController.getTopicConfigManager()
+            if (delayedBucketTopic == null && this.brokerController.getTopicConfigManager()
                     .isPartitionTopicOwner(rmqTopic.getPulsarTopicName(), partitionId)) {
-                try {
-                    PersistentTopic persistentTopic = this.brokerController.getTopicConfigManager()
-                            .getPulsarPersistentTopic(pTopic);
-                    if (persistentTopic == null) {
-                        return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE,
-                                new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR));
-                    }
-
-                    CompletableFuture<Long> offsetFuture = publishMessage(body.get(0), persistentTopic, pTopic,
-                            partitionId);
-                    offset = offsetFuture.get(sendTimeoutInSec, TimeUnit.MILLISECONDS);
-                } catch (TimeoutException e) {
-                    log.error("Topic [{}] putMessage timeout.", pTopic, e);
-                    return new PutMessageResult(PutMessageStatus.FLUSH_DISK_TIMEOUT,
-                            new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR));
-                } catch (Exception e) {
-                    log.error("Topic [{}] putMessage error.", pTopic, e);
-                    return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE,
-                            new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR));
+                PersistentTopic persistentTopic = this.brokerController.getTopicConfigManager()
+                        .getPulsarPersistentTopic(partitionTopic);
+                if (persistentTopic == null) {
+                    return CompletableFuture.completedFuture(
+                            new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE,
+                                    new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR)));
+                }
+                ByteBuf entry = this.entryFormatter.encodeEntry(messageInner);
+                wroteBytes = entry.readableBytes();
+                startSendOperation(wroteBytes);
+                offsetFuture = publishEntry(entry, 1, messageInner.getStoreTimestamp(),
+                        new long[] {RopEntryFormatter.getTagsCode(messageInner)}, topic, persistentTopic,
+                        partitionTopic, partitionId);
+                if (!delayed) {
+                    // the keys are indexed by the owner, which serves the queries of the partition
+                    offsetFuture.thenAccept(
+                            offset -> this.brokerController.getKeyIndexService().putRequest(messageInner, offset));
                 }
             } else {
-                long producerId = buildPulsarProducerId(producerGroup, pTopic,
-                        ctx.channel().remoteAddress().toString());
-                Producer<byte[]> producer = this.producers.get(producerId);
-                if (producer == null) {
-                    log.info("putMessage creating producer[id={}] and channl=[{}].", producerId, ctx.channel());
-                    synchronized (this.producers) {
-                        if (this.producers.get(producerId) == null) {
-                            producer = this.service.pulsar().getClient()
-                                    .newProducer()
-                                    .topic(pTopic)
-                                    .maxPendingMessages(500)
-                                    .producerName(producerGroup + CommonUtils.UNDERSCORE_CHAR + producerId)
-                                    .sendTimeout(sendTimeoutInSec, TimeUnit.MILLISECONDS)
-                                    .enableBatching(false)
-                                    .create();
-                            Producer<byte[]> oldProducer = this.producers.put(producerId, producer);
-                            if (oldProducer != null) {
-                                oldProducer.closeAsync();
-                            }
-                        }
-                    }
+                // the pooled producer sends the encoded record as the payload of a Pulsar message
+                final byte[] body = this.entryFormatter.encode(messageInner, 1).get(0);
+                wroteBytes = body.length;
+                startSendOperation(wroteBytes);
+                CompletableFuture<MessageId> sendFuture;
+                if (delayedBucketTopic == null) {
+                    sendFuture = getOrAcquireProducer(partitionTopic).sendAsync(body);
+                } else {
+                    // the slot topics are shared by all the connections, their producers are pooled by the broker
+                    RopProducerPool producerPool = this.brokerController.getProducerPool();
+                    sendFuture = delayedBucketTopic.thenCompose(bucketTopic -> {
+                        PooledProducer producer = producerPool.acquire(bucketTopic);
+                        return producer.sendAsync(body).whenComplete((messageId, e) -> producerPool.release(producer));
+                    });
                 }
-                MessageIdImpl messageId = (MessageIdImpl) this.producers.get(producerId).send(body.get(0));
-                offset = MessageIdUtils.getOffset(messageId.getLedgerId(), messageId.getEntryId(), partitionId);
+                offsetFuture = sendFuture
+                        .thenApply(messageId -> MessageIdUtils.getOffset((MessageIdImpl) messageId, queueId));
+                offsetFuture.thenAccept(offset -> this.brokerController.getMessageArrivingListener()
+                        .arriving(topic, queueId, offset, 0L, 0L, null, null));
             }
+        } catch (RopEncodeException e) {
+            log.warn("PutMessage encode error.", e);
+            return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL,
+                    new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR)));
+        }
+        // release the in-flight bytes when the publish is really completed, even if the send is timed out
+        offsetFuture = offsetFuture.whenComplete((offset, e) -> completedSendOperation(wroteBytes));
 
+        return withSendTimeout(offsetFuture, partitionTopic).handle((offset, e) -> {
+            if (e != null) {
+                return putMessageFailed(partitionTopic, e);
+            }
             AppendMessageResult appendMessageResult = new AppendMessageResult(AppendMessageStatus.PUT_OK);
             appendMessageResult.setMsgNum(1);
-            appendMessageResult.setWroteBytes(body.get(0).length);
+            appendMessageResult.setWroteBytes(wroteBytes);
             appendMessageResult.setMsgId(
                     CommonUtils.createMessageId(this.ctx.channel().localAddress(), localListenPort, offset));
             appendMessageResult.setLogicsOffset(offset);
             appendMessageResult.setWroteOffset(offset);
             return new PutMessageResult(PutMessageStatus.PUT_OK, appendMessageResult);
-        } catch (RopEncodeException e) {
-            log.warn("PutMessage encode error.", e);
-        } catch (PulsarClientException e) {
-            log.warn("PutMessage send error.", e);
-        } catch (Exception e) {
-            log.warn("PutMessage error.", e);
-        }
-        PutMessageStatus status = PutMessageStatus.FLUSH_DISK_TIMEOUT;
-        AppendMessageResult temp = new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
-        return new PutMessageResult(status, temp);
+        });
     }
 
     @Override
-    public PutMessageResult putMessages(MessageExtBatch batchMessage, String producerGroup) {
+    public CompletableFuture<PutMessageResult> putMessages(MessageExtBatch batchMessage, String producerGroup) {
         RocketMQTopic rmqTopic = new RocketMQTopic(batchMessage.getTopic());
         int partitionId = batchMessage.getQueueId();
         String pTopic = rmqTopic.getPartitionName(partitionId);
 
+        final int totalBytesSize;
+        List<CompletableFuture<Long>> batchMessageFutures = new ArrayList<>();
         try {
-            StringBuilder sb = new StringBuilder();
-            int totalBytesSize = 0;
-            int messageNum = 0;
-
             /*
              * Optimize the production performance of batch publish messages.
-             * If the broker is the owner of the current partitioned topic, directly use the PersistentTopic interface
-             * for publish message.
+             * If the broker is the owner of the current partitioned topic, directly use the PersistentTopic
+             * interface for publish message, the messages are encoded into the entry buffers without copies.
              */
             if (this.brokerController.getTopicConfigManager()
                     .isPartitionTopicOwner(rmqTopic.getPulsarTopicName(), partitionId)) {
                 PersistentTopic persistentTopic = this.brokerController.getTopicConfigManager()
                         .getPulsarPersistentTopic(pTopic);
                 if (persistentTopic == null) {
-                    return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE,
-                            new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR));
+                    return CompletableFuture.completedFuture(
+                            new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE,
+                                    new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR)));
                 }
-
-                List<byte[]> bodies = this.entryFormatter.encode(batchMessage, 1);
-                List<CompletableFuture<Long>> batchMessageFutures = new ArrayList<>(bodies.size());
-                for (byte[] body : bodies) {
-                    try {
-                        CompletableFuture<Long> offsetFuture = publishMessage(body, persistentTopic, pTopic,
-                                partitionId);
-                        batchMessageFutures.add(offsetFuture);
-                        messageNum++;
-                        totalBytesSize += body.length;
-                    } catch (Exception e) {
-                        log.error("Topic [{}] putMessage error", pTopic, e);
-                        return new PutMessageResult(PutMessageStatus.SERVICE_NOT_AVAILABLE,
-                                new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR));
-                    }
+                // the batch is packed into as few entries as possible, messages of an entry have consecutive offsets
+                List<BatchEntry> entries = this.entryFormatter.encodeEntries(batchMessage);
+                int entriesBytes = 0;
+                for (BatchEntry batchEntry : entries) {
+                    entriesBytes += batchEntry.getEntry().readableBytes();
                 }
+                totalBytesSize = entriesBytes;
+                startSendOperation(totalBytesSize);
+                int published = 0;
                 try {
-                    FutureUtil.waitForAll(batchMessageFutures).get(sendTimeoutInSec, TimeUnit.MILLISECONDS);
-                } catch (TimeoutException e) {
-                    log.error("Topic [{}] putMessages timeout.", pTopic, e);
-                    return new PutMessageResult(PutMessageStatus.FLUSH_DISK_TIMEOUT,
-                            new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR));
-                }
-                for (CompletableFuture<Long> f : batchMessageFutures) {
-                    String msgId = CommonUtils
-                            .createMessageId(this.ctx.channel().localAddress(), localListenPort, f.get());
-                    sb.append(msgId).append(",");
-                }
-            } else {
-                long producerId = buildPulsarProducerId(producerGroup, pTopic, this.remoteAddress.toString());
-                Producer<byte[]> putMsgProducer = this.producers.get(producerId);
-                if (putMsgProducer == null) {
-                    synchronized (this.producers) {
-                        if (this.producers.get(producerId) == null) {
-                            log.info("putMessages creating producer[id={}].", producerId);
-                            putMsgProducer = this.service.pulsar().getClient().newProducer()
-                                    .topic(pTopic)
-                                    .producerName(producerGroup + producerId)
-                                    .batchingMaxPublishDelay(fetchTimeoutInMs, TimeUnit.MILLISECONDS)
-                                    .sendTimeout(sendTimeoutInSec, TimeUnit.MILLISECONDS)
-                                    .batchingMaxMessages(maxBatchMessageNum)
-                                    .enableBatching(true)
-                                    .create();
-                            log.info("putMessages create producer[id={}] conf=[{}] successfully.", producerId,
-                                    ((ProducerImpl) putMsgProducer).getConfiguration());
-                            Producer<byte[]> oldProducer = this.producers.put(producerId, putMsgProducer);
-                            if (oldProducer != null) {
-                                oldProducer.closeAsync();
-                            }
+                    while (published < entries.size()) {
+                        // the entry is released by the publish once it's taken
+                        BatchEntry batchEntry = entries.get(published++);
+                        CompletableFuture<Long> entryFuture = publishMessages(batchEntry, batchMessage.getTopic(),
+                                persistentTopic, pTopic, partitionId);
+                        for (int i = 0; i < batchEntry.getNumMessages(); i++) {
+                            final int batchIndex = i;
+                            batchMessageFutures.add(entryFuture.thenApply(offset -> offset + batchIndex));
                         }
                     }
+                } finally {
+                    for (int i = published; i < entries.size(); i++) {
+                        entries.get(i).getEntry().release();
+                    }
                 }
-
-                log.info("The producer [{}] putMessages begin to send message.", producerId);
+            } else {
+                // the pooled producer sends the encoded records as the payloads of Pulsar messages
                 List<byte[]> bodies = this.entryFormatter.encode(batchMessage, 1);
-                List<CompletableFuture<MessageId>> batchMessageFutures = new ArrayList<>(bodies.size());
+                int bodiesBytes = 0;
                 for (byte[] body : bodies) {
-                    batchMessageFutures.add(this.producers.get(producerId).sendAsync(body));
-                    messageNum++;
-                    totalBytesSize += body.length;
+                    bodiesBytes += body.length;
                 }
-                FutureUtil.waitForAll(batchMessageFutures).get(sendTimeoutInSec, TimeUnit.MILLISECONDS);
-                for (CompletableFuture<MessageId> f : batchMessageFutures) {
-                    MessageIdImpl messageId = (MessageIdImpl) f.get();
-                    long ledgerId = messageId.getLedgerId();
-                    long entryId = messageId.getEntryId();
-                    String msgId = CommonUtils.createMessageId(this.ctx.channel().localAddress(), localListenPort,
-                            MessageIdUtils.getOffset(ledgerId, entryId, partitionId));
-                    sb.append(msgId).append(",");
+                totalBytesSize = bodiesBytes;
+                startSendOperation(totalBytesSize);
+                PooledProducer producer = getOrAcquireProducer(pTopic);
+                for (byte[] body : bodies) {
+                    batchMessageFutures.add(producer.sendAsync(body).thenApply(
+                            messageId -> MessageIdUtils.getOffset((MessageIdImpl) messageId, partitionId)));
                 }
+                // the producer sends the whole batch at once, so a single notification covers it
+                batchMessageFutures.get(batchMessageFutures.size() - 1).thenAccept(offset -> this.brokerController
+                        .getMessageArrivingListener().arriving(batchMessage.getTopic(), partitionId, offset,
+                                0L, 0L, null, null));
+            }
+        } catch (RopEncodeException e) {
+            log.warn("putMessages batchMessage encode error.", e);
+            return CompletableFuture.completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL,
+                    new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR)));
+        }
+
+        CompletableFuture<Void> publishFuture = FutureUtil.waitForAll(batchMessageFutures)
+                .whenComplete((ignore, e) -> completedSendOperation(totalBytesSize));
+        return withSendTimeout(publishFuture, pTopic).handle((ignore, e) -> {
+            if (e != null) {
+                return putMessageFailed(pTopic, e);
+            }
+            StringBuilder sb = new StringBuilder();
+            for (CompletableFuture<Long> batchMessageFuture : batchMessageFutures) {
+                long offset = batchMessageFuture.join();
+                String msgId = CommonUtils.createMessageId(this.ctx.channel().localAddress(), localListenPort,
+                        offset);
+                sb.append(msgId).append(",");
             }
 
             AppendMessageResult appendMessageResult = new AppendMessageResult(AppendMessageStatus.PUT_OK);
-            appendMessageResult.setMsgNum(messageNum);
+            appendMessageResult.setMsgNum(batchMessageFutures.size());
             appendMessageResult.setWroteBytes(totalBytesSize);
             appendMessageResult.setMsgId(sb.toString());
             return new PutMessageResult(PutMessageStatus.PUT_OK, appendMessageResult);
-        } catch (RopEncodeException e) {
-            log.warn("putMessages batchMessage encode error.", e);
-        } catch (PulsarServerException e) {
-            log.warn("putMessages batchMessage send error.", e);
-        } catch (Exception e) {
-            log.warn("putMessages batchMessage error.", e);
+        });
+    }
+
+    /**
+     * Get the pooled producer of the partition topic, a reference of it is held until the channel is closed.
+     */
+    private PooledProducer getOrAcquireProducer(String pTopic) {
+        PooledProducer producer = this.producers.get(pTopic);
+        if (producer != null && !producer.isFailed()) {
+            return producer;
         }
-        PutMessageStatus status = PutMessageStatus.FLUSH_DISK_TIMEOUT;
-        AppendMessageResult temp = new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR);
-        return new PutMessageResult(status, temp);
+        RopProducerPool producerPool = this.brokerController.getProducerPool();
+        producer = this.producers.compute(pTopic, (topic, pooled) -> {
+            if (pooled != null && !pooled.isFailed()) {
+                return pooled;
+            }
+            if (pooled != null) {
+                producerPool.release(pooled);
+            }
+            return producerPool.acquire(topic);
+        });
+        return producer;
     }
 
-    private CompletableFuture<Long> publishMessage(byte[] body, PersistentTopic persistentTopic, String pTopic,
-            long partitionId) {
-        ByteBuf headersAndPayload = null;
-        try {
-            headersAndPayload = this.entryFormatter.encode(body);
+    private void releaseProducers() {
+        this.producers.values().forEach(this.brokerController.getProducerPool()::release);
+        this.producers.clear();
+    }
+
+    private void startSendOperation(int msgSize) {
+        this.brokerController.getPublishThrottler().startSendOperation(this.ctx.channel(), msgSize);
+    }
+
+    private void completedSendOperation(int msgSize) {
+        this.brokerController.getPublishThrottler().completedSendOperation(this.ctx.channel(), msgSize);
+    }
+
+    /**
+     * Fail the given future if it is not completed within the send timeout.
+     * The timeout is driven by the broker's send timeout timer, so no thread waits on the future.
+     */
+    private <T> CompletableFuture<T> withSendTimeout(CompletableFuture<T> future, String pTopic) {
+        if (future.isDone()) {
+            return future;
+        }
+        TimerTask timeoutTask = new TimerTask(sendTimeoutInMs) {
+            @Override
+            public void run() {
+                future.completeExceptionally(
+                        new TimeoutException("Topic [" + pTopic + "] putMessage timeout."));
+            }
+        };
+        this.brokerController.getSendTimeoutTimer().add(timeoutTask);
+        future.whenComplete((ignore, e) -> timeoutTask.cancel());
+        return future;
+    }
 
+    private PutMessageResult putMessageFailed(String pTopic, Throwable e) {
+        Throwable cause = e instanceof CompletionException ? e.getCause() : e;
+        PutMessageStatus status;
+        if (cause instanceof TimeoutException || cause instanceof PulsarClientException.TimeoutException) {
+            log.error("Topic [{}] putMessage timeout.", pTopic, cause);
+            status = PutMessageStatus.FLUSH_DISK_TIMEOUT;
+        } else {
+            log.error("Topic [{}] putMessage error.", pTopic, cause);
+            status = PutMessageStatus.SERVICE_NOT_AVAILABLE;
+        }
+        return new PutMessageResult(status, new AppendMessageResult(AppendMessageStatus.UNKNOWN_ERROR));
+    }
+
+    /**
+     * Publish the batched entry, the entry is released once it's published.
+     *
+     * @return future of the offset of the first message, the i-th message has the offset {@code offset + i}
+     */
+    private CompletableFuture<Long> publishMessages(BatchEntry batchEntry, String topic,
+            PersistentTopic persistentTopic, String pTopic, long partitionId) {
+        CompletableFuture<Long> offsetFuture = publishEntry(batchEntry.getEntry(), batchEntry.getNumMessages(),
+                batchEntry.getStoreTimestamp(), batchEntry.getTagsCodes(), topic, persistentTopic, pTopic,
+                partitionId);
+        KeyIndexService keyIndexService = this.brokerController.getKeyIndexService();
+        offsetFuture.thenAccept(offset -> {
+            for (int i = 0; i < batchEntry.getNumMessages(); i++) {
+                keyIndexService.putRequest(topic, batchEntry.getProperties().get(i), batchEntry.getStoreTimestamp(),
+                        offset + i);
+            }
+        });
+        return offsetFuture;
+    }
+
+    private CompletableFuture<Long> publishEntry(ByteBuf headersAndPayload, int numMessages, long storeTimestamp,
+            long[] tagsCodes, String topic, PersistentTopic persistentTopic, String pTopic, long partitionId) {
+        try {
             org.apache.pulsar.broker.service.Producer producer = this.brokerController.getTopicConfigManager()
                     .getReferenceProducer(pTopic, persistentTopic, this);
+            final int msgSize = headersAndPayload.readableBytes();
+            InternalServerCnx internalCnx = null;
             if (producer != null) {
-                producer.updateRates(1, headersAndPayload.readableBytes());
+                producer.updateRates(numMessages, msgSize);
+                internalCnx = (InternalServerCnx) producer.getCnx();
+                internalCnx.startSendOperation(this.ctx.channel(), persistentTopic, msgSize, numMessages);
             }
-            persistentTopic.incrementPublishCount(1, headersAndPayload.readableBytes());
+            persistentTopic.incrementPublishCount(numMessages, msgSize);
 
+            RopEntryCache entryCache = this.brokerController.getEntryCache();
             CompletableFuture<Long> offsetFuture = new CompletableFuture<>();
             persistentTopic.publishMessage(headersAndPayload, RopMessagePublishContext
-                    .get(offsetFuture, persistentTopic, System.nanoTime(), partitionId));
+                    .get(offsetFuture, persistentTopic, System.nanoTime(), partitionId, topic, numMessages,
+                            this.brokerController.getMessageArrivingListener(), entryCache, pTopic,
+                            entryCache.isEnabled() ? headersAndPayload.retainedDuplicate() : null));
+            if (internalCnx != null) {
+                final InternalServerCnx cnx = internalCnx;
+                offsetFuture.whenComplete((offset, e) -> cnx.completedSendOperation(false, msgSize));
+            }
 
+            TimeIndex timeIndex = this.brokerController.getTimeIndexManager().getTimeIndex(persistentTopic);
+            if (timeIndex.shouldSample(storeTimestamp)) {
+                offsetFuture.thenAccept(offset -> timeIndex.add(storeTimestamp, MessageIdUtils.getPosition(offset)));
+            }
+            if (this.brokerController.getTagIndexManager().isEnabled()) {
+                TagIndex tagIndex = this.brokerController.getTagIndexManager().getTagIndex(persistentTopic);
+                offsetFuture.thenAccept(offset -> tagIndex.add(MessageIdUtils.getPosition(offset), tagsCodes));
+            }
             return offsetFuture;
         } finally {
-            if (headersAndPayload != null) {
-                headersAndPayload.release();
-            }
+            headersAndPayload.release();
         }
     }
 
@@ -501,8 +605,8 @@ public class RopServerCnx extends ChannelInboundHandlerAdapter implements Pulsar
     }
 
     @Override
-    public RopGetMessageResult getMessage(RemotingCommand request, PullMessageRequestHeader requestHeader,
-            RopMessageFilter messageFilter) {
+    public CompletableFuture<RopGetMessageResult> getMessage(RemotingCommand request,
+            PullMessageRequestHeader requestHeader, RopMessageFilter messageFilter) {
         RopGetMessageResult getResult = new RopGetMessageResult();
 
         String consumerGroupName = requestHeader.getConsumerGroup();
@@ -516,13 +620,13 @@ public class RopServerCnx extends ChannelInboundHandlerAdapter implements Pulsar
             getResult.setStatus(GetMessageStatus.OFFSET_FOUND_NULL);
             // set suspend flag
             requestHeader.setSysFlag(requestHeader.getSysFlag() | 2);
-            return getResult;
+            return CompletableFuture.completedFuture(getResult);
         }
 
         if (requestFilterCache.getIfPresent(new PullRequestFilterKey(consumerGroupName, topicName, queueId)) != null) {
             getResult.setStatus(GetMessageStatus.OFFSET_FOUND_NULL);
             requestHeader.setSysFlag(requestHeader.getSysFlag() | 2);
-            return getResult;
+            return CompletableFuture.completedFuture(getResult);
         }
 
         long queueOffset = requestHeader.getQueueOffset();
@@ -530,7 +634,7 @@ public class RopServerCnx extends ChannelInboundHandlerAdapter implements Pulsar
         if (maxMsgNums < 1) {
             getResult.setStatus(GetMessageStatus.NO_MATCHED_MESSAGE);
             getResult.setNextBeginOffset(queueOffset);
-            return getResult;
+            return CompletableFuture.completedFuture(getResult);
         }
 
         long maxOffset;
@@ -545,11 +649,10 @@ public class RopServerCnx extends ChannelInboundHandlerAdapter implements Pulsar
                     .put(new PullRequestFilterKey(consumerGroupName, topicName, queueId), pullRequestFilterValue);
             getResult.setStatus(GetMessageStatus.NO_MATCHED_LOGIC_QUEUE);
             getResult.setNextBeginOffset(0L);
-            return getResult;
+            return CompletableFuture.completedFuture(getResult);
         }
 
         MessageIdImpl startOffset;
-        GetMessageStatus status;
         if (queueOffset <= MessageIdUtils.MIN_ROP_OFFSET) {
             startOffset = (MessageIdImpl) MessageId.earliest;
         } else if (queueOffset >= MessageIdUtils.MAX_ROP_OFFSET) {
@@ -558,68 +661,149 @@ public class RopServerCnx extends ChannelInboundHandlerAdapter implements Pulsar
             startOffset = MessageIdUtils.getMessageId(queueOffset);
         }
         long nextBeginOffset = queueOffset;
+        long fromOffset = MessageIdUtils.MIN_ROP_OFFSET;
         String pTopic = rmqTopic.getPartitionName(queueId);
-        long readerId = buildPulsarReaderId(consumerGroupName, pTopic, this.ctx.channel().id().asLongText());
-
-        List<ByteBuffer> messagesBufferList = Lists.newArrayList();
-        final PositionImpl startPosition = MessageIdUtils.getPosition(MessageIdUtils.getOffset(startOffset));
-        ManagedCursor managedCursor = cursors.computeIfAbsent(pTopic, (Function<String, ManagedCursor>) s -> {
-            try {
-                PersistentTopic persistentTopic = brokerController.getConsumerOffsetManager()
-                        .getPulsarPersistentTopic(new ClientTopicName(rmqTopic.getPulsarTopicName()), queueId);
-                ManagedLedgerImpl managedLedger = (ManagedLedgerImpl) persistentTopic.getManagedLedger();
-                return managedLedger.newNonDurableCursor(startPosition, "Rop-cursor-" + readerId);
-            } catch (Exception e) {
-                log.warn("Topic [{}] create managedLedger failed", pTopic, e);
-            }
-            return null;
-        });
 
-        if (managedCursor != null) {
-            Position position = startPosition;
-            try {
-                List<Entry> entries = managedCursor.readEntries(maxMsgNums);
-                for (Entry entry : entries) {
-                    try {
-                        nextBeginOffset = MessageIdUtils.getOffset(entry.getLedgerId(), entry.getEntryId(), queueId);
-                        ByteBuffer byteBuffer = this.entryFormatter
-                                .decodePulsarMessage(entry.getDataBuffer(), nextBeginOffset, messageFilter);
-                        if (byteBuffer != null) {
-                            messagesBufferList.add(byteBuffer);
-                        }
-                        position = entry.getPosition();
-                    } finally {
-                        entry.release();
-                    }
-                }
-            } catch (ManagedLedgerException | InterruptedException e) {
-                log.warn("Fetch message failed, seek to startPosition [{}]", startPosition, e);
-                managedCursor.seek(position);
-            } catch (Exception e) {
-                log.warn("Fetch message error, seek to startPosition [{}]", startPosition, e);
-                managedCursor.seek(position);
-            }
+        PositionImpl queuePosition = MessageIdUtils.getPosition(MessageIdUtils.getOffset(startOffset));
+        boolean seekable = !MessageIdUtils.isMinOffset(queueOffset) && !MessageIdUtils.isMaxOffset(queueOffset)
+                && queuePosition.getEntryId() >= 0;
+        if (seekable) {
+            // queueOffset may point into a batched entry, re-read that entry and skip the consumed messages
+            queuePosition = new PositionImpl(queuePosition.getLedgerId(), queuePosition.getEntryId() - 1);
+            fromOffset = queueOffset + 1;
         }
+        final PositionImpl startPosition = queuePosition;
+        PersistentTopic persistentTopic = getPersistentTopic(rmqTopic, queueId);
+        CursorLease cursorLease = persistentTopic == null ? null
+                : acquireCursor(consumerGroupName, pTopic, persistentTopic, startPosition, seekable);
 
-        if (!messagesBufferList.isEmpty()) {
-            status = GetMessageStatus.FOUND;
-            getResult.setMessageBufferList(messagesBufferList);
-        } else {
-            status = GetMessageStatus.OFFSET_FOUND_NULL;
-        }
         getResult.setMaxOffset(maxOffset);
         getResult.setMinOffset(minOffset);
-        getResult.setStatus(status);
         getResult.setNextBeginOffset(nextBeginOffset);
-        return getResult;
+        if (cursorLease == null) {
+            getResult.setStatus(GetMessageStatus.OFFSET_FOUND_NULL);
+            return CompletableFuture.completedFuture(getResult);
+        }
+
+        // the cursor is leased from the seek to the read completion, so the pulls don't interleave on it
+        CompletableFuture<RopGetMessageResult> getResultFuture = new CompletableFuture<>();
+        getResultFuture.whenComplete((result, e) -> cursorLease.release());
+        try {
+            readEntries(persistentTopic, cursorLease.getCursor(), pTopic, queueId, startPosition, fromOffset,
+                    maxMsgNums, messageFilter, getResult, getResultFuture);
+        } catch (Throwable e) {
+            getResultFuture.completeExceptionally(e);
+        }
+        return getResultFuture;
     }
 
-    private long buildPulsarReaderId(String... tags) {
-        return (Joiner.on(SLASH_CHAR).join(tags)).hashCode();
+    private void readEntries(PersistentTopic persistentTopic, ManagedCursor managedCursor, String pTopic,
+            int queueId, PositionImpl startPosition, long readFromOffset, int maxMsgNums,
+            RopMessageFilter messageFilter, RopGetMessageResult getResult,
+            CompletableFuture<RopGetMessageResult> getResultFuture) {
+        skipUnmatchedRanges(persistentTopic, managedCursor, queueId, messageFilter, getResult);
+
+        // the tail entries are served from the entry cache shared by all the consumer groups if possible
+        RopEntryCache entryCache = this.brokerController.getEntryCache();
+        if (entryCache.isEnabled()) {
+            List<Entry> cachedEntries = entryCache.read(pTopic, (PositionImpl) managedCursor.getReadPosition(),
+                    maxMsgNums);
+            if (!cachedEntries.isEmpty()) {
+                PositionImpl lastPosition = (PositionImpl) cachedEntries.get(cachedEntries.size() - 1).getPosition();
+                managedCursor.seek(lastPosition.getNext());
+                decodeEntries(cachedEntries, managedCursor, startPosition, queueId, readFromOffset, messageFilter,
+                        getResult);
+                getResultFuture.complete(getResult);
+                return;
+            }
+        }
+
+        managedCursor.asyncReadEntries(maxMsgNums, new ReadEntriesCallback() {
+            @Override
+            public void readEntriesComplete(List<Entry> entries, Object ctx) {
+                decodeEntries(entries, managedCursor, startPosition, queueId, readFromOffset, messageFilter,
+                        getResult);
+                getResultFuture.complete(getResult);
+            }
+
+            @Override
+            public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+                log.warn("Fetch message failed, seek to startPosition [{}]", startPosition, exception);
+                managedCursor.seek(startPosition);
+                completeGetMessageResult(getResult, Collections.emptyList());
+                getResultFuture.complete(getResult);
+            }
+        }, null);
+    }
+
+    private PersistentTopic getPersistentTopic(RocketMQTopic rmqTopic, int queueId) {
+        try {
+            return brokerController.getConsumerOffsetManager()
+                    .getPulsarPersistentTopic(new ClientTopicName(rmqTopic.getPulsarTopicName()), queueId);
+        } catch (Exception e) {
+            log.warn("Topic [{}] get persistent topic failed", rmqTopic.getPartitionName(queueId), e);
+        }
+        return null;
+    }
+
+    private CursorLease acquireCursor(String consumerGroupName, String pTopic, PersistentTopic persistentTopic,
+            PositionImpl startPosition, boolean seekable) {
+        try {
+            return brokerController.getCursorManager().acquireCursor(consumerGroupName, pTopic,
+                    (ManagedLedgerImpl) persistentTopic.getManagedLedger(), startPosition, seekable);
+        } catch (Exception e) {
+            log.warn("Topic [{}] create managedLedger failed", pTopic, e);
+        }
+        return null;
     }
 
-    private long buildPulsarProducerId(String... tags) {
-        return (Joiner.on(SLASH_CHAR).join(tags)).hashCode();
+    /**
+     * Move the cursor past the entries which can't match the tags of the subscription according to the tag index,
+     * the next begin offset is set to the last skipped entry in case nothing else is read.
+     */
+    private void skipUnmatchedRanges(PersistentTopic persistentTopic, ManagedCursor managedCursor, int queueId,
+            RopMessageFilter messageFilter, RopGetMessageResult getResult) {
+        Set<Integer> tagsCodes = messageFilter.getTagsCodeSet();
+        if (tagsCodes == null || !this.brokerController.getTagIndexManager().isEnabled()) {
+            return;
+        }
+        PositionImpl lastSkipped = this.brokerController.getTagIndexManager().getTagIndex(persistentTopic)
+                .lastSkippablePosition((PositionImpl) managedCursor.getReadPosition(), tagsCodes);
+        if (lastSkipped != null) {
+            ManagedLedgerImpl managedLedger = (ManagedLedgerImpl) persistentTopic.getManagedLedger();
+            managedCursor.seek(managedLedger.getNextValidPosition(lastSkipped));
+            getResult.setNextBeginOffset(MessageIdUtils.getOffset(lastSkipped.getLedgerId(),
+                    lastSkipped.getEntryId(), queueId, MessageIdUtils.MAX_BATCH_SIZE - 1));
+        }
+    }
+
+    private void decodeEntries(List<Entry> entries, ManagedCursor managedCursor, PositionImpl startPosition,
+            int queueId, long readFromOffset, RopMessageFilter messageFilter, RopGetMessageResult getResult) {
+        List<ByteBuf> messagesBufferList = Lists.newArrayList();
+        Position position = startPosition;
+        try {
+            for (Entry entry : entries) {
+                long entryOffset = MessageIdUtils.getOffset(entry.getLedgerId(), entry.getEntryId(), queueId);
+                getResult.setNextBeginOffset(entryFormatter.decodePulsarMessage(entry.getDataBuffer(),
+                        entryOffset, readFromOffset, messageFilter, messagesBufferList));
+                position = entry.getPosition();
+            }
+        } catch (Exception e) {
+            log.warn("Fetch message error, seek to startPosition [{}]", startPosition, e);
+            managedCursor.seek(position);
+        } finally {
+            entries.forEach(Entry::release);
+        }
+        completeGetMessageResult(getResult, messagesBufferList);
+    }
+
+    private void completeGetMessageResult(RopGetMessageResult getResult, List<ByteBuf> messagesBufferList) {
+        if (!messagesBufferList.isEmpty()) {
+            getResult.setStatus(GetMessageStatus.FOUND);
+            getResult.setMessageBufferList(messagesBufferList);
+        } else {
+            getResult.setStatus(GetMessageStatus.OFFSET_FOUND_NULL);
+        }
     }
 
     enum State {
@@ -14,32 +14,56 @@
 
 package org.streamnative.pulsar.handlers.rocketmq.inner;
 
-import com.alibaba.fastjson.JSON;
-import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import io.netty.buffer.ByteBuf;
 import java.time.Instant;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.DeleteCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.MarkDeleteCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.Position;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.broker.PulsarServerException;
 import org.apache.pulsar.broker.PulsarService;
 import org.apache.pulsar.broker.service.BrokerService;
+import org.apache.pulsar.broker.service.persistent.PersistentSubscription;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.apache.pulsar.client.admin.PulsarAdmin;
+import org.apache.pulsar.client.admin.PulsarAdminException.ConflictException;
 import org.apache.pulsar.client.api.Consumer;
 import org.apache.pulsar.client.api.Message;
-import org.apache.pulsar.client.api.Producer;
-import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.client.api.MessageId;
 import org.apache.pulsar.client.api.SubscriptionInitialPosition;
 import org.apache.pulsar.client.api.SubscriptionMode;
 import org.apache.pulsar.client.api.SubscriptionType;
-import org.apache.pulsar.client.impl.PulsarClientImpl;
+import org.apache.pulsar.client.impl.MessageIdImpl;
+import org.apache.pulsar.common.api.proto.PulsarApi.CommandSubscribe.InitialPosition;
+import org.apache.pulsar.common.naming.NamespaceBundle;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.policies.data.SubscriptionStats;
+import org.apache.pulsar.common.util.FutureUtil;
 import org.apache.rocketmq.common.MixAll;
-import org.apache.rocketmq.common.ServiceThread;
 import org.apache.rocketmq.common.TopicFilterType;
 import org.apache.rocketmq.common.message.MessageAccessor;
 import org.apache.rocketmq.common.message.MessageConst;
@@ -47,35 +71,67 @@ import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.store.MessageExtBrokerInner;
 import org.streamnative.pulsar.handlers.rocketmq.RocketMQServiceConfiguration;
+import org.streamnative.pulsar.handlers.rocketmq.inner.cache.RopEntryCache;
 import org.streamnative.pulsar.handlers.rocketmq.inner.exception.RopEncodeException;
 import org.streamnative.pulsar.handlers.rocketmq.inner.format.RopEntryFormatter;
+import org.streamnative.pulsar.handlers.rocketmq.inner.index.DelayBucketIndex;
+import org.streamnative.pulsar.handlers.rocketmq.inner.index.KeyIndexService;
+import org.streamnative.pulsar.handlers.rocketmq.inner.namesvr.MQTopicManager;
+import org.streamnative.pulsar.handlers.rocketmq.inner.producer.RopProducerPool;
+import org.streamnative.pulsar.handlers.rocketmq.inner.producer.RopProducerPool.PooledProducer;
+import org.streamnative.pulsar.handlers.rocketmq.inner.timer.ExpirationReaper;
 import org.streamnative.pulsar.handlers.rocketmq.inner.timer.SystemTimer;
+import org.streamnative.pulsar.handlers.rocketmq.inner.timer.TimerTask;
 import org.streamnative.pulsar.handlers.rocketmq.utils.CommonUtils;
+import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
 import org.streamnative.pulsar.handlers.rocketmq.utils.RocketMQTopic;
 
 /**
  * Schedule message service.
+ *
+ * <p>Each broker consumes the delay level partitions it owns through their cursors, the partitions are taken over
+ * and handed off with the bundle ownership. The consumers feed the received messages into one timing wheel shared by
+ * all the levels.
+ * The wheel is driven by a single reaper blocking until the next bucket expires, and the due messages are sent back
+ * by a bounded delivery executor.
+ *
+ * <p>The messages delivered at an arbitrary time are appended to the delay buckets, the buckets starting soon are
+ * consumed in the same way, so the memory is bounded no matter how far in the future the messages are delivered.
+ * The buckets are kept by a fixed ring of slot topics created at startup, each lap of a slot is consumed once it
+ * starts soon, and the messages of its later laps are left to them.
  */
 @Slf4j
 public class ScheduleMessageService {
 
-    private static final long FIRST_DELAY_TIME = 1000L;
-    private static final long DELAY_FOR_A_WHILE = 200L;
+    public static final String PROPERTY_START_DELIVER_TIME = "__STARTDELIVERTIME";
+    private static final String BUCKET_TOPIC_INFIX = "_BUCKET_";
+    private static final long BUCKET_SCAN_INTERVAL_MS = 1000L;
+    // the sends into a bucket may still be in flight when it's ended
+    private static final long BUCKET_END_GRACE_MS = 10000L;
     private static final long DELAY_FOR_A_PERIOD = 10000L;
     private static final int MAX_FETCH_MESSAGE_NUM = 100;
+    private static final int MAX_PENDING_DELIVERIES = 500;
+    private static final long CHECKPOINT_INTERVAL_MS = 1000L;
+    private static final String CHECKPOINT_READ_LEDGER_PROPERTY = "rop.delay.readLedger";
+    private static final String CHECKPOINT_READ_ENTRY_PROPERTY = "rop.delay.readEntry";
+    private static final String CHECKPOINT_WATERMARK_PROPERTY = "rop.delay.watermark";
+    private static final String CHECKPOINT_PARTIAL_ENTRY_PREFIX = "rop.delay.partial.";
     /*  key is delayed level  value is delay timeMillis */
     private final Map<Integer, Long> delayLevelTable;
     private final AtomicBoolean started = new AtomicBoolean(false);
     private final RocketMQServiceConfiguration config;
     private final RocketMQBrokerController rocketBroker;
-    private final ServiceThread expirationReaper;
-    private final Timer timer = new Timer();
-    private final Map<String, Producer<byte[]>> sendBackProducers;
-    private final ReentrantLock producerLock = new ReentrantLock(true);
+    private final SystemTimer deliveryTimer;
+    private final ExpirationReaper expirationReaper;
     private final String scheduleTopicPrefix;
+    private final DelayBucketIndex bucketIndex;
+    private final Map<Long, DelayBucketConsumer> bucketConsumers = new ConcurrentHashMap<>();
+    // pulsar partition name => consumer of the delay level partition owned by this broker
+    private final Map<String, DelayPartitionConsumer> partitionConsumers = new ConcurrentHashMap<>();
+    // start time of the next bucket to open
+    private volatile long nextBucketStart;
     private String[] delayLevelArray;
     private BrokerService pulsarBroker;
-    private List<DeliverDelayedMessageTimerTask> deliverDelayedMessageManager;
 
     public ScheduleMessageService(final RocketMQBrokerController rocketBroker, RocketMQServiceConfiguration config) {
         this.config = config;
@@ -83,25 +139,21 @@ public class ScheduleMessageService {
         this.scheduleTopicPrefix = config.getRmqScheduleTopic();
         this.delayLevelTable = new HashMap<>(config.getMaxDelayLevelNum());
         this.parseDelayLevel();
-        this.sendBackProducers = new ConcurrentHashMap<>();
-        this.expirationReaper = new ServiceThread() {
-            private static final long advanceTimeInterval = 100L;
-
-            @Override
-            public String getServiceName() {
-                return "ScheduleMessageService-expirationReaper-thread";
-            }
-
-            @Override
-            public void run() {
-                log.info(getServiceName() + " service started.");
-                Preconditions.checkNotNull(deliverDelayedMessageManager);
-                while (!this.isStopped()) {
-                    deliverDelayedMessageManager.parallelStream().forEach((i) -> i.advanceClock(advanceTimeInterval));
-                }
-            }
-        };
-        this.expirationReaper.setDaemon(true);
+        this.bucketIndex = new DelayBucketIndex(scheduleTopicPrefix + BUCKET_TOPIC_INFIX,
+                TimeUnit.SECONDS.toMillis(config.getRopDelayBucketSizeInSeconds()), config.getRopDelayBucketRingSize());
+        // the pending deliveries are bounded by the delay consumers, the due ones rejected when the queue is full
+        // are put back into the timer and retried shortly, so no delivery runs on the reaper thread
+        int deliveryThreads = config.getRopDelayedDeliveryThreads();
+        ThreadPoolExecutor deliveryExecutor = new ThreadPoolExecutor(deliveryThreads, deliveryThreads,
+                0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<>(delayLevelTable.size() * MAX_PENDING_DELIVERIES),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("delayed-message-delivery-%d").build());
+        this.deliveryTimer = SystemTimer.builder()
+                .executorName("DeliverDelayedMessageTimeWheelExecutor")
+                .taskExecutor(deliveryExecutor)
+                .build();
+        this.expirationReaper = new ExpirationReaper("ScheduleMessageService-expirationReaper-thread",
+                deliveryTimer);
     }
 
     public String getDelayedTopicName(int timeDelayedLevel) {
@@ -136,25 +188,104 @@ public class ScheduleMessageService {
     public void start() {
         if (started.compareAndSet(false, true)) {
             this.pulsarBroker = rocketBroker.getBrokerService();
-            this.deliverDelayedMessageManager = delayLevelTable.keySet().stream()
-                    .collect(ArrayList::new, (arr, level) -> {
-                        arr.add(new DeliverDelayedMessageTimerTask(level));
-                    }, ArrayList::addAll);
-            this.deliverDelayedMessageManager
-                    .forEach((i) -> this.timer.schedule(i, FIRST_DELAY_TIME, DELAY_FOR_A_WHILE));
             this.expirationReaper.start();
+            // the partitions loaded before the service is started
+            this.partitionConsumers.values().forEach(DelayPartitionConsumer::receiveNext);
+            this.loadOwnedDelayPartitions(null);
+            // open a lap of every slot, which also delivers the messages left undelivered before the restart
+            this.bucketIndex.createSlots(this::createBucketTopic);
+            this.nextBucketStart = bucketIndex.getBucketStart(System.currentTimeMillis())
+                    - Math.max(bucketIndex.getRingSize() - 2, 0) * bucketIndex.getBucketSizeMs();
+            this.scheduleBucketScan();
+            this.scheduleCheckpoint();
         }
     }
 
     public void shutdown() {
         if (this.started.compareAndSet(true, false)) {
+            partitionConsumers.values().forEach(DelayPartitionConsumer::close);
+            bucketConsumers.values().forEach(DelayBucketConsumer::close);
             expirationReaper.shutdown();
-            deliverDelayedMessageManager.forEach(DeliverDelayedMessageTimerTask::close);
-            sendBackProducers.values().forEach(Producer::closeAsync);
-            timer.cancel();
         }
     }
 
+    /**
+     * Start consuming the delay level partitions of the bundle, called when the bundle is loaded by this broker.
+     */
+    public void onBundleLoaded(NamespaceBundle bundle) {
+        loadOwnedDelayPartitions(bundle);
+    }
+
+    /**
+     * Stop consuming the delay level partitions of the bundle, called when the bundle is unloaded from this broker.
+     * The messages received but not delivered are left to the next owner.
+     */
+    public void onBundleUnloaded(NamespaceBundle bundle) {
+        partitionConsumers.forEach((partition, consumer) -> {
+            if (bundle.includes(TopicName.get(partition)) && partitionConsumers.remove(partition, consumer)) {
+                log.info("Hand off delay partition [{}] of unloaded bundle [{}].", partition, bundle);
+                consumer.close();
+            }
+        });
+    }
+
+    /**
+     * Load the delay level partitions owned by this broker, only those of the bundle if the bundle is not null.
+     */
+    private void loadOwnedDelayPartitions(NamespaceBundle bundle) {
+        BrokerService brokerService = rocketBroker.getBrokerService();
+        int partitionNum = config.getRmqScheduleTopicPartitionNum();
+        for (int delayLevel : delayLevelTable.keySet()) {
+            for (int partitionId = 0; partitionId < partitionNum; partitionId++) {
+                TopicName partition = TopicName.get(getDelayedTopicName(delayLevel, partitionId));
+                try {
+                    if (bundle != null ? !bundle.includes(partition)
+                            : !brokerService.isTopicNsOwnedByBroker(partition)) {
+                        continue;
+                    }
+                } catch (Exception e) {
+                    log.warn("Check the owner of delay partition [{}] failed.", partition, e);
+                    continue;
+                }
+                final int level = delayLevel;
+                final int partitionIndex = partitionId;
+                // the partition is created if no message is delayed into it yet
+                brokerService.getTopic(partition.toString(), true).thenAccept(topic -> topic.ifPresent(
+                        t -> loadDelayPartition(level, partitionIndex, (PersistentTopic) t)))
+                        .exceptionally(e -> {
+                            log.warn("Load delay partition [{}] failed.", partition, e);
+                            return null;
+                        });
+            }
+        }
+    }
+
+    private void loadDelayPartition(int delayLevel, int partitionId, PersistentTopic persistentTopic) {
+        persistentTopic.createSubscription(getDelayedTopicConsumerName(delayLevel), InitialPosition.Earliest, false)
+                .whenComplete((subscription, e) -> {
+                    if (e != null) {
+                        log.warn("Create subscription of delay partition [{}] failed.", persistentTopic.getName(), e);
+                        return;
+                    }
+                    ManagedCursor cursor = ((PersistentSubscription) subscription).getCursor();
+                    DelayPartitionConsumer[] created = new DelayPartitionConsumer[1];
+                    partitionConsumers.compute(persistentTopic.getName(), (name, current) -> {
+                        if (current != null && current.persistentTopic == persistentTopic) {
+                            return current;
+                        }
+                        if (current != null) {
+                            current.close();
+                        }
+                        created[0] = new DelayPartitionConsumer(delayLevel, partitionId, persistentTopic, cursor);
+                        return created[0];
+                    });
+                    if (created[0] != null) {
+                        log.info("Take over delay partition [{}].", persistentTopic.getName());
+                        created[0].receiveNext();
+                    }
+                });
+    }
+
     public boolean isStarted() {
         return started.get();
     }
@@ -185,154 +316,420 @@ public class ScheduleMessageService {
         return true;
     }
 
-    class DeliverDelayedMessageTimerTask extends TimerTask {
+    /**
+     * @return the time to deliver the message at set by the {@link #PROPERTY_START_DELIVER_TIME} property, or 0 if
+     *         it's not set
+     */
+    public static long getStartDeliverTime(org.apache.rocketmq.common.message.Message message) {
+        String startDeliverTime = message.getProperty(PROPERTY_START_DELIVER_TIME);
+        if (startDeliverTime == null) {
+            return 0L;
+        }
+        try {
+            return Long.parseLong(startDeliverTime.trim());
+        } catch (NumberFormatException e) {
+            return 0L;
+        }
+    }
 
-        private static final int PULL_MESSAGE_TIMEOUT_MS = 500;
-        private static final int SEND_MESSAGE_TIMEOUT_MS = 3000;
-        private static final int MAX_BATCH_SIZE = 500;
-        private final PulsarService pulsarService;
-        private final int delayLevel;
-        private final Consumer<byte[]> delayedConsumer;
-        private final RopEntryFormatter formatter = new RopEntryFormatter();
-        private final SystemTimer timeoutTimer;
+    /**
+     * Get the slot topic of the messages delivered at the time, the topic is created if it doesn't exist.
+     *
+     * @return the pulsar name of the partition to append the messages to
+     */
+    public CompletableFuture<String> getDelayedBucketTopic(long deliverTime) {
+        return bucketIndex.getOrCreate(deliverTime, this::createBucketTopic).thenApply(bucketIndex::getBucketPartition);
+    }
 
-        public DeliverDelayedMessageTimerTask(int delayLevel) {
-            this.delayLevel = delayLevel;
-            String delayTopic = getDelayedTopicName(delayLevel);
-            this.pulsarService = ScheduleMessageService.this.pulsarBroker.pulsar();
-            this.timeoutTimer = SystemTimer.builder().executorName("DeliverDelayedMessageTimeWheelExecutor").build();
-            try {
-                log.warn("Before create delayed consumer, the client config value: [{}]",
-                        ((PulsarClientImpl) this.pulsarService.getClient()).getConfiguration());
-                this.delayedConsumer = this.pulsarService.getClient()
-                        .newConsumer()
-                        .receiverQueueSize(MAX_FETCH_MESSAGE_NUM)
-                        .subscriptionMode(SubscriptionMode.Durable)
-                        .subscriptionType(SubscriptionType.Failover)
-                        .subscriptionName(getDelayedTopicConsumerName(delayLevel))
-                        .topic(delayTopic)
-                        .subscriptionInitialPosition(SubscriptionInitialPosition.Earliest)
-                        .subscribe();
+    /**
+     * @return the pulsar name of the partition of the slot topic covering the deliver time
+     */
+    public String getDelayedBucketPartition(long deliverTime) {
+        return bucketIndex.getBucketPartition(bucketIndex.getBucketStart(deliverTime));
+    }
 
-                log.warn("The client config value: [{}]",
-                        ((PulsarClientImpl) this.pulsarService.getClient()).getConfiguration());
-            } catch (Exception e) {
-                log.error("create delayed topic[delayLevel={}] consumer error.", delayLevel, e);
-                throw new RuntimeException("Create delayed topic error");
+    private CompletableFuture<Void> createBucketTopic(String bucketTopic) {
+        try {
+            return rocketBroker.getBrokerService().pulsar().getAdminClient().topics()
+                    .createPartitionedTopicAsync(bucketTopic, 1)
+                    .exceptionally(e -> {
+                        // created by other brokers
+                        if (FutureUtil.unwrapCompletionException(e) instanceof ConflictException) {
+                            return null;
+                        }
+                        log.warn("Create delay bucket topic [{}] failed.", bucketTopic, e);
+                        throw new CompletionException(e);
+                    });
+        } catch (PulsarServerException e) {
+            return FutureUtil.failedFuture(e);
+        }
+    }
+
+    private void scheduleBucketScan() {
+        deliveryTimer.add(new TimerTask(BUCKET_SCAN_INTERVAL_MS) {
+            @Override
+            public void run() {
+                if (!isStarted()) {
+                    return;
+                }
+                try {
+                    scanBuckets();
+                } catch (Exception e) {
+                    log.warn("Scan delay buckets failed.", e);
+                } finally {
+                    scheduleBucketScan();
+                }
+            }
+        });
+    }
+
+    private void scheduleCheckpoint() {
+        deliveryTimer.add(new TimerTask(CHECKPOINT_INTERVAL_MS) {
+            @Override
+            public void run() {
+                if (!isStarted()) {
+                    return;
+                }
+                try {
+                    partitionConsumers.values().forEach(DelayPartitionConsumer::checkpoint);
+                } catch (Exception e) {
+                    log.warn("Checkpoint delay partitions failed.", e);
+                } finally {
+                    scheduleCheckpoint();
+                }
+            }
+        });
+    }
+
+    /**
+     * Open the buckets starting within a bucket size, and close the ended buckets which are all delivered.
+     */
+    private void scanBuckets() {
+        long now = System.currentTimeMillis();
+        bucketConsumers.values().forEach(bucketConsumer -> bucketConsumer.checkDone(now));
+        while (nextBucketStart <= now + bucketIndex.getBucketSizeMs()) {
+            long bucketStart = nextBucketStart;
+            CompletableFuture<Void> slotCreation = bucketIndex.getSlotCreation(bucketStart);
+            if (slotCreation != null && !slotCreation.isDone()) {
+                // opened by the next scan once the slot topic is created
+                return;
             }
+            // no message is appended to a slot whose topic is not created
+            if (slotCreation != null && !slotCreation.isCompletedExceptionally()
+                    && !bucketConsumers.containsKey(bucketStart)) {
+                DelayBucketConsumer bucketConsumer = new DelayBucketConsumer(bucketStart);
+                bucketConsumers.put(bucketStart, bucketConsumer);
+                bucketConsumer.subscribe();
+            }
+            nextBucketStart = bucketStart + bucketIndex.getBucketSizeMs();
         }
+    }
+
+    /**
+     * Consumer of delayed messages, it receives the messages asynchronously and feeds them into the delivery timer
+     * until {@link #MAX_PENDING_DELIVERIES} messages of the consumer are pending.
+     *
+     * @param <T> the handle to acknowledge a received message with
+     */
+    abstract class DelayedMessageConsumer<T> {
+
+        protected final RopEntryFormatter formatter = new RopEntryFormatter();
+        protected final AtomicInteger pendingDeliveries = new AtomicInteger();
+        private final AtomicBoolean receiving = new AtomicBoolean();
+        private final Queue<DueMessage> dueMessages = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean draining = new AtomicBoolean();
+        private final String name;
+        protected volatile boolean closed;
 
+        DelayedMessageConsumer(String name) {
+            this.name = name;
+        }
+
+        /**
+         * @return the time to deliver the message at
+         */
+        abstract long getDeliverTime(MessageExt messageExt);
+
+        /**
+         * Receive the next messages, the messages which can't be decoded are skipped.
+         *
+         * @param maxMessages the hint of the max number of messages to receive
+         */
+        abstract CompletableFuture<List<DueMessage>> receiveAsync(int maxMessages);
+
+        abstract void acknowledge(List<T> messages);
+
+        /**
+         * Deliver the message again later.
+         */
+        abstract void redeliver(DueMessage message);
+
+        /**
+         * Stop receiving, the messages which are not delivered yet are left to the next consumer.
+         */
         public void close() {
-            if (delayedConsumer != null) {
-                delayedConsumer.closeAsync();
-                timeoutTimer.shutdown();
+            closed = true;
+        }
+
+        /**
+         * Receive the next messages unless a receive is in progress or too many deliveries are pending.
+         */
+        void receiveNext() {
+            while (ScheduleMessageService.this.isStarted() && !closed
+                    && pendingDeliveries.get() < MAX_PENDING_DELIVERIES
+                    && receiving.compareAndSet(false, true)) {
+                CompletableFuture<Boolean> received = receiveAsync(MAX_PENDING_DELIVERIES - pendingDeliveries.get())
+                        .handle(this::onReceived);
+                if (!received.isDone()) {
+                    received.thenAccept(continued -> {
+                        if (continued) {
+                            receiveNext();
+                        }
+                    });
+                    return;
+                }
+                if (!received.join()) {
+                    return;
+                }
             }
         }
 
-        public void advanceClock(long timeoutMs) {
-            timeoutTimer.advanceClock(timeoutMs);
+        private boolean onReceived(List<DueMessage> messages, Throwable throwable) {
+            receiving.set(false);
+            if (throwable != null) {
+                if (ScheduleMessageService.this.isStarted() && !closed) {
+                    log.warn("{} receive message exception.", this, throwable);
+                    onReceiveFailed(throwable);
+                }
+                return false;
+            }
+            messages.forEach(this::schedule);
+            return true;
         }
 
-        @Override
-        public void run() {
+        /**
+         * Called when a receive fails, receive again after a period by default.
+         */
+        void onReceiveFailed(Throwable throwable) {
+            receiveLater();
+        }
+
+        void receiveLater() {
+            deliveryTimer.add(new TimerTask(DELAY_FOR_A_PERIOD) {
+                @Override
+                public void run() {
+                    receiveNext();
+                }
+            });
+        }
+
+        private void schedule(DueMessage dueMessage) {
+            MessageExt messageExt = dueMessage.messageExt;
+            long deliveryTime = getDeliverTime(messageExt);
+            long diff = deliveryTime - Instant.now().toEpochMilli();
+            diff = diff < 0 ? 0 : diff;
+            log.debug("{} delayedTime: bornTime=[{}], storeTime=[{}], deliveryTime=[{}].", this,
+                    messageExt.getBornTimestamp(), messageExt.getStoreTimestamp(), deliveryTime);
+            pendingDeliveries.incrementAndGet();
+            deliveryTimer.add(new TimerTask(diff) {
+                @Override
+                public void run() {
+                    log.debug("Retry delayedTime: needDelayMs=[{}],real diff =[{}].", this.delayMs,
+                            deliveryTime - Instant.now().toEpochMilli());
+                    dueMessages.add(dueMessage);
+                    drainDueMessages();
+                }
+            });
+        }
+
+        /**
+         * Deliver the message again after a period, for the consumers which can't redeliver by themselves.
+         */
+        void retryLater(DueMessage dueMessage) {
+            pendingDeliveries.incrementAndGet();
+            deliveryTimer.add(new TimerTask(DELAY_FOR_A_PERIOD) {
+                @Override
+                public void run() {
+                    dueMessages.add(dueMessage);
+                    drainDueMessages();
+                }
+            });
+        }
+
+        /**
+         * Republish the due messages grouped by their real partitions. The messages getting due while the others
+         * are drained are picked up by the same drain, so a spike of due messages is published in a few batches.
+         */
+        private void drainDueMessages() {
+            while (!dueMessages.isEmpty() && draining.compareAndSet(false, true)) {
+                try {
+                    Map<String, List<DueMessage>> partitions = new HashMap<>();
+                    DueMessage dueMessage;
+                    while ((dueMessage = dueMessages.poll()) != null) {
+                        if (closed) {
+                            // handed off, the next consumer delivers the message
+                            completeDeliveries(1);
+                            continue;
+                        }
+                        try {
+                            dueMessage.timeup();
+                        } catch (Exception e) {
+                            log.error("{} restore message[{}] failed, discard the msg.", this, dueMessage.handle, e);
+                            acknowledge(Collections.singletonList(dueMessage.handle));
+                            completeDeliveries(1);
+                            continue;
+                        }
+                        if (MixAll.RMQ_SYS_TRANS_HALF_TOPIC.equals(dueMessage.msgInner.getTopic())) {
+                            log.error("[BUG] the real topic of schedule msg is {}, discard the msg. msg={}",
+                                    dueMessage.msgInner.getTopic(), dueMessage.messageExt);
+                            acknowledge(Collections.singletonList(dueMessage.handle));
+                            completeDeliveries(1);
+                            continue;
+                        }
+                        partitions.computeIfAbsent(dueMessage.partitionTopic, k -> new ArrayList<>())
+                                .add(dueMessage);
+                    }
+                    partitions.forEach(this::deliver);
+                } finally {
+                    draining.set(false);
+                }
+            }
+        }
+
+        /**
+         * Republish the due messages of a partition, the delivered messages are acknowledged at once and the
+         * failed ones are redelivered later.
+         */
+        private void deliver(String partitionTopic, List<DueMessage> messages) {
+            List<CompletableFuture<Void>> published;
             try {
-                Preconditions.checkNotNull(this.delayedConsumer);
-                int i = 0;
-                while (i++ < MAX_BATCH_SIZE && timeoutTimer.size() < MAX_BATCH_SIZE
-                        && ScheduleMessageService.this.isStarted()) {
-                    Message<byte[]> message = this.delayedConsumer
-                            .receive(PULL_MESSAGE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
-                    if (message == null) {
-                        break;
+                published = republish(partitionTopic, messages);
+            } catch (Exception e) {
+                published = Collections.nCopies(messages.size(), FutureUtil.failedFuture(e));
+            }
+            final List<CompletableFuture<Void>> publishFutures = published;
+            FutureUtil.waitForAll(publishFutures).whenComplete((ignore, throwable) -> {
+                List<T> delivered = new ArrayList<>(messages.size());
+                for (int i = 0; i < messages.size(); i++) {
+                    CompletableFuture<Void> publishFuture = publishFutures.get(i);
+                    if (!publishFuture.isCompletedExceptionally()) {
+                        delivered.add(messages.get(i).handle);
+                    } else if (isEncodeFailure(publishFuture)) {
+                        // it would never be encoded on a redelivery either
+                        log.error("{} encode message[{}] failed, discard the msg.", this, messages.get(i).handle);
+                        delivered.add(messages.get(i).handle);
+                    } else {
+                        redeliver(messages.get(i));
                     }
-                    MessageExt messageExt = this.formatter.decodePulsarMessage(message);
-                    long deliveryTime = computeDeliverTimestamp(this.delayLevel, messageExt.getBornTimestamp());
-                    long diff = deliveryTime - Instant.now().toEpochMilli();
-                    diff = diff < 0 ? 0 : diff;
-                    log.debug(
-                            "Retry delayedTime: delayLeve=[{}], delayTime=[{}], "
-                                    + "bornTime=[{}], storeTime=[{}], deliveryTime=[{}].",
-                            new Object[]{delayLevel, delayLevelTable.get(delayLevel), messageExt.getBornTimestamp(),
-                                    messageExt.getStoreTimestamp(), deliveryTime});
-                    timeoutTimer.add(new org.streamnative.pulsar.handlers.rocketmq.inner.timer.TimerTask(diff) {
-                        @Override
-                        public void run() {
-                            try {
-                                log.info("Retry delayedTime: needDelayMs=[{}],real diff =[{}].", this.delayMs,
-                                        deliveryTime - Instant.now().toEpochMilli());
-                                MessageExtBrokerInner msgInner = messageTimeup(messageExt);
-                                if (MixAll.RMQ_SYS_TRANS_HALF_TOPIC.equals(messageExt.getTopic())) {
-                                    log.error("[BUG] the real topic of schedule msg is {}, discard the msg. msg={}",
-                                            messageExt.getTopic(), messageExt);
-                                    return;
-                                }
-
-                                RocketMQTopic rmqTopic = new RocketMQTopic(msgInner.getTopic());
-                                String pTopic = rmqTopic.getPartitionName(msgInner.getQueueId());
-                                Producer<byte[]> producer = sendBackProducers.get(pTopic);
-                                if (producer == null) {
-                                    try {
-                                        producerLock.lock();
-                                        if (sendBackProducers.get(pTopic) == null) {
-                                            producer = pulsarService.getClient().newProducer()
-                                                    .topic(pTopic)
-                                                    .producerName(pTopic + "_delayedMessageSender_"
-                                                            + System.currentTimeMillis())
-                                                    .enableBatching(true)
-                                                    .sendTimeout(SEND_MESSAGE_TIMEOUT_MS, TimeUnit.MILLISECONDS)
-                                                    .create();
-                                            Producer<byte[]> oldProducer = sendBackProducers.put(pTopic, producer);
-                                            if (oldProducer != null) {
-                                                oldProducer.closeAsync();
-                                            }
-                                        } else {
-                                            producer = sendBackProducers.get(pTopic);
-                                        }
-                                    } catch (Exception e) {
-                                        log.warn("create delayedMessageSender error.", e);
-                                    } finally {
-                                        producerLock.unlock();
-                                    }
-                                }
-                                if (producer != null) {
-                                    producer.send(formatter.encode(msgInner, 1).get(0));
-                                    delayedConsumer.acknowledge(message.getMessageId());
-                                    log.debug(
-                                            "DeliverDelayedMessageTimerTask[{}] send message [{}] to topic[{}] "
-                                                    + "successfully.",
-                                            delayLevel, JSON.toJSONString(msgInner, true),
-                                            pTopic);
-                                } else {
-                                    log.warn("delayedMessageSender send message[{}] error because of producer is null.",
-                                            message.getMessageId());
-                                    delayedConsumer.negativeAcknowledge(message.getMessageId());
-                                }
-                            } catch (PulsarClientException ex) {
-                                log.warn("delayedMessageSender send message[{}] failed.",
-                                        message.getMessageId(), ex);
-                                delayedConsumer.negativeAcknowledge(message.getMessageId());
-                            } catch (RopEncodeException e) {
-                                log.warn("delayedMessageSender send message[{}] encode failed.",
-                                        message.getMessageId(), e);
-                                delayedConsumer.negativeAcknowledge(message.getMessageId());
-                            } catch (Exception e) {
-                                log.warn("delayedMessageSender send message[{}] error.",
-                                        message.getMessageId(), e);
-                                delayedConsumer.negativeAcknowledge(message.getMessageId());
-                            }
+                }
+                if (throwable != null) {
+                    log.warn("{} republish {} messages into [{}] failed.", this, messages.size() - delivered.size(),
+                            partitionTopic, throwable);
+                }
+                if (!delivered.isEmpty()) {
+                    acknowledge(delivered);
+                }
+                completeDeliveries(messages.size());
+            });
+        }
+
+        private boolean isEncodeFailure(CompletableFuture<Void> publishFuture) {
+            return publishFuture.handle((ignore, e) -> (e instanceof CompletionException ? e.getCause() : e)
+                    instanceof RopEncodeException).join();
+        }
+
+        private void completeDeliveries(int count) {
+            pendingDeliveries.addAndGet(-count);
+            receiveNext();
+        }
+
+        /**
+         * Publish the messages into their real partition, directly through the persistent topic if this broker owns
+         * the partition, otherwise through a pooled batching producer. The messages are packed into as few entries
+         * as possible when published directly.
+         *
+         * @return the publish futures of the messages
+         */
+        private List<CompletableFuture<Void>> republish(String partitionTopic, List<DueMessage> messages) {
+            MessageExtBrokerInner first = messages.get(0).msgInner;
+            String topic = first.getTopic();
+            int queueId = first.getQueueId();
+            RocketMQTopic rmqTopic = new RocketMQTopic(topic);
+            List<CompletableFuture<Void>> published = new ArrayList<>(messages.size());
+            MQTopicManager topicManager = rocketBroker.getTopicConfigManager();
+            PersistentTopic persistentTopic = topicManager.isPartitionTopicOwner(rmqTopic.getPulsarTopicName(), queueId)
+                    ? topicManager.getPulsarPersistentTopic(partitionTopic) : null;
+            if (persistentTopic != null) {
+                RopEntryCache entryCache = rocketBroker.getEntryCache();
+                KeyIndexService keyIndexService = rocketBroker.getKeyIndexService();
+                for (int from = 0; from < messages.size(); from += MessageIdUtils.MAX_BATCH_SIZE) {
+                    int to = Math.min(from + MessageIdUtils.MAX_BATCH_SIZE, messages.size());
+                    List<MessageExtBrokerInner> msgs = new ArrayList<>(to - from);
+                    for (int i = from; i < to; i++) {
+                        msgs.add(messages.get(i).msgInner);
+                    }
+                    ByteBuf entry;
+                    try {
+                        entry = formatter.encodeEntry(msgs);
+                    } catch (RopEncodeException e) {
+                        published.addAll(Collections.nCopies(msgs.size(), FutureUtil.failedFuture(e)));
+                        continue;
+                    }
+                    CompletableFuture<Long> offsetFuture = new CompletableFuture<>();
+                    try {
+                        persistentTopic.publishMessage(entry, RopMessagePublishContext
+                                .get(offsetFuture, persistentTopic, System.nanoTime(), queueId, topic, msgs.size(),
+                                        rocketBroker.getMessageArrivingListener(), entryCache, partitionTopic,
+                                        entryCache.isEnabled() ? entry.retainedDuplicate() : null));
+                    } finally {
+                        entry.release();
+                    }
+                    // the keys are indexed under the real topic, where the queries look for them
+                    offsetFuture.thenAccept(offset -> {
+                        for (int i = 0; i < msgs.size(); i++) {
+                            keyIndexService.putRequest(msgs.get(i), offset + i);
                         }
                     });
+                    CompletableFuture<Void> entryPublished = offsetFuture.thenApply(offset -> null);
+                    for (int i = from; i < to; i++) {
+                        published.add(entryPublished);
+                    }
                 }
-            } catch (Exception e) {
-                log.warn("DeliverDelayedMessageTimerTask[delayLevel={}] pull message exception.", this.delayLevel,
-                        e);
-                if (!ScheduleMessageService.this.isStarted()) {
-                    Thread.interrupted();
+                return published;
+            }
+
+            // the pooled producer sends the encoded records as the payloads of Pulsar messages
+            List<byte[]> bodies = new ArrayList<>(messages.size());
+            for (DueMessage message : messages) {
+                try {
+                    bodies.add(formatter.encode(message.msgInner, 1).get(0));
+                } catch (RopEncodeException e) {
+                    bodies.add(null);
+                }
+            }
+            RopProducerPool producerPool = rocketBroker.getProducerPool();
+            PooledProducer producer = producerPool.acquire(partitionTopic);
+            CompletableFuture<MessageId> lastSent = null;
+            for (byte[] body : bodies) {
+                if (body == null) {
+                    published.add(FutureUtil.failedFuture(new RopEncodeException("encode message failed")));
+                    continue;
                 }
+                lastSent = producer.sendAsync(body);
+                published.add(lastSent.thenApply(messageId -> null));
+            }
+            if (lastSent == null) {
+                producerPool.release(producer);
+                return published;
             }
+            // the producer sends the messages in order, so a single notification covers them
+            lastSent.thenAccept(messageId -> rocketBroker.getMessageArrivingListener().arriving(topic, queueId,
+                    MessageIdUtils.getOffset((MessageIdImpl) messageId, queueId), 0L, 0L, null, null));
+            FutureUtil.waitForAll(published).whenComplete((ignore, e) -> producerPool.release(producer));
+            return published;
         }
 
-        private MessageExtBrokerInner messageTimeup(MessageExt msgExt) {
+        MessageExtBrokerInner messageTimeup(MessageExt msgExt) {
             MessageExtBrokerInner msgInner = new MessageExtBrokerInner();
             msgInner.setBody(msgExt.getBody());
             msgInner.setFlag(msgExt.getFlag());
@@ -342,7 +739,6 @@ public class ScheduleMessageService {
             long tagsCodeValue =
                     MessageExtBrokerInner.tagsString2tagsCode(topicFilterType, msgInner.getTags());
             msgInner.setTagsCode(tagsCodeValue);
-            msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgExt.getProperties()));
 
             msgInner.setSysFlag(msgExt.getSysFlag());
             msgInner.setBornTimestamp(msgExt.getBornTimestamp());
@@ -352,11 +748,496 @@ public class ScheduleMessageService {
 
             msgInner.setWaitStoreMsgOK(false);
             MessageAccessor.clearProperty(msgInner, MessageConst.PROPERTY_DELAY_TIME_LEVEL);
+            MessageAccessor.clearProperty(msgInner, PROPERTY_START_DELIVER_TIME);
+            msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
             msgInner.setTopic(msgInner.getProperty(MessageConst.PROPERTY_REAL_TOPIC));
             String queueIdStr = msgInner.getProperty(MessageConst.PROPERTY_REAL_QUEUE_ID);
             int queueId = Integer.parseInt(queueIdStr);
             msgInner.setQueueId(queueId);
             return msgInner;
         }
+
+        @Override
+        public String toString() {
+            return getClass().getSimpleName() + "[" + name + "]";
+        }
+
+        /**
+         * A received message whose deliver time is reached.
+         */
+        final class DueMessage {
+
+            private final T handle;
+            final MessageExt messageExt;
+            private MessageExtBrokerInner msgInner;
+            private String partitionTopic;
+
+            DueMessage(T handle, MessageExt messageExt) {
+                this.handle = handle;
+                this.messageExt = messageExt;
+            }
+
+            /**
+             * Restore the real topic of the message, it's encoded when it's republished.
+             */
+            private void timeup() {
+                this.msgInner = messageTimeup(messageExt);
+                this.partitionTopic = new RocketMQTopic(msgInner.getTopic()).getPartitionName(msgInner.getQueueId());
+            }
+        }
+    }
+
+    /**
+     * Consumer of a delay level partition owned by this broker. The partition is read through the cursor of the level
+     * subscription, so the delayed messages don't go through the loopback client.
+     *
+     * <p>The delivered entries are deleted from the cursor by the periodic checkpoint, which also saves into the
+     * cursor properties the read position, the due time watermark of the read messages, and the delivered messages
+     * of the partially delivered entries. All the read messages due no later than the watermark are delivered, so
+     * after a restart the messages up to the read position are skipped if they are due before the watermark or
+     * marked as delivered, instead of being published again.
+     */
+    class DelayPartitionConsumer extends DelayedMessageConsumer<MessageHandle> {
+
+        private final int delayLevel;
+        private final int partitionId;
+        private final PersistentTopic persistentTopic;
+        private final ManagedCursor cursor;
+        // the due time of the read messages not delivered yet => count
+        private final TreeMap<Long, Integer> pendingDueTimes = new TreeMap<>();
+        private final Set<EntryHandle> partialEntries = ConcurrentHashMap.newKeySet();
+        private final Queue<Position> deliveredEntries = new ConcurrentLinkedQueue<>();
+        private final AtomicBoolean dirty = new AtomicBoolean();
+        private final AtomicBoolean checkpointing = new AtomicBoolean();
+        // the messages of the entries up to the read position are all scheduled
+        private volatile PositionImpl readPosition;
+        // the checkpoint restored from the cursor, dropped once the read position passes it
+        private volatile PositionImpl recoveredReadPosition;
+        private long recoveredWatermark;
+        private final Map<PositionImpl, Long> recoveredMasks = new HashMap<>();
+
+        DelayPartitionConsumer(int delayLevel, int partitionId, PersistentTopic persistentTopic,
+                ManagedCursor cursor) {
+            super("delayLevel=" + delayLevel + ", partition=" + partitionId);
+            this.delayLevel = delayLevel;
+            this.partitionId = partitionId;
+            this.persistentTopic = persistentTopic;
+            this.cursor = cursor;
+            recover(cursor.getProperties());
+        }
+
+        private void recover(Map<String, Long> properties) {
+            Long readLedger = properties.get(CHECKPOINT_READ_LEDGER_PROPERTY);
+            Long readEntry = properties.get(CHECKPOINT_READ_ENTRY_PROPERTY);
+            Long watermark = properties.get(CHECKPOINT_WATERMARK_PROPERTY);
+            if (readLedger == null || readEntry == null || watermark == null) {
+                return;
+            }
+            properties.forEach((key, mask) -> {
+                if (key.startsWith(CHECKPOINT_PARTIAL_ENTRY_PREFIX)) {
+                    String[] position = key.substring(CHECKPOINT_PARTIAL_ENTRY_PREFIX.length()).split(":");
+                    recoveredMasks.put(PositionImpl.get(Long.parseLong(position[0]), Long.parseLong(position[1])),
+                            mask);
+                }
+            });
+            this.recoveredWatermark = watermark;
+            this.recoveredReadPosition = PositionImpl.get(readLedger, readEntry);
+            log.info("{} recover from checkpoint, read position [{}], watermark [{}], partial entries [{}].", this,
+                    recoveredReadPosition, watermark, recoveredMasks.size());
+        }
+
+        @Override
+        long getDeliverTime(MessageExt messageExt) {
+            return computeDeliverTimestamp(this.delayLevel, messageExt.getBornTimestamp());
+        }
+
+        @Override
+        CompletableFuture<List<DueMessage>> receiveAsync(int maxMessages) {
+            CompletableFuture<List<DueMessage>> received = new CompletableFuture<>();
+            cursor.asyncReadEntriesOrWait(Math.min(maxMessages, MAX_FETCH_MESSAGE_NUM), new ReadEntriesCallback() {
+                @Override
+                public void readEntriesComplete(List<Entry> entries, Object ctx) {
+                    List<DueMessage> messages = new ArrayList<>(entries.size());
+                    PositionImpl lastPosition = null;
+                    for (Entry entry : entries) {
+                        try {
+                            lastPosition = (PositionImpl) entry.getPosition();
+                            decode(entry, messages);
+                        } finally {
+                            entry.release();
+                        }
+                    }
+                    if (lastPosition != null) {
+                        readPosition = lastPosition;
+                    }
+                    received.complete(messages);
+                }
+
+                @Override
+                public void readEntriesFailed(ManagedLedgerException exception, Object ctx) {
+                    received.completeExceptionally(exception);
+                }
+            }, null);
+            return received;
+        }
+
+        private void decode(Entry entry, List<DueMessage> messages) {
+            PositionImpl position = (PositionImpl) entry.getPosition();
+            // the mask of the messages delivered before the restart, null if the entry is not read before
+            Long recoveredMask = null;
+            PositionImpl recovered = recoveredReadPosition;
+            if (recovered != null) {
+                if (position.compareTo(recovered) <= 0) {
+                    recoveredMask = recoveredMasks.getOrDefault(position, 0L);
+                } else {
+                    recoveredReadPosition = null;
+                    recoveredMasks.clear();
+                }
+            }
+            List<ByteBuf> buffers = new ArrayList<>();
+            try {
+                formatter.decodePulsarMessage(entry.getDataBuffer(),
+                        MessageIdUtils.getOffset(entry.getLedgerId(), entry.getEntryId(), partitionId),
+                        MessageIdUtils.MIN_ROP_OFFSET, null, buffers);
+                EntryHandle entryHandle = new EntryHandle(position, buffers.size());
+                if (buffers.isEmpty()) {
+                    log.warn("{} entry [{}] contains no message, skip it.", this, position);
+                    deliveredEntries.add(position);
+                    dirty.set(true);
+                }
+                for (int i = 0; i < buffers.size(); i++) {
+                    MessageExt messageExt = MessageDecoder.decode(buffers.get(i).nioBuffer(), true, false);
+                    if (messageExt == null) {
+                        log.warn("{} decode message of entry [{}] failed, skip it.", this, position);
+                        delivered(new MessageHandle(entryHandle, i, 0L));
+                        continue;
+                    }
+                    MessageHandle handle = new MessageHandle(entryHandle,
+                            MessageIdUtils.getBatchIndex(messageExt.getQueueOffset()), getDeliverTime(messageExt));
+                    if (recoveredMask != null && ((recoveredMask >>> handle.batchIndex & 1L) != 0
+                            || handle.deliverTime <= recoveredWatermark)) {
+                        // delivered before the restart
+                        delivered(handle);
+                        continue;
+                    }
+                    synchronized (pendingDueTimes) {
+                        pendingDueTimes.merge(handle.deliverTime, 1, Integer::sum);
+                    }
+                    messages.add(new DueMessage(handle, messageExt));
+                }
+            } finally {
+                buffers.forEach(ByteBuf::release);
+            }
+        }
+
+        @Override
+        void acknowledge(List<MessageHandle> messages) {
+            synchronized (pendingDueTimes) {
+                for (MessageHandle handle : messages) {
+                    pendingDueTimes.computeIfPresent(handle.deliverTime, (time, count) -> count > 1 ? count - 1 : null);
+                }
+            }
+            messages.forEach(this::delivered);
+        }
+
+        private void delivered(MessageHandle handle) {
+            EntryHandle entryHandle = handle.entry;
+            entryHandle.deliveredMask.accumulateAndGet(1L << handle.batchIndex, (mask, bit) -> mask | bit);
+            if (entryHandle.remainingMessages.decrementAndGet() <= 0) {
+                partialEntries.remove(entryHandle);
+                deliveredEntries.add(entryHandle.position);
+            } else {
+                partialEntries.add(entryHandle);
+            }
+            dirty.set(true);
+        }
+
+        /**
+         * @return the due time before which all the read messages are delivered
+         */
+        private long getWatermark() {
+            long now = System.currentTimeMillis();
+            synchronized (pendingDueTimes) {
+                return pendingDueTimes.isEmpty() ? now : Math.min(now, pendingDueTimes.firstKey() - 1);
+            }
+        }
+
+        /**
+         * Delete the delivered entries from the cursor, then save the checkpoint into the cursor properties. The
+         * properties are saved by a mark delete after the deletes, since a delete moving the mark delete position
+         * clears them.
+         */
+        void checkpoint() {
+            if (!dirty.get() || !checkpointing.compareAndSet(false, true)) {
+                return;
+            }
+            dirty.set(false);
+            PositionImpl position = readPosition;
+            Map<String, Long> properties = new HashMap<>();
+            if (position != null) {
+                properties.put(CHECKPOINT_READ_LEDGER_PROPERTY, position.getLedgerId());
+                properties.put(CHECKPOINT_READ_ENTRY_PROPERTY, position.getEntryId());
+                properties.put(CHECKPOINT_WATERMARK_PROPERTY, getWatermark());
+                partialEntries.forEach(entryHandle -> properties.put(
+                        CHECKPOINT_PARTIAL_ENTRY_PREFIX + entryHandle.position, entryHandle.deliveredMask.get()));
+            }
+            List<Position> positions = new ArrayList<>();
+            Position deliveredEntry;
+            while ((deliveredEntry = deliveredEntries.poll()) != null) {
+                positions.add(deliveredEntry);
+            }
+            if (positions.isEmpty()) {
+                saveCheckpoint(properties);
+                return;
+            }
+            cursor.asyncDelete(positions, new DeleteCallback() {
+                @Override
+                public void deleteComplete(Object ctx) {
+                    saveCheckpoint(properties);
+                }
+
+                @Override
+                public void deleteFailed(ManagedLedgerException exception, Object ctx) {
+                    log.warn("{} delete {} delivered entries failed.", DelayPartitionConsumer.this, positions.size(),
+                            exception);
+                    if (!closed) {
+                        deliveredEntries.addAll(positions);
+                        dirty.set(true);
+                    }
+                    checkpointing.set(false);
+                }
+            }, null);
+        }
+
+        private void saveCheckpoint(Map<String, Long> properties) {
+            cursor.asyncMarkDelete(cursor.getMarkDeletedPosition(), properties, new MarkDeleteCallback() {
+                @Override
+                public void markDeleteComplete(Object ctx) {
+                    checkpointing.set(false);
+                }
+
+                @Override
+                public void markDeleteFailed(ManagedLedgerException exception, Object ctx) {
+                    log.warn("{} save checkpoint failed.", DelayPartitionConsumer.this, exception);
+                    if (!closed) {
+                        dirty.set(true);
+                    }
+                    checkpointing.set(false);
+                }
+            }, null);
+        }
+
+        @Override
+        void redeliver(DueMessage message) {
+            retryLater(message);
+        }
+
+        /**
+         * The cursor is closed with its topic, e.g. when the topic is unloaded or its managed ledger is fenced while
+         * the bundle stays owned by this broker. Re-resolve the topic, and take it over with a new consumer if it's
+         * reloaded.
+         */
+        @Override
+        void onReceiveFailed(Throwable throwable) {
+            pulsarBroker.getTopic(persistentTopic.getName(), true).whenComplete((topic, e) -> {
+                if (closed) {
+                    return;
+                }
+                if (e == null && topic.isPresent() && topic.get() != persistentTopic) {
+                    log.info("{} topic is reloaded, reattach to the new cursor.", this);
+                    loadDelayPartition(delayLevel, partitionId, (PersistentTopic) topic.get());
+                }
+                // a no-op once this consumer is replaced, retried if the reattach fails
+                receiveLater();
+            });
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            cursor.cancelPendingReadRequest();
+            // the last checkpoint before handing off
+            checkpoint();
+        }
+    }
+
+    /**
+     * Consumer of a lap of a delay bucket slot, the messages are delivered at the time of their
+     * {@link #PROPERTY_START_DELIVER_TIME} property. The messages of the later laps are left unacknowledged, so
+     * they're received again by the next lap of the slot. Once the lap is ended and all the messages of the slot
+     * are received and those of the lap are acknowledged, the consumer is closed.
+     */
+    class DelayBucketConsumer extends DelayedMessageConsumer<Message<byte[]>> {
+
+        private final PulsarService pulsarService = ScheduleMessageService.this.pulsarBroker.pulsar();
+        private final long bucketStart;
+        private final String bucketPartition;
+        private final String subscriptionName;
+        private final AtomicBoolean checking = new AtomicBoolean();
+        private volatile Consumer<byte[]> delayedConsumer;
+        private volatile MessageIdImpl lastReceivedId;
+
+        DelayBucketConsumer(long bucketStart) {
+            super("bucket=" + bucketStart);
+            this.bucketStart = bucketStart;
+            this.bucketPartition = bucketIndex.getBucketPartition(bucketStart);
+            this.subscriptionName = TopicName.get(bucketIndex.getSlotTopic(bucketIndex.getSlot(bucketStart)))
+                    .getLocalName() + CommonUtils.UNDERSCORE_CHAR + "consumer";
+        }
+
+        void subscribe() {
+            try {
+                this.pulsarService.getClient()
+                        .newConsumer()
+                        .receiverQueueSize(MAX_FETCH_MESSAGE_NUM)
+                        .subscriptionMode(SubscriptionMode.Durable)
+                        .subscriptionType(SubscriptionType.Failover)
+                        .subscriptionName(subscriptionName)
+                        .topic(bucketPartition)
+                        .subscriptionInitialPosition(SubscriptionInitialPosition.Earliest)
+                        .subscribeAsync()
+                        .whenComplete((consumer, e) -> {
+                            if (e != null) {
+                                log.warn("{} subscribe bucket slot [{}] failed.", this, bucketPartition, e);
+                                bucketConsumers.remove(bucketStart, this);
+                                return;
+                            }
+                            this.delayedConsumer = consumer;
+                            if (closed || !ScheduleMessageService.this.isStarted()) {
+                                consumer.closeAsync();
+                                return;
+                            }
+                            receiveNext();
+                        });
+            } catch (PulsarServerException e) {
+                log.warn("{} subscribe bucket slot [{}] failed.", this, bucketPartition, e);
+                bucketConsumers.remove(bucketStart, this);
+            }
+        }
+
+        @Override
+        long getDeliverTime(MessageExt messageExt) {
+            return getStartDeliverTime(messageExt);
+        }
+
+        @Override
+        CompletableFuture<List<DueMessage>> receiveAsync(int maxMessages) {
+            return delayedConsumer.receiveAsync().thenApply(message -> {
+                lastReceivedId = (MessageIdImpl) message.getMessageId();
+                try {
+                    MessageExt messageExt = RopEntryFormatter.decodePulsarMessage(message);
+                    if (getDeliverTime(messageExt) >= bucketStart + bucketIndex.getBucketSizeMs()) {
+                        // delivered by a later lap of the slot
+                        return Collections.emptyList();
+                    }
+                    return Collections.singletonList(new DueMessage(message, messageExt));
+                } catch (Exception e) {
+                    log.warn("{} decode message[{}] exception.", this, message.getMessageId(), e);
+                    delayedConsumer.negativeAcknowledge(message);
+                    return Collections.emptyList();
+                }
+            });
+        }
+
+        @Override
+        void acknowledge(List<Message<byte[]>> messages) {
+            List<MessageId> messageIds = new ArrayList<>(messages.size());
+            messages.forEach(message -> messageIds.add(message.getMessageId()));
+            delayedConsumer.acknowledgeAsync(messageIds).exceptionally(e -> {
+                // the messages are redelivered and published again
+                log.warn("{} acknowledge {} messages failed.", this, messageIds.size(), e);
+                return null;
+            });
+        }
+
+        @Override
+        void redeliver(DueMessage message) {
+            delayedConsumer.negativeAcknowledge(message.handle);
+        }
+
+        @Override
+        public void close() {
+            super.close();
+            if (delayedConsumer != null) {
+                delayedConsumer.closeAsync();
+            }
+        }
+
+        /**
+         * Close the consumer if the lap is ended, and all the messages of the slot are received and those of the
+         * lap are acknowledged.
+         */
+        void checkDone(long now) {
+            if (now < bucketStart + bucketIndex.getBucketSizeMs() + BUCKET_END_GRACE_MS || delayedConsumer == null
+                    || pendingDeliveries.get() > 0 || !checking.compareAndSet(false, true)) {
+                return;
+            }
+            PulsarAdmin adminClient;
+            try {
+                adminClient = pulsarService.getAdminClient();
+            } catch (PulsarServerException e) {
+                checking.set(false);
+                return;
+            }
+            adminClient.topics().getStatsAsync(bucketPartition).thenCompose(stats -> {
+                SubscriptionStats subscriptionStats = stats.subscriptions.get(subscriptionName);
+                if (subscriptionStats == null || subscriptionStats.msgBacklog == 0) {
+                    return CompletableFuture.completedFuture(true);
+                }
+                // the backlog left is kept by the later laps once the last message is received
+                return delayedConsumer.getLastMessageIdAsync().thenApply(lastMessageId -> {
+                    MessageIdImpl received = lastReceivedId;
+                    MessageIdImpl last = (MessageIdImpl) lastMessageId;
+                    return received != null && (received.getLedgerId() > last.getLedgerId()
+                            || received.getLedgerId() == last.getLedgerId()
+                            && received.getEntryId() >= last.getEntryId());
+                });
+            }).whenComplete((done, e) -> {
+                checking.set(false);
+                if (e != null) {
+                    log.warn("{} check bucket slot [{}] failed.", this, bucketPartition, e);
+                    return;
+                }
+                if (done && bucketConsumers.remove(bucketStart, this)) {
+                    close();
+                }
+            });
+        }
+    }
+
+    /**
+     * Position of an entry of a delay level partition, and the messages of the entry delivered.
+     */
+    private static final class EntryHandle {
+
+        private final PositionImpl position;
+        private final AtomicInteger remainingMessages;
+        private final AtomicLong deliveredMask = new AtomicLong();
+
+        private EntryHandle(PositionImpl position, int messages) {
+            this.position = position;
+            this.remainingMessages = new AtomicInteger(messages);
+        }
+    }
+
+    /**
+     * A message of an entry of a delay level partition.
+     */
+    static final class MessageHandle {
+
+        private final EntryHandle entry;
+        private final int batchIndex;
+        private final long deliverTime;
+
+        private MessageHandle(EntryHandle entry, int batchIndex, long deliverTime) {
+            this.entry = entry;
+            this.batchIndex = batchIndex;
+            this.deliverTime = deliverTime;
+        }
+
+        @Override
+        public String toString() {
+            return entry.position + "@" + batchIndex;
+        }
     }
 }
@@ -0,0 +1,214 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.acl;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pulsar.broker.authentication.AuthenticationDataCommand;
+import org.apache.pulsar.broker.authentication.AuthenticationService;
+import org.apache.pulsar.broker.authorization.AuthorizationService;
+import org.apache.pulsar.broker.cache.ConfigurationCacheService;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.policies.data.Policies;
+import org.apache.pulsar.common.policies.data.TopicOperation;
+import org.apache.pulsar.zookeeper.ZooKeeperDataCache;
+import org.apache.rocketmq.acl.common.AclException;
+import org.apache.rocketmq.acl.common.SessionCredentials;
+import org.apache.rocketmq.common.protocol.RequestCode;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.apache.zookeeper.data.Stat;
+import org.streamnative.pulsar.handlers.rocketmq.inner.producer.ClientTopicName;
+
+/**
+ * Token based ACL checker of the RoP requests.
+ *
+ * <p>The token is authenticated once per channel and the role is kept on the channel. The
+ * authorization decisions of (role, topic, operation) are cached for a while and invalidated
+ * when the policies of the namespace are changed.
+ */
+@Slf4j
+public class RopAclChecker {
+
+    private static final AttributeKey<ChannelRole> CHANNEL_ROLE_KEY = AttributeKey.valueOf("RopChannelRole");
+    private static final CompletableFuture<Void> ALLOWED = CompletableFuture.completedFuture(null);
+    private static final String TOKEN_AUTH_METHOD = "token";
+    private static final long MAX_CACHED_DECISIONS = 100000;
+    // the topic fields of SEND_MESSAGE_V2 and SEND_BATCH_MESSAGE are abbreviated
+    private static final String TOPIC_FIELD = "topic";
+    private static final String TOPIC_FIELD_V2 = "b";
+    private static final String ORIGIN_TOPIC_FIELD = "originTopic";
+
+    private final Supplier<AuthenticationService> authenticationService;
+    private final Supplier<AuthorizationService> authorizationService;
+    private final String superUserToken;
+    private final Cache<AclKey, CompletableFuture<Boolean>> decisionCache;
+
+    public RopAclChecker(Supplier<AuthenticationService> authenticationService,
+            Supplier<AuthorizationService> authorizationService, String superUserToken,
+            long cacheExpireTimeInSeconds) {
+        this.authenticationService = authenticationService;
+        this.authorizationService = authorizationService;
+        this.superUserToken = superUserToken;
+        this.decisionCache = Caffeine.newBuilder()
+                .maximumSize(MAX_CACHED_DECISIONS)
+                .expireAfterWrite(cacheExpireTimeInSeconds, TimeUnit.SECONDS)
+                .build();
+    }
+
+    /**
+     * Invalidate the cached decisions of a namespace when its policies are changed.
+     */
+    public void registerPoliciesListener(ZooKeeperDataCache<Policies> policiesCache) {
+        policiesCache.registerListener((String path, Policies policies, Stat stat) -> {
+            if (path.startsWith(ConfigurationCacheService.POLICIES_ROOT + "/")) {
+                invalidate(path.substring(ConfigurationCacheService.POLICIES_ROOT.length() + 1));
+            }
+        });
+    }
+
+    /**
+     * Check whether the request is allowed.
+     *
+     * @return future which is completed if the request is allowed, or completed exceptionally
+     *         with {@link AclException} otherwise
+     */
+    public CompletableFuture<Void> check(Channel channel, RemotingCommand request) {
+        Map<String, String> extFields = request.getExtFields();
+        if (extFields == null) {
+            return ALLOWED;
+        }
+        String token = extFields.get(SessionCredentials.ACCESS_KEY);
+        switch (request.getCode()) {
+            case RequestCode.SEND_MESSAGE:
+                return checkTopicOperation(channel, token, extFields.get(TOPIC_FIELD), TopicOperation.PRODUCE);
+            case RequestCode.SEND_MESSAGE_V2:
+            case RequestCode.SEND_BATCH_MESSAGE:
+                return checkTopicOperation(channel, token, extFields.get(TOPIC_FIELD_V2), TopicOperation.PRODUCE);
+            case RequestCode.CONSUMER_SEND_MSG_BACK:
+                // the message is sent back to the retry topic of the group by a consumer of the origin topic
+                return checkTopicOperation(channel, token, extFields.get(ORIGIN_TOPIC_FIELD),
+                        TopicOperation.CONSUME);
+            case RequestCode.PULL_MESSAGE:
+                return checkTopicOperation(channel, token, extFields.get(TOPIC_FIELD), TopicOperation.CONSUME);
+            case RequestCode.UPDATE_AND_CREATE_TOPIC:
+            case RequestCode.DELETE_TOPIC_IN_BROKER:
+            case RequestCode.UPDATE_BROKER_CONFIG:
+            case RequestCode.UPDATE_AND_CREATE_SUBSCRIPTIONGROUP:
+            case RequestCode.DELETE_SUBSCRIPTIONGROUP:
+            case RequestCode.INVOKE_BROKER_TO_RESET_OFFSET:
+                if (!superUserToken.equals(token)) {
+                    return denied("[ADMIN] Token authentication failed, please check");
+                }
+                return ALLOWED;
+            default:
+                return ALLOWED;
+        }
+    }
+
+    private CompletableFuture<Void> checkTopicOperation(Channel channel, String token, String topic,
+            TopicOperation operation) {
+        if (token == null || token.isEmpty()) {
+            return denied("No accessKey is configured");
+        }
+        if (topic == null) {
+            // let the processor reject the malformed request
+            return ALLOWED;
+        }
+
+        String role;
+        try {
+            role = authenticate(channel, token);
+        } catch (Exception e) {
+            log.debug("[{}] Authenticate the token of channel [{}] failed.", operation, channel, e);
+            return denied("[" + operation + "] The uploaded token is wrong");
+        }
+
+        AclKey aclKey = new AclKey(role, topic, operation);
+        CompletableFuture<Boolean> decision = decisionCache.get(aclKey,
+                key -> authorizationService.get().allowTopicOperationAsync(
+                        TopicName.get(new ClientTopicName(topic).getPulsarTopicName()), operation, role,
+                        new AuthenticationDataCommand(token)));
+        if (decision.isDone() && !decision.isCompletedExceptionally() && decision.join()) {
+            return ALLOWED;
+        }
+        return decision.whenComplete((allowed, e) -> {
+            // the failures are not cached
+            if (e != null) {
+                decisionCache.asMap().remove(aclKey, decision);
+            }
+        }).thenAccept(allowed -> {
+            if (!allowed) {
+                log.debug("[{}] Role [{}] isn't allowed to access topic [{}].", operation, role, topic);
+                throw new AclException("[" + operation + "] Token authentication failed, please check");
+            }
+        });
+    }
+
+    private String authenticate(Channel channel, String token) throws Exception {
+        ChannelRole channelRole = channel.attr(CHANNEL_ROLE_KEY).get();
+        if (channelRole != null && channelRole.token.equals(token)) {
+            return channelRole.role;
+        }
+        String role = authenticationService.get().authenticate(new AuthenticationDataCommand(token), TOKEN_AUTH_METHOD);
+        if (role == null || role.isEmpty()) {
+            throw new AclException("Empty role of the token");
+        }
+        channel.attr(CHANNEL_ROLE_KEY).set(new ChannelRole(token, role));
+        return role;
+    }
+
+    private void invalidate(String namespace) {
+        decisionCache.asMap().keySet().removeIf(key -> {
+            try {
+                return namespace.equals(
+                        TopicName.get(new ClientTopicName(key.topic).getPulsarTopicName()).getNamespace());
+            } catch (Exception e) {
+                return true;
+            }
+        });
+        log.debug("Invalidate the cached acl decisions of namespace [{}].", namespace);
+    }
+
+    private static CompletableFuture<Void> denied(String message) {
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        future.completeExceptionally(new AclException(message));
+        return future;
+    }
+
+    @AllArgsConstructor
+    private static final class ChannelRole {
+
+        private final String token;
+        private final String role;
+    }
+
+    @EqualsAndHashCode
+    @AllArgsConstructor
+    private static final class AclKey {
+
+        private final String role;
+        private final String topic;
+        private final TopicOperation operation;
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.cache;
+
+import io.netty.buffer.ByteBuf;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import lombok.AllArgsConstructor;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.impl.EntryImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+
+/**
+ * Broker wide cache of the recently published entries of the partitions.
+ *
+ * <p>The consumer groups pulling the tail of a partition read the entries from this cache instead of reading them
+ * from the bookies through their own cursors. The size of the cached entries is bounded, the earliest published
+ * entries are evicted first.
+ */
+public class RopEntryCache {
+
+    private final long maxSize;
+    private final AtomicLong size = new AtomicLong();
+    private final ConcurrentHashMap<String, PartitionEntries> partitions = new ConcurrentHashMap<>();
+    // the cached entries in the published order, removed lazily if they are invalidated
+    private final Queue<CachedEntry> evictionQueue = new ConcurrentLinkedQueue<>();
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+
+    public RopEntryCache(long maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    public boolean isEnabled() {
+        return maxSize > 0;
+    }
+
+    /**
+     * Cache the published entry of the partition, the cache takes the ownership of the buffer.
+     */
+    public void put(String partitionTopic, long ledgerId, long entryId, ByteBuf entry) {
+        if (!isEnabled() || entry.readableBytes() > maxSize) {
+            entry.release();
+            return;
+        }
+        PositionImpl position = PositionImpl.get(ledgerId, entryId);
+        PartitionEntries partition = partitions.computeIfAbsent(partitionTopic, topic -> new PartitionEntries());
+        synchronized (partition) {
+            ByteBuf old = partition.entries.put(position, entry);
+            if (old != null) {
+                size.addAndGet(-old.readableBytes());
+                old.release();
+            }
+        }
+        size.addAndGet(entry.readableBytes());
+        evictionQueue.offer(new CachedEntry(partition, position));
+        evict();
+    }
+
+    /**
+     * Read the consecutive cached entries of the partition from the given position.
+     *
+     * @return the retained entries, or an empty list if the entry at the position is not cached
+     */
+    public List<Entry> read(String partitionTopic, PositionImpl from, int maxEntries) {
+        PartitionEntries partition = partitions.get(partitionTopic);
+        if (partition == null || maxEntries <= 0) {
+            missCount.increment();
+            return Collections.emptyList();
+        }
+        List<Entry> entries = null;
+        synchronized (partition) {
+            PositionImpl expected = from;
+            for (Map.Entry<PositionImpl, ByteBuf> cached : partition.entries.tailMap(from, true).entrySet()) {
+                // the entries published by other producers are not cached, stop at the first gap
+                if (!cached.getKey().equals(expected)) {
+                    break;
+                }
+                if (entries == null) {
+                    entries = new ArrayList<>(maxEntries);
+                }
+                // the readers have their own indexes of the shared buffer
+                entries.add(EntryImpl.create(cached.getKey(), cached.getValue().duplicate()));
+                if (entries.size() >= maxEntries) {
+                    break;
+                }
+                expected = cached.getKey().getNext();
+            }
+        }
+        if (entries == null) {
+            missCount.increment();
+            return Collections.emptyList();
+        }
+        hitCount.increment();
+        return entries;
+    }
+
+    /**
+     * Remove the cached entries of the partition, e.g. when it's unloaded from this broker.
+     */
+    public void invalidate(String partitionTopic) {
+        PartitionEntries partition = partitions.remove(partitionTopic);
+        if (partition == null) {
+            return;
+        }
+        synchronized (partition) {
+            partition.entries.values().forEach(entry -> {
+                size.addAndGet(-entry.readableBytes());
+                entry.release();
+            });
+            partition.entries.clear();
+        }
+    }
+
+    public long getSize() {
+        return size.get();
+    }
+
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    public void clear() {
+        partitions.keySet().forEach(this::invalidate);
+        evictionQueue.clear();
+    }
+
+    private void evict() {
+        while (size.get() > maxSize) {
+            CachedEntry evicted = evictionQueue.poll();
+            if (evicted == null) {
+                return;
+            }
+            PartitionEntries partition = evicted.partition;
+            synchronized (partition) {
+                ByteBuf entry = partition.entries.remove(evicted.position);
+                if (entry != null) {
+                    size.addAndGet(-entry.readableBytes());
+                    entry.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * The cached entries of a partition, guarded by itself.
+     */
+    private static final class PartitionEntries {
+        private final TreeMap<PositionImpl, ByteBuf> entries = new TreeMap<>();
+    }
+
+    @AllArgsConstructor
+    private static final class CachedEntry {
+        private final PartitionEntries partition;
+        private final PositionImpl position;
+    }
+}
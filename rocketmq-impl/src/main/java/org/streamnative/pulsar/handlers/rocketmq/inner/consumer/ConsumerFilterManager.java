@@ -0,0 +1,87 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.consumer;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.TimeUnit;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.filter.FilterFactory;
+import org.apache.rocketmq.filter.FilterSpi;
+import org.apache.rocketmq.filter.expression.Expression;
+import org.apache.rocketmq.filter.expression.MQFilterException;
+
+/**
+ * Compiled filter expressions of the consumer groups.
+ *
+ * <p>An expression is compiled once per (group, topic, subVersion) and cached in a bounded cache, the entries
+ * which are not used for the expire time are dropped.
+ */
+@Slf4j
+public class ConsumerFilterManager {
+
+    private final Cache<FilterKey, CompiledFilter> filterCache;
+
+    public ConsumerFilterManager(long maxSize, long expireTimeMs) {
+        this.filterCache = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .expireAfterAccess(expireTimeMs, TimeUnit.MILLISECONDS)
+                .build();
+    }
+
+    /**
+     * Get the compiled expression of the subscription, it's compiled if the subscription is not cached.
+     *
+     * @throws MQFilterException if the expression type is not supported or the expression is invalid
+     */
+    public Expression get(String group, String topic, long subVersion, String expressionType, String expression)
+            throws MQFilterException {
+        FilterKey key = new FilterKey(group, topic, subVersion);
+        CompiledFilter filter = filterCache.getIfPresent(key);
+        if (filter != null && filter.expression.equals(expression)) {
+            return filter.compiledExpression;
+        }
+
+        FilterSpi filterSpi = FilterFactory.INSTANCE.get(expressionType);
+        if (filterSpi == null) {
+            throw new MQFilterException("Unsupported expression type: " + expressionType, null);
+        }
+        Expression compiledExpression = filterSpi.compile(expression);
+        filterCache.put(key, new CompiledFilter(expression, compiledExpression));
+        log.info("Compiled filter [{}] of group [{}] and topic [{}], subVersion: {}.", expression, group, topic,
+                subVersion);
+        return compiledExpression;
+    }
+
+    public long size() {
+        return filterCache.size();
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static final class FilterKey {
+        private final String group;
+        private final String topic;
+        private final long subVersion;
+    }
+
+    @AllArgsConstructor
+    private static final class CompiledFilter {
+        private final String expression;
+        private final Expression compiledExpression;
+    }
+}
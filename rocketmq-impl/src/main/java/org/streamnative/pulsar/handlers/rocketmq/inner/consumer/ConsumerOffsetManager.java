@@ -16,20 +16,30 @@ package org.streamnative.pulsar.handlers.rocketmq.inner.consumer;
 
 import static org.streamnative.pulsar.handlers.rocketmq.utils.CommonUtils.SLASH_CHAR;
 
+import com.google.common.collect.Range;
+import io.prometheus.client.Gauge;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Optional;
 import java.util.Set;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.bookkeeper.mledger.AsyncCallbacks;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.MarkDeleteCallback;
 import org.apache.bookkeeper.mledger.ManagedCursor;
 import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.Position;
@@ -39,11 +49,12 @@ import org.apache.pulsar.broker.PulsarService;
 import org.apache.pulsar.broker.service.Topic;
 import org.apache.pulsar.broker.service.persistent.PersistentSubscription;
 import org.apache.pulsar.broker.service.persistent.PersistentTopic;
-import org.apache.pulsar.client.impl.MessageIdImpl;
 import org.apache.pulsar.common.api.proto.PulsarApi.CommandSubscribe.InitialPosition;
 import org.apache.pulsar.common.naming.TopicName;
+import org.apache.pulsar.common.util.FutureUtil;
 import org.apache.rocketmq.common.UtilAll;
 import org.streamnative.pulsar.handlers.rocketmq.inner.RocketMQBrokerController;
+import org.streamnative.pulsar.handlers.rocketmq.inner.consumer.ConsumerOffsetTable.PartitionOffsets;
 import org.streamnative.pulsar.handlers.rocketmq.inner.exception.RopPersistentTopicException;
 import org.streamnative.pulsar.handlers.rocketmq.inner.producer.ClientGroupAndTopicName;
 import org.streamnative.pulsar.handlers.rocketmq.inner.producer.ClientGroupName;
@@ -58,18 +69,29 @@ import org.streamnative.pulsar.handlers.rocketmq.utils.RocketMQTopic;
 @Slf4j
 public class ConsumerOffsetManager {
 
+    private static final String BATCH_INDEX_PROPERTY = "ropBatchIndex";
+
+    private static final Gauge OFFSET_FLUSH_LAG = Gauge.build()
+            .name("rop_consumer_offset_flush_lag_ms")
+            .help("Age in milliseconds of the oldest consumer offset commit not persisted when a flush starts")
+            .register();
+    private static final Gauge DIRTY_OFFSETS = Gauge.build()
+            .name("rop_consumer_offset_dirty_partitions")
+            .help("Number of the partitions with consumer offsets not persisted when a flush starts")
+            .register();
+
     private final RocketMQBrokerController brokerController;
     /**
-     * key   => topic@group.
-     * topic => tenant/namespace/topicName.
-     * group => tenant/namespace/groupName.
-     * map   => [key => queueId] & [value => offset].
+     * group => rmq group name.
+     * topic => rmq topic name.
+     * value => offsets indexed by queueId.
      **/
-    private final ConcurrentHashMap<ClientGroupAndTopicName, ConcurrentMap<Integer, Long>> offsetTable =
-            new ConcurrentHashMap<>(512);
+    private final ConsumerOffsetTable offsetTable = new ConsumerOffsetTable();
 
-    private final ConcurrentHashMap<ClientGroupAndTopicName, ConcurrentMap<Integer, Long>> offsetTableSnapshot =
-            new ConcurrentHashMap<>(512);
+    // the partitions committed since the last flush, the commit time is kept in the offset table
+    private final Set<OffsetKey> dirtyOffsets = ConcurrentHashMap.newKeySet();
+    private final Set<OffsetKey> flushingOffsets = ConcurrentHashMap.newKeySet();
+    private final Semaphore pendingFlushes;
 
     @Getter
     private final ConcurrentHashMap<ClientTopicName, ConcurrentMap<Integer, PersistentTopic>> pulsarTopicCache =
@@ -77,6 +99,7 @@ public class ConsumerOffsetManager {
 
     public ConsumerOffsetManager(RocketMQBrokerController brokerController) {
         this.brokerController = brokerController;
+        this.pendingFlushes = new Semaphore(brokerController.getServerConfig().getRopMaxPendingOffsetFlushes());
     }
 
     //restore topic cache from pulsar and offset info from pulsar
@@ -93,16 +116,12 @@ public class ConsumerOffsetManager {
                 ClientGroupAndTopicName groupAtTopic = null;
                 try {
                     ManagedCursor cursor = grpInfo.getCursor();
-                    PositionImpl readPosition = (PositionImpl) cursor.getReadPosition();
+                    PositionImpl markDeletedPosition = (PositionImpl) cursor.getMarkDeletedPosition();
                     clientGroupName = new ClientGroupName(TopicName.get(grp));
                     groupAtTopic = new ClientGroupAndTopicName(clientGroupName, clientTopicName);
-                    ConcurrentMap<Integer, Long> partitionOffset = offsetTable.get(groupAtTopic);
-                    if (partitionOffset == null) {
-                        offsetTable.putIfAbsent(groupAtTopic, new ConcurrentHashMap<>());
-                    }
-                    offsetTable.get(groupAtTopic).putIfAbsent(partitionId,
-                            MessageIdUtils
-                                    .getOffset(readPosition.getLedgerId(), readPosition.getEntryId(), partitionId));
+                    offsetTable.getOrCreate(groupAtTopic).setOffsetIfAbsent(partitionId,
+                            MessageIdUtils.getOffset(markDeletedPosition.getLedgerId(),
+                                    markDeletedPosition.getEntryId(), partitionId, getMarkDeletedBatchIndex(cursor)));
                 } catch (Exception e) {
                     log.warn("restore subscriptions[groupAtTopic={}] error.", groupAtTopic, e);
                 }
@@ -121,24 +140,21 @@ public class ConsumerOffsetManager {
     }
 
     public void scanUnsubscribedTopic() {
-        Iterator<Entry<ClientGroupAndTopicName, ConcurrentMap<Integer, Long>>> it = this.offsetTable.entrySet()
-                .iterator();
-        while (it.hasNext()) {
-            Entry<ClientGroupAndTopicName, ConcurrentMap<Integer, Long>> next = it.next();
-            ClientGroupAndTopicName topicAtGroup = next.getKey();
+        this.offsetTable.forEach(offsets -> {
+            ClientGroupAndTopicName topicAtGroup = offsets.getGroupAndTopic();
             if (null == brokerController.getConsumerManager()
                     .findSubscriptionData(topicAtGroup.getClientGroupName().getRmqGroupName(),
                             topicAtGroup.getClientTopicName().getRmqTopicName())
                     && this
-                    .offsetBehindMuchThanData(topicAtGroup, next.getValue())) {
-                it.remove();
+                    .offsetBehindMuchThanData(topicAtGroup, offsets.asMap())) {
+                this.offsetTable.remove(offsets);
                 log.warn("remove topic offset, {}", topicAtGroup);
             }
-        }
+        });
     }
 
     private boolean offsetBehindMuchThanData(final ClientGroupAndTopicName topicAtGroup,
-            ConcurrentMap<Integer, Long> table) {
+            Map<Integer, Long> table) {
         Iterator<Entry<Integer, Long>> it = table.entrySet().iterator();
         boolean result = !table.isEmpty();
 
@@ -157,26 +173,17 @@ public class ConsumerOffsetManager {
     }
 
     public Set<String> whichTopicByConsumer(final String group) {
-        Set<String> topics = new HashSet<>();
-        for (Entry<ClientGroupAndTopicName, ConcurrentMap<Integer, Long>> next : this.offsetTable.entrySet()) {
-            ClientGroupName clientGroupName = next.getKey().getClientGroupName();
-            if (group.equals(clientGroupName.getRmqGroupName())) {
-                String topicAtGroup = next.getKey().getClientTopicName().getRmqTopicName();
-                topics.add(topicAtGroup);
-            }
-        }
-        return topics;
+        return new HashSet<>(this.offsetTable.getTopics(group));
     }
 
     public Set<String> whichGroupByTopic(final String topic) {
         Set<String> groups = new HashSet<>();
-        for (Entry<ClientGroupAndTopicName, ConcurrentMap<Integer, Long>> next : this.offsetTable.entrySet()) {
-            ClientTopicName clientTopicName = next.getKey().getClientTopicName();
-            if (topic.equals(clientTopicName.getRmqTopicName())) {
-                ClientGroupName clientGroupName = next.getKey().getClientGroupName();
-                groups.add(clientGroupName.getRmqGroupName());
+        this.offsetTable.forEach(offsets -> {
+            ClientGroupAndTopicName groupAndTopic = offsets.getGroupAndTopic();
+            if (topic.equals(groupAndTopic.getClientTopicName().getRmqTopicName())) {
+                groups.add(groupAndTopic.getClientGroupName().getRmqGroupName());
             }
-        }
+        });
         return groups;
     }
 
@@ -193,65 +200,49 @@ public class ConsumerOffsetManager {
             return;
         }
 
-        log.debug("When commit offset, the [topic@queueId] is [{}@{}] and the messageID is: {}", topic, queueId,
-                MessageIdUtils.getMessageId(offset));
-        ClientGroupAndTopicName clientGroupAndTopicName = new ClientGroupAndTopicName(group, topic);
-        MessageIdImpl messageId = MessageIdUtils.getMessageId(offset);
-        long fixedOffset = messageId.getEntryId() > 0 ? offset - 1 : offset; // fixed rocketmq client commit offset + 1
-        this.commitOffset(clientHost, clientGroupAndTopicName, queueId, fixedOffset);
-    }
-
-    private void commitOffset(final String clientHost, final ClientGroupAndTopicName clientGroupAndTopicName,
-            final int queueId, final long offset) {
-        ConcurrentMap<Integer, Long> map = this.offsetTable.get(clientGroupAndTopicName);
-        if (null == map) {
-            map = new ConcurrentHashMap<>(32);
-            map.put(queueId, offset);
-            this.offsetTable.put(clientGroupAndTopicName, map);
-        } else {
-            Long storeOffset = map.get(queueId);
-            if (storeOffset == null) {
-                map.put(queueId, offset);
-            } else if (offset >= storeOffset) {
-                map.put(queueId, offset);
-            }
+        if (log.isDebugEnabled()) {
+            log.debug("When commit offset, the [topic@queueId] is [{}@{}] and the messageID is: {}", topic, queueId,
+                    MessageIdUtils.getMessageId(offset));
+        }
+        // fixed rocketmq client commit offset + 1
+        long fixedOffset = MessageIdUtils.getEntryId(offset) > 0 || MessageIdUtils.getBatchIndex(offset) > 0
+                ? offset - 1 : offset;
+        this.commitOffset(this.offsetTable.getOrCreate(group, topic), queueId, fixedOffset);
+    }
+
+    private void commitOffset(final PartitionOffsets offsets, final int queueId, final long offset) {
+        // the commits before the next flush are coalesced, only the latest offset is persisted
+        if (offsets.updateOffset(queueId, offset)) {
+            markDirty(offsets, queueId, System.currentTimeMillis());
         }
     }
 
     public long queryOffset(final String group, final String topic, final int queueId) {
-        ClientGroupAndTopicName clientGroupAndTopicName = new ClientGroupAndTopicName(group, topic);
-        ConcurrentMap<Integer, Long> map = this.offsetTable.get(clientGroupAndTopicName);
-        if (null != map) {
-            Long offset = map.get(queueId);
-            if (offset != null) {
-                return offset;
-            }
+        PartitionOffsets offsets = this.offsetTable.get(group, topic);
+        if (null != offsets) {
+            return offsets.getOffset(queueId);
         } else {
+            ClientGroupAndTopicName clientGroupAndTopicName = new ClientGroupAndTopicName(group, topic);
             long groupOffset = getGroupOffsetFromPulsar(clientGroupAndTopicName, queueId);
             if (groupOffset != -1L) {
-                this.offsetTable.putIfAbsent(clientGroupAndTopicName, new ConcurrentHashMap<>());
-                this.offsetTable.get(clientGroupAndTopicName).put(queueId, groupOffset);
+                this.offsetTable.getOrCreate(clientGroupAndTopicName).setOffsetIfAbsent(queueId, groupOffset);
             }
             return groupOffset;
         }
-        return -1L;
     }
 
     public Map<Integer, Long> queryMinOffsetInAllGroup(final String topic, final String filterGroups) {
         Map<Integer, Long> queueMinOffset = new HashMap<>();
-        Set<ClientGroupAndTopicName> topicGroups = this.offsetTable.keySet();
+        Set<String> excludedGroups = new HashSet<>();
         if (!UtilAll.isBlank(filterGroups)) {
-            for (String group : filterGroups.split(",")) {
-                topicGroups.removeIf(clientGroupAndTopicName -> group
-                        .equals(clientGroupAndTopicName.getClientGroupName().getRmqGroupName()));
-            }
+            Collections.addAll(excludedGroups, filterGroups.split(","));
         }
 
-        for (Entry<ClientGroupAndTopicName, ConcurrentMap<Integer, Long>> offSetEntry : this.offsetTable
-                .entrySet()) {
-            ClientGroupAndTopicName topicGroup = offSetEntry.getKey();
-            if (topic.equals(topicGroup.getClientTopicName().getRmqTopicName())) {
-                for (Entry<Integer, Long> entry : offSetEntry.getValue().entrySet()) {
+        this.offsetTable.forEach(offsets -> {
+            ClientGroupAndTopicName topicGroup = offsets.getGroupAndTopic();
+            if (topic.equals(topicGroup.getClientTopicName().getRmqTopicName())
+                    && !excludedGroups.contains(topicGroup.getClientGroupName().getRmqGroupName())) {
+                for (Entry<Integer, Long> entry : offsets.asMap().entrySet()) {
                     long minOffset = 0L;
                     try {
                         minOffset = getMinOffsetInQueue(topicGroup.getClientTopicName(), entry.getKey());
@@ -262,20 +253,24 @@ public class ConsumerOffsetManager {
                     }
                 }
             }
-
-        }
+        });
         return queueMinOffset;
     }
 
     public Map<Integer, Long> queryOffset(final String group, final String topic) {
-        return this.offsetTable.get(new ClientGroupAndTopicName(group, topic));
+        PartitionOffsets offsets = this.offsetTable.get(group, topic);
+        return offsets == null ? null : offsets.asMap();
     }
 
     public void cloneOffset(final String srcGroup, final String destGroup, final String topic) {
-        ConcurrentMap<Integer, Long> offsets = this.offsetTable.get(new ClientGroupAndTopicName(srcGroup, topic));
+        PartitionOffsets offsets = this.offsetTable.get(srcGroup, topic);
         if (offsets != null) {
-            this.offsetTable
-                    .put(new ClientGroupAndTopicName(destGroup, topic), new ConcurrentHashMap<>(offsets));
+            PartitionOffsets destOffsets = this.offsetTable.getOrCreate(destGroup, topic);
+            long now = System.currentTimeMillis();
+            offsets.asMap().forEach((partitionId, offset) -> {
+                destOffsets.setOffset(partitionId, offset);
+                markDirty(destOffsets, partitionId, now);
+            });
         }
     }
 
@@ -304,49 +299,63 @@ public class ConsumerOffsetManager {
     }
 
     public long searchOffsetByTimestamp(ClientGroupAndTopicName groupAndTopic, int partitionId, long timestamp) {
+        try {
+            return searchOffsetByTimestampAsync(groupAndTopic, partitionId, timestamp).get(5, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            log.warn("SearchOffsetByTimestamp: topic [{}] search offset timeout.",
+                    groupAndTopic.getClientTopicName().getPulsarTopicName());
+        }
+        return -1L;
+    }
+
+    /**
+     * Search the offset of the newest message stored at or before the timestamp.
+     * The time index of the partition narrows the search to the entries between two samples.
+     *
+     * @return future of the offset, -1 if not found. It's never completed exceptionally
+     */
+    public CompletableFuture<Long> searchOffsetByTimestampAsync(ClientGroupAndTopicName groupAndTopic,
+            int partitionId, long timestamp) {
         PersistentTopic persistentTopic;
         try {
             persistentTopic = getPulsarPersistentTopic(groupAndTopic.getClientTopicName(), partitionId);
         } catch (RopPersistentTopicException e) {
-            return -1L;
+            return CompletableFuture.completedFuture(-1L);
         }
-        if (persistentTopic != null) {
-            // find with real wanted timestamp
-            OffsetFinder offsetFinder = new OffsetFinder((ManagedLedgerImpl) persistentTopic.getManagedLedger());
-
-            CompletableFuture<Long> finalOffset = new CompletableFuture<>();
-            offsetFinder.findMessages(timestamp, new AsyncCallbacks.FindEntryCallback() {
-                @Override
-                public void findEntryComplete(Position position, Object ctx) {
-                    if (position == null) {
-                        finalOffset.complete(-1L);
-                    } else {
-                        PositionImpl finalPosition = (PositionImpl) position;
-                        long offset = MessageIdUtils
-                                .getOffset(finalPosition.getLedgerId(), finalPosition.getEntryId(), partitionId);
-                        finalOffset.complete(offset);
-                    }
-                }
+        if (persistentTopic == null) {
+            log.warn("SearchOffsetByTimestamp: topic [{}] not found",
+                    groupAndTopic.getClientTopicName().getPulsarTopicName());
+            return CompletableFuture.completedFuture(-1L);
+        }
+
+        // find with real wanted timestamp
+        OffsetFinder offsetFinder = new OffsetFinder((ManagedLedgerImpl) persistentTopic.getManagedLedger());
+        Range<PositionImpl> range = brokerController.getTimeIndexManager().getTimeIndex(persistentTopic)
+                .lookup(timestamp);
 
-                @Override
-                public void findEntryFailed(ManagedLedgerException exception,
-                        Optional<Position> position, Object ctx) {
-                    log.warn("Unable to find position for topic {} time {}. Exception:",
-                            groupAndTopic.getClientTopicName(), timestamp, exception);
+        CompletableFuture<Long> finalOffset = new CompletableFuture<>();
+        offsetFinder.findMessages(timestamp, range, new AsyncCallbacks.FindEntryCallback() {
+            @Override
+            public void findEntryComplete(Position position, Object ctx) {
+                if (position == null) {
                     finalOffset.complete(-1L);
+                } else {
+                    PositionImpl finalPosition = (PositionImpl) position;
+                    long offset = MessageIdUtils
+                            .getOffset(finalPosition.getLedgerId(), finalPosition.getEntryId(), partitionId);
+                    finalOffset.complete(offset);
                 }
-            });
+            }
 
-            try {
-                return finalOffset.get(5, TimeUnit.SECONDS);
-            } catch (Exception e) {
-                log.warn("SearchOffsetByTimestamp: topic [{}] search offset timeout.", persistentTopic.getName());
+            @Override
+            public void findEntryFailed(ManagedLedgerException exception,
+                    Optional<Position> position, Object ctx) {
+                log.warn("Unable to find position for topic {} time {}. Exception:",
+                        groupAndTopic.getClientTopicName(), timestamp, exception);
+                finalOffset.complete(-1L);
             }
-        } else {
-            log.warn("SearchOffsetByTimestamp: topic [{}] not found",
-                    groupAndTopic.getClientTopicName().getPulsarTopicName());
-        }
-        return -1L;
+        });
+        return finalOffset;
     }
 
     public CompletableFuture<Optional<Topic>> getPulsarPersistentTopicAsync(ClientTopicName clientTopicName,
@@ -390,105 +399,182 @@ public class ConsumerOffsetManager {
             String pulsarGroup = groupAndTopic.getClientGroupName().getPulsarGroupName();
             PersistentSubscription subscription = persistentTopic.getSubscription(pulsarGroup);
             if (subscription != null) {
-                PositionImpl markDeletedPosition = (PositionImpl) subscription.getCursor()
-                        .getMarkDeletedPosition();
-                MessageIdImpl messageId = new MessageIdImpl(markDeletedPosition.getLedgerId(),
-                        markDeletedPosition.getEntryId(), queueId);
-                return MessageIdUtils.getOffset(messageId);
+                ManagedCursor cursor = subscription.getCursor();
+                PositionImpl markDeletedPosition = (PositionImpl) cursor.getMarkDeletedPosition();
+                return MessageIdUtils.getOffset(markDeletedPosition.getLedgerId(), markDeletedPosition.getEntryId(),
+                        queueId, getMarkDeletedBatchIndex(cursor));
             }
         } catch (RopPersistentTopicException ignore) {
         }
         return -1L;
     }
 
+    private static int getMarkDeletedBatchIndex(ManagedCursor cursor) {
+        Map<String, Long> properties = cursor.getProperties();
+        Long batchIndex = properties == null ? null : properties.get(BATCH_INDEX_PROPERTY);
+        return batchIndex == null ? 0 : batchIndex.intValue();
+    }
+
     private boolean isSystemGroup(String groupName) {
         return groupName.startsWith(RocketMQTopic.getMetaTenant() + SLASH_CHAR + RocketMQTopic.getMetaNamespace())
                 || groupName
                 .startsWith(RocketMQTopic.getDefaultTenant() + SLASH_CHAR + RocketMQTopic.getDefaultNamespace());
     }
 
-    public synchronized void persist() {
-        ConcurrentHashMap<ClientGroupAndTopicName, ConcurrentMap<Integer, Long>> neededPersistOffsets =
-                neededPersistentOffsetTable();
-        if (neededPersistOffsets != null && !neededPersistOffsets.isEmpty()) {
-            neededPersistOffsets.forEach((groupAndTopic, offsetMap) -> {
-                String pulsarGroup = groupAndTopic.getClientGroupName().getPulsarGroupName();
-                if (!isSystemGroup(pulsarGroup)) {
-                    offsetMap.forEach((partitionId, offset) -> {
-                        try {
-                            PersistentTopic persistentTopic = getPulsarPersistentTopic(
-                                    groupAndTopic.getClientTopicName(),
-                                    partitionId);
-                            if (persistentTopic != null) {
-                                PersistentSubscription subscription = persistentTopic.getSubscription(pulsarGroup);
-                                if (subscription == null) {
-                                    subscription = (PersistentSubscription) persistentTopic
-                                            .createSubscription(pulsarGroup,
-                                                    InitialPosition.Earliest,
-                                                    false)
-                                            .get();
-                                }
-                                ManagedCursor cursor = subscription.getCursor();
-                                PositionImpl markDeletedPosition = (PositionImpl) cursor.getMarkDeletedPosition();
-                                PositionImpl commitPosition = MessageIdUtils.getPosition(offset);
-                                PositionImpl lastPosition = (PositionImpl) persistentTopic.getLastPosition();
-                                if (commitPosition.compareTo(markDeletedPosition) > 0
-                                        && commitPosition.compareTo(lastPosition) <= 0) {
-                                    try {
-                                        cursor.markDelete(commitPosition);
-                                        log.debug("markDelete commit offset [position = {}] successfully.",
-                                                commitPosition);
-                                    } catch (Exception e) {
-                                        log.info("commit offset [position = {}] and deletedPosition[{}] error.",
-                                                commitPosition, markDeletedPosition, e);
-                                    }
-                                } else {
-                                    log.info("skip commit offset, for [position = {}] less than [oldPosition = {}].",
-                                            commitPosition, markDeletedPosition);
-                                }
-                            }
-                        } catch (Exception e) {
-                            log.warn("persist topic[{}] offset[{}] error. Exception: ", groupAndTopic, offset, e);
-                        }
-                    });
+    /**
+     * Persist the offsets committed since the last flush into the subscriptions of the partitions.
+     *
+     * <p>Only the dirty partitions are drained, the commits of a partition between two flushes are coalesced into its
+     * latest offset, and at most {@code ropMaxPendingOffsetFlushes} mark-deletes are pending at the same time. The
+     * partitions which can't be flushed in this round are left dirty for the next one.
+     */
+    public void persist() {
+        long now = System.currentTimeMillis();
+        long oldestCommitTime = now;
+        for (OffsetKey key : dirtyOffsets) {
+            long commitTime = key.offsets.getDirtyTime(key.partitionId);
+            if (commitTime > 0) {
+                oldestCommitTime = Math.min(oldestCommitTime, commitTime);
+            }
+        }
+        OFFSET_FLUSH_LAG.set(now - oldestCommitTime);
+        DIRTY_OFFSETS.set(dirtyOffsets.size());
+
+        long flushTimeoutMs = brokerController.getServerConfig().getFlushConsumerOffsetInterval();
+        List<OffsetKey> busyKeys = new ArrayList<>();
+        for (OffsetKey key : dirtyOffsets) {
+            if (!dirtyOffsets.remove(key)) {
+                continue;
+            }
+            if (!flushingOffsets.add(key)) {
+                // the previous flush of the partition is not completed yet
+                busyKeys.add(key);
+                continue;
+            }
+            if (!acquireFlushPermit(flushTimeoutMs)) {
+                flushingOffsets.remove(key);
+                dirtyOffsets.add(key);
+                log.warn("Too many pending consumer offset flushes, {} partitions are left to the next round.",
+                        dirtyOffsets.size());
+                break;
+            }
+            // the commits after this are flushed in the next round
+            long commitTime = key.offsets.clearDirty(key.partitionId);
+            CompletableFuture<Void> flushFuture;
+            try {
+                flushFuture = flushOffset(key);
+            } catch (Exception e) {
+                flushFuture = FutureUtil.failedFuture(e);
+            }
+            flushFuture.whenComplete((ignore, e) -> {
+                flushingOffsets.remove(key);
+                pendingFlushes.release();
+                if (e != null) {
+                    log.warn("persist topic[{}] partition[{}] offset error. Exception: ",
+                            key.offsets.getGroupAndTopic(), key.partitionId, e);
+                    if (isPartitionOwner(key)) {
+                        markDirty(key.offsets, key.partitionId, commitTime);
+                    }
                 }
             });
         }
-        createOffsetTableSnapshot();
+        dirtyOffsets.addAll(busyKeys);
     }
 
-    private ConcurrentHashMap<ClientGroupAndTopicName, ConcurrentMap<Integer, Long>> createOffsetTableSnapshot() {
-        offsetTableSnapshot.clear();
-        offsetTable.forEach((groupAtTopic, partitionedOffset) -> {
-            offsetTableSnapshot.putIfAbsent(groupAtTopic, new ConcurrentHashMap<>());
-            partitionedOffset
-                    .forEach((partition, offset) -> offsetTableSnapshot.get(groupAtTopic).put(partition, offset));
-        });
-        return offsetTableSnapshot;
+    private boolean acquireFlushPermit(long timeoutMs) {
+        try {
+            return pendingFlushes.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
     }
 
-    private ConcurrentHashMap<ClientGroupAndTopicName, ConcurrentMap<Integer, Long>> neededPersistentOffsetTable() {
-        if (offsetTableSnapshot.isEmpty()) {
-            return createOffsetTableSnapshot();
+    private void markDirty(PartitionOffsets offsets, int partitionId, long commitTime) {
+        if (offsets.markDirty(partitionId, commitTime)) {
+            dirtyOffsets.add(new OffsetKey(offsets, partitionId));
         }
-        offsetTableSnapshot.forEach((groupAtTopic, oldPartitionOffset) -> {
-            if (offsetTable.containsKey(groupAtTopic)) {
-                ConcurrentMap<Integer, Long> newPartitionOffset = offsetTable.get(groupAtTopic);
-                newPartitionOffset.forEach((partition, newOffset) -> {
-                    if (oldPartitionOffset.containsKey(partition) && oldPartitionOffset.get(partition) >= newOffset) {
-                        oldPartitionOffset.remove(partition);
-                        if (oldPartitionOffset.isEmpty()) {
-                            offsetTableSnapshot.remove(groupAtTopic);
-                        }
-                    } else {
-                        oldPartitionOffset.put(partition, newPartitionOffset.get(partition));
-                    }
+    }
+
+    private boolean isPartitionOwner(OffsetKey key) {
+        TopicName pulsarTopicName = TopicName
+                .get(key.offsets.getGroupAndTopic().getClientTopicName().getPulsarTopicName());
+        return brokerController.getTopicConfigManager().isPartitionTopicOwner(pulsarTopicName, key.partitionId);
+    }
+
+    private CompletableFuture<Void> flushOffset(OffsetKey key) {
+        ClientGroupAndTopicName groupAndTopic = key.offsets.getGroupAndTopic();
+        long offset = key.offsets.getOffset(key.partitionId);
+        String pulsarGroup = groupAndTopic.getClientGroupName().getPulsarGroupName();
+        // the offsets may have been removed after the commit
+        if (offset == PartitionOffsets.NO_OFFSET || !offsetTable.contains(key.offsets) || isSystemGroup(pulsarGroup)) {
+            return CompletableFuture.completedFuture(null);
+        }
+
+        return getPulsarPersistentTopicCachedAsync(groupAndTopic.getClientTopicName(), key.partitionId)
+                .thenCompose(persistentTopic -> {
+                    PersistentSubscription subscription = persistentTopic.getSubscription(pulsarGroup);
+                    CompletableFuture<PersistentSubscription> subscriptionFuture = subscription != null
+                            ? CompletableFuture.completedFuture(subscription)
+                            : persistentTopic.createSubscription(pulsarGroup, InitialPosition.Earliest, false)
+                                    .thenApply(PersistentSubscription.class::cast);
+                    return subscriptionFuture.thenCompose(sub -> markDelete(persistentTopic, sub.getCursor(), offset));
                 });
-            } else {
-                offsetTableSnapshot.remove(groupAtTopic);
+    }
+
+    private CompletableFuture<Void> markDelete(PersistentTopic persistentTopic, ManagedCursor cursor, long offset) {
+        PositionImpl markDeletedPosition = (PositionImpl) cursor.getMarkDeletedPosition();
+        PositionImpl commitPosition = MessageIdUtils.getPosition(offset);
+        int commitBatchIndex = MessageIdUtils.getBatchIndex(offset);
+        PositionImpl lastPosition = (PositionImpl) persistentTopic.getLastPosition();
+        int compared = commitPosition.compareTo(markDeletedPosition);
+        if ((compared < 0 || (compared == 0 && commitBatchIndex <= getMarkDeletedBatchIndex(cursor)))
+                || commitPosition.compareTo(lastPosition) > 0) {
+            log.info("skip commit offset, for [position = {}] less than [oldPosition = {}].",
+                    commitPosition, markDeletedPosition);
+            return CompletableFuture.completedFuture(null);
+        }
+
+        CompletableFuture<Void> future = new CompletableFuture<>();
+        // the batch index is kept in the cursor properties, so that a partially consumed batched entry can be
+        // resumed from the right message
+        cursor.asyncMarkDelete(commitPosition, Collections.singletonMap(BATCH_INDEX_PROPERTY, (long) commitBatchIndex),
+                new MarkDeleteCallback() {
+                    @Override
+                    public void markDeleteComplete(Object ctx) {
+                        log.debug("markDelete commit offset [position = {}] successfully.", commitPosition);
+                        future.complete(null);
+                    }
+
+                    @Override
+                    public void markDeleteFailed(ManagedLedgerException exception, Object ctx) {
+                        log.info("commit offset [position = {}] and deletedPosition[{}] error.",
+                                commitPosition, markDeletedPosition, exception);
+                        future.completeExceptionally(exception);
+                    }
+                }, null);
+        return future;
+    }
+
+    private CompletableFuture<PersistentTopic> getPulsarPersistentTopicCachedAsync(ClientTopicName topicName,
+            int partitionId) {
+        if (isPulsarTopicCached(topicName, partitionId)) {
+            return CompletableFuture.completedFuture(this.pulsarTopicCache.get(topicName).get(partitionId));
+        }
+        return getPulsarPersistentTopicAsync(topicName, partitionId).thenApply(topic -> {
+            if (!topic.isPresent()) {
+                throw new CompletionException(new RopPersistentTopicException(
+                        String.format("Not found pulsarTopic[%s] and partition[%d].", topicName, partitionId)));
             }
+            PersistentTopic persistentTopic = (PersistentTopic) topic.get();
+            this.pulsarTopicCache.computeIfAbsent(topicName, k -> new ConcurrentHashMap<>())
+                    .putIfAbsent(partitionId, persistentTopic);
+            return persistentTopic;
         });
-        return offsetTableSnapshot;
+    }
+
+    int getDirtyOffsetCount() {
+        return dirtyOffsets.size();
     }
 
     private boolean isPulsarTopicCached(ClientTopicName topicName, int partitionId) {
@@ -499,4 +585,13 @@ public class ConsumerOffsetManager {
                 .containsKey(partitionId);
     }
 
+    /**
+     * Key of the offset of a partition committed by a consumer group.
+     */
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static final class OffsetKey {
+        private final PartitionOffsets offsets;
+        private final int partitionId;
+    }
 }
@@ -0,0 +1,293 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.consumer;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.function.Consumer;
+import java.util.function.LongBinaryOperator;
+import lombok.Getter;
+import org.streamnative.pulsar.handlers.rocketmq.inner.producer.ClientGroupAndTopicName;
+
+/**
+ * Consumer offsets of the (group, topic) pairs.
+ *
+ * <p>Every pair is interned into a {@link PartitionOffsets} once, the offsets of its partitions are kept in a long
+ * array indexed by the partition id and updated with CAS, so a commit neither allocates a key nor boxes the offset.
+ */
+public class ConsumerOffsetTable {
+
+    // rmq group => rmq topic => offsets
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, PartitionOffsets>> table =
+            new ConcurrentHashMap<>(512);
+
+    public PartitionOffsets get(String group, String topic) {
+        ConcurrentHashMap<String, PartitionOffsets> topics = table.get(group);
+        return topics == null ? null : topics.get(topic);
+    }
+
+    public PartitionOffsets getOrCreate(String group, String topic) {
+        PartitionOffsets offsets = get(group, topic);
+        return offsets != null ? offsets : getOrCreate(new ClientGroupAndTopicName(group, topic));
+    }
+
+    public PartitionOffsets getOrCreate(ClientGroupAndTopicName groupAndTopic) {
+        return table.computeIfAbsent(groupAndTopic.getClientGroupName().getRmqGroupName(),
+                k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(groupAndTopic.getClientTopicName().getRmqTopicName(),
+                        k -> new PartitionOffsets(groupAndTopic));
+    }
+
+    public void remove(PartitionOffsets offsets) {
+        table.computeIfPresent(offsets.getGroupAndTopic().getClientGroupName().getRmqGroupName(), (k, topics) -> {
+            topics.remove(offsets.getGroupAndTopic().getClientTopicName().getRmqTopicName(), offsets);
+            return topics.isEmpty() ? null : topics;
+        });
+    }
+
+    public boolean contains(PartitionOffsets offsets) {
+        ClientGroupAndTopicName groupAndTopic = offsets.getGroupAndTopic();
+        return get(groupAndTopic.getClientGroupName().getRmqGroupName(),
+                groupAndTopic.getClientTopicName().getRmqTopicName()) == offsets;
+    }
+
+    public Set<String> getTopics(String group) {
+        ConcurrentHashMap<String, PartitionOffsets> topics = table.get(group);
+        return topics == null ? Collections.emptySet() : topics.keySet();
+    }
+
+    public void forEach(Consumer<PartitionOffsets> action) {
+        table.values().forEach(topics -> topics.values().forEach(action));
+    }
+
+    /**
+     * Offsets of the partitions of a (group, topic) pair.
+     *
+     * <p>The slots 2 * partition and 2 * partition + 1 hold the offset of the partition and the time of its first
+     * commit since the last flush. When the array is grown, the slots of the old array are swapped to
+     * {@link #MOVED} one by one, the updates seeing a moved slot retry on the new array.
+     */
+    public static final class PartitionOffsets {
+
+        public static final long NO_OFFSET = -1L;
+        private static final long CLEAN = 0L;
+        private static final long MOVED = Long.MIN_VALUE;
+        private static final int INITIAL_PARTITIONS = 8;
+
+        @Getter
+        private final ClientGroupAndTopicName groupAndTopic;
+        private volatile AtomicLongArray slots;
+
+        private PartitionOffsets(ClientGroupAndTopicName groupAndTopic) {
+            this.groupAndTopic = groupAndTopic;
+            this.slots = newSlots(INITIAL_PARTITIONS * 2);
+        }
+
+        /**
+         * @return the offset of the partition, or {@link #NO_OFFSET} if not committed
+         */
+        public long getOffset(int partitionId) {
+            return read(offsetIndex(partitionId), NO_OFFSET);
+        }
+
+        /**
+         * Update the offset of the partition if it's greater than the current one.
+         *
+         * @return true if the offset is updated
+         */
+        public boolean updateOffset(int partitionId, long offset) {
+            return accumulate(offsetIndex(partitionId), offset, Math::max) < offset;
+        }
+
+        public void setOffset(int partitionId, long offset) {
+            accumulate(offsetIndex(partitionId), offset, (current, value) -> value);
+        }
+
+        public void setOffsetIfAbsent(int partitionId, long offset) {
+            accumulate(offsetIndex(partitionId), offset, (current, value) -> current == NO_OFFSET ? value : current);
+        }
+
+        /**
+         * Mark the partition dirty if it's clean.
+         *
+         * @return true if the partition was clean
+         */
+        public boolean markDirty(int partitionId, long commitTime) {
+            return accumulate(dirtyIndex(partitionId), commitTime,
+                    (current, value) -> current == CLEAN ? value : current) == CLEAN;
+        }
+
+        /**
+         * @return the time of the first commit since the last flush, 0 if the partition was clean
+         */
+        public long clearDirty(int partitionId) {
+            return accumulate(dirtyIndex(partitionId), CLEAN, (current, value) -> value);
+        }
+
+        public long getDirtyTime(int partitionId) {
+            return read(dirtyIndex(partitionId), CLEAN);
+        }
+
+        /**
+         * @return a read-only view of the committed offsets, keyed by partition id
+         */
+        public Map<Integer, Long> asMap() {
+            return new OffsetMapView();
+        }
+
+        private int partitionCapacity() {
+            return slots.length() / 2;
+        }
+
+        private static int offsetIndex(int partitionId) {
+            return partitionId * 2;
+        }
+
+        private static int dirtyIndex(int partitionId) {
+            return partitionId * 2 + 1;
+        }
+
+        private long read(int index, long absent) {
+            AtomicLongArray array = slots;
+            if (index >= array.length()) {
+                return absent;
+            }
+            long value;
+            while ((value = array.get(index)) == MOVED) {
+                // the slot is being moved into the grown array
+                Thread.yield();
+                array = slots;
+            }
+            return value;
+        }
+
+        /**
+         * @return the previous value of the slot
+         */
+        private long accumulate(int index, long value, LongBinaryOperator function) {
+            while (true) {
+                AtomicLongArray array = slots;
+                if (index >= array.length()) {
+                    grow(index + 1);
+                    continue;
+                }
+                long current = array.get(index);
+                if (current == MOVED) {
+                    Thread.yield();
+                    continue;
+                }
+                long updated = function.applyAsLong(current, value);
+                if (updated == current || array.compareAndSet(index, current, updated)) {
+                    return current;
+                }
+            }
+        }
+
+        private synchronized void grow(int minLength) {
+            AtomicLongArray array = slots;
+            if (array.length() >= minLength) {
+                return;
+            }
+            AtomicLongArray grown = newSlots(Math.max(minLength + 1, array.length() * 2) & ~1);
+            for (int i = 0; i < array.length(); i++) {
+                grown.set(i, array.getAndSet(i, MOVED));
+            }
+            slots = grown;
+        }
+
+        private static AtomicLongArray newSlots(int length) {
+            AtomicLongArray array = new AtomicLongArray(length);
+            for (int i = 0; i < length; i += 2) {
+                array.set(i, NO_OFFSET);
+            }
+            return array;
+        }
+
+        private final class OffsetMapView extends AbstractMap<Integer, Long> {
+
+            @Override
+            public Long get(Object key) {
+                if (!(key instanceof Integer) || (Integer) key < 0) {
+                    return null;
+                }
+                long offset = getOffset((Integer) key);
+                return offset == NO_OFFSET ? null : offset;
+            }
+
+            @Override
+            public boolean containsKey(Object key) {
+                return get(key) != null;
+            }
+
+            @Override
+            public Set<Entry<Integer, Long>> entrySet() {
+                return new AbstractSet<Entry<Integer, Long>>() {
+                    @Override
+                    public Iterator<Entry<Integer, Long>> iterator() {
+                        return new OffsetIterator();
+                    }
+
+                    @Override
+                    public int size() {
+                        int size = 0;
+                        for (Iterator<Entry<Integer, Long>> it = iterator(); it.hasNext(); it.next()) {
+                            size++;
+                        }
+                        return size;
+                    }
+                };
+            }
+        }
+
+        private final class OffsetIterator implements Iterator<Map.Entry<Integer, Long>> {
+
+            private final int capacity = partitionCapacity();
+            private int partitionId = -1;
+            private long offset;
+
+            private OffsetIterator() {
+                advance();
+            }
+
+            private void advance() {
+                do {
+                    partitionId++;
+                } while (partitionId < capacity && (offset = getOffset(partitionId)) == NO_OFFSET);
+            }
+
+            @Override
+            public boolean hasNext() {
+                return partitionId < capacity;
+            }
+
+            @Override
+            public Map.Entry<Integer, Long> next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Map.Entry<Integer, Long> entry = new AbstractMap.SimpleImmutableEntry<>(partitionId, offset);
+                advance();
+                return entry;
+            }
+        }
+    }
+}
@@ -0,0 +1,264 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.consumer;
+
+import io.prometheus.client.Counter;
+import io.prometheus.client.Gauge;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.AllArgsConstructor;
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.DeleteCursorCallback;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+
+/**
+ * Broker wide non-durable cursors of the consumer groups, one cursor per (group, partition).
+ *
+ * <p>A cursor is reused as long as the pulls continue from where the previous pull stopped, it's only sought when
+ * the pull offset jumps. A cursor is leased to one pull at a time from the seek to the read completion, a pull
+ * arriving while the cursor of its group is leased, e.g. a broadcasting consumer or an overlapping consumer during
+ * a rebalance, reads through a temporary cursor of its own. The cursors which are not used for a while are deleted
+ * from their managed ledgers.
+ */
+@Slf4j
+public class RopCursorManager {
+
+    private static final String CURSOR_NAME_PREFIX = "Rop-cursor-";
+
+    private static final Gauge OPEN_CURSORS = Gauge.build()
+            .name("rop_open_cursors")
+            .help("Number of the open cursors of the RocketMQ consumer groups")
+            .register();
+    private static final Counter CURSOR_REUSES = Counter.build()
+            .name("rop_cursor_reuses")
+            .help("Number of the pulls continuing from the read position of the cursor")
+            .register();
+    private static final Counter CURSOR_SEEKS = Counter.build()
+            .name("rop_cursor_seeks")
+            .help("Number of the pulls which seek or recreate the cursor")
+            .register();
+    private static final Counter TEMPORARY_CURSORS = Counter.build()
+            .name("rop_temporary_cursors")
+            .help("Number of the temporary cursors created for the pulls racing on the cursor of their group")
+            .register();
+    private static final Counter CURSOR_EVICTIONS = Counter.build()
+            .name("rop_cursor_evictions")
+            .help("Number of the cursors deleted for being idle")
+            .register();
+
+    private final ConcurrentHashMap<CursorKey, CursorEntry> cursors = new ConcurrentHashMap<>();
+    private final AtomicLong cursorSequence = new AtomicLong();
+    private final long idleTimeoutMs;
+
+    public RopCursorManager(long idleTimeoutMs) {
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Lease the cursor of the group to read the partition after the start position, the lease must be released
+     * once the read completes.
+     *
+     * @param startPosition the position before the entry of the pull offset
+     * @param seekable whether the start position is a real position, the cursor is positioned on it when it's
+     *                 created otherwise
+     */
+    public CursorLease acquireCursor(String group, String partitionTopic, ManagedLedgerImpl managedLedger,
+            PositionImpl startPosition, boolean seekable) throws ManagedLedgerException {
+        CursorKey key = new CursorKey(group, partitionTopic);
+        CursorEntry entry = cursors.get(key);
+        if (entry != null && entry.managedLedger == managedLedger) {
+            if (!entry.leased.compareAndSet(false, true)) {
+                return newTemporaryCursor(group, managedLedger, startPosition);
+            }
+            entry.lastAccessTime = System.currentTimeMillis();
+            if (!seekable || isContinuous(entry, startPosition.getNext())) {
+                CURSOR_REUSES.inc();
+                return new CursorLease(entry.cursor, managedLedger, entry);
+            }
+            CURSOR_SEEKS.inc();
+            if (startPosition.compareTo((PositionImpl) entry.cursor.getMarkDeletedPosition()) >= 0) {
+                entry.cursor.seek(startPosition.getNext());
+                return new CursorLease(entry.cursor, managedLedger, entry);
+            }
+            // the cursor can't be sought before its mark delete position
+        }
+
+        synchronized (this) {
+            CursorEntry current = cursors.get(key);
+            if (current != null && current != entry && current.managedLedger == managedLedger) {
+                // created by a concurrent pull
+                if (entry != null && entry.managedLedger == managedLedger) {
+                    entry.leased.set(false);
+                }
+                return newTemporaryCursor(group, managedLedger, startPosition);
+            }
+            CursorEntry created = new CursorEntry(managedLedger, managedLedger.newNonDurableCursor(startPosition,
+                    nextCursorName(group)), System.currentTimeMillis());
+            created.leased.set(true);
+            CursorEntry old = cursors.put(key, created);
+            if (old != null) {
+                deleteCursor(old);
+            } else {
+                OPEN_CURSORS.inc();
+            }
+            return new CursorLease(created.cursor, managedLedger, created);
+        }
+    }
+
+    private CursorLease newTemporaryCursor(String group, ManagedLedgerImpl managedLedger, PositionImpl startPosition)
+            throws ManagedLedgerException {
+        TEMPORARY_CURSORS.inc();
+        return new CursorLease(managedLedger.newNonDurableCursor(startPosition, nextCursorName(group)),
+                managedLedger, null);
+    }
+
+    private String nextCursorName(String group) {
+        return CURSOR_NAME_PREFIX + group + "-" + cursorSequence.incrementAndGet();
+    }
+
+    /**
+     * Whether the cursor reads the entry at the queue position next, or the consumer has already read that entry
+     * through the cursor.
+     */
+    private static boolean isContinuous(CursorEntry entry, PositionImpl queuePosition) {
+        PositionImpl readPosition = (PositionImpl) entry.cursor.getReadPosition();
+        if (readPosition.equals(queuePosition) || readPosition.equals(queuePosition.getNext())) {
+            return true;
+        }
+        // the read position moves to the next ledger after the last entry of a ledger is read
+        return readPosition.getLedgerId() > queuePosition.getLedgerId()
+                && readPosition.equals(entry.managedLedger.getNextValidPosition(queuePosition));
+    }
+
+    /**
+     * Delete the cursors which have not been used for the idle timeout.
+     */
+    public void evictIdleCursors() {
+        long idleBefore = System.currentTimeMillis() - idleTimeoutMs;
+        cursors.forEach((key, entry) -> {
+            if (entry.lastAccessTime < idleBefore && !entry.leased.get() && cursors.remove(key, entry)) {
+                log.info("Delete idle cursor [{}] of group [{}] and topic [{}].", entry.cursor.getName(),
+                        key.group, key.partitionTopic);
+                CURSOR_EVICTIONS.inc();
+                OPEN_CURSORS.dec();
+                deleteCursor(entry);
+            }
+        });
+    }
+
+    /**
+     * Delete the cursors of the partition, e.g. when it's unloaded from this broker.
+     */
+    public void removeCursors(String partitionTopic) {
+        cursors.forEach((key, entry) -> {
+            if (key.partitionTopic.equals(partitionTopic) && cursors.remove(key, entry)) {
+                OPEN_CURSORS.dec();
+                deleteCursor(entry);
+            }
+        });
+    }
+
+    public int size() {
+        return cursors.size();
+    }
+
+    public void close() {
+        cursors.keySet().forEach(key -> {
+            CursorEntry entry = cursors.remove(key);
+            if (entry != null) {
+                OPEN_CURSORS.dec();
+                deleteCursor(entry);
+            }
+        });
+    }
+
+    private static void deleteCursor(CursorEntry entry) {
+        if (entry.deleted.compareAndSet(false, true)) {
+            deleteCursor(entry.managedLedger, entry.cursor);
+        }
+    }
+
+    private static void deleteCursor(ManagedLedgerImpl managedLedger, ManagedCursor cursor) {
+        managedLedger.asyncDeleteCursor(cursor.getName(), new DeleteCursorCallback() {
+            @Override
+            public void deleteCursorComplete(Object ctx) {
+                if (log.isDebugEnabled()) {
+                    log.debug("Cursor [{}] is deleted.", cursor.getName());
+                }
+            }
+
+            @Override
+            public void deleteCursorFailed(ManagedLedgerException exception, Object ctx) {
+                log.warn("Delete cursor [{}] failed.", cursor.getName(), exception);
+            }
+        }, null);
+    }
+
+    /**
+     * A cursor leased to a pull.
+     */
+    public static final class CursorLease {
+
+        @Getter
+        private final ManagedCursor cursor;
+        private final ManagedLedgerImpl managedLedger;
+        // null if the cursor is a temporary one
+        private final CursorEntry entry;
+
+        private CursorLease(ManagedCursor cursor, ManagedLedgerImpl managedLedger, CursorEntry entry) {
+            this.cursor = cursor;
+            this.managedLedger = managedLedger;
+            this.entry = entry;
+        }
+
+        /**
+         * Return the cursor to the group, or delete it if it's a temporary one.
+         */
+        public void release() {
+            if (entry == null) {
+                deleteCursor(managedLedger, cursor);
+            } else {
+                entry.leased.set(false);
+            }
+        }
+    }
+
+    @AllArgsConstructor
+    @EqualsAndHashCode
+    private static final class CursorKey {
+        private final String group;
+        private final String partitionTopic;
+    }
+
+    private static final class CursorEntry {
+        private final ManagedLedgerImpl managedLedger;
+        private final ManagedCursor cursor;
+        private volatile long lastAccessTime;
+        private final AtomicBoolean leased = new AtomicBoolean();
+        private final AtomicBoolean deleted = new AtomicBoolean();
+
+        private CursorEntry(ManagedLedgerImpl managedLedger, ManagedCursor cursor, long lastAccessTime) {
+            this.managedLedger = managedLedger;
+            this.cursor = cursor;
+            this.lastAccessTime = lastAccessTime;
+        }
+    }
+}
@@ -14,7 +14,7 @@
 
 package org.streamnative.pulsar.handlers.rocketmq.inner.consumer;
 
-import java.nio.ByteBuffer;
+import io.netty.buffer.ByteBuf;
 import java.util.List;
 import lombok.Data;
 import org.apache.rocketmq.store.GetMessageStatus;
@@ -25,7 +25,8 @@ import org.apache.rocketmq.store.GetMessageStatus;
 @Data
 public class RopGetMessageResult {
 
-    private List<ByteBuffer> messageBufferList;
+    // message buffers sliced from the managed ledger entries, must be released after use
+    private List<ByteBuf> messageBufferList;
     private GetMessageStatus status;
     private long nextBeginOffset;
     private long minOffset;
@@ -43,10 +44,17 @@ public class RopGetMessageResult {
     public int getBufferTotalSize() {
         if (messageBufferList != null) {
             return messageBufferList.stream().reduce(0, (r, item) ->
-                            r += item.limit()
+                            r += item.readableBytes()
                     , Integer::sum);
         }
         return 0;
     }
 
+    public void release() {
+        if (messageBufferList != null) {
+            messageBufferList.forEach(ByteBuf::release);
+            messageBufferList = null;
+        }
+    }
+
 }
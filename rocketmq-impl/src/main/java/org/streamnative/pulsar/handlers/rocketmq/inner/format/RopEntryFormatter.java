@@ -19,33 +19,39 @@ import static org.apache.pulsar.common.protocol.Commands.hasChecksum;
 import com.google.common.base.Preconditions;
 import com.scurrilous.circe.checksum.Crc32cIntChecksum;
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufUtil;
 import io.netty.buffer.Unpooled;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
+import lombok.Getter;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.pulsar.client.api.Message;
 import org.apache.pulsar.client.impl.MessageIdImpl;
 import org.apache.pulsar.client.impl.TopicMessageImpl;
+import org.apache.pulsar.common.allocator.PulsarByteBufAllocator;
 import org.apache.pulsar.common.api.proto.PulsarApi;
 import org.apache.pulsar.common.api.proto.PulsarApi.MessageIdData;
 import org.apache.pulsar.common.protocol.Commands;
+import org.apache.pulsar.common.util.protobuf.ByteBufCodedOutputStream;
 import org.apache.rocketmq.common.UtilAll;
 import org.apache.rocketmq.common.message.MessageConst;
 import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageExtBatch;
-import org.apache.rocketmq.common.sysflag.MessageSysFlag;
 import org.apache.rocketmq.store.AppendMessageStatus;
 import org.apache.rocketmq.store.CommitLog;
 import org.apache.rocketmq.store.MessageExtBrokerInner;
 import org.streamnative.pulsar.handlers.rocketmq.inner.exception.RopEncodeException;
 import org.streamnative.pulsar.handlers.rocketmq.utils.CommonUtils;
+import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
 
 /**
  * Rop entry formatter.
@@ -55,8 +61,10 @@ public class RopEntryFormatter implements EntryFormatter<MessageExt> {
 
     // The maximum size of message,default is 4M
     private static final int MAX_MESSAGE_SIZE = 1024 * 1024 * 4;
-    private static final ThreadLocal<ByteBuffer> msgStoreItemMemoryThreadLocal = ThreadLocal
-            .withInitial(() -> ByteBuffer.allocate(MAX_MESSAGE_SIZE));
+    // TOTALSIZE + MAGICCODE + BODYCRC + QUEUEID + FLAG
+    private static final int QUEUE_OFFSET_POSITION = 20;
+    // the message header up to and including QUEUEOFFSET and PHYSICALOFFSET
+    private static final int MESSAGE_HEADER_SIZE = QUEUE_OFFSET_POSITION + 8 + 8;
 
     public static MessageExt decodePulsarMessage(Message<byte[]> message) {
         if (message instanceof TopicMessageImpl) {
@@ -77,39 +85,206 @@ public class RopEntryFormatter implements EntryFormatter<MessageExt> {
     public List<byte[]> encode(MessageExt record, int numMessages) throws RopEncodeException {
         Preconditions.checkNotNull(record);
         if (record instanceof MessageExtBrokerInner) {
-            MessageExtBrokerInner mesg = (MessageExtBrokerInner) record;
-            String tags = mesg.getProperty(MessageConst.PROPERTY_TAGS);
-            long tagsCode = 0L;
-            if (tags != null && tags.length() > 0) {
-                tagsCode = MessageExtBrokerInner
-                        .tagsString2tagsCode(MessageExt.parseTopicFilterType(mesg.getSysFlag()), tags);
-            }
-            byte[] msgBytes = convertRocketmq2Pulsar(tagsCode, mesg);
+            MessageExtBrokerInner msg = (MessageExtBrokerInner) record;
+            int topicLength = ByteBufUtil.utf8Bytes(msg.getTopic());
+            int propertiesLength = getPropertiesLength(msg);
+            int msgLen = checkMessageLength(msg, topicLength, propertiesLength);
+            msg.setStoreTimestamp(System.currentTimeMillis());
+            byte[] msgBytes = new byte[msgLen];
+            writeRecord(Unpooled.wrappedBuffer(msgBytes).clear(), msg, msgLen, topicLength, propertiesLength);
             return Collections.singletonList(msgBytes);
         } else if (record instanceof MessageExtBatch) {
-            MessageExtBatch msg = (MessageExtBatch) record;
-
-            return convertRocketmq2Pulsar(msg);
+            MessageExtBatch batch = (MessageExtBatch) record;
+            byte[] topicData = batch.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+            long storeTimestamp = System.currentTimeMillis();
+            List<BatchRecord> batchRecords = parseBatch(batch, topicData.length);
+            List<byte[]> result = new ArrayList<>(batchRecords.size());
+            for (BatchRecord batchRecord : batchRecords) {
+                byte[] msgBytes = new byte[batchRecord.msgLen];
+                writeRecord(Unpooled.wrappedBuffer(msgBytes).clear(), batch, batchRecord, topicData, storeTimestamp);
+                result.add(msgBytes);
+            }
+            return result;
         }
         throw new RopEncodeException("UNKNOWN Message Type");
     }
 
-    public ByteBuf encode(byte[] record) {
-        final ByteBuf recordsWrapper = Unpooled.wrappedBuffer(record);
-        final ByteBuf buf = Commands.serializeMetadataAndPayload(
-                Commands.ChecksumType.None,
-                getDefaultMessageMetadata(),
-                recordsWrapper);
-        recordsWrapper.release();
-        return buf;
+    /**
+     * Encode the message into a Pulsar entry.
+     *
+     * <p>The record is written right after the metadata into a pooled direct buffer of the exact size,
+     * the store timestamp of the record is also set to the message.
+     */
+    public ByteBuf encodeEntry(MessageExtBrokerInner msg) throws RopEncodeException {
+        Preconditions.checkNotNull(msg);
+        int topicLength = ByteBufUtil.utf8Bytes(msg.getTopic());
+        int propertiesLength = getPropertiesLength(msg);
+        int msgLen = checkMessageLength(msg, topicLength, propertiesLength);
+        msg.setStoreTimestamp(System.currentTimeMillis());
+        return newEntry(msg.getStoreTimestamp(), 0, msgLen,
+                entry -> writeRecord(entry, msg, msgLen, topicLength, propertiesLength));
+    }
+
+    /**
+     * Encode the messages into a single Pulsar batched entry, the records are serialized in place after the
+     * metadata into a pooled direct buffer of the exact size. The messages are addressed by their batch index,
+     * so at most {@link MessageIdUtils#MAX_BATCH_SIZE} messages can be packed into one entry.
+     */
+    public ByteBuf encodeEntry(List<MessageExtBrokerInner> msgs) throws RopEncodeException {
+        checkBatchSize(msgs.size());
+        int[] topicLengths = new int[msgs.size()];
+        int[] propertiesLengths = new int[msgs.size()];
+        int[] msgLens = new int[msgs.size()];
+        long storeTimestamp = System.currentTimeMillis();
+        int payloadSize = 0;
+        for (int i = 0; i < msgs.size(); i++) {
+            MessageExtBrokerInner msg = msgs.get(i);
+            topicLengths[i] = ByteBufUtil.utf8Bytes(msg.getTopic());
+            propertiesLengths[i] = getPropertiesLength(msg);
+            msgLens[i] = checkMessageLength(msg, topicLengths[i], propertiesLengths[i]);
+            msg.setStoreTimestamp(storeTimestamp);
+            payloadSize += getBatchedMessageSize(msgLens[i]);
+        }
+        return newEntry(storeTimestamp, msgs.size(), payloadSize, entry -> {
+            for (int i = 0; i < msgs.size(); i++) {
+                writeSingleMessageMetadata(entry, msgLens[i]);
+                writeRecord(entry, msgs.get(i), msgLens[i], topicLengths[i], propertiesLengths[i]);
+            }
+        });
+    }
+
+    /**
+     * Encode the messages of the batch into Pulsar batched entries of at most {@link MessageIdUtils#MAX_BATCH_SIZE}
+     * messages, each serialized in place into a pooled direct buffer of the exact size. The caller must release
+     * the entries.
+     */
+    public List<BatchEntry> encodeEntries(MessageExtBatch batch) throws RopEncodeException {
+        Preconditions.checkNotNull(batch);
+        byte[] topicData = batch.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
+        long storeTimestamp = System.currentTimeMillis();
+        List<BatchRecord> batchRecords = parseBatch(batch, topicData.length);
+        List<BatchEntry> entries = new ArrayList<>();
+        boolean success = false;
+        try {
+            for (int from = 0; from < batchRecords.size(); from += MessageIdUtils.MAX_BATCH_SIZE) {
+                List<BatchRecord> entryRecords = batchRecords.subList(from,
+                        Math.min(from + MessageIdUtils.MAX_BATCH_SIZE, batchRecords.size()));
+                int payloadSize = 0;
+                for (BatchRecord batchRecord : entryRecords) {
+                    payloadSize += getBatchedMessageSize(batchRecord.msgLen);
+                }
+                ByteBuf entry = newEntry(storeTimestamp, entryRecords.size(), payloadSize, buf -> {
+                    for (BatchRecord batchRecord : entryRecords) {
+                        writeSingleMessageMetadata(buf, batchRecord.msgLen);
+                        writeRecord(buf, batch, batchRecord, topicData, storeTimestamp);
+                    }
+                });
+                entries.add(new BatchEntry(entry, storeTimestamp, entryRecords));
+            }
+            success = true;
+            return entries;
+        } finally {
+            if (!success) {
+                entries.forEach(batchEntry -> batchEntry.getEntry().release());
+            }
+        }
+    }
+
+    private static void checkBatchSize(int numMessages) {
+        Preconditions.checkArgument(numMessages > 0 && numMessages <= MessageIdUtils.MAX_BATCH_SIZE,
+                "the number of messages in a batch must be in (0, " + MessageIdUtils.MAX_BATCH_SIZE + "]");
     }
 
-    private static PulsarApi.MessageMetadata getDefaultMessageMetadata() {
+    /**
+     * Allocate a pooled direct buffer of the exact size for the entry and write its metadata, then the payload.
+     * The buffer is released on any failure.
+     *
+     * @param numMessagesInBatch the number of messages of a batched entry, or 0 if the entry isn't batched
+     */
+    private static ByteBuf newEntry(long publishTime, int numMessagesInBatch, int payloadSize,
+            PayloadWriter payloadWriter) throws RopEncodeException {
+        final PulsarApi.MessageMetadata.Builder builder = newMessageMetadataBuilder(publishTime);
+        if (numMessagesInBatch > 0) {
+            builder.setNumMessagesInBatch(numMessagesInBatch);
+        }
+        final PulsarApi.MessageMetadata metadata = builder.build();
+        int metadataSize = metadata.getSerializedSize();
+        int entrySize = 4 + metadataSize + payloadSize;
+        ByteBuf entry = PulsarByteBufAllocator.DEFAULT.directBuffer(entrySize, entrySize);
+        // the pooled buffer is released on any failure, not only the serialization one
+        boolean success = false;
+        try {
+            entry.writeInt(metadataSize);
+            writeMetadata(entry, metadata);
+            payloadWriter.write(entry);
+            success = true;
+            return entry;
+        } catch (IOException e) {
+            throw new RopEncodeException("Serialize message metadata failed", e);
+        } finally {
+            if (!success) {
+                entry.release();
+            }
+            metadata.recycle();
+            builder.recycle();
+        }
+    }
+
+    private static PulsarApi.MessageMetadata.Builder newMessageMetadataBuilder(long publishTime) {
         final PulsarApi.MessageMetadata.Builder builder = PulsarApi.MessageMetadata.newBuilder();
         builder.setProducerName("");
         builder.setSequenceId(0L);
-        builder.setPublishTime(0L);
-        return builder.build();
+        builder.setPublishTime(publishTime);
+        return builder;
+    }
+
+    private static void writeMetadata(ByteBuf buf, PulsarApi.MessageMetadata metadata) throws IOException {
+        ByteBufCodedOutputStream outStream = ByteBufCodedOutputStream.get(buf);
+        try {
+            metadata.writeTo(outStream);
+        } finally {
+            outStream.recycle();
+        }
+    }
+
+    /**
+     * Get the size of a message serialized into a batched entry, with its single message metadata.
+     */
+    private static int getBatchedMessageSize(int payloadSize) {
+        PulsarApi.SingleMessageMetadata.Builder builder = PulsarApi.SingleMessageMetadata.newBuilder();
+        PulsarApi.SingleMessageMetadata singleMessageMetadata = builder.setPayloadSize(payloadSize).build();
+        int size = singleMessageMetadata.getSerializedSize();
+        singleMessageMetadata.recycle();
+        builder.recycle();
+        return 4 + size + payloadSize;
+    }
+
+    /**
+     * Write the single message metadata of a message serialized into a batched entry, the payload follows it.
+     */
+    private static void writeSingleMessageMetadata(ByteBuf buf, int payloadSize) throws IOException {
+        PulsarApi.SingleMessageMetadata.Builder builder = PulsarApi.SingleMessageMetadata.newBuilder();
+        PulsarApi.SingleMessageMetadata singleMessageMetadata = builder.setPayloadSize(payloadSize).build();
+        ByteBufCodedOutputStream outStream = ByteBufCodedOutputStream.get(buf);
+        try {
+            buf.writeInt(singleMessageMetadata.getSerializedSize());
+            singleMessageMetadata.writeTo(outStream);
+        } finally {
+            outStream.recycle();
+            singleMessageMetadata.recycle();
+            builder.recycle();
+        }
+    }
+
+    /**
+     * Get the tags code of the message, it's the first field of the encoded record.
+     */
+    public static long getTagsCode(MessageExtBrokerInner msg) {
+        String tags = msg.getProperty(MessageConst.PROPERTY_TAGS);
+        if (tags == null || tags.isEmpty()) {
+            return 0L;
+        }
+        return MessageExtBrokerInner.tagsString2tagsCode(MessageExt.parseTopicFilterType(msg.getSysFlag()), tags);
     }
 
     private boolean verifyChecksum(ByteBuf headersAndPayload, MessageIdData messageId) {
@@ -154,34 +329,94 @@ public class RopEntryFormatter implements EntryFormatter<MessageExt> {
         }
     }
 
-    public ByteBuffer decodePulsarMessage(ByteBuf headersAndPayload, long offset, Predicate<ByteBuf> predicate) {
-        Commands.skipMessageMetadata(headersAndPayload);
-        if (predicate != null && !predicate.test(headersAndPayload)) {
+    /**
+     * Decode an entry into RocketMQ messages.
+     * A batched entry is expanded into one message per batch index, the i-th message gets the
+     * queue offset {@code baseOffset + i}. Messages whose offset is less than {@code fromOffset}
+     * or which are rejected by the predicate are skipped.
+     *
+     * <p>The returned message buffers share the memory of the entry, only the header holding the
+     * queue offset and the physical offset is copied. The caller must release them.
+     *
+     * @return the offset of the last message in the entry
+     */
+    public long decodePulsarMessage(ByteBuf headersAndPayload, long baseOffset, long fromOffset,
+            Predicate<ByteBuf> predicate, List<ByteBuf> messages) {
+        PulsarApi.MessageMetadata metadata = Commands.parseMessageMetadata(headersAndPayload);
+        try {
+            if (!metadata.hasNumMessagesInBatch()) {
+                if (baseOffset >= fromOffset) {
+                    ByteBuf message = decodePulsarMessage(headersAndPayload, baseOffset, predicate);
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                }
+                return baseOffset;
+            }
+
+            int batchSize = metadata.getNumMessagesInBatch();
+            if (batchSize > MessageIdUtils.MAX_BATCH_SIZE) {
+                log.warn("Entry with offset [{}] contains {} messages, only the first {} messages can be consumed.",
+                        baseOffset, batchSize, MessageIdUtils.MAX_BATCH_SIZE);
+            }
+            int lastIndex = Math.min(batchSize, MessageIdUtils.MAX_BATCH_SIZE) - 1;
+            for (int i = 0; i <= lastIndex; i++) {
+                PulsarApi.SingleMessageMetadata.Builder singleMessageMetadataBuilder =
+                        PulsarApi.SingleMessageMetadata.newBuilder();
+                ByteBuf singleMessagePayload = null;
+                try {
+                    singleMessagePayload = Commands.deSerializeSingleMessageInBatch(headersAndPayload,
+                            singleMessageMetadataBuilder, i, batchSize);
+                    if (baseOffset + i < fromOffset) {
+                        continue;
+                    }
+                    ByteBuf message = decodePulsarMessage(singleMessagePayload, baseOffset + i, predicate);
+                    if (message != null) {
+                        messages.add(message);
+                    }
+                } catch (IOException e) {
+                    log.warn("Decode message with offset [{}] error.", baseOffset + i, e);
+                } finally {
+                    if (singleMessagePayload != null) {
+                        singleMessagePayload.release();
+                    }
+                    singleMessageMetadataBuilder.recycle();
+                }
+            }
+            return baseOffset + lastIndex;
+        } finally {
+            metadata.recycle();
+        }
+    }
+
+    private ByteBuf decodePulsarMessage(ByteBuf payload, long offset, Predicate<ByteBuf> predicate) {
+        if (predicate != null && !predicate.test(payload)) {
             return null;
         }
         // skip tag hash code
-        headersAndPayload.readLong();
-        ByteBuffer wrap = ByteBuffer.allocate(headersAndPayload.readableBytes());
-        headersAndPayload.readBytes(wrap);
-        // set offset
-        wrap.putLong(20, offset);
-        wrap.putLong(28, offset);
-        wrap.flip();
-        return wrap;
+        payload.skipBytes(8);
+        // copy the header and set offset
+        ByteBuf header = PulsarByteBufAllocator.DEFAULT.buffer(MESSAGE_HEADER_SIZE, MESSAGE_HEADER_SIZE);
+        header.writeBytes(payload, payload.readerIndex(), QUEUE_OFFSET_POSITION);
+        header.writeLong(offset);
+        header.writeLong(offset);
+        ByteBuf body = payload.retainedSlice(payload.readerIndex() + MESSAGE_HEADER_SIZE,
+                payload.readableBytes() - MESSAGE_HEADER_SIZE);
+        return Unpooled.wrappedBuffer(header, body);
     }
 
-    private List<byte[]> convertRocketmq2Pulsar(final MessageExtBatch messageExtBatch) throws RopEncodeException {
-        ByteBuffer msgStoreItemMemory = msgStoreItemMemoryThreadLocal.get();
-        List<byte[]> result = new ArrayList<>();
+    /**
+     * Parse the messages of the batch without copying them, the sizes of the messages are checked.
+     */
+    private static List<BatchRecord> parseBatch(final MessageExtBatch messageExtBatch, int topicLength)
+            throws RopEncodeException {
+        List<BatchRecord> result = new ArrayList<>();
         int totalMsgLen = 0;
         ByteBuffer messagesByteBuff = messageExtBatch.wrap();
         int sysFlag = messageExtBatch.getSysFlag();
-        int bornHostLength = (sysFlag & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
-        int storeHostLength = (sysFlag & MessageSysFlag.STOREHOSTADDRESS_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
-        ByteBuffer bornHostHolder = ByteBuffer.allocate(bornHostLength);
-        ByteBuffer storeHostHolder = ByteBuffer.allocate(storeHostLength);
 
         while (messagesByteBuff.hasRemaining()) {
+            BatchRecord batchRecord = new BatchRecord();
             // 1 TOTALSIZE
             messagesByteBuff.getInt();
             // 2 MAGICCODE
@@ -189,127 +424,110 @@ public class RopEntryFormatter implements EntryFormatter<MessageExt> {
             // 3 BODYCRC
             messagesByteBuff.getInt();
             // 4 FLAG
-            int flag = messagesByteBuff.getInt();
+            batchRecord.flag = messagesByteBuff.getInt();
             // 5 BODY
-            int bodyLen = messagesByteBuff.getInt();
-            int bodyPos = messagesByteBuff.position();
-            int bodyCrc = UtilAll.crc32(messagesByteBuff.array(), bodyPos, bodyLen);
-            messagesByteBuff.position(bodyPos + bodyLen);
+            batchRecord.bodyLen = messagesByteBuff.getInt();
+            batchRecord.bodyPos = messagesByteBuff.position();
+            batchRecord.bodyCrc = UtilAll.crc32(messagesByteBuff.array(), batchRecord.bodyPos, batchRecord.bodyLen);
+            messagesByteBuff.position(batchRecord.bodyPos + batchRecord.bodyLen);
             // 6 properties
-            short propertiesLen = messagesByteBuff.getShort();
-            int propertiesPos = messagesByteBuff.position();
-            byte[] propStr = new byte[propertiesLen];
-            messagesByteBuff.get(propStr);
-            //messagesByteBuff.position(propertiesPos + propertiesLen);
-
-            final byte[] topicData = messageExtBatch.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
-
-            final int topicLength = topicData.length;
+            batchRecord.propertiesLen = messagesByteBuff.getShort();
+            batchRecord.propertiesPos = messagesByteBuff.position();
+            messagesByteBuff.position(batchRecord.propertiesPos + batchRecord.propertiesLen);
 
-            final int msgLen = CommonUtils
-                    .calMsgLength(messageExtBatch.getSysFlag(), bodyLen, topicLength, propertiesLen);
+            batchRecord.msgLen = CommonUtils
+                    .calMsgLength(sysFlag, batchRecord.bodyLen, topicLength, batchRecord.propertiesLen);
 
             // Exceeds the maximum message
-            if (msgLen > MAX_MESSAGE_SIZE) {
-                log.warn("message size exceeded, msg total size: " + msgLen + ", msg body size: " + bodyLen
-                        + ", maxMessageSize: " + MAX_MESSAGE_SIZE);
+            if (batchRecord.msgLen > MAX_MESSAGE_SIZE) {
+                log.warn("message size exceeded, msg total size: " + batchRecord.msgLen + ", msg body size: "
+                        + batchRecord.bodyLen + ", maxMessageSize: " + MAX_MESSAGE_SIZE);
                 throw new RopEncodeException("message size exceeded");
             }
 
-            totalMsgLen += msgLen;
+            totalMsgLen += batchRecord.msgLen;
             // Determines whether there is sufficient free space
             if (totalMsgLen > MAX_MESSAGE_SIZE) {
                 throw new RopEncodeException("message size exceeded");
             }
 
-            long tagsCode = 0L;
-            if (propertiesLen > 0) {
-                String properties = new String(propStr, MessageDecoder.CHARSET_UTF8);
-                Map<String, String> propertiesMap = MessageDecoder.string2messageProperties(properties);
-                String tags = propertiesMap.get(MessageConst.PROPERTY_TAGS);
+            if (batchRecord.propertiesLen > 0) {
+                String properties = new String(messagesByteBuff.array(), batchRecord.propertiesPos,
+                        batchRecord.propertiesLen, MessageDecoder.CHARSET_UTF8);
+                batchRecord.properties = MessageDecoder.string2messageProperties(properties);
+                String tags = batchRecord.properties.get(MessageConst.PROPERTY_TAGS);
                 if (tags != null && tags.length() > 0) {
-                    tagsCode = MessageExtBrokerInner
+                    batchRecord.tagsCode = MessageExtBrokerInner
                             .tagsString2tagsCode(MessageExt.parseTopicFilterType(sysFlag), tags);
                 }
             }
-
-            msgStoreItemMemory.clear();
-            //TAGSCODE
-            msgStoreItemMemory.putLong(tagsCode);
-            // 1 TOTALSIZE
-            msgStoreItemMemory.putInt(msgLen);
-            // 2 MAGICCODE
-            msgStoreItemMemory.putInt(CommitLog.MESSAGE_MAGIC_CODE);
-            // 3 BODYCRC
-            msgStoreItemMemory.putInt(bodyCrc);
-            // 4 QUEUEID
-            msgStoreItemMemory.putInt(messageExtBatch.getQueueId());
-            // 5 FLAG
-            msgStoreItemMemory.putInt(flag);
-            // 6 QUEUEOFFSET
-            msgStoreItemMemory.putLong(0);
-            // 7 PHYSICALOFFSET
-            msgStoreItemMemory.putLong(0);
-            // 8 SYSFLAG
-            msgStoreItemMemory.putInt(messageExtBatch.getSysFlag());
-            // 9 BORNTIMESTAMP
-            msgStoreItemMemory.putLong(messageExtBatch.getBornTimestamp());
-            // 10 BORNHOST
-            bornHostHolder.clear();
-            msgStoreItemMemory.put(messageExtBatch.getBornHostBytes(bornHostHolder));
-            // 11 STORETIMESTAMP
-            msgStoreItemMemory.putLong(Instant.now().toEpochMilli());
-            // 12 STOREHOSTADDRESS
-            storeHostHolder.clear();
-            msgStoreItemMemory.put(messageExtBatch.getStoreHostBytes(storeHostHolder));
-            // 13 RECONSUMETIMES
-            msgStoreItemMemory.putInt(messageExtBatch.getReconsumeTimes());
-            // 14 Prepared Transaction Offset, batch does not support transaction
-            msgStoreItemMemory.putLong(0);
-            // 15 BODY
-            msgStoreItemMemory.putInt(bodyLen);
-            if (bodyLen > 0) {
-                msgStoreItemMemory.put(messagesByteBuff.array(), bodyPos, bodyLen);
-            }
-            // 16 TOPIC
-            msgStoreItemMemory.put((byte) topicLength);
-            msgStoreItemMemory.put(topicData);
-            // 17 PROPERTIES
-            msgStoreItemMemory.putShort(propertiesLen);
-            if (propertiesLen > 0) {
-                msgStoreItemMemory.put(messagesByteBuff.array(), propertiesPos, propertiesLen);
-            }
-
-            // Write messages to the queue buffer
-            msgStoreItemMemory.flip();
-            byte[] msgBytes = new byte[msgStoreItemMemory.limit()];
-            msgStoreItemMemory.get(msgBytes);
-
-            result.add(msgBytes);
+            result.add(batchRecord);
         }
         return result;
     }
 
+    /**
+     * Write the record of a message of the batch in the commitlog layout prefixed by the tags code.
+     */
+    private static void writeRecord(ByteBuf msgStoreItemMemory, MessageExtBatch messageExtBatch,
+            BatchRecord batchRecord, byte[] topicData, long storeTimestamp) {
+        byte[] messages = messageExtBatch.getBody();
+        //TAGSCODE
+        msgStoreItemMemory.writeLong(batchRecord.tagsCode);
+        // 1 TOTALSIZE
+        msgStoreItemMemory.writeInt(batchRecord.msgLen);
+        // 2 MAGICCODE
+        msgStoreItemMemory.writeInt(CommitLog.MESSAGE_MAGIC_CODE);
+        // 3 BODYCRC
+        msgStoreItemMemory.writeInt(batchRecord.bodyCrc);
+        // 4 QUEUEID
+        msgStoreItemMemory.writeInt(messageExtBatch.getQueueId());
+        // 5 FLAG
+        msgStoreItemMemory.writeInt(batchRecord.flag);
+        // 6 QUEUEOFFSET
+        msgStoreItemMemory.writeLong(0);
+        // 7 PHYSICALOFFSET
+        msgStoreItemMemory.writeLong(0);
+        // 8 SYSFLAG
+        msgStoreItemMemory.writeInt(messageExtBatch.getSysFlag());
+        // 9 BORNTIMESTAMP
+        msgStoreItemMemory.writeLong(messageExtBatch.getBornTimestamp());
+        // 10 BORNHOST
+        writeHost(msgStoreItemMemory, messageExtBatch.getBornHost());
+        // 11 STORETIMESTAMP
+        msgStoreItemMemory.writeLong(storeTimestamp);
+        // 12 STOREHOSTADDRESS
+        writeHost(msgStoreItemMemory, messageExtBatch.getStoreHost());
+        // 13 RECONSUMETIMES
+        msgStoreItemMemory.writeInt(messageExtBatch.getReconsumeTimes());
+        // 14 Prepared Transaction Offset, batch does not support transaction
+        msgStoreItemMemory.writeLong(0);
+        // 15 BODY
+        msgStoreItemMemory.writeInt(batchRecord.bodyLen);
+        if (batchRecord.bodyLen > 0) {
+            msgStoreItemMemory.writeBytes(messages, batchRecord.bodyPos, batchRecord.bodyLen);
+        }
+        // 16 TOPIC
+        msgStoreItemMemory.writeByte(topicData.length);
+        msgStoreItemMemory.writeBytes(topicData);
+        // 17 PROPERTIES
+        msgStoreItemMemory.writeShort(batchRecord.propertiesLen);
+        if (batchRecord.propertiesLen > 0) {
+            msgStoreItemMemory.writeBytes(messages, batchRecord.propertiesPos, batchRecord.propertiesLen);
+        }
+    }
 
-    private byte[] convertRocketmq2Pulsar(long tagsCode, MessageExtBrokerInner msgInner) throws RopEncodeException {
-        int sysflag = msgInner.getSysFlag();
-        int bornHostLength = (sysflag & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
-        int storeHostLength = (sysflag & MessageSysFlag.STOREHOSTADDRESS_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
-        ByteBuffer bornHostHolder = ByteBuffer.allocate(bornHostLength);
-        ByteBuffer storeHostHolder = ByteBuffer.allocate(storeHostLength);
-
-        final byte[] propertiesData =
-                msgInner.getPropertiesString() == null ? null
-                        : msgInner.getPropertiesString().getBytes(MessageDecoder.CHARSET_UTF8);
-        final int propertiesLength = propertiesData == null ? 0 : propertiesData.length;
+    private static int getPropertiesLength(MessageExtBrokerInner msgInner) {
+        return msgInner.getPropertiesString() == null ? 0 : ByteBufUtil.utf8Bytes(msgInner.getPropertiesString());
+    }
 
+    private static int checkMessageLength(MessageExtBrokerInner msgInner, int topicLength, int propertiesLength)
+            throws RopEncodeException {
         if (propertiesLength > Short.MAX_VALUE) {
-            log.warn("putMessage message properties length too long. length={}", propertiesData.length);
+            log.warn("putMessage message properties length too long. length={}", propertiesLength);
             throw new RopEncodeException(AppendMessageStatus.PROPERTIES_SIZE_EXCEEDED.toString());
         }
 
-        final byte[] topicData = msgInner.getTopic().getBytes(MessageDecoder.CHARSET_UTF8);
-        final int topicLength = topicData.length;
         final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
         final int msgLen = CommonUtils.calMsgLength(msgInner.getSysFlag(), bodyLength, topicLength, propertiesLength);
 
@@ -319,57 +537,116 @@ public class RopEntryFormatter implements EntryFormatter<MessageExt> {
                     + ", maxMessageSize: " + MAX_MESSAGE_SIZE);
             throw new RopEncodeException(AppendMessageStatus.MESSAGE_SIZE_EXCEEDED.toString());
         }
+        return msgLen;
+    }
+
+    /**
+     * Write the record of the message in the commitlog layout prefixed by the tags code.
+     */
+    private static void writeRecord(ByteBuf msgStoreItemMemory, MessageExtBrokerInner msgInner, int msgLen,
+            int topicLength, int propertiesLength) {
+        long tagsCode = getTagsCode(msgInner);
+        final int bodyLength = msgInner.getBody() == null ? 0 : msgInner.getBody().length;
 
-        // Initialization of storage space
-        ByteBuffer msgStoreItemMemory = msgStoreItemMemoryThreadLocal.get();
-        msgStoreItemMemory.clear();
         // TAGSCODE
-        msgStoreItemMemory.putLong(tagsCode);
+        msgStoreItemMemory.writeLong(tagsCode);
         // 1 TOTALSIZE
-        msgStoreItemMemory.putInt(msgLen);
+        msgStoreItemMemory.writeInt(msgLen);
         // 2 MAGICCODE
-        msgStoreItemMemory.putInt(CommitLog.MESSAGE_MAGIC_CODE);
+        msgStoreItemMemory.writeInt(CommitLog.MESSAGE_MAGIC_CODE);
         // 3 BODYCRC
-        msgStoreItemMemory.putInt(msgInner.getBodyCRC());
+        msgStoreItemMemory.writeInt(msgInner.getBodyCRC());
         // 4 QUEUEID
-        msgStoreItemMemory.putInt(msgInner.getQueueId());
+        msgStoreItemMemory.writeInt(msgInner.getQueueId());
         // 5 FLAG
-        msgStoreItemMemory.putInt(msgInner.getFlag());
+        msgStoreItemMemory.writeInt(msgInner.getFlag());
         // 6 QUEUEOFFSET
-        msgStoreItemMemory.putLong(0L);
+        msgStoreItemMemory.writeLong(0L);
         // 7 PHYSICALOFFSET
-        msgStoreItemMemory.putLong(0L);
+        msgStoreItemMemory.writeLong(0L);
         // 8 SYSFLAG
-        msgStoreItemMemory.putInt(msgInner.getSysFlag());
+        msgStoreItemMemory.writeInt(msgInner.getSysFlag());
         // 9 BORNTIMESTAMP
-        msgStoreItemMemory.putLong(msgInner.getBornTimestamp());
+        msgStoreItemMemory.writeLong(msgInner.getBornTimestamp());
         // 10 BORNHOST
-        msgStoreItemMemory.put(msgInner.getBornHostBytes(bornHostHolder));
+        writeHost(msgStoreItemMemory, msgInner.getBornHost());
         // 11 STORETIMESTAMP
-        msgStoreItemMemory.putLong(Instant.now().toEpochMilli());
+        msgStoreItemMemory.writeLong(msgInner.getStoreTimestamp());
         // 12 STOREHOSTADDRESS
-        msgStoreItemMemory.put(msgInner.getStoreHostBytes(storeHostHolder));
+        writeHost(msgStoreItemMemory, msgInner.getStoreHost());
         // 13 RECONSUMETIMES
-        msgStoreItemMemory.putInt(msgInner.getReconsumeTimes());
+        msgStoreItemMemory.writeInt(msgInner.getReconsumeTimes());
         // 14 Prepared Transaction Offset
-        msgStoreItemMemory.putLong(msgInner.getPreparedTransactionOffset());
+        msgStoreItemMemory.writeLong(msgInner.getPreparedTransactionOffset());
         // 15 BODY
-        msgStoreItemMemory.putInt(bodyLength);
+        msgStoreItemMemory.writeInt(bodyLength);
         if (bodyLength > 0) {
-            msgStoreItemMemory.put(msgInner.getBody());
+            msgStoreItemMemory.writeBytes(msgInner.getBody());
         }
         // 16 TOPIC
-        msgStoreItemMemory.put((byte) topicLength);
-        msgStoreItemMemory.put(topicData);
+        msgStoreItemMemory.writeByte(topicLength);
+        ByteBufUtil.reserveAndWriteUtf8(msgStoreItemMemory, msgInner.getTopic(), topicLength);
         // 17 PROPERTIES
-        msgStoreItemMemory.putShort((short) propertiesLength);
+        msgStoreItemMemory.writeShort(propertiesLength);
         if (propertiesLength > 0) {
-            msgStoreItemMemory.put(propertiesData);
+            ByteBufUtil.reserveAndWriteUtf8(msgStoreItemMemory, msgInner.getPropertiesString(), propertiesLength);
         }
-        // Write messages to the queue buffer
-        msgStoreItemMemory.flip();
-        byte[] msgBytes = new byte[msgStoreItemMemory.limit()];
-        msgStoreItemMemory.get(msgBytes);
-        return msgBytes;
+    }
+
+    private static void writeHost(ByteBuf buf, SocketAddress socketAddress) {
+        InetSocketAddress inetSocketAddress = (InetSocketAddress) socketAddress;
+        buf.writeBytes(inetSocketAddress.getAddress().getAddress());
+        buf.writeInt(inetSocketAddress.getPort());
+    }
+
+    /**
+     * A Pulsar batched entry encoded from messages of a batch, with the tags codes and the properties of the
+     * messages for the indexes.
+     */
+    @Getter
+    public static final class BatchEntry {
+
+        private final ByteBuf entry;
+        private final long storeTimestamp;
+        private final long[] tagsCodes;
+        // the properties of the messages, null if a message has no property
+        private final List<Map<String, String>> properties;
+
+        private BatchEntry(ByteBuf entry, long storeTimestamp, List<BatchRecord> batchRecords) {
+            this.entry = entry;
+            this.storeTimestamp = storeTimestamp;
+            this.tagsCodes = new long[batchRecords.size()];
+            this.properties = new ArrayList<>(batchRecords.size());
+            for (int i = 0; i < batchRecords.size(); i++) {
+                tagsCodes[i] = batchRecords.get(i).tagsCode;
+                properties.add(batchRecords.get(i).properties);
+            }
+        }
+
+        public int getNumMessages() {
+            return tagsCodes.length;
+        }
+    }
+
+    /**
+     * The position and the size of a message in the body of a batch.
+     */
+    private static final class BatchRecord {
+
+        private int flag;
+        private int bodyCrc;
+        private int bodyPos;
+        private int bodyLen;
+        private int propertiesPos;
+        private short propertiesLen;
+        private int msgLen;
+        private long tagsCode;
+        private Map<String, String> properties;
+    }
+
+    @FunctionalInterface
+    private interface PayloadWriter {
+
+        void write(ByteBuf entry) throws IOException;
     }
 }
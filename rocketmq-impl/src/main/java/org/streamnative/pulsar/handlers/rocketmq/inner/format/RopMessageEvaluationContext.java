@@ -0,0 +1,82 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.format;
+
+import io.netty.buffer.ByteBuf;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.sysflag.MessageSysFlag;
+import org.apache.rocketmq.filter.expression.EvaluationContext;
+
+/**
+ * Evaluation context of the SQL92 filter over the properties of a stored message.
+ *
+ * <p>The properties are parsed from the message bytes the first time they are accessed, the buffer is not
+ * modified.
+ */
+public class RopMessageEvaluationContext implements EvaluationContext {
+
+    // tags code, total size, magic code, body crc, queue id, flag, queue offset and physical offset
+    private static final int SYS_FLAG_POSITION = 8 + 4 + 4 + 4 + 4 + 4 + 8 + 8;
+
+    private final ByteBuf payload;
+    private Map<String, String> properties;
+
+    /**
+     * @param payload the stored message, starting with the tags code
+     */
+    public RopMessageEvaluationContext(ByteBuf payload) {
+        this.payload = payload;
+    }
+
+    @Override
+    public Object get(String name) {
+        return properties().get(name);
+    }
+
+    @Override
+    public Map<String, Object> keyValues() {
+        return new HashMap<>(properties());
+    }
+
+    private Map<String, String> properties() {
+        if (properties == null) {
+            properties = parseProperties(payload);
+        }
+        return properties;
+    }
+
+    static Map<String, String> parseProperties(ByteBuf payload) {
+        int index = payload.readerIndex() + SYS_FLAG_POSITION;
+        int sysFlag = payload.getInt(index);
+        int bornHostLength = (sysFlag & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
+        int storeHostLength = (sysFlag & MessageSysFlag.STOREHOSTADDRESS_V6_FLAG) == 0 ? 4 + 4 : 16 + 4;
+        // sys flag, born timestamp, born host, store timestamp, store host, reconsume times and prepared offset
+        index += 4 + 8 + bornHostLength + 8 + storeHostLength + 4 + 8;
+        int bodyLength = payload.getInt(index);
+        index += 4 + bodyLength;
+        int topicLength = payload.getUnsignedByte(index);
+        index += 1 + topicLength;
+        short propertiesLength = payload.getShort(index);
+        if (propertiesLength <= 0) {
+            return Collections.emptyMap();
+        }
+        return MessageDecoder.string2messageProperties(
+                payload.toString(index + 2, propertiesLength, StandardCharsets.UTF_8));
+    }
+}
@@ -15,19 +15,41 @@
 package org.streamnative.pulsar.handlers.rocketmq.inner.format;
 
 import io.netty.buffer.ByteBuf;
+import java.util.Set;
 import java.util.function.Predicate;
+import lombok.extern.slf4j.Slf4j;
 import org.apache.rocketmq.common.filter.ExpressionType;
 import org.apache.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import org.apache.rocketmq.filter.expression.Expression;
 
 /**
  * Rop message filter.
  */
+@Slf4j
 public class RopMessageFilter implements Predicate<ByteBuf> {
 
     protected final SubscriptionData subscriptionData;
+    // the compiled SQL92 expression of the subscription, null for the tag subscriptions
+    private final Expression expression;
 
     public RopMessageFilter(SubscriptionData subscriptionData) {
+        this(subscriptionData, null);
+    }
+
+    public RopMessageFilter(SubscriptionData subscriptionData, Expression expression) {
         this.subscriptionData = subscriptionData;
+        this.expression = expression;
+    }
+
+    /**
+     * Get the tags codes of the tag subscription, or null if the messages are not filtered by tags.
+     */
+    public Set<Integer> getTagsCodeSet() {
+        if (this.subscriptionData != null && ExpressionType.isTagType(subscriptionData.getExpressionType())
+                && !SubscriptionData.SUB_ALL.equals(subscriptionData.getSubString())) {
+            return subscriptionData.getCodeSet();
+        }
+        return null;
     }
 
     @Override
@@ -41,6 +63,15 @@ public class RopMessageFilter implements Predicate<ByteBuf> {
             long tagsCode = payload.slice().readLong();
             return subscriptionData.getCodeSet().contains((int) tagsCode);
         }
+        if (this.expression != null && payload != null) {
+            try {
+                Object result = expression.evaluate(new RopMessageEvaluationContext(payload));
+                return result instanceof Boolean && (Boolean) result;
+            } catch (Exception e) {
+                log.warn("Evaluate SQL92 filter [{}] failed.", subscriptionData.getSubString(), e);
+                return false;
+            }
+        }
         return true;
     }
 }
@@ -0,0 +1,121 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.index;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.function.Function;
+import lombok.Getter;
+import org.streamnative.pulsar.handlers.rocketmq.utils.RocketMQTopic;
+
+/**
+ * Index of the delay buckets.
+ *
+ * <p>The messages delivered at an arbitrary time are appended to the bucket covering their deliver time. The buckets
+ * are mapped onto a fixed ring of single-partition topics of the meta namespace, the bucket starting at a time is
+ * kept by the slot {@code bucketStart / bucketSize mod ringSize}, so a slot topic holds the messages of all the laps
+ * of the ring. The slot topics are created once, and the index keeps track of the created ones in memory.
+ */
+public class DelayBucketIndex {
+
+    private final String topicPrefix;
+    @Getter
+    private final long bucketSizeMs;
+    @Getter
+    private final int ringSize;
+    // slot => creation of the slot topic, null if it's not created yet or the creation failed
+    private final AtomicReferenceArray<CompletableFuture<Void>> slots;
+
+    /**
+     * @param topicPrefix rmq topic name of the slots without the slot number
+     * @param bucketSizeMs time range covered by a bucket
+     * @param ringSize number of the slot topics
+     */
+    public DelayBucketIndex(String topicPrefix, long bucketSizeMs, int ringSize) {
+        this.topicPrefix = topicPrefix;
+        this.bucketSizeMs = bucketSizeMs;
+        this.ringSize = ringSize;
+        this.slots = new AtomicReferenceArray<>(ringSize);
+    }
+
+    public long getBucketStart(long deliverTime) {
+        return deliverTime - Math.floorMod(deliverTime, bucketSizeMs);
+    }
+
+    public int getSlot(long bucketStart) {
+        return (int) Math.floorMod(Math.floorDiv(bucketStart, bucketSizeMs), (long) ringSize);
+    }
+
+    /**
+     * @return the pulsar name of the partitioned slot topic
+     */
+    public String getSlotTopic(int slot) {
+        return RocketMQTopic.getRocketMQMetaTopic(topicPrefix + slot).getPulsarFullName();
+    }
+
+    /**
+     * @return the pulsar name of the only partition of the slot topic keeping the bucket
+     */
+    public String getBucketPartition(long bucketStart) {
+        return RocketMQTopic.getRocketMQMetaTopic(topicPrefix + getSlot(bucketStart)).getPartitionName(0);
+    }
+
+    /**
+     * Create the topics of all the slots, called once when the scheduler is started.
+     */
+    public void createSlots(Function<String, CompletableFuture<Void>> creator) {
+        for (int slot = 0; slot < ringSize; slot++) {
+            getOrCreateSlot(slot, creator);
+        }
+    }
+
+    /**
+     * Get the bucket covering the deliver time, the slot topic is created by the creator if it's not created yet.
+     * A failed creation is forgotten, so it's retried by the next message of the slot.
+     *
+     * @return the start time of the bucket, completed when the slot topic exists
+     */
+    public CompletableFuture<Long> getOrCreate(long deliverTime, Function<String, CompletableFuture<Void>> creator) {
+        long bucketStart = getBucketStart(deliverTime);
+        return getOrCreateSlot(getSlot(bucketStart), creator).thenApply(ignore -> bucketStart);
+    }
+
+    private CompletableFuture<Void> getOrCreateSlot(int slot, Function<String, CompletableFuture<Void>> creator) {
+        CompletableFuture<Void> created = slots.get(slot);
+        if (created != null) {
+            return created;
+        }
+        CompletableFuture<Void> creation = new CompletableFuture<>();
+        if (!slots.compareAndSet(slot, null, creation)) {
+            return getOrCreateSlot(slot, creator);
+        }
+        creator.apply(getSlotTopic(slot)).whenComplete((ignore, e) -> {
+            if (e != null) {
+                slots.compareAndSet(slot, creation, null);
+                creation.completeExceptionally(e);
+            } else {
+                creation.complete(null);
+            }
+        });
+        return creation;
+    }
+
+    /**
+     * @return the creation of the slot topic keeping the bucket, or null if it's not created
+     */
+    public CompletableFuture<Void> getSlotCreation(long bucketStart) {
+        return slots.get(getSlot(bucketStart));
+    }
+}
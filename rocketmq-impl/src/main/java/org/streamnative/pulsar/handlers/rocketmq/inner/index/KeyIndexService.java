@@ -0,0 +1,311 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.index;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.common.ServiceThread;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageClientIDSetter;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.index.IndexFile;
+import org.apache.rocketmq.store.index.QueryOffsetResult;
+
+/**
+ * Message key index service.
+ *
+ * <p>The KEYS and UNIQ_KEY properties of the sent messages are indexed into RocketMQ index files
+ * under the index store path, the indexed value is the offset of the message. The index is built
+ * by this service thread, the publish path only enqueues the keys of the stored messages.
+ */
+@Slf4j
+public class KeyIndexService extends ServiceThread {
+
+    private static final int MAX_HASH_SLOT_NUM = 5000000;
+    private static final int MAX_INDEX_NUM = MAX_HASH_SLOT_NUM * 4;
+    private static final int MAX_PENDING_REQUESTS = 32768;
+    private static final long FLUSH_INTERVAL_MS = 10 * 1000L;
+    private static final long CLEAN_INTERVAL_MS = 60 * 1000L;
+
+    private final String storePath;
+    private final long fileReservedTimeMs;
+    private final int hashSlotNum;
+    private final int indexNum;
+    private final BlockingQueue<IndexRequest> requestQueue = new ArrayBlockingQueue<>(MAX_PENDING_REQUESTS);
+    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
+    private final List<IndexFile> indexFileList = new ArrayList<>();
+    private final AtomicLong droppedRequests = new AtomicLong();
+    private long lastFlushTimestamp = System.currentTimeMillis();
+    private long lastCleanTimestamp = System.currentTimeMillis();
+
+    public KeyIndexService(String storePath, long fileReservedTimeInHours) {
+        this(storePath, fileReservedTimeInHours, MAX_HASH_SLOT_NUM, MAX_INDEX_NUM);
+    }
+
+    KeyIndexService(String storePath, long fileReservedTimeInHours, int hashSlotNum, int indexNum) {
+        this.storePath = storePath;
+        this.fileReservedTimeMs = TimeUnit.HOURS.toMillis(fileReservedTimeInHours);
+        this.hashSlotNum = hashSlotNum;
+        this.indexNum = indexNum;
+    }
+
+    @Override
+    public String getServiceName() {
+        return KeyIndexService.class.getSimpleName();
+    }
+
+    /**
+     * Load the index files under the store path.
+     */
+    public boolean load() {
+        File dir = new File(storePath);
+        if (!dir.exists() && !dir.mkdirs()) {
+            log.error("Create index store path [{}] failed.", storePath);
+            return false;
+        }
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return true;
+        }
+        // the file name is the creation time, so they are sorted by time
+        Arrays.sort(files);
+        for (File file : files) {
+            try {
+                IndexFile indexFile = new IndexFile(file.getPath(), hashSlotNum, indexNum, 0, 0);
+                indexFile.load();
+                indexFileList.add(indexFile);
+                log.info("Load index file [{}] OK.", indexFile.getFileName());
+            } catch (IOException e) {
+                log.error("Load index file [{}] failed.", file, e);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Enqueue the keys of a stored message to be indexed, the request is dropped if the service can't catch up.
+     *
+     * @param msg the message whose store timestamp has been set by the entry formatter
+     * @param offset the offset of the message
+     */
+    public void putRequest(MessageExt msg, long offset) {
+        putRequest(msg.getTopic(), MessageClientIDSetter.getUniqID(msg), msg.getKeys(), msg.getStoreTimestamp(),
+                offset);
+    }
+
+    /**
+     * Enqueue the keys of a stored message of a batch to be indexed, the keys are taken from its properties.
+     *
+     * @param properties the properties of the message, or null if it has no property
+     */
+    public void putRequest(String topic, Map<String, String> properties, long storeTimestamp, long offset) {
+        if (properties != null) {
+            putRequest(topic, properties.get(MessageConst.PROPERTY_UNIQ_CLIENT_MESSAGE_ID_KEYIDX),
+                    properties.get(MessageConst.PROPERTY_KEYS), storeTimestamp, offset);
+        }
+    }
+
+    private void putRequest(String topic, String uniqKey, String keys, long storeTimestamp, long offset) {
+        if ((uniqKey == null || uniqKey.isEmpty()) && (keys == null || keys.isEmpty())) {
+            return;
+        }
+        IndexRequest request = new IndexRequest(topic, uniqKey, keys, storeTimestamp, offset);
+        if (!requestQueue.offer(request)) {
+            long dropped = droppedRequests.incrementAndGet();
+            if (dropped % MAX_PENDING_REQUESTS == 1) {
+                log.warn("Too many pending index requests, {} requests have been dropped.", dropped);
+            }
+        }
+    }
+
+    /**
+     * Query the offsets of the messages with the key, the newest messages are returned first.
+     */
+    public QueryOffsetResult queryOffset(String topic, String key, int maxNum, long begin, long end) {
+        List<Long> offsets = new ArrayList<>(Math.min(maxNum, 64));
+        long indexLastUpdateTimestamp = 0;
+        long indexLastUpdatePhyoffset = 0;
+        readWriteLock.readLock().lock();
+        try {
+            for (int i = indexFileList.size(); i > 0; i--) {
+                IndexFile indexFile = indexFileList.get(i - 1);
+                boolean lastFile = i == indexFileList.size();
+                if (lastFile) {
+                    indexLastUpdateTimestamp = indexFile.getEndTimestamp();
+                    indexLastUpdatePhyoffset = indexFile.getEndPhyOffset();
+                }
+                if (indexFile.isTimeMatched(begin, end)) {
+                    indexFile.selectPhyOffset(offsets, buildKey(topic, key), maxNum, begin, end, lastFile);
+                }
+                if (indexFile.getBeginTimestamp() < begin || offsets.size() >= maxNum) {
+                    break;
+                }
+            }
+        } finally {
+            readWriteLock.readLock().unlock();
+        }
+        return new QueryOffsetResult(offsets, indexLastUpdateTimestamp, indexLastUpdatePhyoffset);
+    }
+
+    @Override
+    public void run() {
+        log.info("{} service started", this.getServiceName());
+        while (!this.isStopped()) {
+            try {
+                IndexRequest request = requestQueue.poll(1000, TimeUnit.MILLISECONDS);
+                if (request != null) {
+                    buildIndex(request.topic, request.uniqKey, request.keys, request.storeTimestamp,
+                            request.offset);
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastFlushTimestamp >= FLUSH_INTERVAL_MS) {
+                    lastFlushTimestamp = now;
+                    flush();
+                }
+                if (now - lastCleanTimestamp >= CLEAN_INTERVAL_MS) {
+                    lastCleanTimestamp = now;
+                    deleteExpiredFiles(now - fileReservedTimeMs);
+                }
+            } catch (Exception e) {
+                log.warn("{} service has exception. ", this.getServiceName(), e);
+            }
+        }
+        flush();
+        log.info("{} service end", this.getServiceName());
+    }
+
+    private void buildIndex(String topic, String uniqKey, String keys, long storeTimestamp, long offset) {
+        if (uniqKey != null && !uniqKey.isEmpty()) {
+            putKey(buildKey(topic, uniqKey), offset, storeTimestamp);
+        }
+        if (keys != null && !keys.isEmpty()) {
+            for (String key : keys.split(MessageConst.KEY_SEPARATOR)) {
+                if (!key.isEmpty()) {
+                    putKey(buildKey(topic, key), offset, storeTimestamp);
+                }
+            }
+        }
+    }
+
+    private void putKey(String key, long offset, long storeTimestamp) {
+        IndexFile indexFile = getAndCreateLastIndexFile();
+        while (indexFile != null && !indexFile.putKey(key, offset, storeTimestamp)) {
+            if (!indexFile.isWriteFull()) {
+                indexFile = null;
+                break;
+            }
+            log.info("Index file [{}] is full, roll to a new one.", indexFile.getFileName());
+            indexFile = getAndCreateLastIndexFile();
+        }
+        if (indexFile == null) {
+            log.warn("Put key [{}] of offset [{}] into index failed.", key, offset);
+        }
+    }
+
+    private IndexFile getAndCreateLastIndexFile() {
+        readWriteLock.readLock().lock();
+        try {
+            if (!indexFileList.isEmpty()) {
+                IndexFile lastFile = indexFileList.get(indexFileList.size() - 1);
+                if (!lastFile.isWriteFull()) {
+                    return lastFile;
+                }
+            }
+        } finally {
+            readWriteLock.readLock().unlock();
+        }
+
+        readWriteLock.writeLock().lock();
+        try {
+            long lastUpdateEndPhyOffset = 0;
+            long lastUpdateIndexTimestamp = 0;
+            if (!indexFileList.isEmpty()) {
+                IndexFile lastFile = indexFileList.get(indexFileList.size() - 1);
+                lastFile.flush();
+                lastUpdateEndPhyOffset = lastFile.getEndPhyOffset();
+                lastUpdateIndexTimestamp = lastFile.getEndTimestamp();
+            }
+            String fileName = storePath + File.separator + UtilAll.timeMillisToHumanString(System.currentTimeMillis());
+            IndexFile indexFile = new IndexFile(fileName, hashSlotNum, indexNum, lastUpdateEndPhyOffset,
+                    lastUpdateIndexTimestamp);
+            indexFileList.add(indexFile);
+            return indexFile;
+        } catch (IOException e) {
+            log.error("Create index file failed.", e);
+            return null;
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+    private void flush() {
+        readWriteLock.readLock().lock();
+        try {
+            if (!indexFileList.isEmpty()) {
+                indexFileList.get(indexFileList.size() - 1).flush();
+            }
+        } finally {
+            readWriteLock.readLock().unlock();
+        }
+    }
+
+    private void deleteExpiredFiles(long expiredTimestamp) {
+        readWriteLock.writeLock().lock();
+        try {
+            // the last file is always kept
+            while (indexFileList.size() > 1 && indexFileList.get(0).getEndTimestamp() < expiredTimestamp) {
+                IndexFile indexFile = indexFileList.remove(0);
+                indexFile.destroy(3000);
+                log.info("Delete expired index file [{}].", indexFile.getFileName());
+            }
+        } finally {
+            readWriteLock.writeLock().unlock();
+        }
+    }
+
+    private static String buildKey(String topic, String key) {
+        return topic + "#" + key;
+    }
+
+    private static final class IndexRequest {
+
+        private final String topic;
+        private final String uniqKey;
+        private final String keys;
+        private final long storeTimestamp;
+        private final long offset;
+
+        private IndexRequest(String topic, String uniqKey, String keys, long storeTimestamp, long offset) {
+            this.topic = topic;
+            this.uniqKey = uniqKey;
+            this.keys = keys;
+            this.storeTimestamp = storeTimestamp;
+            this.offset = offset;
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.index;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.UpdatePropertiesCallback;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+
+/**
+ * Tag summary index of a partition.
+ *
+ * <p>The entries of a ledger are split into fixed-size ranges, and the tags codes of the messages published into a
+ * range are summarized in a bitmap. A range is only sealed if all of its entries were published through this index,
+ * the sealed ranges are persisted in the managed ledger properties when the index is flushed, which is done
+ * periodically by the {@link TagIndexManager} rather than on every seal. A pull with a tag subscription skips the
+ * consecutive sealed ranges which can't contain any of its tags without reading them.
+ */
+@Slf4j
+public class TagIndex {
+
+    static final String TAG_INDEX_PROPERTY = "ropTagIndex";
+    static final int BITMAP_BITS = 512;
+    private static final String RANGE_SEPARATOR = ",";
+    private static final String FIELD_SEPARATOR = ":";
+
+    @Getter
+    private final ManagedLedgerImpl managedLedger;
+    private final int rangeSize;
+    private final int maxRanges;
+    // first position => sealed range
+    private final TreeMap<PositionImpl, TagRange> ranges = new TreeMap<>();
+    // the range being published into, it's dropped if an entry of it is missing
+    private TagRange current;
+    // whether ranges are sealed or dropped since the last flush
+    private boolean dirty;
+    private final AtomicBoolean flushing = new AtomicBoolean();
+
+    public TagIndex(ManagedLedgerImpl managedLedger, int rangeSize, int maxRanges) {
+        this.managedLedger = managedLedger;
+        this.rangeSize = rangeSize;
+        this.maxRanges = maxRanges;
+        load(managedLedger.getProperties().get(TAG_INDEX_PROPERTY));
+    }
+
+    /**
+     * Add the tags codes of the messages of a published entry, the entries must be added in the published order.
+     */
+    public synchronized void add(PositionImpl position, long[] tagsCodes) {
+        long ledgerId = position.getLedgerId();
+        long entryId = position.getEntryId();
+        if (current != null && current.ledgerId != ledgerId) {
+            sealAtLedgerEnd(current);
+            current = null;
+        } else if (current != null && entryId >= current.firstEntryId + rangeSize) {
+            // the range is not complete, some of its entries were not published through this index
+            current = null;
+        }
+        if (current == null) {
+            long firstEntryId = entryId - entryId % rangeSize;
+            current = new TagRange(ledgerId, firstEntryId, firstEntryId - 1, new long[BITMAP_BITS / Long.SIZE]);
+        }
+        if (entryId != current.lastEntryId + 1) {
+            current.complete = false;
+        }
+        current.lastEntryId = entryId;
+        for (long tagsCode : tagsCodes) {
+            current.set((int) tagsCode);
+        }
+        if (current.complete && entryId == current.firstEntryId + rangeSize - 1) {
+            seal(current);
+            current = null;
+        }
+    }
+
+    /**
+     * Get the last position of the consecutive sealed ranges from the given position, which don't contain any of
+     * the tags.
+     *
+     * @return the last position which can be skipped, or null if the entry at the position may match
+     */
+    public synchronized PositionImpl lastSkippablePosition(PositionImpl from, Set<Integer> tagsCodes) {
+        Map.Entry<PositionImpl, TagRange> floor = ranges.floorEntry(from);
+        TagRange range = floor != null && floor.getValue().contains(from) ? floor.getValue() : null;
+        PositionImpl last = null;
+        while (range != null && !range.mayContain(tagsCodes)) {
+            last = PositionImpl.get(range.ledgerId, range.lastEntryId);
+            Map.Entry<PositionImpl, TagRange> higher = ranges.higherEntry(last);
+            range = higher != null && isAdjacent(range, higher.getValue()) ? higher.getValue() : null;
+        }
+        return last;
+    }
+
+    synchronized int size() {
+        return ranges.size();
+    }
+
+    private boolean isAdjacent(TagRange range, TagRange next) {
+        if (range.ledgerId == next.ledgerId) {
+            return next.firstEntryId == range.lastEntryId + 1;
+        }
+        Long nextLedgerId = managedLedger.getLedgersInfo().higherKey(range.ledgerId);
+        return range.endOfLedger && next.firstEntryId == 0 && nextLedgerId != null
+                && nextLedgerId == next.ledgerId;
+    }
+
+    private void sealAtLedgerEnd(TagRange range) {
+        // the last range of a ledger is complete if the ledger was closed right after it
+        LedgerInfo ledgerInfo = managedLedger.getLedgersInfo().get(range.ledgerId);
+        if (range.complete && ledgerInfo != null && ledgerInfo.getEntries() == range.lastEntryId + 1) {
+            range.endOfLedger = true;
+            seal(range);
+        }
+    }
+
+    private void seal(TagRange range) {
+        ranges.put(PositionImpl.get(range.ledgerId, range.firstEntryId), range);
+        trim();
+        dirty = true;
+    }
+
+    private void trim() {
+        // drop the ranges of deleted ledgers
+        PositionImpl firstPosition = managedLedger.getFirstPosition();
+        while (firstPosition != null && !ranges.isEmpty()
+                && ranges.firstKey().getLedgerId() < firstPosition.getLedgerId()) {
+            ranges.pollFirstEntry();
+        }
+        while (ranges.size() > maxRanges) {
+            ranges.pollFirstEntry();
+        }
+    }
+
+    /**
+     * Persist the sealed ranges if they changed since the last flush. The property is built outside the lock of the
+     * index, the sealed ranges are not modified any more.
+     */
+    public void flush() {
+        if (!flushing.compareAndSet(false, true)) {
+            return;
+        }
+        List<TagRange> sealed;
+        synchronized (this) {
+            if (!dirty) {
+                flushing.set(false);
+                return;
+            }
+            dirty = false;
+            sealed = new ArrayList<>(ranges.values());
+        }
+        StringBuilder builder = new StringBuilder(sealed.size() * 128);
+        ByteBuffer buffer = ByteBuffer.allocate(BITMAP_BITS / Byte.SIZE);
+        for (TagRange range : sealed) {
+            if (builder.length() > 0) {
+                builder.append(RANGE_SEPARATOR);
+            }
+            buffer.clear();
+            for (long bits : range.bitmap) {
+                buffer.putLong(bits);
+            }
+            builder.append(range.ledgerId).append(FIELD_SEPARATOR)
+                    .append(range.firstEntryId).append(FIELD_SEPARATOR)
+                    .append(range.lastEntryId).append(FIELD_SEPARATOR)
+                    .append(range.endOfLedger ? 1 : 0).append(FIELD_SEPARATOR)
+                    .append(Base64.getEncoder().encodeToString(buffer.array()));
+        }
+        managedLedger.asyncSetProperty(TAG_INDEX_PROPERTY, builder.toString(), new UpdatePropertiesCallback() {
+            @Override
+            public void updatePropertiesComplete(Map<String, String> properties, Object ctx) {
+                flushing.set(false);
+            }
+
+            @Override
+            public void updatePropertiesFailed(ManagedLedgerException exception, Object ctx) {
+                log.warn("[{}] Persist tag index failed.", managedLedger.getName(), exception);
+                synchronized (TagIndex.this) {
+                    dirty = true;
+                }
+                flushing.set(false);
+            }
+        }, null);
+    }
+
+    private void load(String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        try {
+            for (String range : value.split(RANGE_SEPARATOR)) {
+                String[] fields = range.split(FIELD_SEPARATOR);
+                ByteBuffer buffer = ByteBuffer.wrap(Base64.getDecoder().decode(fields[4]));
+                long[] bitmap = new long[BITMAP_BITS / Long.SIZE];
+                for (int i = 0; i < bitmap.length; i++) {
+                    bitmap[i] = buffer.getLong();
+                }
+                TagRange tagRange = new TagRange(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                        Long.parseLong(fields[2]), bitmap);
+                tagRange.endOfLedger = "1".equals(fields[3]);
+                ranges.put(PositionImpl.get(tagRange.ledgerId, tagRange.firstEntryId), tagRange);
+            }
+        } catch (Exception e) {
+            log.warn("[{}] Ignore invalid tag index [{}].", managedLedger.getName(), value, e);
+            ranges.clear();
+        }
+    }
+
+    /**
+     * Summary of the tags of a range of entries in a ledger.
+     */
+    private static final class TagRange {
+        private final long ledgerId;
+        private final long firstEntryId;
+        private long lastEntryId;
+        private final long[] bitmap;
+        private boolean complete = true;
+        private boolean endOfLedger;
+
+        private TagRange(long ledgerId, long firstEntryId, long lastEntryId, long[] bitmap) {
+            this.ledgerId = ledgerId;
+            this.firstEntryId = firstEntryId;
+            this.lastEntryId = lastEntryId;
+            this.bitmap = bitmap;
+        }
+
+        private boolean contains(PositionImpl position) {
+            return position.getLedgerId() == ledgerId && position.getEntryId() >= firstEntryId
+                    && position.getEntryId() <= lastEntryId;
+        }
+
+        private void set(int tagsCode) {
+            int bit = bitIndex(tagsCode);
+            bitmap[bit >>> 6] |= 1L << bit;
+        }
+
+        private boolean mayContain(Set<Integer> tagsCodes) {
+            if (tagsCodes.isEmpty()) {
+                return true;
+            }
+            for (int tagsCode : tagsCodes) {
+                int bit = bitIndex(tagsCode);
+                if ((bitmap[bit >>> 6] & (1L << bit)) != 0) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static int bitIndex(int tagsCode) {
+            return (tagsCode ^ (tagsCode >>> 16)) & (BITMAP_BITS - 1);
+        }
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+
+/**
+ * Tag index manager, holds the tag index of the partitions owned by this broker.
+ */
+public class TagIndexManager {
+
+    private static final int MAX_RANGES_PER_PARTITION = 256;
+    private static final long MAX_IDLE_TIME_IN_MINUTES = 30;
+
+    private final int rangeSize;
+    // key => partitioned topic name of pulsar
+    private final Cache<String, TagIndex> tagIndexes = CacheBuilder
+            .newBuilder()
+            .expireAfterAccess(MAX_IDLE_TIME_IN_MINUTES, TimeUnit.MINUTES)
+            .removalListener((RemovalListener<String, TagIndex>) notification -> {
+                if (notification.wasEvicted()) {
+                    notification.getValue().flush();
+                }
+            })
+            .build();
+
+    public TagIndexManager(int rangeSize) {
+        this.rangeSize = rangeSize;
+    }
+
+    public boolean isEnabled() {
+        return rangeSize > 0;
+    }
+
+    public TagIndex getTagIndex(PersistentTopic persistentTopic) {
+        ManagedLedgerImpl managedLedger = (ManagedLedgerImpl) persistentTopic.getManagedLedger();
+        return tagIndexes.asMap().compute(persistentTopic.getName(), (name, tagIndex) -> {
+            // the topic has been reloaded, the index is restored from the new managed ledger
+            if (tagIndex == null || tagIndex.getManagedLedger() != managedLedger) {
+                return new TagIndex(managedLedger, rangeSize, MAX_RANGES_PER_PARTITION);
+            }
+            return tagIndex;
+        });
+    }
+
+    /**
+     * Persist the tag indexes changed since the last flush.
+     */
+    public void flush() {
+        tagIndexes.asMap().values().forEach(TagIndex::flush);
+    }
+}
@@ -0,0 +1,161 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.index;
+
+import com.google.common.collect.Range;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.UpdatePropertiesCallback;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+
+/**
+ * Sparse timestamp to position index of a partition.
+ *
+ * <p>At most one entry is sampled per interval, the samples are persisted in the managed ledger
+ * properties so that the index survives topic reloads. A lookup resolves a timestamp to the range
+ * of entries between two samples, which is then searched by publish time.
+ */
+@Slf4j
+public class TimeIndex {
+
+    static final String TIME_INDEX_PROPERTY = "ropTimeIndex";
+    private static final String SAMPLE_SEPARATOR = ",";
+    private static final String FIELD_SEPARATOR = ":";
+
+    @Getter
+    private final ManagedLedgerImpl managedLedger;
+    private final long intervalMs;
+    private final int maxSamples;
+    // store timestamp => position of the first entry stored at or after it
+    private final TreeMap<Long, PositionImpl> samples = new TreeMap<>();
+    private volatile long nextSampleTimestamp;
+
+    public TimeIndex(ManagedLedgerImpl managedLedger, long intervalMs, int maxSamples) {
+        this.managedLedger = managedLedger;
+        this.intervalMs = intervalMs;
+        this.maxSamples = maxSamples;
+        load(managedLedger.getProperties().get(TIME_INDEX_PROPERTY));
+    }
+
+    /**
+     * Whether an entry stored at the timestamp would be sampled, it's cheap enough to be called on every publish.
+     */
+    public boolean shouldSample(long timestamp) {
+        return timestamp >= nextSampleTimestamp;
+    }
+
+    public synchronized void add(long timestamp, PositionImpl position) {
+        if (timestamp < nextSampleTimestamp) {
+            return;
+        }
+        Map.Entry<Long, PositionImpl> last = samples.lastEntry();
+        if (last != null && last.getValue().compareTo(position) >= 0) {
+            return;
+        }
+        samples.put(timestamp, position);
+        nextSampleTimestamp = timestamp + intervalMs;
+        trim();
+        persist();
+    }
+
+    /**
+     * Get the range of entries which contains the newest entry stored at or before the timestamp.
+     *
+     * <p>The lower endpoint is an entry stored at or before the timestamp, the upper endpoint
+     * is an entry stored after it. A missing endpoint means the range is unbounded on that side.
+     */
+    public synchronized Range<PositionImpl> lookup(long timestamp) {
+        Map.Entry<Long, PositionImpl> floor = samples.floorEntry(timestamp);
+        Map.Entry<Long, PositionImpl> higher = samples.higherEntry(timestamp);
+        if (floor == null && higher == null) {
+            return Range.all();
+        } else if (floor == null) {
+            return Range.lessThan(higher.getValue());
+        } else if (higher == null) {
+            return Range.atLeast(floor.getValue());
+        }
+        return Range.closedOpen(floor.getValue(), higher.getValue());
+    }
+
+    synchronized int size() {
+        return samples.size();
+    }
+
+    private void trim() {
+        // drop the samples of deleted ledgers
+        PositionImpl firstPosition = managedLedger.getFirstPosition();
+        while (firstPosition != null && !samples.isEmpty()
+                && samples.firstEntry().getValue().compareTo(firstPosition) < 0) {
+            samples.pollFirstEntry();
+        }
+        // halve the resolution but keep the newest sample
+        if (samples.size() > maxSamples) {
+            Iterator<Long> iterator = samples.descendingKeySet().iterator();
+            boolean keep = true;
+            while (iterator.hasNext()) {
+                iterator.next();
+                if (!keep) {
+                    iterator.remove();
+                }
+                keep = !keep;
+            }
+        }
+    }
+
+    private void persist() {
+        StringBuilder builder = new StringBuilder(samples.size() * 32);
+        for (Map.Entry<Long, PositionImpl> sample : samples.entrySet()) {
+            if (builder.length() > 0) {
+                builder.append(SAMPLE_SEPARATOR);
+            }
+            builder.append(sample.getKey()).append(FIELD_SEPARATOR)
+                    .append(sample.getValue().getLedgerId()).append(FIELD_SEPARATOR)
+                    .append(sample.getValue().getEntryId());
+        }
+        managedLedger.asyncSetProperty(TIME_INDEX_PROPERTY, builder.toString(), new UpdatePropertiesCallback() {
+            @Override
+            public void updatePropertiesComplete(Map<String, String> properties, Object ctx) {
+            }
+
+            @Override
+            public void updatePropertiesFailed(ManagedLedgerException exception, Object ctx) {
+                log.warn("[{}] Persist time index failed.", managedLedger.getName(), exception);
+            }
+        }, null);
+    }
+
+    private void load(String value) {
+        if (value == null || value.isEmpty()) {
+            return;
+        }
+        try {
+            for (String sample : value.split(SAMPLE_SEPARATOR)) {
+                String[] fields = sample.split(FIELD_SEPARATOR);
+                samples.put(Long.parseLong(fields[0]),
+                        PositionImpl.get(Long.parseLong(fields[1]), Long.parseLong(fields[2])));
+            }
+        } catch (Exception e) {
+            log.warn("[{}] Ignore invalid time index [{}].", managedLedger.getName(), value, e);
+            samples.clear();
+            return;
+        }
+        nextSampleTimestamp = samples.lastKey() + intervalMs;
+    }
+}
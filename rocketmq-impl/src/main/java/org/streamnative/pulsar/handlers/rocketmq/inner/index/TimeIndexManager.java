@@ -0,0 +1,52 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.index;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import java.util.concurrent.TimeUnit;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+
+/**
+ * Time index manager, holds the time index of the partitions owned by this broker.
+ */
+public class TimeIndexManager {
+
+    private static final int MAX_SAMPLES_PER_PARTITION = 1024;
+    private static final long MAX_IDLE_TIME_IN_MINUTES = 30;
+
+    private final long intervalMs;
+    // key => partitioned topic name of pulsar
+    private final Cache<String, TimeIndex> timeIndexes = CacheBuilder
+            .newBuilder()
+            .expireAfterAccess(MAX_IDLE_TIME_IN_MINUTES, TimeUnit.MINUTES)
+            .build();
+
+    public TimeIndexManager(long intervalMs) {
+        this.intervalMs = intervalMs;
+    }
+
+    public TimeIndex getTimeIndex(PersistentTopic persistentTopic) {
+        ManagedLedgerImpl managedLedger = (ManagedLedgerImpl) persistentTopic.getManagedLedger();
+        return timeIndexes.asMap().compute(persistentTopic.getName(), (name, timeIndex) -> {
+            // the topic has been reloaded, the index is restored from the new managed ledger
+            if (timeIndex == null || timeIndex.getManagedLedger() != managedLedger) {
+                return new TimeIndex(managedLedger, intervalMs, MAX_SAMPLES_PER_PARTITION);
+            }
+            return timeIndex;
+        });
+    }
+}
@@ -14,11 +14,11 @@
 
 package org.streamnative.pulsar.handlers.rocketmq.inner.namesvr;
 
+import com.github.benmanes.caffeine.cache.AsyncLoadingCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.RemovalCause;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
-import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.Sets;
 import java.net.InetSocketAddress;
 import java.util.Collections;
@@ -30,7 +30,7 @@ import java.util.Set;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
-import java.util.stream.IntStream;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.Nullable;
 import lombok.AllArgsConstructor;
 import lombok.EqualsAndHashCode;
@@ -74,16 +74,19 @@ public class MQTopicManager extends TopicConfigManager implements NamespaceBundl
 
     private final int maxCacheSize = 1024;
     private final int maxCacheTimeInSec = 10;
+    // the max number of partitions looked up concurrently for a topic
+    private final int maxConcurrentLookups = 16;
     //cache-key TopicName = {tenant/ns/topic}, Map key={partition id} nonPartitionedTopic, only one record in map.
+    //concurrent requests of the same topic share the in-flight lookup.
     @Getter
-    private final Cache<LookupCacheKey, Map<Integer, InetSocketAddress>> lookupCache = CacheBuilder
+    private final AsyncLoadingCache<LookupCacheKey, Map<Integer, InetSocketAddress>> lookupCache = Caffeine
             .newBuilder()
             .initialCapacity(maxCacheSize)
             .expireAfterWrite(maxCacheTimeInSec, TimeUnit.SECONDS)
-            .removalListener((RemovalNotification<LookupCacheKey, Map<Integer, InetSocketAddress>> notification) ->
-                    log.info("Remove Listener [key={}]========>[value={}] from Guava cache.",
-                            notification.getKey().topicName, notification))
-            .build();
+            .removalListener((LookupCacheKey key, Map<Integer, InetSocketAddress> value, RemovalCause cause) ->
+                    log.info("Remove Listener [key={}]========>[value={}] from lookup cache.",
+                            key.topicName, value))
+            .buildAsync((key, executor) -> lookupTopicBrokerAddr(key));
     private final Map<String, PulsarClient> pulsarClientMap = Maps.newConcurrentMap();
     private PulsarService pulsarService;
     private BrokerService brokerService;
@@ -131,7 +134,7 @@ public class MQTopicManager extends TopicConfigManager implements NamespaceBundl
     }
 
     public void shutdown() {
-        lookupCache.invalidateAll();
+        lookupCache.synchronous().invalidateAll();
     }
 
     public void getTopicBrokerAddr(TopicName topicName) {
@@ -139,40 +142,73 @@ public class MQTopicManager extends TopicConfigManager implements NamespaceBundl
     }
 
     // call pulsarClient.lookup.getBroker to get and own a topic.
-    // when error happens, the returned future will complete with null.
+    // when error happens, the returned map is empty.
     public Map<Integer, InetSocketAddress> getTopicBrokerAddr(TopicName topicName, String listenerName) {
-        LookupCacheKey lookupCacheKey = new LookupCacheKey(topicName, listenerName);
-        if (lookupCache.getIfPresent(lookupCacheKey) != null) {
-            return lookupCache.getIfPresent(lookupCacheKey);
-        }
-
-        Map<Integer, InetSocketAddress> partitionedTopicAddr = new HashMap<>();
         try {
-            PartitionedTopicMetadata pTopicMeta = brokerService.fetchPartitionedTopicMetadataAsync(topicName).get();
-            if (pTopicMeta.partitions > 0) {
-                IntStream.range(0, pTopicMeta.partitions).forEach((i) -> {
-                    try {
-                        Backoff backoff = new Backoff(
-                                100, TimeUnit.MILLISECONDS,
-                                15, TimeUnit.SECONDS,
-                                15, TimeUnit.SECONDS
-                        );
-                        CompletableFuture<InetSocketAddress> resultFuture = new CompletableFuture<>();
-                        lookupBroker(topicName.getPartition(i), backoff, listenerName, resultFuture);
-                        partitionedTopicAddr.put(i, resultFuture.get());
-                    } catch (Exception e) {
-                        log.warn("getTopicBrokerAddr error.", e);
-                    }
-                });
-            }
-            if (!partitionedTopicAddr.isEmpty()) {
-                lookupCache.put(lookupCacheKey, partitionedTopicAddr);
-                putPulsarTopic2Config(topicName, partitionedTopicAddr.size());
+            Map<Integer, InetSocketAddress> partitionedTopicAddr =
+                    getTopicBrokerAddrAsync(topicName, listenerName).get();
+            if (partitionedTopicAddr != null) {
+                return partitionedTopicAddr;
             }
         } catch (Exception e) {
             log.warn("getTopicBroker info error for the topic[{}].", topicName, e);
         }
-        return partitionedTopicAddr;
+        return new HashMap<>();
+    }
+
+    /**
+     * Get the broker address of every partition of the topic.
+     *
+     * @return future of the partition id to broker address map, completed with null if the lookup failed
+     */
+    public CompletableFuture<Map<Integer, InetSocketAddress>> getTopicBrokerAddrAsync(TopicName topicName,
+            String listenerName) {
+        return lookupCache.get(new LookupCacheKey(topicName, listenerName));
+    }
+
+    private CompletableFuture<Map<Integer, InetSocketAddress>> lookupTopicBrokerAddr(LookupCacheKey lookupCacheKey) {
+        TopicName topicName = lookupCacheKey.topicName;
+        return brokerService.fetchPartitionedTopicMetadataAsync(topicName).thenCompose(pTopicMeta -> {
+            Map<Integer, InetSocketAddress> partitionedTopicAddr = new ConcurrentHashMap<>();
+            if (pTopicMeta.partitions <= 0) {
+                return CompletableFuture.completedFuture(partitionedTopicAddr);
+            }
+            // every worker looks up the next pending partition, so at most maxConcurrentLookups are in flight
+            AtomicInteger nextPartition = new AtomicInteger();
+            CompletableFuture<?>[] workers = new CompletableFuture<?>[Math.min(maxConcurrentLookups,
+                    pTopicMeta.partitions)];
+            for (int i = 0; i < workers.length; i++) {
+                workers[i] = lookupNextPartition(topicName, pTopicMeta.partitions, lookupCacheKey.listenerName,
+                        nextPartition, partitionedTopicAddr);
+            }
+            return CompletableFuture.allOf(workers).thenApply(ignore -> {
+                if (!partitionedTopicAddr.isEmpty()) {
+                    putPulsarTopic2Config(topicName, pTopicMeta.partitions);
+                }
+                return partitionedTopicAddr;
+            });
+        }).thenApply(partitionedTopicAddr -> partitionedTopicAddr.isEmpty() ? null : partitionedTopicAddr);
+    }
+
+    private CompletableFuture<Void> lookupNextPartition(TopicName topicName, int partitions, String listenerName,
+            AtomicInteger nextPartition, Map<Integer, InetSocketAddress> partitionedTopicAddr) {
+        int partition = nextPartition.getAndIncrement();
+        if (partition >= partitions) {
+            return CompletableFuture.completedFuture(null);
+        }
+        Backoff backoff = new Backoff(
+                100, TimeUnit.MILLISECONDS,
+                15, TimeUnit.SECONDS,
+                15, TimeUnit.SECONDS
+        );
+        CompletableFuture<InetSocketAddress> resultFuture = new CompletableFuture<>();
+        lookupBroker(topicName.getPartition(partition), backoff, listenerName, resultFuture);
+        return resultFuture.thenCompose(address -> {
+            if (address != null) {
+                partitionedTopicAddr.put(partition, address);
+            }
+            return lookupNextPartition(topicName, partitions, listenerName, nextPartition, partitionedTopicAddr);
+        });
     }
 
     /**
@@ -244,6 +280,9 @@ public class MQTopicManager extends TopicConfigManager implements NamespaceBundl
 
     @Override
     public void onLoad(NamespaceBundle bundle) {
+        if (this.brokerController.getDelayedMessageService() != null) {
+            this.brokerController.getDelayedMessageService().onBundleLoaded(bundle);
+        }
         // get new partitions owned by this pulsar service.
         pulsarService.getNamespaceService().getOwnedTopicListForNamespaceBundle(bundle)
                 .whenComplete((topics, ex) -> {
@@ -281,6 +320,9 @@ public class MQTopicManager extends TopicConfigManager implements NamespaceBundl
 
     @Override
     public void unLoad(NamespaceBundle bundle) {
+        if (this.brokerController.getDelayedMessageService() != null) {
+            this.brokerController.getDelayedMessageService().onBundleUnloaded(bundle);
+        }
         pulsarService.getNamespaceService().getOwnedTopicListForNamespaceBundle(bundle)
                 .whenComplete((topics, ex) -> {
                     if (ex == null) {
@@ -293,12 +335,12 @@ public class MQTopicManager extends TopicConfigManager implements NamespaceBundl
                                     TopicName.get(partitionedTopic.getPartitionedTopicName()));
                             int partitionIdx = partitionedTopic.getPartitionIndex();
                             //remove topic from lookup cache
-                            Map<Integer, InetSocketAddress> pTopicAddress = this.lookupCache
+                            Map<Integer, InetSocketAddress> pTopicAddress = this.lookupCache.synchronous()
                                     .getIfPresent(lookupKey);
                             if (pTopicAddress != null && !pTopicAddress.isEmpty()) {
                                 pTopicAddress.remove(partitionIdx);
                                 if (pTopicAddress.isEmpty()) {
-                                    this.lookupCache.invalidate(lookupKey);
+                                    this.lookupCache.synchronous().invalidate(lookupKey);
                                 }
                             }
 
@@ -309,6 +351,8 @@ public class MQTopicManager extends TopicConfigManager implements NamespaceBundl
                                     .removePulsarTopic(clientTopicName, partitionedTopic.getPartitionIndex());
 
                             removeReferenceProducer(topic);
+                            this.brokerController.getEntryCache().invalidate(topic);
+                            this.brokerController.getCursorManager().removeCursors(topic);
                         }
                     } else {
                         log.error("Failed to get owned topic list for "
@@ -0,0 +1,39 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.processor;
+
+import io.netty.channel.ChannelHandlerContext;
+import java.util.concurrent.CompletableFuture;
+import org.apache.rocketmq.remoting.netty.NettyRequestProcessor;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+
+/**
+ * Request processor which answers requests asynchronously.
+ *
+ * <p>The remoting server writes the response when the returned future completes,
+ * so the processor thread is released as soon as the request has been dispatched.
+ */
+public interface AsyncNettyRequestProcessor extends NettyRequestProcessor {
+
+    /**
+     * Process the request asynchronously.
+     *
+     * @param ctx channel handler context
+     * @param request request command
+     * @return future of the response, a null response means the processor has already answered the request
+     */
+    CompletableFuture<RemotingCommand> asyncProcessRequest(ChannelHandlerContext ctx, RemotingCommand request)
+            throws Exception;
+}
@@ -19,6 +19,7 @@ import lombok.extern.slf4j.Slf4j;
 import org.apache.rocketmq.broker.client.ClientChannelInfo;
 import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.constant.PermName;
+import org.apache.rocketmq.common.filter.ExpressionType;
 import org.apache.rocketmq.common.protocol.RequestCode;
 import org.apache.rocketmq.common.protocol.ResponseCode;
 import org.apache.rocketmq.common.protocol.body.CheckClientRequestBody;
@@ -27,8 +28,10 @@ import org.apache.rocketmq.common.protocol.header.UnregisterClientResponseHeader
 import org.apache.rocketmq.common.protocol.heartbeat.ConsumerData;
 import org.apache.rocketmq.common.protocol.heartbeat.HeartbeatData;
 import org.apache.rocketmq.common.protocol.heartbeat.ProducerData;
+import org.apache.rocketmq.common.protocol.heartbeat.SubscriptionData;
 import org.apache.rocketmq.common.subscription.SubscriptionGroupConfig;
 import org.apache.rocketmq.common.sysflag.TopicSysFlag;
+import org.apache.rocketmq.filter.FilterFactory;
 import org.apache.rocketmq.remoting.common.RemotingHelper;
 import org.apache.rocketmq.remoting.exception.RemotingCommandException;
 import org.apache.rocketmq.remoting.netty.NettyRequestProcessor;
@@ -172,7 +175,29 @@ public class ClientManageProcessor implements NettyRequestProcessor {
     public RemotingCommand checkClientConfig(ChannelHandlerContext ctx, RemotingCommand request) {
         final RemotingCommand response = RemotingCommand.createResponseCommand(null);
 
-        CheckClientRequestBody.decode(request.getBody(), CheckClientRequestBody.class);
+        CheckClientRequestBody requestBody = CheckClientRequestBody.decode(request.getBody(),
+                CheckClientRequestBody.class);
+        if (requestBody != null && requestBody.getSubscriptionData() != null) {
+            SubscriptionData subscriptionData = requestBody.getSubscriptionData();
+            if (!ExpressionType.isTagType(subscriptionData.getExpressionType())) {
+                if (!this.brokerController.getServerConfig().isEnablePropertyFilter()) {
+                    response.setCode(ResponseCode.SYSTEM_ERROR);
+                    response.setRemark("The broker does not support consumer to filter message by "
+                            + subscriptionData.getExpressionType());
+                    return response;
+                }
+                try {
+                    FilterFactory.INSTANCE.get(subscriptionData.getExpressionType())
+                            .compile(subscriptionData.getSubString());
+                } catch (Exception e) {
+                    log.warn("Client {}@{} filter message, but failed to compile expression! sub={}, error={}",
+                            requestBody.getClientId(), requestBody.getGroup(), subscriptionData, e.getMessage());
+                    response.setCode(ResponseCode.SUBSCRIPTION_PARSE_FAILED);
+                    response.setRemark(e.getMessage());
+                    return response;
+                }
+            }
+        }
 
         response.setCode(ResponseCode.SUCCESS);
         response.setRemark(null);
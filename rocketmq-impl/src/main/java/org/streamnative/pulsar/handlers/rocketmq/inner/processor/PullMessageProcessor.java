@@ -14,13 +14,17 @@
 
 package org.streamnative.pulsar.handlers.rocketmq.inner.processor;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
 import io.netty.channel.Channel;
 import io.netty.channel.ChannelFuture;
 import io.netty.channel.ChannelFutureListener;
 import io.netty.channel.ChannelHandlerContext;
-import java.nio.ByteBuffer;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.rocketmq.broker.client.ClientChannelInfo;
 import org.apache.rocketmq.broker.longpolling.PullRequest;
@@ -29,9 +33,9 @@ import org.apache.rocketmq.broker.mqtrace.ConsumeMessageHook;
 import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.TopicConfig;
 import org.apache.rocketmq.common.constant.PermName;
+import org.apache.rocketmq.common.filter.ExpressionType;
 import org.apache.rocketmq.common.filter.FilterAPI;
 import org.apache.rocketmq.common.help.FAQUrl;
-import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.protocol.ResponseCode;
 import org.apache.rocketmq.common.protocol.header.PullMessageRequestHeader;
 import org.apache.rocketmq.common.protocol.header.PullMessageResponseHeader;
@@ -39,11 +43,10 @@ import org.apache.rocketmq.common.protocol.heartbeat.MessageModel;
 import org.apache.rocketmq.common.protocol.heartbeat.SubscriptionData;
 import org.apache.rocketmq.common.protocol.topic.OffsetMovedEvent;
 import org.apache.rocketmq.common.subscription.SubscriptionGroupConfig;
-import org.apache.rocketmq.common.sysflag.MessageSysFlag;
 import org.apache.rocketmq.common.sysflag.PullSysFlag;
+import org.apache.rocketmq.filter.expression.Expression;
 import org.apache.rocketmq.remoting.common.RemotingHelper;
 import org.apache.rocketmq.remoting.exception.RemotingCommandException;
-import org.apache.rocketmq.remoting.netty.NettyRequestProcessor;
 import org.apache.rocketmq.remoting.netty.RequestTask;
 import org.apache.rocketmq.remoting.protocol.RemotingCommand;
 import org.apache.rocketmq.store.stats.BrokerStatsManager;
@@ -58,7 +61,7 @@ import org.streamnative.pulsar.handlers.rocketmq.inner.pulsar.PulsarMessageStore
  * Pull message processor.
  */
 @Slf4j
-public class PullMessageProcessor implements NettyRequestProcessor {
+public class PullMessageProcessor implements AsyncNettyRequestProcessor {
 
     private final RocketMQBrokerController brokerController;
     private List<ConsumeMessageHook> consumeMessageHookList;
@@ -85,6 +88,16 @@ public class PullMessageProcessor implements NettyRequestProcessor {
     @Override
     public RemotingCommand processRequest(final ChannelHandlerContext ctx,
             RemotingCommand request) throws RemotingCommandException {
+        try {
+            return this.asyncProcessRequest(ctx, request).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RemotingCommandException("process pull message request failed", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<RemotingCommand> asyncProcessRequest(final ChannelHandlerContext ctx,
+            RemotingCommand request) throws RemotingCommandException {
         final PullMessageRequestHeader requestHeader =
                 (PullMessageRequestHeader) request.decodeCommandCustomHeader(PullMessageRequestHeader.class);
         return this.processRequest(ctx.channel(), requestHeader, request, true);
@@ -95,11 +108,10 @@ public class PullMessageProcessor implements NettyRequestProcessor {
         return false;
     }
 
-    private RemotingCommand processRequest(final Channel channel, PullMessageRequestHeader requestHeader,
-            RemotingCommand request, boolean brokerAllowSuspend)
+    private CompletableFuture<RemotingCommand> processRequest(final Channel channel,
+            PullMessageRequestHeader requestHeader, RemotingCommand request, boolean brokerAllowSuspend)
             throws RemotingCommandException {
         RemotingCommand response = RemotingCommand.createResponseCommand(PullMessageResponseHeader.class);
-        final PullMessageResponseHeader responseHeader = (PullMessageResponseHeader) response.readCustomHeader();
         response.setOpaque(request.getOpaque());
 
         if (log.isDebugEnabled()) {
@@ -110,7 +122,7 @@ public class PullMessageProcessor implements NettyRequestProcessor {
             response.setCode(ResponseCode.NO_PERMISSION);
             response.setRemark(String.format("the broker[" //+ this.brokerController.getBrokerConfig().getBrokerIP1()
                     + "] pulling message is forbidden"));
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         SubscriptionGroupConfig subscriptionGroupConfig =
@@ -121,21 +133,17 @@ public class PullMessageProcessor implements NettyRequestProcessor {
             response.setRemark(
                     String.format("subscription group [%s] does not exist, %s", requestHeader.getConsumerGroup(),
                             FAQUrl.suggestTodo(FAQUrl.SUBSCRIPTION_GROUP_NOT_EXIST)));
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         if (!subscriptionGroupConfig.isConsumeEnable()) {
             response.setCode(ResponseCode.NO_PERMISSION);
             response.setRemark("subscription group no permission, " + requestHeader.getConsumerGroup());
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
-        final boolean hasSuspendFlag = PullSysFlag.hasSuspendFlag(requestHeader.getSysFlag());
-        final boolean hasCommitOffsetFlag = PullSysFlag.hasCommitOffsetFlag(requestHeader.getSysFlag());
         final boolean hasSubscriptionFlag = PullSysFlag.hasSubscriptionFlag(requestHeader.getSysFlag());
 
-        final long suspendTimeoutMillisLong = hasSuspendFlag ? requestHeader.getSuspendTimeoutMillis() : 0;
-
         TopicConfig topicConfig = this.brokerController.getTopicConfigManager()
                 .selectTopicConfig(requestHeader.getTopic());
         if (null == topicConfig) {
@@ -144,13 +152,13 @@ public class PullMessageProcessor implements NettyRequestProcessor {
             response.setCode(ResponseCode.TOPIC_NOT_EXIST);
             response.setRemark(String.format("topic[%s] not exist, apply first please! %s", requestHeader.getTopic(),
                     FAQUrl.suggestTodo(FAQUrl.APPLY_TOPIC_URL)));
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         if (!PermName.isReadable(topicConfig.getPerm())) {
             response.setCode(ResponseCode.NO_PERMISSION);
             response.setRemark("the topic[" + requestHeader.getTopic() + "] pulling message is forbidden");
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         if (requestHeader.getQueueId() < 0 || requestHeader.getQueueId() >= topicConfig.getReadQueueNums()) {
@@ -161,7 +169,7 @@ public class PullMessageProcessor implements NettyRequestProcessor {
             log.warn(errorInfo);
             response.setCode(ResponseCode.SYSTEM_ERROR);
             response.setRemark(errorInfo);
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         SubscriptionData subscriptionData = null;
@@ -175,7 +183,7 @@ public class PullMessageProcessor implements NettyRequestProcessor {
                         requestHeader.getConsumerGroup());
                 response.setCode(ResponseCode.SUBSCRIPTION_PARSE_FAILED);
                 response.setRemark("parse the consumer's subscription failed");
-                return response;
+                return CompletableFuture.completedFuture(response);
             }
         } else {
             ConsumerGroupInfo consumerGroupInfo =
@@ -185,7 +193,7 @@ public class PullMessageProcessor implements NettyRequestProcessor {
                 response.setCode(ResponseCode.SUBSCRIPTION_NOT_EXIST);
                 response.setRemark(
                         "the consumer's group info not exist" + FAQUrl.suggestTodo(FAQUrl.SAME_GROUP_DIFFERENT_TOPIC));
-                return response;
+                return CompletableFuture.completedFuture(response);
             }
 
             if (!subscriptionGroupConfig.isConsumeBroadcastEnable()
@@ -193,7 +201,7 @@ public class PullMessageProcessor implements NettyRequestProcessor {
                 response.setCode(ResponseCode.NO_PERMISSION);
                 response.setRemark("the consumer group[" + requestHeader.getConsumerGroup()
                         + "] can not consume by broadcast way");
-                return response;
+                return CompletableFuture.completedFuture(response);
             }
 
             subscriptionData = consumerGroupInfo.findSubscriptionData(requestHeader.getTopic());
@@ -203,7 +211,7 @@ public class PullMessageProcessor implements NettyRequestProcessor {
                 response.setCode(ResponseCode.SUBSCRIPTION_NOT_EXIST);
                 response.setRemark("the consumer's subscription not exist" + FAQUrl
                         .suggestTodo(FAQUrl.SAME_GROUP_DIFFERENT_TOPIC));
-                return response;
+                return CompletableFuture.completedFuture(response);
             }
 
             if (subscriptionData.getSubVersion() < requestHeader.getSubVersion()) {
@@ -211,11 +219,32 @@ public class PullMessageProcessor implements NettyRequestProcessor {
                         subscriptionData.getSubString());
                 response.setCode(ResponseCode.SUBSCRIPTION_NOT_LATEST);
                 response.setRemark("the consumer's subscription not latest");
-                return response;
+                return CompletableFuture.completedFuture(response);
             }
         }
 
-        RopMessageFilter messageFilter = new RopMessageFilter(subscriptionData);
+        Expression expression = null;
+        if (!ExpressionType.isTagType(subscriptionData.getExpressionType())) {
+            if (!this.brokerController.getServerConfig().isEnablePropertyFilter()) {
+                response.setCode(ResponseCode.SYSTEM_ERROR);
+                response.setRemark("The broker does not support consumer to filter message by "
+                        + subscriptionData.getExpressionType());
+                return CompletableFuture.completedFuture(response);
+            }
+            try {
+                // compiled once per subscription version, and evaluated against every message before it's copied
+                expression = this.brokerController.getConsumerFilterManager().get(requestHeader.getConsumerGroup(),
+                        requestHeader.getTopic(), requestHeader.getSubVersion(), subscriptionData.getExpressionType(),
+                        subscriptionData.getSubString());
+            } catch (Exception e) {
+                log.warn("Parse the consumer's subscription[{}] failed, group: {}", subscriptionData.getSubString(),
+                        requestHeader.getConsumerGroup(), e);
+                response.setCode(ResponseCode.SUBSCRIPTION_PARSE_FAILED);
+                response.setRemark("parse the consumer's subscription failed");
+                return CompletableFuture.completedFuture(response);
+            }
+        }
+        RopMessageFilter messageFilter = new RopMessageFilter(subscriptionData, expression);
         // Obtain and process the received message data from the message store.
         PulsarMessageStore serverCnxMsgStore = this
                 .getServerCnxMsgStore(channel, request, requestHeader.getConsumerGroup());
@@ -225,11 +254,45 @@ public class PullMessageProcessor implements NettyRequestProcessor {
         if (null == serverCnxMsgStore) {
             response.setCode(ResponseCode.PULL_RETRY_IMMEDIATELY);
             response.setRemark("store getMessage return null");
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
-        final RopGetMessageResult ropGetMessageResult = serverCnxMsgStore
+        final SubscriptionData pullSubscriptionData = subscriptionData;
+        // the entries are read asynchronously, the response is built on the pull message executor
+        CompletableFuture<RopGetMessageResult> getMessageFuture = serverCnxMsgStore
                 .getMessage(request, requestHeader, messageFilter);
+        CompletableFuture<RemotingCommand> responseFuture = getMessageFuture.thenApplyAsync(ropGetMessageResult -> {
+            try {
+                return this.processGetMessageResult(channel, requestHeader, request, response, ropGetMessageResult,
+                        subscriptionGroupConfig, pullSubscriptionData, brokerAllowSuspend);
+            } finally {
+                // a no-op if the messages are already sent, otherwise the entry slices are released here
+                if (ropGetMessageResult != null) {
+                    ropGetMessageResult.release();
+                }
+            }
+        }, this.brokerController.getPullMessageExecutor());
+        // the bounded pull message executor may reject the task, the result is released as it's never processed
+        responseFuture.whenComplete((ignore, e) -> {
+            if (e != null) {
+                getMessageFuture.thenAccept(ropGetMessageResult -> {
+                    if (ropGetMessageResult != null) {
+                        ropGetMessageResult.release();
+                    }
+                });
+            }
+        });
+        return responseFuture;
+    }
+
+    private RemotingCommand processGetMessageResult(final Channel channel,
+            final PullMessageRequestHeader requestHeader, final RemotingCommand request, RemotingCommand response,
+            final RopGetMessageResult ropGetMessageResult, final SubscriptionGroupConfig subscriptionGroupConfig,
+            final SubscriptionData subscriptionData, final boolean brokerAllowSuspend) {
+        final PullMessageResponseHeader responseHeader = (PullMessageResponseHeader) response.readCustomHeader();
+        final boolean hasSuspendFlag = PullSysFlag.hasSuspendFlag(requestHeader.getSysFlag());
+        final boolean hasCommitOffsetFlag = PullSysFlag.hasCommitOffsetFlag(requestHeader.getSysFlag());
+        final long suspendTimeoutMillisLong = hasSuspendFlag ? requestHeader.getSuspendTimeoutMillis() : 0;
 
         if (ropGetMessageResult != null) {
             response.setRemark(ropGetMessageResult.getStatus().name());
@@ -345,12 +408,18 @@ public class PullMessageProcessor implements NettyRequestProcessor {
                             .incBrokerGetNums(ropGetMessageResult.getMessageCount());
 
                     final long beginTimeMills = System.currentTimeMillis();
-                    final byte[] r = this.readGetMessageResult(ropGetMessageResult, requestHeader.getConsumerGroup(),
-                            requestHeader.getTopic(), requestHeader.getQueueId());
-                    this.brokerController.getBrokerStatsManager().incGroupGetLatency(requestHeader.getConsumerGroup(),
-                            requestHeader.getTopic(), requestHeader.getQueueId(),
-                            (int) (System.currentTimeMillis() - beginTimeMills));
-                    response.setBody(r);
+                    if (this.brokerController.getServerConfig().isTransferMsgByHeap()) {
+                        final byte[] r = this.readGetMessageResult(ropGetMessageResult,
+                                requestHeader.getConsumerGroup(), requestHeader.getTopic(),
+                                requestHeader.getQueueId());
+                        response.setBody(r);
+                    } else {
+                        this.transferMsgByZeroCopy(channel, response, ropGetMessageResult);
+                        response = null;
+                    }
+                    this.brokerController.getBrokerStatsManager()
+                            .incGroupGetLatency(requestHeader.getConsumerGroup(), requestHeader.getTopic(),
+                                    requestHeader.getQueueId(), (int) (System.currentTimeMillis() - beginTimeMills));
                     break;
                 case ResponseCode.PULL_NOT_FOUND:
                     if (brokerAllowSuspend && hasSuspendFlag) {
@@ -416,33 +485,48 @@ public class PullMessageProcessor implements NettyRequestProcessor {
     private byte[] readGetMessageResult(final RopGetMessageResult getMessageResult, final String group,
             final String topic,
             final int queueId) {
-        final ByteBuffer byteBuffer = ByteBuffer.allocate(getMessageResult.getBufferTotalSize());
+        final byte[] body = new byte[getMessageResult.getBufferTotalSize()];
+        try {
+            int position = 0;
+            List<ByteBuf> messageBufferList = getMessageResult.getMessageBufferList();
+            for (ByteBuf bb : messageBufferList) {
+                int length = bb.readableBytes();
+                bb.getBytes(bb.readerIndex(), body, position, length);
+                position += length;
+            }
+        } finally {
+            getMessageResult.release();
+        }
+        return body;
+    }
 
-        long storeTimestamp = 0;
+    /**
+     * Write the response header and the message buffers to the channel without copying the messages.
+     * The message buffers are released once the write completes.
+     */
+    private void transferMsgByZeroCopy(final Channel channel, final RemotingCommand response,
+            final RopGetMessageResult getMessageResult) {
+        CompositeByteBuf responseBuf = channel.alloc().compositeBuffer(getMessageResult.getMessageCount() * 2 + 1);
         try {
-            List<ByteBuffer> messageBufferList = getMessageResult.getMessageBufferList();
-            for (ByteBuffer bb : messageBufferList) {
-
-                byteBuffer.put(bb);
-                int sysFlag = bb.getInt(MessageDecoder.SYSFLAG_POSITION);
-//                bornhost has the IPv4 ip if the MessageSysFlag.BORNHOST_V6_FLAG bit of sysFlag is 0
-//                IPv4 host = ip(4 byte) + port(4 byte); IPv6 host = ip(16 byte) + port(4 byte)
-                int bornhostLength = (sysFlag & MessageSysFlag.BORNHOST_V6_FLAG) == 0 ? 8 : 20;
-                int msgStoreTimePos = 4 // 1 TOTALSIZE
-                        + 4 // 2 MAGICCODE
-                        + 4 // 3 BODYCRC
-                        + 4 // 4 QUEUEID
-                        + 4 // 5 FLAG
-                        + 8 // 6 QUEUEOFFSET
-                        + 8 // 7 PHYSICALOFFSET
-                        + 4 // 8 SYSFLAG
-                        + 8 // 9 BORNTIMESTAMP
-                        + bornhostLength; // 10 BORNHOST
-                storeTimestamp = bb.getLong(msgStoreTimePos);
+            response.markResponseType();
+            responseBuf.addComponent(true,
+                    Unpooled.wrappedBuffer(response.encodeHeader(getMessageResult.getBufferTotalSize())));
+            for (ByteBuf bb : getMessageResult.getMessageBufferList()) {
+                responseBuf.addFlattenedComponents(true, bb.retain());
             }
+        } catch (Throwable e) {
+            log.error("build zero copy pull response failed.", e);
+            responseBuf.release();
+            return;
         } finally {
+            getMessageResult.release();
         }
-        return byteBuffer.array();
+
+        channel.writeAndFlush(responseBuf).addListener((ChannelFutureListener) future -> {
+            if (!future.isSuccess()) {
+                log.error("transfer many message by zero copy failed, {}", channel.remoteAddress(), future.cause());
+            }
+        });
     }
 
     private void generateOffsetMovedEvent(final OffsetMovedEvent event) {
@@ -482,30 +566,14 @@ public class PullMessageProcessor implements NettyRequestProcessor {
                     final PullMessageRequestHeader requestHeader =
                             (PullMessageRequestHeader) request
                                     .decodeCommandCustomHeader(PullMessageRequestHeader.class);
-                    final RemotingCommand response = PullMessageProcessor.this
-                            .processRequest(channel, requestHeader, request, false);
-
-                    if (response != null) {
-                        response.setOpaque(request.getOpaque());
-                        response.markResponseType();
-                        try {
-                            channel.writeAndFlush(response).addListener(new ChannelFutureListener() {
-                                @Override
-                                public void operationComplete(ChannelFuture future) throws Exception {
-                                    if (!future.isSuccess()) {
-                                        log.error("processRequestWrapper response to {} failed",
-                                                future.channel().remoteAddress(), future.cause());
-                                        log.error(request.toString());
-                                        log.error(response.toString());
-                                    }
+                    PullMessageProcessor.this.processRequest(channel, requestHeader, request, false)
+                            .whenComplete((response, e) -> {
+                                if (e != null) {
+                                    log.error("excuteRequestWhenWakeup process request failed", e);
+                                } else {
+                                    writeWakeupResponse(channel, request, response);
                                 }
                             });
-                        } catch (Throwable e) {
-                            log.error("processRequestWrapper process request over, but response failed", e);
-                            log.error(request.toString());
-                            log.error(response.toString());
-                        }
-                    }
                 } catch (RemotingCommandException e1) {
                     log.error("excuteRequestWhenWakeup run", e1);
                 }
@@ -514,6 +582,31 @@ public class PullMessageProcessor implements NettyRequestProcessor {
         this.brokerController.getPullMessageExecutor().submit(new RequestTask(run, channel, request));
     }
 
+    private void writeWakeupResponse(final Channel channel, final RemotingCommand request,
+            final RemotingCommand response) {
+        if (response != null) {
+            response.setOpaque(request.getOpaque());
+            response.markResponseType();
+            try {
+                channel.writeAndFlush(response).addListener(new ChannelFutureListener() {
+                    @Override
+                    public void operationComplete(ChannelFuture future) throws Exception {
+                        if (!future.isSuccess()) {
+                            log.error("processRequestWrapper response to {} failed",
+                                    future.channel().remoteAddress(), future.cause());
+                            log.error(request.toString());
+                            log.error(response.toString());
+                        }
+                    }
+                });
+            } catch (Throwable e) {
+                log.error("processRequestWrapper process request over, but response failed", e);
+                log.error(request.toString());
+                log.error(response.toString());
+            }
+        }
+    }
+
     public void registerConsumeMessageHook(List<ConsumeMessageHook> sendMessageHookList) {
         this.consumeMessageHookList = sendMessageHookList;
     }
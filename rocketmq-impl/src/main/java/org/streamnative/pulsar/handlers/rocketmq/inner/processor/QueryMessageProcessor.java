@@ -23,10 +23,15 @@ import com.github.benmanes.caffeine.cache.Caffeine;
 import com.github.benmanes.caffeine.cache.RemovalCause;
 import io.netty.buffer.ByteBuf;
 import io.netty.channel.ChannelHandlerContext;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import org.apache.bookkeeper.mledger.AsyncCallbacks;
@@ -41,20 +46,24 @@ import org.apache.pulsar.client.impl.ClientCnx;
 import org.apache.pulsar.client.impl.MessageIdImpl;
 import org.apache.pulsar.common.api.proto.PulsarApi.CompressionType;
 import org.apache.pulsar.common.api.proto.PulsarApi.MessageMetadata;
+import org.apache.pulsar.common.api.proto.PulsarApi.SingleMessageMetadata;
 import org.apache.pulsar.common.compression.CompressionCodec;
 import org.apache.pulsar.common.compression.CompressionCodecProvider;
 import org.apache.pulsar.common.protocol.Commands;
+import org.apache.rocketmq.common.MixAll;
 import org.apache.rocketmq.common.constant.LoggerName;
 import org.apache.rocketmq.common.message.MessageDecoder;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.protocol.RequestCode;
 import org.apache.rocketmq.common.protocol.ResponseCode;
+import org.apache.rocketmq.common.protocol.header.QueryMessageRequestHeader;
+import org.apache.rocketmq.common.protocol.header.QueryMessageResponseHeader;
 import org.apache.rocketmq.common.protocol.header.ViewMessageRequestHeader;
 import org.apache.rocketmq.logging.InternalLogger;
 import org.apache.rocketmq.logging.InternalLoggerFactory;
 import org.apache.rocketmq.remoting.exception.RemotingCommandException;
-import org.apache.rocketmq.remoting.netty.NettyRequestProcessor;
 import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.apache.rocketmq.store.index.QueryOffsetResult;
 import org.streamnative.pulsar.handlers.rocketmq.inner.RocketMQBrokerController;
 import org.streamnative.pulsar.handlers.rocketmq.inner.format.RopEntryFormatter;
 import org.streamnative.pulsar.handlers.rocketmq.utils.CommonUtils;
@@ -63,7 +72,7 @@ import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
 /**
  * Query message processor.
  */
-public class QueryMessageProcessor implements NettyRequestProcessor {
+public class QueryMessageProcessor implements AsyncNettyRequestProcessor {
 
     private static final InternalLogger log = InternalLoggerFactory.getLogger(LoggerName.BROKER_LOGGER_NAME);
     protected final AsyncLoadingCache<String, ManagedLedger> ledgerCache;
@@ -71,6 +80,7 @@ public class QueryMessageProcessor implements NettyRequestProcessor {
     private final RopEntryFormatter entryFormatter = new RopEntryFormatter();
 
     private static final String queryMessageLedgerName = "queryMessageProcessor_ledger";
+    private static final long QUERY_MESSAGE_TIMEOUT_MS = 5 * 1000L;
 
     public QueryMessageProcessor(final RocketMQBrokerController brokerController) {
         this.brokerController = brokerController;
@@ -95,16 +105,26 @@ public class QueryMessageProcessor implements NettyRequestProcessor {
     @Override
     public RemotingCommand processRequest(ChannelHandlerContext ctx, RemotingCommand request)
             throws RemotingCommandException {
+        try {
+            return this.asyncProcessRequest(ctx, request).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RemotingCommandException("process query message request failed", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<RemotingCommand> asyncProcessRequest(ChannelHandlerContext ctx,
+            RemotingCommand request) throws RemotingCommandException {
         switch (request.getCode()) {
             case RequestCode.QUERY_MESSAGE:
                 return this.queryMessage(ctx, request);
             case RequestCode.VIEW_MESSAGE_BY_ID:
-                return this.viewMessageById(ctx, request);
+                return CompletableFuture.completedFuture(this.viewMessageById(ctx, request));
             default:
                 break;
         }
 
-        return null;
+        return CompletableFuture.completedFuture(null);
     }
 
     @Override
@@ -112,58 +132,120 @@ public class QueryMessageProcessor implements NettyRequestProcessor {
         return false;
     }
 
-    public RemotingCommand queryMessage(ChannelHandlerContext ctx, RemotingCommand request)
+    /**
+     * Query the messages of the key without blocking the remoting thread, the response is sent with the messages
+     * read within {@link #QUERY_MESSAGE_TIMEOUT_MS}.
+     */
+    public CompletableFuture<RemotingCommand> queryMessage(ChannelHandlerContext ctx, RemotingCommand request)
             throws RemotingCommandException {
-//        final RemotingCommand response =
-//                RemotingCommand.createResponseCommand(QueryMessageResponseHeader.class);
-//        final QueryMessageResponseHeader responseHeader =
-//                (QueryMessageResponseHeader) response.readCustomHeader();
-//        final QueryMessageRequestHeader requestHeader =
-//                (QueryMessageRequestHeader) request
-//                        .decodeCommandCustomHeader(QueryMessageRequestHeader.class);
-//
-//        response.setOpaque(request.getOpaque());
-//
-//        String isUniqueKey = request.getExtFields().get(MixAll.UNIQUE_MSG_QUERY_FLAG);
-//        if (isUniqueKey != null && isUniqueKey.equals("true")) {
-//            requestHeader.setMaxNum(this.brokerController.getServerConfig().getDefaultQueryMaxNum());
-//        }
-//
-//        final QueryMessageResult queryMessageResult = null;
-//                /*TODO this.brokerController.getMessageStore().queryMessage(requestHeader.getTopic(),
-//                        requestHeader.getKey(), requestHeader.getMaxNum(), requestHeader.getBeginTimestamp(),
-//                        requestHeader.getEndTimestamp())*/
-//
-//        responseHeader.setIndexLastUpdatePhyoffset(queryMessageResult.getIndexLastUpdatePhyoffset());
-//        responseHeader.setIndexLastUpdateTimestamp(queryMessageResult.getIndexLastUpdateTimestamp());
-//
-//        if (queryMessageResult.getBufferTotalSize() > 0) {
-//            response.setCode(ResponseCode.SUCCESS);
-//            response.setRemark(null);
-//
-//            try {
-//                FileRegion fileRegion =
-//                        new QueryMessageTransfer(response.encodeHeader(queryMessageResult
-//                                .getBufferTotalSize()), queryMessageResult);
-//                ctx.channel().writeAndFlush(fileRegion).addListener(new ChannelFutureListener() {
-//                    @Override
-//                    public void operationComplete(ChannelFuture future) throws Exception {
-//                        queryMessageResult.release();
-//                        if (!future.isSuccess()) {
-//                            log.error("transfer query message by page cache failed, ", future.cause());
-//                        }
-//                    }
-//                });
-//            } catch (Throwable e) {
-//                log.error("", e);
-//                queryMessageResult.release();
-//            }
-//            return null;
-//        }
-//        response.setCode(ResponseCode.QUERY_NOT_FOUND);
-//        response.setRemark("can not find message, maybe time range not correct");
-//        return response;
-        return null;
+        final RemotingCommand response =
+                RemotingCommand.createResponseCommand(QueryMessageResponseHeader.class);
+        final QueryMessageResponseHeader responseHeader =
+                (QueryMessageResponseHeader) response.readCustomHeader();
+        final QueryMessageRequestHeader requestHeader =
+                (QueryMessageRequestHeader) request
+                        .decodeCommandCustomHeader(QueryMessageRequestHeader.class);
+
+        response.setOpaque(request.getOpaque());
+
+        String isUniqueKey = request.getExtFields().get(MixAll.UNIQUE_MSG_QUERY_FLAG);
+        if (isUniqueKey != null && isUniqueKey.equals("true")) {
+            requestHeader.setMaxNum(this.brokerController.getServerConfig().getDefaultQueryMaxNum());
+        }
+
+        final QueryOffsetResult queryOffsetResult = this.brokerController.getKeyIndexService()
+                .queryOffset(requestHeader.getTopic(), requestHeader.getKey(), requestHeader.getMaxNum(),
+                        requestHeader.getBeginTimestamp(), requestHeader.getEndTimestamp());
+
+        responseHeader.setIndexLastUpdatePhyoffset(queryOffsetResult.getIndexLastUpdatePhyoffset());
+        responseHeader.setIndexLastUpdateTimestamp(queryOffsetResult.getIndexLastUpdateTimestamp());
+
+        // read the messages concurrently, the client filters out the messages of conflicting hash
+        List<CompletableFuture<byte[]>> messageFutures = new ArrayList<>(queryOffsetResult.getPhyOffsets().size());
+        for (long offset : queryOffsetResult.getPhyOffsets()) {
+            messageFutures.add(readMessage(offset));
+        }
+        CompletableFuture<RemotingCommand> responseFuture = new CompletableFuture<>();
+        Runnable respond = () -> {
+            if (!responseFuture.isDone()) {
+                responseFuture.complete(buildQueryResponse(response, requestHeader.getKey(), messageFutures));
+            }
+        };
+        ScheduledFuture<?> timeout = this.brokerController.getScheduledExecutorService()
+                .schedule(respond, QUERY_MESSAGE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+        CompletableFuture.allOf(messageFutures.toArray(new CompletableFuture[0]))
+                .whenComplete((ignore, e) -> respond.run());
+        return responseFuture.whenComplete((ignore, e) -> timeout.cancel(false));
+    }
+
+    /**
+     * Build the response with the messages read so far, the messages not read yet are left out.
+     */
+    private RemotingCommand buildQueryResponse(RemotingCommand response, String key,
+            List<CompletableFuture<byte[]>> messageFutures) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (CompletableFuture<byte[]> messageFuture : messageFutures) {
+            if (!messageFuture.isDone()) {
+                log.warn("query message of key [{}] timed out", key);
+                continue;
+            }
+            try {
+                byte[] message = messageFuture.getNow(null);
+                if (message != null) {
+                    body.write(message, 0, message.length);
+                }
+            } catch (CompletionException e) {
+                log.warn("query message of key [{}] has exception e = {}", key, e.getCause());
+            }
+        }
+
+        if (body.size() > 0) {
+            response.setCode(ResponseCode.SUCCESS);
+            response.setRemark(null);
+            response.setBody(body.toByteArray());
+            return response;
+        }
+        response.setCode(ResponseCode.QUERY_NOT_FOUND);
+        response.setRemark("can not find message, maybe time range not correct");
+        return response;
+    }
+
+    /**
+     * Read the message of the offset.
+     *
+     * @return future of the encoded message, null if the message can't be decoded
+     */
+    private CompletableFuture<byte[]> readMessage(long offset) {
+        MessageIdImpl messageId = MessageIdUtils.getMessageId(offset);
+        return ledgerCache.get(queryMessageLedgerName).thenCompose(managedLedger -> {
+            CompletableFuture<Entry> future = new CompletableFuture<>();
+            ((ManagedLedgerImpl) managedLedger).asyncReadEntry(new PositionImpl(messageId.getLedgerId(),
+                    messageId.getEntryId()), new AsyncCallbacks.ReadEntryCallback() {
+                @Override
+                public void readEntryFailed(ManagedLedgerException exception, Object ctx) {
+                    future.completeExceptionally(exception);
+                }
+
+                @Override
+                public void readEntryComplete(Entry entry, Object ctx) {
+                    future.complete(entry);
+                }
+            }, null);
+            return future;
+        }).thenApply(entry -> {
+            try {
+                ByteBuffer msgBuf = getMessage(messageId, entry.getDataBuffer());
+                if (msgBuf == null) {
+                    return null;
+                }
+                return MessageDecoder.encode(CommonUtils.decode(msgBuf, messageId, true, false), false);
+            } catch (Exception e) {
+                log.error("Decode or encode msg has error! {}", e);
+                return null;
+            } finally {
+                entry.release();
+            }
+        });
     }
 
     /**
@@ -311,6 +393,9 @@ public class QueryMessageProcessor implements NettyRequestProcessor {
                 }
 
                 if (uncompressedPayload != null) {
+                    if (msgMetadata.hasNumMessagesInBatch()) {
+                        return getBatchMessage(messageId, msgMetadata.getNumMessagesInBatch(), uncompressedPayload);
+                    }
                     return uncompressedPayload.nioBuffer();
                 }
             } catch (Throwable t) {
@@ -320,6 +405,28 @@ public class QueryMessageProcessor implements NettyRequestProcessor {
         return null;
     }
 
+    private ByteBuffer getBatchMessage(MessageIdImpl messageId, int batchSize, ByteBuf uncompressedPayload)
+            throws IOException {
+        int batchIndex = MessageIdUtils.getBatchIndex(messageId);
+        for (int i = 0; i <= batchIndex && i < batchSize; i++) {
+            SingleMessageMetadata.Builder singleMessageMetadataBuilder = SingleMessageMetadata.newBuilder();
+            ByteBuf singleMessagePayload = Commands.deSerializeSingleMessageInBatch(uncompressedPayload,
+                    singleMessageMetadataBuilder, i, batchSize);
+            try {
+                if (i == batchIndex) {
+                    ByteBuffer msgBuf = ByteBuffer.allocate(singleMessagePayload.readableBytes());
+                    singleMessagePayload.readBytes(msgBuf);
+                    msgBuf.flip();
+                    return msgBuf;
+                }
+            } finally {
+                singleMessagePayload.release();
+                singleMessageMetadataBuilder.recycle();
+            }
+        }
+        return null;
+    }
+
     private ByteBuf uncompressPayloadIfNeeded(MessageIdImpl messageId, MessageMetadata msgMetadata, ByteBuf payload,
             boolean checkMaxMessageSize) {
         CompressionType compressionType = msgMetadata.getCompression();
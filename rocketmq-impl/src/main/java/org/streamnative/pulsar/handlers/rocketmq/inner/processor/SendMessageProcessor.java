@@ -17,6 +17,8 @@ package org.streamnative.pulsar.handlers.rocketmq.inner.processor;
 import io.netty.channel.ChannelHandlerContext;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.rocketmq.broker.mqtrace.ConsumeMessageContext;
 import org.apache.rocketmq.broker.mqtrace.ConsumeMessageHook;
@@ -43,7 +45,6 @@ import org.apache.rocketmq.common.subscription.SubscriptionGroupConfig;
 import org.apache.rocketmq.common.sysflag.MessageSysFlag;
 import org.apache.rocketmq.common.sysflag.TopicSysFlag;
 import org.apache.rocketmq.remoting.exception.RemotingCommandException;
-import org.apache.rocketmq.remoting.netty.NettyRequestProcessor;
 import org.apache.rocketmq.remoting.protocol.RemotingCommand;
 import org.apache.rocketmq.store.MessageExtBrokerInner;
 import org.apache.rocketmq.store.PutMessageResult;
@@ -56,7 +57,7 @@ import org.streamnative.pulsar.handlers.rocketmq.utils.RocketMQTopic;
  * Send message processor.
  */
 @Slf4j
-public class SendMessageProcessor extends AbstractSendMessageProcessor implements NettyRequestProcessor {
+public class SendMessageProcessor extends AbstractSendMessageProcessor implements AsyncNettyRequestProcessor {
 
     private List<ConsumeMessageHook> consumeMessageHookList;
 
@@ -67,38 +68,53 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
     @Override
     public RemotingCommand processRequest(ChannelHandlerContext ctx,
             RemotingCommand request) throws RemotingCommandException {
-        SendMessageContext mqtraceContext;
+        try {
+            return this.asyncProcessRequest(ctx, request).get();
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RemotingCommandException("process send message request failed", e);
+        }
+    }
+
+    @Override
+    public CompletableFuture<RemotingCommand> asyncProcessRequest(ChannelHandlerContext ctx,
+            RemotingCommand request) throws RemotingCommandException {
+        final SendMessageContext mqtraceContext;
         switch (request.getCode()) {
             case RequestCode.CONSUMER_SEND_MSG_BACK:
                 return this.consumerSendMsgBack(ctx, request);
             default:
                 SendMessageRequestHeader requestHeader = parseRequestHeader(request);
                 if (requestHeader == null) {
-                    return null;
+                    return CompletableFuture.completedFuture(null);
                 }
 
                 mqtraceContext = buildMsgContext(ctx, requestHeader);
                 this.executeSendMessageHookBefore(ctx, request, mqtraceContext);
 
-                RemotingCommand response;
+                CompletableFuture<RemotingCommand> responseFuture;
                 if (requestHeader.isBatch()) {
-                    response = this.sendBatchMessage(ctx, request, mqtraceContext, requestHeader);
+                    responseFuture = this.sendBatchMessage(ctx, request, mqtraceContext, requestHeader);
                 } else {
-                    response = this.sendMessage(ctx, request, mqtraceContext, requestHeader);
+                    responseFuture = this.sendMessage(ctx, request, mqtraceContext, requestHeader);
                 }
 
-                this.executeSendMessageHookAfter(response, mqtraceContext);
-                return response;
+                return responseFuture.thenApply(response -> {
+                    this.executeSendMessageHookAfter(response, mqtraceContext);
+                    return response;
+                });
         }
     }
 
+    /**
+     * Reject the sends quickly when the in-flight publish bytes of the broker reach the hard limit.
+     */
     @Override
     public boolean rejectRequest() {
-        return false;
+        return this.brokerController.getPublishThrottler().isPublishBufferFull();
     }
 
-    private RemotingCommand consumerSendMsgBack(final ChannelHandlerContext ctx, final RemotingCommand request)
-            throws RemotingCommandException {
+    private CompletableFuture<RemotingCommand> consumerSendMsgBack(final ChannelHandlerContext ctx,
+            final RemotingCommand request) throws RemotingCommandException {
         final RemotingCommand response = RemotingCommand.createResponseCommand(null);
         final ConsumerSendMsgBackRequestHeader requestHeader =
                 (ConsumerSendMsgBackRequestHeader) request
@@ -124,20 +140,20 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
             response.setCode(ResponseCode.SUBSCRIPTION_GROUP_NOT_EXIST);
             response.setRemark("subscription group not exist, " + requestHeader.getGroup() + " "
                     + FAQUrl.suggestTodo(FAQUrl.SUBSCRIPTION_GROUP_NOT_EXIST));
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         if (!PermName.isWriteable(this.brokerController.getServerConfig().getBrokerPermission())) {
             response.setCode(ResponseCode.NO_PERMISSION);
             response.setRemark("the broker[" //+ this.brokerController.getBrokerConfig().getBrokerIP1()
                     + "] sending message is forbidden");
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         if (subscriptionGroupConfig.getRetryQueueNums() <= 0) {
             response.setCode(ResponseCode.SUCCESS);
             response.setRemark(null);
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         String newTopic = MixAll.getRetryTopic(requestHeader.getGroup());
@@ -155,13 +171,13 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         if (null == topicConfig) {
             response.setCode(ResponseCode.SYSTEM_ERROR);
             response.setRemark("topic[" + newTopic + "] not exist");
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         if (!PermName.isWriteable(topicConfig.getPerm())) {
             response.setCode(ResponseCode.NO_PERMISSION);
             response.setRemark(String.format("the topic[%s] sending message is forbidden", newTopic));
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         MessageExt msgExt = this.getServerCnxMsgStore(ctx, requestHeader.getGroup())
@@ -174,7 +190,7 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         if (null == msgExt) {
             response.setCode(ResponseCode.SYSTEM_ERROR);
             response.setRemark("look message by offset failed, " + requestHeader.getOffset());
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         final String retryTopic = msgExt.getProperty(MessageConst.PROPERTY_RETRY_TOPIC);
@@ -202,7 +218,7 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
             if (null == topicConfig) {
                 response.setCode(ResponseCode.SYSTEM_ERROR);
                 response.setRemark("topic[" + newTopic + "] not exist");
-                return response;
+                return CompletableFuture.completedFuture(response);
             }
         } else {
             if (0 == delayLevel) {
@@ -230,35 +246,39 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         String originMsgId = MessageAccessor.getOriginMessageId(msgExt);
         MessageAccessor.setOriginMessageId(msgInner, UtilAll.isBlank(originMsgId) ? msgExt.getMsgId() : originMsgId);
 
-        PutMessageResult putMessageResult = this.getServerCnxMsgStore(ctx, requestHeader.getGroup())
-                .putMessage(msgInner, requestHeader.getGroup());
-        if (putMessageResult != null) {
-            switch (putMessageResult.getPutMessageStatus()) {
-                case PUT_OK:
-                    String backTopic = msgExt.getTopic();
-                    String correctTopic = msgExt.getProperty(MessageConst.PROPERTY_RETRY_TOPIC);
-                    if (correctTopic != null) {
-                        backTopic = correctTopic;
+        final MessageExt originMsg = msgExt;
+        return this.getServerCnxMsgStore(ctx, requestHeader.getGroup())
+                .putMessage(msgInner, requestHeader.getGroup())
+                .thenApply(putMessageResult -> {
+                    if (putMessageResult != null) {
+                        switch (putMessageResult.getPutMessageStatus()) {
+                            case PUT_OK:
+                                String backTopic = originMsg.getTopic();
+                                String correctTopic = originMsg.getProperty(MessageConst.PROPERTY_RETRY_TOPIC);
+                                if (correctTopic != null) {
+                                    backTopic = correctTopic;
+                                }
+
+                                this.brokerController.getBrokerStatsManager()
+                                        .incSendBackNums(requestHeader.getGroup(), backTopic);
+
+                                response.setCode(ResponseCode.SUCCESS);
+                                response.setRemark(null);
+
+                                return response;
+                            default:
+                                break;
+                        }
+
+                        response.setCode(ResponseCode.SYSTEM_ERROR);
+                        response.setRemark(putMessageResult.getPutMessageStatus().name());
+                        return response;
                     }
 
-                    this.brokerController.getBrokerStatsManager().incSendBackNums(requestHeader.getGroup(), backTopic);
-
-                    response.setCode(ResponseCode.SUCCESS);
-                    response.setRemark(null);
-
+                    response.setCode(ResponseCode.SYSTEM_ERROR);
+                    response.setRemark("putMessageResult is null");
                     return response;
-                default:
-                    break;
-            }
-
-            response.setCode(ResponseCode.SYSTEM_ERROR);
-            response.setRemark(putMessageResult.getPutMessageStatus().name());
-            return response;
-        }
-
-        response.setCode(ResponseCode.SYSTEM_ERROR);
-        response.setRemark("putMessageResult is null");
-        return response;
+                });
     }
 
     private boolean handleRetryAndDLQ(SendMessageRequestHeader requestHeader, RemotingCommand response,
@@ -309,7 +329,7 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         return true;
     }
 
-    private RemotingCommand sendMessage(final ChannelHandlerContext ctx,
+    private CompletableFuture<RemotingCommand> sendMessage(final ChannelHandlerContext ctx,
             final RemotingCommand request,
             final SendMessageContext sendMessageContext,
             final SendMessageRequestHeader requestHeader) throws RemotingCommandException {
@@ -322,7 +342,7 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         response.setCode(-1);
         super.msgCheck(ctx, requestHeader, response);
         if (response.getCode() != -1) {
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         final byte[] body = request.getBody();
@@ -339,7 +359,7 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         msgInner.setQueueId(queueIdInt);
 
         if (!handleRetryAndDLQ(requestHeader, response, request, msgInner, topicConfig)) {
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         msgInner.setBody(body);
@@ -352,19 +372,20 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         String clusterName = this.brokerController.getServerConfig().getClusterName();
         MessageAccessor.putProperty(msgInner, MessageConst.PROPERTY_CLUSTER, clusterName);
         msgInner.setPropertiesString(MessageDecoder.messageProperties2String(msgInner.getProperties()));
-        PutMessageResult putMessageResult;
+        CompletableFuture<PutMessageResult> putMessageResult;
         Map<String, String> oriProps = MessageDecoder.string2messageProperties(requestHeader.getProperties());
         String traFlag = oriProps.get(MessageConst.PROPERTY_TRANSACTION_PREPARED);
         if (Boolean.parseBoolean(traFlag)
                 && !(msgInner.getReconsumeTimes() > 0
                 && msgInner.getDelayTimeLevel() > 0)) { //For client under version 4.6.1
-            putMessageResult = new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null);
+            putMessageResult = CompletableFuture
+                    .completedFuture(new PutMessageResult(PutMessageStatus.MESSAGE_ILLEGAL, null));
 /* TODO:           if (this.brokerController.getServerConfig().isRejectTransactionMessage()) {
                 response.setCode(ResponseCode.NO_PERMISSION);
                 response.setRemark(
                         "the broker[" + this.brokerController.getBrokerConfig().getBrokerIP1()
                                 + "] sending transaction message is forbidden");
-                return response;
+                return CompletableFuture.completedFuture(response);
             }
             putMessageResult = this.brokerController.getTransactionalMessageService().prepareMessage(msgInner);
  */
@@ -373,15 +394,15 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
                     .putMessage(msgInner, requestHeader.getProducerGroup());
         }
 
-        return handlePutMessageResult(putMessageResult, response, request, msgInner, responseHeader, sendMessageContext,
-                ctx, queueIdInt);
+        final int queueId = queueIdInt;
+        return putMessageResult.thenApply(result -> handlePutMessageResult(result, response, request, msgInner,
+                responseHeader, sendMessageContext, queueId));
 
     }
 
     private RemotingCommand handlePutMessageResult(PutMessageResult putMessageResult, RemotingCommand response,
             RemotingCommand request, MessageExt msg,
-            SendMessageResponseHeader responseHeader, SendMessageContext sendMessageContext, ChannelHandlerContext ctx,
-            int queueIdInt) {
+            SendMessageResponseHeader responseHeader, SendMessageContext sendMessageContext, int queueIdInt) {
         if (putMessageResult == null) {
             response.setCode(ResponseCode.SYSTEM_ERROR);
             response.setRemark("store putMessage return null");
@@ -455,8 +476,6 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
             responseHeader.setQueueId(queueIdInt);
             responseHeader.setQueueOffset(putMessageResult.getAppendMessageResult().getLogicsOffset());
 
-            doResponse(ctx, request, response);
-
             if (hasSendMessageHook()) {
                 sendMessageContext.setMsgId(responseHeader.getMsgId());
                 sendMessageContext.setQueueId(responseHeader.getQueueId());
@@ -471,7 +490,6 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
                 sendMessageContext.setCommercialSendSize(wroteSize);
                 sendMessageContext.setCommercialOwner(owner);
             }
-            return null;
         } else {
             if (hasSendMessageHook()) {
                 int wroteSize = request.getBody().length;
@@ -486,7 +504,7 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         return response;
     }
 
-    private RemotingCommand sendBatchMessage(final ChannelHandlerContext ctx,
+    private CompletableFuture<RemotingCommand> sendBatchMessage(final ChannelHandlerContext ctx,
             final RemotingCommand request,
             final SendMessageContext sendMessageContext,
             final SendMessageRequestHeader requestHeader) throws RemotingCommandException {
@@ -498,7 +516,7 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         response.setCode(-1);
         super.msgCheck(ctx, requestHeader, response);
         if (response.getCode() != -1) {
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         int queueIdInt = requestHeader.getQueueId();
@@ -512,13 +530,13 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         if (requestHeader.getTopic().length() > Byte.MAX_VALUE) {
             response.setCode(ResponseCode.MESSAGE_ILLEGAL);
             response.setRemark("message topic length too long " + requestHeader.getTopic().length());
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
 
         if (requestHeader.getTopic() != null && requestHeader.getTopic().startsWith(MixAll.RETRY_GROUP_TOPIC_PREFIX)) {
             response.setCode(ResponseCode.MESSAGE_ILLEGAL);
             response.setRemark("batch request does not support retry group " + requestHeader.getTopic());
-            return response;
+            return CompletableFuture.completedFuture(response);
         }
         MessageExtBatch messageExtBatch = new MessageExtBatch();
         messageExtBatch.setTopic(requestHeader.getTopic());
@@ -542,11 +560,11 @@ public class SendMessageProcessor extends AbstractSendMessageProcessor implement
         String clusterName = this.brokerController.getServerConfig().getClusterName();
         MessageAccessor.putProperty(messageExtBatch, MessageConst.PROPERTY_CLUSTER, clusterName);
 
-        PutMessageResult putMessageResult = this.getServerCnxMsgStore(ctx, requestHeader.getProducerGroup())
-                .putMessages(messageExtBatch, requestHeader.getProducerGroup());
-
-        return handlePutMessageResult(putMessageResult, response, request, messageExtBatch, responseHeader,
-                sendMessageContext, ctx, queueIdInt);
+        final int queueId = queueIdInt;
+        return this.getServerCnxMsgStore(ctx, requestHeader.getProducerGroup())
+                .putMessages(messageExtBatch, requestHeader.getProducerGroup())
+                .thenApply(result -> handlePutMessageResult(result, response, request, messageExtBatch,
+                        responseHeader, sendMessageContext, queueId));
     }
 
     public boolean hasConsumeMessageHook() {
@@ -0,0 +1,171 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.producer;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pulsar.broker.PulsarServerException;
+import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClient;
+import org.apache.pulsar.common.util.FutureUtil;
+import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
+
+/**
+ * Broker wide pool of the producers which publish the messages of the partitions owned by other brokers.
+ *
+ * <p>There's at most one batching producer per partition topic, shared by all the RocketMQ connections. The
+ * connections hold a reference of the producers they send with, and the producers that are not referenced are
+ * closed after being idle for a while.
+ */
+@Slf4j
+public class RopProducerPool {
+
+    private static final int SEND_TIMEOUT_MS = 500;
+    private static final int BATCHING_MAX_PUBLISH_DELAY_MS = 1;
+    private static final int MAX_PENDING_MESSAGES = 10000;
+
+    private final Function<String, CompletableFuture<Producer<byte[]>>> producerCreator;
+    private final long idleTimeoutMs;
+    private final ConcurrentHashMap<String, PooledProducer> producers = new ConcurrentHashMap<>();
+
+    public RopProducerPool(PulsarClientSupplier clientSupplier, long idleTimeoutMs) {
+        this(topic -> {
+            try {
+                return clientSupplier.get().newProducer()
+                        .topic(topic)
+                        .sendTimeout(SEND_TIMEOUT_MS, TimeUnit.MILLISECONDS)
+                        .enableBatching(true)
+                        .batchingMaxPublishDelay(BATCHING_MAX_PUBLISH_DELAY_MS, TimeUnit.MILLISECONDS)
+                        .batchingMaxMessages(MessageIdUtils.MAX_BATCH_SIZE)
+                        .maxPendingMessages(MAX_PENDING_MESSAGES)
+                        .blockIfQueueFull(false)
+                        .createAsync();
+            } catch (PulsarServerException e) {
+                return FutureUtil.failedFuture(e);
+            }
+        }, idleTimeoutMs);
+    }
+
+    RopProducerPool(Function<String, CompletableFuture<Producer<byte[]>>> producerCreator, long idleTimeoutMs) {
+        this.producerCreator = producerCreator;
+        this.idleTimeoutMs = idleTimeoutMs;
+    }
+
+    /**
+     * Get the producer of the partition topic and add a reference to it, the producer is created if absent.
+     * The reference must be released by {@link #release} when it's no longer used.
+     */
+    public PooledProducer acquire(String partitionTopic) {
+        PooledProducer producer = producers.compute(partitionTopic, (topic, pooled) -> {
+            if (pooled == null) {
+                log.info("Create pooled producer of topic [{}].", topic);
+                pooled = new PooledProducer(topic, producerCreator.apply(topic));
+            }
+            pooled.refCount++;
+            pooled.lastUsedTime = System.currentTimeMillis();
+            return pooled;
+        });
+        producer.producerFuture.exceptionally(e -> {
+            log.warn("Create pooled producer of topic [{}] failed.", partitionTopic, e);
+            producers.remove(partitionTopic, producer);
+            return null;
+        });
+        return producer;
+    }
+
+    /**
+     * Release a reference acquired by {@link #acquire}.
+     */
+    public void release(PooledProducer producer) {
+        producers.computeIfPresent(producer.topic, (topic, pooled) -> {
+            if (pooled == producer) {
+                pooled.refCount--;
+                pooled.lastUsedTime = System.currentTimeMillis();
+            }
+            return pooled;
+        });
+    }
+
+    /**
+     * Close the producers which are not referenced and have been idle for the idle timeout.
+     */
+    public void evictIdleProducers() {
+        long idleBefore = System.currentTimeMillis() - idleTimeoutMs;
+        List<PooledProducer> evicted = new ArrayList<>();
+        for (String topic : producers.keySet()) {
+            producers.computeIfPresent(topic, (t, pooled) -> {
+                if (pooled.refCount <= 0 && pooled.lastUsedTime < idleBefore) {
+                    evicted.add(pooled);
+                    return null;
+                }
+                return pooled;
+            });
+        }
+        for (PooledProducer pooled : evicted) {
+            log.info("Close idle pooled producer of topic [{}].", pooled.topic);
+            pooled.producerFuture.thenAccept(Producer::closeAsync);
+        }
+    }
+
+    public int size() {
+        return producers.size();
+    }
+
+    public void close() {
+        producers.values().forEach(pooled -> pooled.producerFuture.thenAccept(Producer::closeAsync));
+        producers.clear();
+    }
+
+    /**
+     * Supplier of the Pulsar client of the broker.
+     */
+    @FunctionalInterface
+    public interface PulsarClientSupplier {
+        PulsarClient get() throws PulsarServerException;
+    }
+
+    /**
+     * A producer of the pool, the reference count is guarded by the pool.
+     */
+    public static final class PooledProducer {
+        @Getter
+        private final String topic;
+        @Getter
+        private final CompletableFuture<Producer<byte[]>> producerFuture;
+        private int refCount;
+        private volatile long lastUsedTime;
+
+        private PooledProducer(String topic, CompletableFuture<Producer<byte[]>> producerFuture) {
+            this.topic = topic;
+            this.producerFuture = producerFuture;
+        }
+
+        public CompletableFuture<MessageId> sendAsync(byte[] body) {
+            lastUsedTime = System.currentTimeMillis();
+            return producerFuture.thenCompose(producer -> producer.sendAsync(body));
+        }
+
+        public boolean isFailed() {
+            return producerFuture.isCompletedExceptionally();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.producer;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.pulsar.broker.service.BrokerService;
+
+/**
+ * Push back on the RocketMQ producers when the broker can't keep up with the publishes.
+ *
+ * <p>The in-flight publish bytes are tracked per channel and per broker. Like Pulsar's ServerCnx, the auto read of
+ * a channel is disabled when its buffer is full, when the publish rate of the topic is exceeded or when the
+ * message publish buffer of the broker is full, and it's enabled again once all these reasons are gone. When the
+ * in-flight bytes of the broker reach the hard limit, the send requests are rejected with SYSTEM_BUSY.
+ */
+@Slf4j
+public class RopPublishThrottler {
+
+    /**
+     * The in-flight bytes of the channel exceed its limit.
+     */
+    public static final int CHANNEL_BUFFER_LIMITING = 1;
+    /**
+     * The publish rate of the topic or the broker is exceeded, cancelled by cancelPublishRateLimiting.
+     */
+    public static final int RATE_LIMITING = 1 << 1;
+    /**
+     * The message publish buffer of the broker is full, cancelled by cancelPublishBufferLimiting.
+     */
+    public static final int PUBLISH_BUFFER_LIMITING = 1 << 2;
+    /**
+     * The topic disabled the auto read of its producers, cancelled by enableCnxAutoRead.
+     */
+    public static final int TOPIC_LIMITING = 1 << 3;
+
+    private static final AttributeKey<ChannelPublishBuffer> CHANNEL_PUBLISH_BUFFER_KEY =
+            AttributeKey.valueOf("RopChannelPublishBuffer");
+
+    private final Supplier<BrokerService> brokerService;
+    private final long maxChannelPublishBufferBytes;
+    private final long resumeChannelPublishBufferBytes;
+    private final long maxPublishBufferBytes;
+    private final AtomicLong publishBufferSize = new AtomicLong();
+    private final Set<Channel> publishBufferLimitedChannels = ConcurrentHashMap.newKeySet();
+
+    /**
+     * @param maxChannelPublishBufferBytes the in-flight bytes of a channel to disable its auto read, the auto read
+     *                                     is enabled again at half of it, non-positive to disable
+     * @param maxPublishBufferBytes the in-flight bytes of the broker to reject the sends, non-positive to disable
+     */
+    public RopPublishThrottler(Supplier<BrokerService> brokerService, long maxChannelPublishBufferBytes,
+            long maxPublishBufferBytes) {
+        this.brokerService = brokerService;
+        this.maxChannelPublishBufferBytes = maxChannelPublishBufferBytes;
+        this.resumeChannelPublishBufferBytes = maxChannelPublishBufferBytes / 2;
+        this.maxPublishBufferBytes = maxPublishBufferBytes;
+    }
+
+    /**
+     * Whether the in-flight bytes of the broker reach the hard limit, the send requests should be rejected.
+     */
+    public boolean isPublishBufferFull() {
+        return maxPublishBufferBytes > 0 && publishBufferSize.get() >= maxPublishBufferBytes;
+    }
+
+    public long getPublishBufferSize() {
+        return publishBufferSize.get();
+    }
+
+    public long getChannelPublishBufferSize(Channel channel) {
+        ChannelPublishBuffer buffer = channel.attr(CHANNEL_PUBLISH_BUFFER_KEY).get();
+        return buffer == null ? 0 : buffer.size;
+    }
+
+    /**
+     * Called before the message of {@code msgSize} bytes received from the channel is published.
+     */
+    public void startSendOperation(Channel channel, int msgSize) {
+        publishBufferSize.addAndGet(msgSize);
+        ChannelPublishBuffer buffer = getOrCreateBuffer(channel);
+        boolean exceeded;
+        synchronized (buffer) {
+            buffer.size += msgSize;
+            exceeded = maxChannelPublishBufferBytes > 0 && buffer.size > maxChannelPublishBufferBytes;
+        }
+        if (exceeded) {
+            disableAutoRead(channel, CHANNEL_BUFFER_LIMITING);
+        }
+        BrokerService service = brokerService.get();
+        if (service != null && service.isReachMessagePublishBufferThreshold()) {
+            publishBufferLimitedChannels.add(channel);
+            disableAutoRead(channel, PUBLISH_BUFFER_LIMITING);
+        }
+    }
+
+    /**
+     * Called when the publish started by {@link #startSendOperation} is completed, whether it succeeded or not.
+     */
+    public void completedSendOperation(Channel channel, int msgSize) {
+        publishBufferSize.addAndGet(-msgSize);
+        ChannelPublishBuffer buffer = getOrCreateBuffer(channel);
+        boolean resume;
+        synchronized (buffer) {
+            buffer.size -= msgSize;
+            resume = (buffer.limitingFlags & CHANNEL_BUFFER_LIMITING) != 0
+                    && buffer.size <= resumeChannelPublishBufferBytes;
+        }
+        if (resume) {
+            enableAutoRead(channel, CHANNEL_BUFFER_LIMITING);
+        }
+    }
+
+    /**
+     * Enable the auto read of the channels limited by the broker message publish buffer, if the buffer is no
+     * longer full. It's checked periodically, since the channels may publish to topics owned by other brokers.
+     */
+    public void checkPublishBuffer() {
+        if (publishBufferLimitedChannels.isEmpty()) {
+            return;
+        }
+        BrokerService service = brokerService.get();
+        if (service == null || !service.isReachMessagePublishBufferThreshold()) {
+            cancelPublishBufferLimiting();
+        }
+    }
+
+    /**
+     * Enable the auto read of the channels limited by the broker message publish buffer.
+     */
+    public void cancelPublishBufferLimiting() {
+        for (Channel channel : publishBufferLimitedChannels) {
+            publishBufferLimitedChannels.remove(channel);
+            enableAutoRead(channel, PUBLISH_BUFFER_LIMITING);
+        }
+    }
+
+    /**
+     * Disable the auto read of the channel for the given reason.
+     */
+    public void disableAutoRead(Channel channel, int reason) {
+        ChannelPublishBuffer buffer = getOrCreateBuffer(channel);
+        synchronized (buffer) {
+            if ((buffer.limitingFlags & reason) != 0) {
+                return;
+            }
+            buffer.limitingFlags |= reason;
+            if (channel.config().isAutoRead()) {
+                channel.config().setAutoRead(false);
+                if (log.isDebugEnabled()) {
+                    log.debug("Disable auto read of channel {}, reason: {}", channel, reason);
+                }
+            }
+        }
+    }
+
+    /**
+     * Cancel the given reason, the auto read of the channel is enabled if there's no other reason left.
+     */
+    public void enableAutoRead(Channel channel, int reason) {
+        ChannelPublishBuffer buffer = channel.attr(CHANNEL_PUBLISH_BUFFER_KEY).get();
+        if (buffer == null) {
+            return;
+        }
+        synchronized (buffer) {
+            if ((buffer.limitingFlags & reason) == 0) {
+                return;
+            }
+            buffer.limitingFlags &= ~reason;
+            if (buffer.limitingFlags == 0 && !channel.config().isAutoRead()) {
+                channel.config().setAutoRead(true);
+                channel.read();
+                if (log.isDebugEnabled()) {
+                    log.debug("Enable auto read of channel {}", channel);
+                }
+            }
+        }
+    }
+
+    private ChannelPublishBuffer getOrCreateBuffer(Channel channel) {
+        ChannelPublishBuffer buffer = channel.attr(CHANNEL_PUBLISH_BUFFER_KEY).get();
+        if (buffer == null) {
+            ChannelPublishBuffer newBuffer = new ChannelPublishBuffer();
+            buffer = channel.attr(CHANNEL_PUBLISH_BUFFER_KEY).setIfAbsent(newBuffer);
+            if (buffer == null) {
+                buffer = newBuffer;
+                channel.closeFuture().addListener(future -> publishBufferLimitedChannels.remove(channel));
+            }
+        }
+        return buffer;
+    }
+
+    /**
+     * The in-flight publish bytes and the auto read limiting reasons of a channel, guarded by itself.
+     */
+    private static final class ChannelPublishBuffer {
+        private long size;
+        private int limitingFlags;
+    }
+}
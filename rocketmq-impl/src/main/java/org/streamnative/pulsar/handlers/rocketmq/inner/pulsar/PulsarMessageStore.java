@@ -14,6 +14,7 @@
 
 package org.streamnative.pulsar.handlers.rocketmq.inner.pulsar;
 
+import java.util.concurrent.CompletableFuture;
 import org.apache.rocketmq.common.message.MessageExt;
 import org.apache.rocketmq.common.message.MessageExtBatch;
 import org.apache.rocketmq.common.protocol.header.PullMessageRequestHeader;
@@ -28,12 +29,25 @@ import org.streamnative.pulsar.handlers.rocketmq.inner.format.RopMessageFilter;
  */
 public interface PulsarMessageStore {
 
-    PutMessageResult putMessage(MessageExtBrokerInner messageExtBrokerInner, String producerGroup);
+    /**
+     * Put a message into the store asynchronously.
+     *
+     * @param messageExtBrokerInner the message to put
+     * @param producerGroup the producer group of the message
+     * @return future completed with the put result once the message is persisted, never completed exceptionally
+     */
+    CompletableFuture<PutMessageResult> putMessage(MessageExtBrokerInner messageExtBrokerInner,
+            String producerGroup);
 
-    RopGetMessageResult getMessage(RemotingCommand request, PullMessageRequestHeader requestHeader,
+    /**
+     * Read messages from the store asynchronously.
+     *
+     * @return future completed with the get result once the entries are read, never completed exceptionally
+     */
+    CompletableFuture<RopGetMessageResult> getMessage(RemotingCommand request, PullMessageRequestHeader requestHeader,
             RopMessageFilter messageFilter);
 
-    PutMessageResult putMessages(MessageExtBatch batchMessage, String producerGroup);
+    CompletableFuture<PutMessageResult> putMessages(MessageExtBatch batchMessage, String producerGroup);
 
     MessageExt lookMessageByMessageId(String topic, String msgId);
 
@@ -0,0 +1,69 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.timer;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.rocketmq.common.ServiceThread;
+
+/**
+ * Expiration reaper thread which drives a {@link Timer}.
+ *
+ * <p>The reaper blocks on the timer's delay queue, so it only wakes up when a bucket expires
+ * or when the advance interval elapses.
+ */
+@Slf4j
+public class ExpirationReaper extends ServiceThread {
+
+    private static final long DEFAULT_ADVANCE_INTERVAL_MS = 200L;
+
+    private final String serviceName;
+    private final Timer timer;
+    private final long advanceIntervalMs;
+
+    public ExpirationReaper(String serviceName, Timer timer) {
+        this(serviceName, timer, DEFAULT_ADVANCE_INTERVAL_MS);
+    }
+
+    public ExpirationReaper(String serviceName, Timer timer, long advanceIntervalMs) {
+        this.serviceName = serviceName;
+        this.timer = timer;
+        this.advanceIntervalMs = advanceIntervalMs;
+        this.setDaemon(true);
+    }
+
+    @Override
+    public String getServiceName() {
+        return serviceName;
+    }
+
+    @Override
+    public void run() {
+        log.info("{} service started.", getServiceName());
+        while (!this.isStopped()) {
+            try {
+                timer.advanceClock(advanceIntervalMs);
+            } catch (Throwable e) {
+                log.warn("{} advance clock error.", getServiceName(), e);
+            }
+        }
+        log.info("{} service end.", getServiceName());
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        timer.shutdown();
+    }
+}
@@ -19,6 +19,7 @@ import java.util.Objects;
 import java.util.concurrent.DelayQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
@@ -31,11 +32,16 @@ import org.streamnative.pulsar.handlers.rocketmq.inner.timer.TimerTaskList.Timer
 
 /**
  * A system timer implementation.
+ *
+ * <p>The expired tasks rejected by a saturated task executor are put back into the wheel and retried after
+ * {@link #REJECTED_TASK_RETRY_MS}, they are never run by the thread adding the task or advancing the clock.
  */
 @Slf4j
 @ThreadSafe
 public class SystemTimer implements Timer {
 
+    static final long REJECTED_TASK_RETRY_MS = 100L;
+
     private final ExecutorService taskExecutor;
     private final DelayQueue<TimerTaskList> delayQueue;
     private final AtomicInteger taskCounter;
@@ -47,10 +53,11 @@ public class SystemTimer implements Timer {
     private final Consumer<TimerTaskEntry> reinsert;
 
     private SystemTimer(String executorName,
+            ExecutorService taskExecutor,
             long tickMs,
             int wheelSize,
             long startMs) {
-        this.taskExecutor = Executors.newFixedThreadPool(
+        this.taskExecutor = taskExecutor != null ? taskExecutor : Executors.newFixedThreadPool(
                 1, new ThreadFactoryBuilder()
                         .setDaemon(false)
                         .setNameFormat("system-timer-%d")
@@ -96,7 +103,23 @@ public class SystemTimer implements Timer {
         if (!timingWheel.add(timerTaskEntry)) {
             // Already expired or cancelled
             if (!timerTaskEntry.cancelled()) {
-                taskExecutor.submit(timerTaskEntry.timerTask());
+                submit(timerTaskEntry.timerTask());
+            }
+        }
+    }
+
+    private void submit(TimerTask timerTask) {
+        try {
+            taskExecutor.submit(timerTask);
+        } catch (RejectedExecutionException e) {
+            if (taskExecutor.isShutdown()) {
+                log.warn("Task executor is shut down, drop the expired task {}.", timerTask);
+                return;
+            }
+            // the task executor is saturated, retry the task later instead of running it on this thread
+            if (!timingWheel.add(new TimerTaskEntry(timerTask,
+                    Time.SYSTEM.hiResClockMs() + REJECTED_TASK_RETRY_MS))) {
+                log.warn("Failed to retry the rejected task {}.", timerTask);
             }
         }
     }
@@ -138,6 +161,7 @@ public class SystemTimer implements Timer {
     public static class Builder {
 
         private String executorName;
+        private ExecutorService taskExecutor;
         private long tickMs = 1;
         private int wheelSize = 20;
         private long startMs = Time.SYSTEM.hiResClockMs();
@@ -150,6 +174,14 @@ public class SystemTimer implements Timer {
             return this;
         }
 
+        /**
+         * Executor running the expired tasks, it's shut down with the timer.
+         */
+        public Builder taskExecutor(ExecutorService taskExecutor) {
+            this.taskExecutor = taskExecutor;
+            return this;
+        }
+
         public Builder tickMs(long tickMs) {
             this.tickMs = tickMs;
             return this;
@@ -170,6 +202,7 @@ public class SystemTimer implements Timer {
 
             return new SystemTimer(
                     executorName,
+                    taskExecutor,
                     tickMs,
                     wheelSize,
                     startMs
@@ -295,7 +295,7 @@ public class CommonUtils {
                 int msgIDLength = storehostIPLength + 4 + 8;
                 ByteBuffer byteBufferMsgId = ByteBuffer.allocate(msgIDLength);
                 String msgId = createMessageId(byteBufferMsgId, msgExt.getStoreHostBytes(),
-                        MessageIdUtils.getOffset(messageId.getLedgerId(), messageId.getEntryId(), queueId));
+                        MessageIdUtils.getOffset(messageId, queueId));
                 msgExt.setMsgId(msgId);
             }
 
@@ -314,8 +314,7 @@ public class CommonUtils {
     public static ByteBuffer decode(Message<byte[]> message) {
         ByteBuffer wrap = ByteBuffer.wrap(message.getData());
         MessageIdImpl messageId = (MessageIdImpl) message.getMessageId();
-        long physicalOffset = MessageIdUtils
-                .getOffset(messageId.getLedgerId(), messageId.getEntryId(), messageId.getPartitionIndex());
+        long physicalOffset = MessageIdUtils.getOffset(messageId);
 
         wrap.putLong(ROP_QUEUE_OFFSET_INDEX, physicalOffset);
         wrap.putLong(ROP_PHYSICAL_OFFSET_INDEX, physicalOffset);
@@ -18,6 +18,7 @@ import com.google.common.base.Preconditions;
 import lombok.extern.slf4j.Slf4j;
 import org.apache.bookkeeper.mledger.impl.PositionImpl;
 import org.apache.pulsar.client.api.MessageId;
+import org.apache.pulsar.client.impl.BatchMessageIdImpl;
 import org.apache.pulsar.client.impl.MessageIdImpl;
 
 /**
@@ -27,26 +28,46 @@ import org.apache.pulsar.client.impl.MessageIdImpl;
 public class MessageIdUtils {
 
     // use 32 bits for ledgerId,
-    // 24 bits for entryId,
+    // 18 bits for entryId,
+    // 6 bits for batchIndex,
     // 8 bits for partitionId.
+    // The entryId had 24 bits before the batchIndex was added, the ledgerId and partitionId bits are unchanged. An
+    // offset of the old layout decodes to the same or an earlier entry, so it never skips messages.
+    // managedLedgerMaxEntriesPerLedger is limited to MAX_ENTRY_ID + 1 by the protocol handler.
     public static final int LEDGER_BITS = 32;
-    public static final int ENTRY_BITS = 24;
+    public static final int ENTRY_BITS = 18;
+    public static final int BATCH_BITS = 6;
     public static final int PARTITION_BITS = 8;
 
     public static final long MAX_LEDGER_ID = (1L << LEDGER_BITS) - 2L;
     public static final long MAX_ENTRY_ID = (1L << ENTRY_BITS) - 2L;
     public static final long MAX_PARTITION_ID = (1L << (PARTITION_BITS - 1)) - 2L;
+    // the maximum number of messages which can be addressed inside a single entry
+    public static final int MAX_BATCH_SIZE = 1 << BATCH_BITS;
     public static final long MIN_ROP_OFFSET = 0L;
     private static final long MASK_LEDGER_ID = (1L << LEDGER_BITS) - 1L;
     private static final long MASK_ENTRY_ID = (1L << ENTRY_BITS) - 1L;
+    private static final long MASK_BATCH_INDEX = (1L << BATCH_BITS) - 1L;
     private static final long MASK_PARTITION_ID = (1L << (PARTITION_BITS - 1)) - 1L;
     public static final long MAX_ROP_OFFSET =
-            (MASK_PARTITION_ID << (LEDGER_BITS + ENTRY_BITS)) | (MASK_LEDGER_ID << ENTRY_BITS) | MASK_ENTRY_ID;
+            (MASK_PARTITION_ID << (LEDGER_BITS + ENTRY_BITS + BATCH_BITS))
+                    | (MASK_LEDGER_ID << (ENTRY_BITS + BATCH_BITS))
+                    | (MASK_ENTRY_ID << BATCH_BITS)
+                    | MASK_BATCH_INDEX;
 
     public static final long getOffset(long ledgerId, long entryId, long partitionId) {
+        return getOffset(ledgerId, entryId, partitionId, 0);
+    }
+
+    /**
+     * Get the rop offset of a message inside a batched entry.
+     * Messages of the same entry have consecutive offsets, starting from the offset of batch index 0.
+     */
+    public static final long getOffset(long ledgerId, long entryId, long partitionId, int batchIndex) {
         entryId = entryId < 0L ? -1L : entryId;
         ledgerId = ledgerId < 0L ? -1L : ledgerId;
         partitionId = partitionId < 0L ? -1L : partitionId;
+        batchIndex = batchIndex < 0 ? 0 : batchIndex;
         if (entryId == Long.MAX_VALUE && ledgerId == Long.MAX_VALUE) {
             return MAX_ROP_OFFSET;
         }
@@ -54,16 +75,22 @@ public class MessageIdUtils {
         Preconditions.checkArgument(ledgerId <= MAX_LEDGER_ID, "ledgerId has overflow in rop.");
         Preconditions.checkArgument(entryId <= MAX_ENTRY_ID, "entryId has overflow in rop.");
         Preconditions.checkArgument(partitionId <= MAX_PARTITION_ID, "partitionId has overflow in rop.");
+        Preconditions.checkArgument(batchIndex < MAX_BATCH_SIZE, "batchIndex has overflow in rop.");
         ledgerId = ledgerId + 1L;
         entryId = entryId + 1L;
         partitionId = partitionId + 1;
-        return ((partitionId & MASK_PARTITION_ID) << (LEDGER_BITS + ENTRY_BITS))
-                | ((ledgerId & MASK_LEDGER_ID) << ENTRY_BITS)
-                | (entryId & MASK_ENTRY_ID);
+        return ((partitionId & MASK_PARTITION_ID) << (LEDGER_BITS + ENTRY_BITS + BATCH_BITS))
+                | ((ledgerId & MASK_LEDGER_ID) << (ENTRY_BITS + BATCH_BITS))
+                | ((entryId & MASK_ENTRY_ID) << BATCH_BITS)
+                | (batchIndex & MASK_BATCH_INDEX);
     }
 
     public static final long getOffset(MessageIdImpl messageId) {
-        return getOffset(messageId.getLedgerId(), messageId.getEntryId(), messageId.getPartitionIndex());
+        return getOffset(messageId, messageId.getPartitionIndex());
+    }
+
+    public static final long getOffset(MessageIdImpl messageId, long partitionId) {
+        return getOffset(messageId.getLedgerId(), messageId.getEntryId(), partitionId, getBatchIndex(messageId));
     }
 
     public static final MessageIdImpl getMessageId(long offset) {
@@ -73,15 +100,41 @@ public class MessageIdUtils {
             return (MessageIdImpl) MessageId.latest;
         }
 
-        int partitionId = (int) ((offset >>> (LEDGER_BITS + ENTRY_BITS)) & MASK_PARTITION_ID);
-        long ledgerId = (offset >>> ENTRY_BITS) & MASK_LEDGER_ID;
-        long entryId = offset & MASK_ENTRY_ID;
+        int partitionId = (int) ((offset >>> (LEDGER_BITS + ENTRY_BITS + BATCH_BITS)) & MASK_PARTITION_ID);
+        long ledgerId = (offset >>> (ENTRY_BITS + BATCH_BITS)) & MASK_LEDGER_ID;
+        long entryId = (offset >>> BATCH_BITS) & MASK_ENTRY_ID;
+
+        int batchIndex = (int) (offset & MASK_BATCH_INDEX);
 
         partitionId -= 1L;
         ledgerId -= 1L;
         entryId -= 1L;
 
-        return new MessageIdImpl(ledgerId, entryId, partitionId);
+        return batchIndex > 0 ? new BatchMessageIdImpl(ledgerId, entryId, partitionId, batchIndex)
+                : new MessageIdImpl(ledgerId, entryId, partitionId);
+    }
+
+    public static final long getEntryId(long offset) {
+        if (offset <= MIN_ROP_OFFSET) {
+            return ((MessageIdImpl) MessageId.earliest).getEntryId();
+        } else if (offset == MAX_ROP_OFFSET) {
+            return ((MessageIdImpl) MessageId.latest).getEntryId();
+        }
+        return ((offset >>> BATCH_BITS) & MASK_ENTRY_ID) - 1L;
+    }
+
+    public static final int getBatchIndex(long offset) {
+        if (offset <= MIN_ROP_OFFSET || offset == MAX_ROP_OFFSET) {
+            return 0;
+        }
+        return (int) (offset & MASK_BATCH_INDEX);
+    }
+
+    public static final int getBatchIndex(MessageId messageId) {
+        if (messageId instanceof BatchMessageIdImpl) {
+            return Math.max(((BatchMessageIdImpl) messageId).getBatchIndex(), 0);
+        }
+        return 0;
     }
 
     public static final PositionImpl getPosition(long offset) {
@@ -103,7 +156,8 @@ public class MessageIdUtils {
             MessageIdImpl rightMsgId = (MessageIdImpl) right;
             return (leftMsgId.getLedgerId() == rightMsgId.getLedgerId())
                     && (leftMsgId.getEntryId() == rightMsgId.getEntryId())
-                    && (leftMsgId.getPartitionIndex() == rightMsgId.getPartitionIndex());
+                    && (leftMsgId.getPartitionIndex() == rightMsgId.getPartitionIndex())
+                    && (getBatchIndex(leftMsgId) == getBatchIndex(rightMsgId));
         }
         return false;
     }
@@ -18,6 +18,8 @@ import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
 
 import com.google.common.base.Predicate;
+import com.google.common.collect.Range;
+import java.util.NavigableMap;
 import java.util.Optional;
 import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 import lombok.extern.slf4j.Slf4j;
@@ -28,6 +30,7 @@ import org.apache.bookkeeper.mledger.ManagedLedgerException;
 import org.apache.bookkeeper.mledger.Position;
 import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
 import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
 import org.apache.pulsar.client.impl.MessageImpl;
 
 /**
@@ -59,13 +62,20 @@ public class OffsetFinder implements FindEntryCallback {
     }
 
     public void findMessages(final long timestamp, FindEntryCallback callback) {
+        findMessages(timestamp, Range.all(), callback);
+    }
+
+    /**
+     * Find the newest entry published at or before the timestamp, only the entries in the range are searched.
+     */
+    public void findMessages(final long timestamp, Range<PositionImpl> range, FindEntryCallback callback) {
         this.timestamp = timestamp;
         if (messageFindInProgressUpdater.compareAndSet(this, FALSE, TRUE)) {
             if (log.isDebugEnabled()) {
                 log.debug("Starting message position find at timestamp {}", timestamp);
             }
 
-            asyncFindNewestMatching(FindPositionConstraint.SearchAllAvailableEntries, entry -> {
+            asyncFindNewestMatching(range, entry -> {
                 MessageImpl msg = null;
                 try {
                     msg = MessageImpl.deserialize(entry.getDataBuffer());
@@ -122,10 +132,14 @@ public class OffsetFinder implements FindEntryCallback {
     public void asyncFindNewestMatching(FindPositionConstraint constraint, Predicate<Entry> condition,
             FindEntryCallback callback, Object ctx) {
         checkState(constraint == FindPositionConstraint.SearchAllAvailableEntries);
+        asyncFindNewestMatching(Range.all(), condition, callback, ctx);
+    }
 
+    public void asyncFindNewestMatching(Range<PositionImpl> range, Predicate<Entry> condition,
+            FindEntryCallback callback, Object ctx) {
         // return PositionImpl(firstLedgerId, -1)
         PositionImpl startPosition = managedLedger.getFirstPosition();
-        long max = managedLedger.getNumberOfEntries() - 1;
+        PositionImpl lastPosition = (PositionImpl) managedLedger.getLastConfirmedEntry();
 
         if (startPosition == null) {
             callback.findEntryFailed(new ManagedLedgerException("Couldn't find start position"), Optional.empty(), ctx);
@@ -134,7 +148,34 @@ public class OffsetFinder implements FindEntryCallback {
             startPosition = managedLedger.getNextValidPosition(startPosition);
         }
 
+        if (range.hasLowerBound() && range.lowerEndpoint().compareTo(startPosition) > 0) {
+            startPosition = range.lowerEndpoint();
+        }
+        if (range.hasUpperBound()) {
+            PositionImpl upperPosition = managedLedger.getPreviousPosition(range.upperEndpoint());
+            if (upperPosition.compareTo(lastPosition) < 0) {
+                lastPosition = upperPosition;
+            }
+        }
+        long max = lastPosition.compareTo(startPosition) > 0 ? getNumberOfEntries(startPosition, lastPosition) - 1 : 0;
+
         OpFindNewestEntry op = new OpFindNewestEntry(managedLedger, startPosition, condition, max, callback, ctx);
         op.find();
     }
+
+    /**
+     * Get the number of entries in [from, to], both positions must be valid.
+     */
+    private long getNumberOfEntries(PositionImpl from, PositionImpl to) {
+        if (from.getLedgerId() == to.getLedgerId()) {
+            return to.getEntryId() - from.getEntryId() + 1;
+        }
+        NavigableMap<Long, LedgerInfo> ledgers = managedLedger.getLedgersInfo();
+        LedgerInfo fromLedger = ledgers.get(from.getLedgerId());
+        long count = fromLedger == null ? 0 : fromLedger.getEntries() - from.getEntryId();
+        for (LedgerInfo ledger : ledgers.subMap(from.getLedgerId(), false, to.getLedgerId(), false).values()) {
+            count += ledger.getEntries();
+        }
+        return count + to.getEntryId() + 1;
+    }
 }
@@ -0,0 +1,129 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.same;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.netty.channel.Channel;
+import org.apache.rocketmq.broker.longpolling.PullRequest;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.streamnative.pulsar.handlers.rocketmq.inner.consumer.ConsumerOffsetManager;
+import org.streamnative.pulsar.handlers.rocketmq.inner.exception.RopPersistentTopicException;
+import org.streamnative.pulsar.handlers.rocketmq.inner.processor.PullMessageProcessor;
+
+/**
+ * Test pull request hold service.
+ */
+public class PullRequestHoldServiceTest {
+
+    private static final String TOPIC = "public/default/test-topic";
+
+    private PullMessageProcessor pullMessageProcessor;
+    private ConsumerOffsetManager consumerOffsetManager;
+    private PullRequestHoldService holdService;
+
+    @Before
+    public void setUp() throws Exception {
+        RocketMQBrokerController brokerController = mock(RocketMQBrokerController.class);
+        pullMessageProcessor = mock(PullMessageProcessor.class);
+        when(brokerController.getPullMessageProcessor()).thenReturn(pullMessageProcessor);
+        consumerOffsetManager = mock(ConsumerOffsetManager.class);
+        when(brokerController.getConsumerOffsetManager()).thenReturn(consumerOffsetManager);
+        when(consumerOffsetManager.getMaxOffsetInQueue(any(), anyInt())).thenReturn(15L);
+        when(consumerOffsetManager.getMaxOffsetInQueue(any(), eq(1)))
+                .thenThrow(new RopPersistentTopicException("topic not found"));
+        holdService = new PullRequestHoldService(brokerController);
+        holdService.start();
+    }
+
+    @After
+    public void tearDown() {
+        holdService.shutdown();
+    }
+
+    @Test
+    public void testWakeupWhenMessageArrived() throws Exception {
+        RemotingCommand request1 = RemotingCommand.createRequestCommand(0, null);
+        RemotingCommand request2 = RemotingCommand.createRequestCommand(0, null);
+        holdService.suspendPullRequest(TOPIC, 0, pullRequest(request1, 10, 60000));
+        holdService.suspendPullRequest(TOPIC, 0, pullRequest(request2, 20, 60000));
+        assertEquals(2, holdService.getHeldRequestCount());
+
+        holdService.scheduleNotifyMessageArriving(TOPIC, 0, 15);
+        verify(pullMessageProcessor, timeout(1000)).executeRequestWhenWakeup(any(), same(request1));
+        verify(pullMessageProcessor, never()).executeRequestWhenWakeup(any(), same(request2));
+        assertEquals(1, holdService.getHeldRequestCount());
+
+        // nothing is woken up for the other partitions
+        holdService.scheduleNotifyMessageArriving(TOPIC, 1, 30);
+        Thread.sleep(100);
+        verify(pullMessageProcessor, never()).executeRequestWhenWakeup(any(), same(request2));
+    }
+
+    @Test
+    public void testWakeupWithoutNotification() throws Exception {
+        // the message is published through another broker, no local notification is scheduled
+        RemotingCommand request = RemotingCommand.createRequestCommand(0, null);
+        holdService.suspendPullRequest(TOPIC, 0, pullRequest(request, 10, 60000));
+        verify(pullMessageProcessor, timeout(PullRequestHoldService.HELD_CHECK_INTERVAL_MS * 3))
+                .executeRequestWhenWakeup(any(), same(request));
+        assertEquals(0, holdService.getHeldRequestCount());
+    }
+
+    @Test
+    public void testWakeupWhenSuspendTimeout() throws Exception {
+        RemotingCommand request = RemotingCommand.createRequestCommand(0, null);
+        holdService.suspendPullRequest(TOPIC, 0, pullRequest(request, 10, 50));
+        verify(pullMessageProcessor, timeout(1000)).executeRequestWhenWakeup(any(), same(request));
+        assertEquals(0, holdService.getHeldRequestCount());
+    }
+
+    @Test
+    public void testNoQueryWhenNotifiedOffsetCoversRequests() throws Exception {
+        RemotingCommand request = RemotingCommand.createRequestCommand(0, null);
+        holdService.suspendPullRequest(TOPIC, 2, pullRequest(request, 20, 60000));
+        holdService.scheduleNotifyMessageArriving(TOPIC, 2, 25);
+        verify(pullMessageProcessor, timeout(1000)).executeRequestWhenWakeup(any(), same(request));
+        verify(consumerOffsetManager, never()).getMaxOffsetInQueue(any(), eq(2));
+    }
+
+    @Test
+    public void testSkipWhenMaxOffsetLookupFails() throws Exception {
+        RemotingCommand request = RemotingCommand.createRequestCommand(0, null);
+        holdService.suspendPullRequest(TOPIC, 1, pullRequest(request, 10, 60000));
+        Thread.sleep(PullRequestHoldService.HELD_CHECK_INTERVAL_MS * 2 + 500);
+        verify(consumerOffsetManager, atLeastOnce()).getMaxOffsetInQueue(any(), eq(1));
+        verify(pullMessageProcessor, never()).executeRequestWhenWakeup(any(), same(request));
+        assertEquals(1, holdService.getHeldRequestCount());
+    }
+
+    private static PullRequest pullRequest(RemotingCommand request, long offset, long timeoutMillis) {
+        return new PullRequest(request, mock(Channel.class), timeoutMillis, System.currentTimeMillis(), offset,
+                null, null);
+    }
+}
@@ -0,0 +1,337 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.RETURNS_DEEP_STUBS;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.netty.buffer.ByteBuf;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.DeleteCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.MarkDeleteCallback;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.ReadEntriesCallback;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.Position;
+import org.apache.bookkeeper.mledger.impl.EntryImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.broker.service.BrokerService;
+import org.apache.pulsar.broker.service.Topic.PublishContext;
+import org.apache.pulsar.broker.service.persistent.PersistentSubscription;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.apache.pulsar.common.naming.NamespaceBundle;
+import org.apache.pulsar.common.naming.TopicName;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.streamnative.pulsar.handlers.rocketmq.RocketMQServiceConfiguration;
+import org.streamnative.pulsar.handlers.rocketmq.inner.ScheduleMessageService.DelayPartitionConsumer;
+import org.streamnative.pulsar.handlers.rocketmq.inner.ScheduleMessageService.DelayedMessageConsumer;
+import org.streamnative.pulsar.handlers.rocketmq.inner.ScheduleMessageService.MessageHandle;
+import org.streamnative.pulsar.handlers.rocketmq.inner.cache.RopEntryCache;
+import org.streamnative.pulsar.handlers.rocketmq.inner.format.RopEntryFormatter;
+import org.streamnative.pulsar.handlers.rocketmq.inner.index.KeyIndexService;
+import org.streamnative.pulsar.handlers.rocketmq.inner.namesvr.MQTopicManager;
+import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
+
+/**
+ * Test schedule message service.
+ */
+public class ScheduleMessageServiceTest {
+
+    private static final String REAL_TOPIC = "test|ns%delay-topic";
+    private static final int DELAY_LEVEL = 1;
+    private static final long DELAY_MS = 1000L;
+    private static final String READ_LEDGER = "rop.delay.readLedger";
+    private static final String READ_ENTRY = "rop.delay.readEntry";
+    private static final String WATERMARK = "rop.delay.watermark";
+    private static final String PARTIAL_ENTRY = "rop.delay.partial.";
+
+    private final RopEntryFormatter formatter = new RopEntryFormatter();
+    private BrokerService brokerService;
+    private PersistentTopic realTopic;
+    private KeyIndexService keyIndexService;
+    private ScheduleMessageService scheduleService;
+    private String delayPartition;
+
+    @Before
+    public void setUp() throws Exception {
+        RocketMQBrokerController brokerController = mock(RocketMQBrokerController.class);
+        brokerService = mock(BrokerService.class, RETURNS_DEEP_STUBS);
+        when(brokerService.pulsar().getAdminClient().topics().getPartitionedTopicListAsync(anyString()))
+                .thenReturn(CompletableFuture.completedFuture(Collections.emptyList()));
+        when(brokerController.getBrokerService()).thenReturn(brokerService);
+        when(brokerController.getEntryCache()).thenReturn(mock(RopEntryCache.class));
+        keyIndexService = mock(KeyIndexService.class);
+        when(brokerController.getKeyIndexService()).thenReturn(keyIndexService);
+        MQTopicManager topicManager = mock(MQTopicManager.class);
+        realTopic = mock(PersistentTopic.class);
+        when(topicManager.isPartitionTopicOwner(any(), anyInt())).thenReturn(true);
+        when(topicManager.getPulsarPersistentTopic(anyString())).thenReturn(realTopic);
+        when(brokerController.getTopicConfigManager()).thenReturn(topicManager);
+
+        scheduleService = new ScheduleMessageService(brokerController, new RocketMQServiceConfiguration());
+        delayPartition = scheduleService.getDelayedTopicName(DELAY_LEVEL, 0);
+    }
+
+    @After
+    public void tearDown() {
+        scheduleService.shutdown();
+    }
+
+    @Test
+    public void testRecoverSkipsDeliveredMessages() throws Exception {
+        long watermark = 1000000000L;
+        Map<String, Long> checkpoint = new HashMap<>();
+        checkpoint.put(READ_LEDGER, 1L);
+        checkpoint.put(READ_ENTRY, 5L);
+        checkpoint.put(WATERMARK, watermark);
+        // batch index 0 of entry 1:5 was delivered before the restart
+        checkpoint.put(PARTIAL_ENTRY + "1:5", 1L);
+        ManagedCursor cursor = newCursor(checkpoint);
+        long late = watermark - DELAY_MS + 1;
+        long early = watermark - DELAY_MS;
+        readEntries(cursor, newEntry(1L, 5L, late, late, early), newEntry(1L, 6L, early, early));
+        DelayPartitionConsumer consumer = scheduleService.new DelayPartitionConsumer(DELAY_LEVEL, 0,
+                mock(PersistentTopic.class), cursor);
+
+        List<DelayedMessageConsumer<MessageHandle>.DueMessage> received = consumer.receiveAsync(10).join();
+        // batch index 0 of 1:5 is marked delivered, batch index 2 is due before the watermark, the entries after the
+        // checkpointed read position are all scheduled no matter when they are due
+        List<Long> offsets = new ArrayList<>();
+        received.forEach(message -> offsets.add(message.messageExt.getQueueOffset()));
+        assertEquals(Arrays.asList(MessageIdUtils.getOffset(1L, 5L, 0, 1), MessageIdUtils.getOffset(1L, 6L, 0, 0),
+                MessageIdUtils.getOffset(1L, 6L, 0, 1)), offsets);
+
+        consumer.checkpoint();
+        Map<String, Long> saved = savedCheckpoint(cursor, 1);
+        assertEquals(Long.valueOf(1L), saved.get(READ_LEDGER));
+        assertEquals(Long.valueOf(6L), saved.get(READ_ENTRY));
+        // the earliest message not delivered yet is due at the recovered watermark
+        assertEquals(Long.valueOf(watermark - 1), saved.get(WATERMARK));
+        assertEquals(Long.valueOf(0b101L), saved.get(PARTIAL_ENTRY + "1:5"));
+        assertNull(saved.get(PARTIAL_ENTRY + "1:6"));
+        verify(cursor, never()).asyncDelete(any(Iterable.class), any(), any());
+
+        // after another restart, only the message not delivered yet is scheduled again
+        ManagedCursor recovered = newCursor(saved);
+        readEntries(recovered, newEntry(1L, 5L, late, late, early));
+        DelayPartitionConsumer recoveredConsumer = scheduleService.new DelayPartitionConsumer(DELAY_LEVEL, 0,
+                mock(PersistentTopic.class), recovered);
+        received = recoveredConsumer.receiveAsync(10).join();
+        assertEquals(1, received.size());
+        assertEquals(MessageIdUtils.getOffset(1L, 5L, 0, 1), received.get(0).messageExt.getQueueOffset());
+    }
+
+    @Test
+    public void testDeliverDueMessagesAndCheckpoint() throws Exception {
+        ManagedCursor cursor = newCursor(Collections.emptyMap());
+        long now = System.currentTimeMillis();
+        readEntries(cursor, newEntry(1L, 5L, now - DELAY_MS, now - DELAY_MS, now - DELAY_MS));
+        List<Integer> publishedEntries = Collections.synchronizedList(new ArrayList<>());
+        CountDownLatch publishing = new CountDownLatch(1);
+        CountDownLatch published = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            ByteBuf entry = invocation.getArgument(0);
+            List<ByteBuf> messages = new ArrayList<>();
+            formatter.decodePulsarMessage(entry, 0L, 0L, null, messages);
+            messages.forEach(ByteBuf::release);
+            publishedEntries.add(messages.size());
+            publishing.countDown();
+            // hold the drain, the messages getting due meanwhile are left to it
+            published.await(5, TimeUnit.SECONDS);
+            ((PublishContext) invocation.getArgument(1)).completed(null, 7L, 0L);
+            return null;
+        }).when(realTopic).publishMessage(any(), any());
+        AtomicReference<DeleteCallback> deleteCallback = new AtomicReference<>();
+        doAnswer(invocation -> {
+            deleteCallback.set(invocation.getArgument(1));
+            return null;
+        }).when(cursor).asyncDelete(any(Iterable.class), any(), any());
+        scheduleService.start();
+        loadDelayPartition(newDelayTopic(cursor));
+        assertTrue(publishing.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        published.countDown();
+
+        // the delivered entry is deleted by the checkpoint, and the checkpoint is saved after the delete
+        verify(cursor, timeout(5000)).asyncDelete(eq(Collections.singletonList(PositionImpl.get(1L, 5L))), any(),
+                any());
+        Thread.sleep(100);
+        verify(cursor, never()).asyncMarkDelete(any(), any(), any(), any());
+        deleteCallback.get().deleteComplete(null);
+        Map<String, Long> saved = savedCheckpoint(cursor, 1);
+        // the messages getting due during the first publish are published into their real partition as one entry
+        assertEquals(3, publishedEntries.stream().mapToInt(Integer::intValue).sum());
+        assertTrue(publishedEntries.size() <= 2);
+        // the keys of the republished messages are indexed under the real topic
+        verify(keyIndexService, times(3)).putRequest(argThat((MessageExt msg) -> REAL_TOPIC.equals(msg.getTopic())),
+                anyLong());
+        assertEquals(Long.valueOf(5L), saved.get(READ_ENTRY));
+        assertFalse(saved.keySet().stream().anyMatch(key -> key.startsWith(PARTIAL_ENTRY)));
+        InOrder inOrder = inOrder(cursor);
+        inOrder.verify(cursor).asyncDelete(any(Iterable.class), any(), any());
+        inOrder.verify(cursor).asyncMarkDelete(any(), any(), any(), any());
+    }
+
+    @Test
+    public void testReattachReloadedTopicAndHandOff() throws Exception {
+        ManagedCursor closedCursor = newCursor(Collections.emptyMap());
+        doAnswer(invocation -> {
+            ((ReadEntriesCallback) invocation.getArgument(1)).readEntriesFailed(
+                    new ManagedLedgerException.CursorAlreadyClosedException("closed"), null);
+            return null;
+        }).when(closedCursor).asyncReadEntriesOrWait(anyInt(), any(), any());
+        PersistentTopic closedTopic = newDelayTopic(closedCursor);
+        ManagedCursor cursor = newCursor(Collections.emptyMap());
+        PersistentTopic reloadedTopic = newDelayTopic(cursor);
+        scheduleService.start();
+        NamespaceBundle bundle = loadDelayPartition(closedTopic, reloadedTopic);
+
+        // the topic is reloaded while the bundle stays owned, the consumer reattaches to the new cursor
+        verify(reloadedTopic, timeout(5000)).createSubscription(anyString(), any(), anyBoolean());
+        verify(cursor, timeout(5000)).asyncReadEntriesOrWait(anyInt(), any(), any());
+        verify(closedCursor, times(1)).cancelPendingReadRequest();
+
+        // the partition is handed off with the bundle
+        scheduleService.onBundleUnloaded(bundle);
+        verify(cursor, times(1)).cancelPendingReadRequest();
+    }
+
+    /**
+     * Load the bundle of the delay partition, the partition resolves to each of the topics in turn.
+     */
+    private NamespaceBundle loadDelayPartition(PersistentTopic delayTopic, PersistentTopic... reloadedTopics) {
+        NamespaceBundle bundle = mock(NamespaceBundle.class);
+        when(bundle.includes(any(TopicName.class)))
+                .thenAnswer(invocation -> invocation.getArgument(0).toString().equals(delayPartition));
+        List<CompletableFuture<Optional<org.apache.pulsar.broker.service.Topic>>> topics = new ArrayList<>();
+        for (PersistentTopic reloadedTopic : reloadedTopics) {
+            topics.add(CompletableFuture.completedFuture(Optional.of(reloadedTopic)));
+        }
+        when(brokerService.getTopic(eq(delayPartition), anyBoolean()))
+                .thenReturn(CompletableFuture.completedFuture(Optional.of(delayTopic)), topics.toArray(
+                        new CompletableFuture[0]));
+        scheduleService.onBundleLoaded(bundle);
+        return bundle;
+    }
+
+    private PersistentTopic newDelayTopic(ManagedCursor cursor) {
+        PersistentTopic delayTopic = mock(PersistentTopic.class);
+        PersistentSubscription subscription = mock(PersistentSubscription.class);
+        when(subscription.getCursor()).thenReturn(cursor);
+        when(delayTopic.getName()).thenReturn(delayPartition);
+        when(delayTopic.createSubscription(anyString(), any(), anyBoolean()))
+                .thenReturn(CompletableFuture.completedFuture(subscription));
+        return delayTopic;
+    }
+
+    private static ManagedCursor newCursor(Map<String, Long> properties) {
+        ManagedCursor cursor = mock(ManagedCursor.class);
+        when(cursor.getProperties()).thenReturn(properties);
+        when(cursor.getMarkDeletedPosition()).thenReturn(PositionImpl.get(1L, 4L));
+        return cursor;
+    }
+
+    /**
+     * The first read of the cursor returns the entries, the following ones wait for new entries.
+     */
+    private static void readEntries(ManagedCursor cursor, Entry... entries) {
+        AtomicInteger reads = new AtomicInteger();
+        doAnswer(invocation -> {
+            if (reads.getAndIncrement() == 0) {
+                ((ReadEntriesCallback) invocation.getArgument(1)).readEntriesComplete(Arrays.asList(entries), null);
+            }
+            return null;
+        }).when(cursor).asyncReadEntriesOrWait(anyInt(), any(), any());
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Long> savedCheckpoint(ManagedCursor cursor, int times) {
+        List<Map<String, Long>> checkpoints = new ArrayList<>();
+        verify(cursor, timeout(5000).times(times)).asyncMarkDelete(eq(PositionImpl.get(1L, 4L)),
+                (Map<String, Long>) any(), any(MarkDeleteCallback.class), any());
+        verify(cursor, times(times)).asyncMarkDelete(any(Position.class), mapCaptor(checkpoints), any(), any());
+        return checkpoints.get(checkpoints.size() - 1);
+    }
+
+    private static Map<String, Long> mapCaptor(List<Map<String, Long>> values) {
+        return argThat(value -> values.add(new HashMap<>(value)));
+    }
+
+    /**
+     * Build an entry of the delay level partition, with a message born at each of the timestamps.
+     */
+    private Entry newEntry(long ledgerId, long entryId, long... bornTimestamps) throws Exception {
+        List<MessageExtBrokerInner> msgs = new ArrayList<>();
+        for (long bornTimestamp : bornTimestamps) {
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic(scheduleService.getDelayedTopicName(DELAY_LEVEL));
+            msg.setBody("hello".getBytes(StandardCharsets.UTF_8));
+            msg.setBornTimestamp(bornTimestamp);
+            msg.setBornHost(new InetSocketAddress("127.0.0.1", 10911));
+            msg.setStoreHost(new InetSocketAddress("127.0.0.1", 10911));
+            MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_TOPIC, REAL_TOPIC);
+            MessageAccessor.putProperty(msg, MessageConst.PROPERTY_REAL_QUEUE_ID, "0");
+            MessageAccessor.putProperty(msg, MessageConst.PROPERTY_DELAY_TIME_LEVEL, String.valueOf(DELAY_LEVEL));
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            msgs.add(msg);
+        }
+        ByteBuf data = formatter.encodeEntry(msgs);
+        try {
+            return EntryImpl.create(ledgerId, entryId, data);
+        } finally {
+            data.release();
+        }
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.acl;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import org.apache.pulsar.broker.authentication.AuthenticationService;
+import org.apache.pulsar.broker.authorization.AuthorizationService;
+import org.apache.pulsar.common.policies.data.TopicOperation;
+import org.apache.rocketmq.acl.common.AclException;
+import org.apache.rocketmq.acl.common.SessionCredentials;
+import org.apache.rocketmq.common.protocol.RequestCode;
+import org.apache.rocketmq.remoting.protocol.RemotingCommand;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test RoP acl checker.
+ */
+public class RopAclCheckerTest {
+
+    private static final String TOKEN = "user-token";
+    private static final String SUPER_USER_TOKEN = "super-user-token";
+
+    private AuthenticationService authenticationService;
+    private AuthorizationService authorizationService;
+    private RopAclChecker aclChecker;
+
+    @Before
+    public void setUp() throws Exception {
+        authenticationService = mock(AuthenticationService.class);
+        authorizationService = mock(AuthorizationService.class);
+        when(authenticationService.authenticate(any(), eq("token"))).thenReturn("user");
+        when(authorizationService.allowTopicOperationAsync(any(), eq(TopicOperation.PRODUCE), eq("user"), any()))
+                .thenReturn(CompletableFuture.completedFuture(true));
+        when(authorizationService.allowTopicOperationAsync(any(), eq(TopicOperation.CONSUME), eq("user"), any()))
+                .thenReturn(CompletableFuture.completedFuture(false));
+        aclChecker = new RopAclChecker(() -> authenticationService, () -> authorizationService,
+                SUPER_USER_TOKEN, 60);
+    }
+
+    @Test
+    public void testDecisionCached() throws Exception {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        for (int i = 0; i < 3; i++) {
+            aclChecker.check(channel, newRequest(RequestCode.SEND_MESSAGE_V2, TOKEN, "b", "test-topic")).join();
+        }
+        verify(authenticationService, times(1)).authenticate(any(), anyString());
+        verify(authorizationService, times(1))
+                .allowTopicOperationAsync(any(), eq(TopicOperation.PRODUCE), eq("user"), any());
+
+        // the role is authenticated once per channel
+        aclChecker.check(new EmbeddedChannel(), newRequest(RequestCode.SEND_MESSAGE, TOKEN, "topic", "test-topic"))
+                .join();
+        verify(authenticationService, times(2)).authenticate(any(), anyString());
+        verify(authorizationService, times(1))
+                .allowTopicOperationAsync(any(), eq(TopicOperation.PRODUCE), eq("user"), any());
+    }
+
+    @Test
+    public void testPullDenied() {
+        assertDenied(aclChecker.check(new EmbeddedChannel(),
+                newRequest(RequestCode.PULL_MESSAGE, TOKEN, "topic", "test-topic")));
+        assertDenied(aclChecker.check(new EmbeddedChannel(),
+                newRequest(RequestCode.PULL_MESSAGE, "", "topic", "test-topic")));
+    }
+
+    @Test
+    public void testAdminOperation() {
+        aclChecker.check(new EmbeddedChannel(),
+                newRequest(RequestCode.DELETE_TOPIC_IN_BROKER, SUPER_USER_TOKEN, "topic", "test-topic")).join();
+        assertDenied(aclChecker.check(new EmbeddedChannel(),
+                newRequest(RequestCode.DELETE_TOPIC_IN_BROKER, TOKEN, "topic", "test-topic")));
+    }
+
+    private static void assertDenied(CompletableFuture<Void> future) {
+        try {
+            future.join();
+            fail("The request should be denied");
+        } catch (CompletionException e) {
+            assertTrue(e.getCause() instanceof AclException);
+        }
+    }
+
+    private static RemotingCommand newRequest(int code, String token, String topicField, String topic) {
+        RemotingCommand request = RemotingCommand.createRequestCommand(code, null);
+        request.setExtFields(new HashMap<>());
+        request.getExtFields().put(SessionCredentials.ACCESS_KEY, token);
+        request.getExtFields().put(topicField, topic);
+        return request;
+    }
+}
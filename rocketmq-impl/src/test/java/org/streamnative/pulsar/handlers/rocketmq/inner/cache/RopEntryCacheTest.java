@@ -0,0 +1,84 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.cache;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import java.util.List;
+import org.apache.bookkeeper.mledger.Entry;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.junit.Test;
+
+/**
+ * Test RoP entry cache.
+ */
+public class RopEntryCacheTest {
+
+    private static final String TOPIC = "persistent://public/default/test-topic-partition-0";
+
+    @Test
+    public void testReadConsecutiveEntries() {
+        RopEntryCache cache = new RopEntryCache(1024);
+        for (long entryId = 0; entryId < 5; entryId++) {
+            cache.put(TOPIC, 1L, entryId, newEntry(10));
+        }
+        // entry 5 is published by another producer
+        cache.put(TOPIC, 1L, 6L, newEntry(10));
+
+        List<Entry> entries = cache.read(TOPIC, PositionImpl.get(1L, 2L), 10);
+        assertEquals(3, entries.size());
+        assertEquals(PositionImpl.get(1L, 4L), entries.get(2).getPosition());
+        entries.forEach(Entry::release);
+
+        entries = cache.read(TOPIC, PositionImpl.get(1L, 0L), 2);
+        assertEquals(2, entries.size());
+        entries.forEach(Entry::release);
+
+        assertTrue(cache.read(TOPIC, PositionImpl.get(1L, 5L), 10).isEmpty());
+        assertTrue(cache.read("other-topic", PositionImpl.get(1L, 0L), 10).isEmpty());
+        assertEquals(2, cache.getHitCount());
+        assertEquals(2, cache.getMissCount());
+    }
+
+    @Test
+    public void testEvictEarliestEntries() {
+        RopEntryCache cache = new RopEntryCache(100);
+        ByteBuf first = newEntry(40);
+        cache.put(TOPIC, 1L, 0L, first);
+        cache.put(TOPIC, 1L, 1L, newEntry(40));
+        ByteBuf last = newEntry(40);
+        cache.put(TOPIC, 1L, 2L, last);
+
+        assertEquals(0, first.refCnt());
+        assertEquals(80, cache.getSize());
+        assertTrue(cache.read(TOPIC, PositionImpl.get(1L, 0L), 10).isEmpty());
+
+        // the entries read are still valid after the cache is cleared
+        List<Entry> entries = cache.read(TOPIC, PositionImpl.get(1L, 1L), 10);
+        cache.invalidate(TOPIC);
+        assertEquals(0, cache.getSize());
+        assertEquals(1, last.refCnt());
+        assertEquals(40, entries.get(1).getDataBuffer().readableBytes());
+        entries.forEach(Entry::release);
+        assertEquals(0, last.refCnt());
+    }
+
+    private static ByteBuf newEntry(int size) {
+        return Unpooled.buffer(size).writeZero(size);
+    }
+}
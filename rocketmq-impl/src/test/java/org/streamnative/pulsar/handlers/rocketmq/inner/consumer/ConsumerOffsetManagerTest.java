@@ -0,0 +1,113 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.bookkeeper.mledger.AsyncCallbacks.MarkDeleteCallback;
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.ManagedLedgerException;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.pulsar.broker.service.persistent.PersistentSubscription;
+import org.apache.pulsar.broker.service.persistent.PersistentTopic;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.streamnative.pulsar.handlers.rocketmq.RocketMQServiceConfiguration;
+import org.streamnative.pulsar.handlers.rocketmq.inner.RocketMQBrokerController;
+import org.streamnative.pulsar.handlers.rocketmq.inner.namesvr.MQTopicManager;
+import org.streamnative.pulsar.handlers.rocketmq.inner.producer.ClientTopicName;
+import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
+
+/**
+ * Test consumer offset manager.
+ */
+public class ConsumerOffsetManagerTest {
+
+    private static final String GROUP = "test|ns%test-group";
+    private static final String TOPIC = "test|ns%test-topic";
+
+    private ManagedCursor cursor;
+    private ConsumerOffsetManager offsetManager;
+
+    @Before
+    public void setUp() {
+        RocketMQBrokerController brokerController = mock(RocketMQBrokerController.class);
+        when(brokerController.getServerConfig()).thenReturn(new RocketMQServiceConfiguration());
+        MQTopicManager topicManager = mock(MQTopicManager.class);
+        when(topicManager.isPartitionTopicOwner(any(), anyInt())).thenReturn(true);
+        when(brokerController.getTopicConfigManager()).thenReturn(topicManager);
+
+        cursor = mock(ManagedCursor.class);
+        when(cursor.getMarkDeletedPosition()).thenReturn(PositionImpl.get(1L, 0L));
+        when(cursor.getProperties()).thenReturn(Collections.emptyMap());
+        PersistentSubscription subscription = mock(PersistentSubscription.class);
+        when(subscription.getCursor()).thenReturn(cursor);
+        PersistentTopic persistentTopic = mock(PersistentTopic.class);
+        when(persistentTopic.getSubscription(anyString())).thenReturn(subscription);
+        when(persistentTopic.getLastPosition()).thenReturn(PositionImpl.get(1L, 100L));
+
+        offsetManager = new ConsumerOffsetManager(brokerController);
+        offsetManager.getPulsarTopicCache().computeIfAbsent(new ClientTopicName(TOPIC), k -> new ConcurrentHashMap<>())
+                .put(0, persistentTopic);
+    }
+
+    @Test
+    public void testCommitsCoalesced() {
+        for (long entryId = 2; entryId <= 5; entryId++) {
+            offsetManager.commitOffset("client", GROUP, TOPIC, 0, MessageIdUtils.getOffset(1L, entryId, 0));
+        }
+        assertEquals(1, offsetManager.getDirtyOffsetCount());
+
+        offsetManager.persist();
+        assertEquals(0, offsetManager.getDirtyOffsetCount());
+        // the client commits the offset of the next message to consume
+        verify(cursor, times(1)).asyncMarkDelete(eq(PositionImpl.get(1L, 4L)), anyMap(), any(), any());
+
+        // nothing committed since the last flush
+        offsetManager.persist();
+        verify(cursor, times(1)).asyncMarkDelete(any(), anyMap(), any(), any());
+    }
+
+    @Test
+    public void testFailedFlushRetried() {
+        offsetManager.commitOffset("client", GROUP, TOPIC, 0, MessageIdUtils.getOffset(1L, 5L, 0));
+        offsetManager.persist();
+        ArgumentCaptor<MarkDeleteCallback> callback = ArgumentCaptor.forClass(MarkDeleteCallback.class);
+        verify(cursor).asyncMarkDelete(any(), anyMap(), callback.capture(), any());
+
+        // the partition is not flushed again before the pending flush completes
+        offsetManager.commitOffset("client", GROUP, TOPIC, 0, MessageIdUtils.getOffset(1L, 6L, 0));
+        offsetManager.persist();
+        assertEquals(1, offsetManager.getDirtyOffsetCount());
+        verify(cursor, times(1)).asyncMarkDelete(any(), anyMap(), any(), any());
+
+        callback.getValue().markDeleteFailed(new ManagedLedgerException("failed"), null);
+        offsetManager.persist();
+        verify(cursor).asyncMarkDelete(eq(PositionImpl.get(1L, 5L)), anyMap(), any(), any());
+        assertEquals(0, offsetManager.getDirtyOffsetCount());
+    }
+}
@@ -0,0 +1,91 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+import org.streamnative.pulsar.handlers.rocketmq.inner.consumer.ConsumerOffsetTable.PartitionOffsets;
+
+/**
+ * Test consumer offset table.
+ */
+public class ConsumerOffsetTableTest {
+
+    private static final String GROUP = "test|ns%test-group";
+    private static final String TOPIC = "test|ns%test-topic";
+
+    @Test
+    public void testOffsetsAndMapView() {
+        ConsumerOffsetTable table = new ConsumerOffsetTable();
+        assertNull(table.get(GROUP, TOPIC));
+        PartitionOffsets offsets = table.getOrCreate(GROUP, TOPIC);
+        assertSame(offsets, table.getOrCreate(GROUP, TOPIC));
+
+        assertTrue(offsets.updateOffset(1, 10L));
+        assertFalse(offsets.updateOffset(1, 5L));
+        offsets.setOffsetIfAbsent(1, 3L);
+        offsets.setOffsetIfAbsent(20, 7L);
+        assertEquals(10L, offsets.getOffset(1));
+        assertEquals(PartitionOffsets.NO_OFFSET, offsets.getOffset(0));
+
+        Map<Integer, Long> view = offsets.asMap();
+        assertEquals(2, view.size());
+        assertEquals(Long.valueOf(7L), view.get(20));
+        assertNull(view.get(2));
+
+        assertTrue(offsets.markDirty(1, 100L));
+        assertFalse(offsets.markDirty(1, 200L));
+        assertEquals(100L, offsets.clearDirty(1));
+        assertEquals(0L, offsets.getDirtyTime(1));
+
+        table.remove(offsets);
+        assertFalse(table.contains(offsets));
+        assertTrue(table.getTopics(GROUP).isEmpty());
+    }
+
+    @Test
+    public void testConcurrentUpdatesWhileGrowing() throws Exception {
+        PartitionOffsets offsets = new ConsumerOffsetTable().getOrCreate(GROUP, TOPIC);
+        int threads = 4;
+        int partitions = 256;
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch done = new CountDownLatch(threads);
+        for (int t = 0; t < threads; t++) {
+            executor.execute(() -> {
+                for (long offset = 1; offset <= 100; offset++) {
+                    for (int partition = 0; partition < partitions; partition++) {
+                        offsets.updateOffset(partition, offset);
+                    }
+                }
+                done.countDown();
+            });
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+        for (int partition = 0; partition < partitions; partition++) {
+            assertEquals(100L, offsets.getOffset(partition));
+        }
+    }
+}
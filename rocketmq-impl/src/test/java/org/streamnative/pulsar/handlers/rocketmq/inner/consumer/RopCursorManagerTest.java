@@ -0,0 +1,128 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.consumer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.apache.bookkeeper.mledger.ManagedCursor;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.junit.Test;
+import org.streamnative.pulsar.handlers.rocketmq.inner.consumer.RopCursorManager.CursorLease;
+
+/**
+ * Test RoP cursor manager.
+ */
+public class RopCursorManagerTest {
+
+    private static final String TOPIC = "persistent://public/default/test-topic-partition-0";
+
+    @Test
+    public void testCursorReusedAndSought() throws Exception {
+        ManagedLedgerImpl managedLedger = mock(ManagedLedgerImpl.class);
+        ManagedCursor cursor = mock(ManagedCursor.class);
+        when(cursor.getName()).thenReturn("cursor");
+        when(cursor.getMarkDeletedPosition()).thenReturn(PositionImpl.get(1, -1));
+        when(managedLedger.newNonDurableCursor(any(), anyString())).thenReturn(cursor);
+        RopCursorManager cursorManager = new RopCursorManager(0);
+
+        assertSame(cursor, getCursor(cursorManager, "group", TOPIC, managedLedger, PositionImpl.get(1, 4), true));
+        // the previous pull read entries 5 and 6
+        when(cursor.getReadPosition()).thenReturn(PositionImpl.get(1, 7));
+        assertSame(cursor, getCursor(cursorManager, "group", TOPIC, managedLedger, PositionImpl.get(1, 5), true));
+        verify(cursor, never()).seek(any());
+
+        // the pull offset jumps
+        assertSame(cursor, getCursor(cursorManager, "group", TOPIC, managedLedger, PositionImpl.get(1, 1), true));
+        verify(cursor, times(1)).seek(PositionImpl.get(1, 2));
+
+        // the cursors of the groups are isolated
+        getCursor(cursorManager, "group2", TOPIC, managedLedger, PositionImpl.get(1, 4), true);
+        verify(managedLedger, times(2)).newNonDurableCursor(any(), anyString());
+        assertEquals(2, cursorManager.size());
+        cursorManager.close();
+    }
+
+    @Test
+    public void testLeasedCursorNotShared() throws Exception {
+        ManagedLedgerImpl managedLedger = mock(ManagedLedgerImpl.class);
+        ManagedCursor cursor = mock(ManagedCursor.class);
+        ManagedCursor temporaryCursor = mock(ManagedCursor.class);
+        when(cursor.getName()).thenReturn("cursor");
+        when(temporaryCursor.getName()).thenReturn("temporary-cursor");
+        when(managedLedger.newNonDurableCursor(any(), anyString())).thenReturn(cursor, temporaryCursor);
+        RopCursorManager cursorManager = new RopCursorManager(0);
+
+        CursorLease lease = cursorManager.acquireCursor("group", TOPIC, managedLedger, PositionImpl.get(1, 4), true);
+        // a pull of the same group racing on the partition, e.g. a broadcasting consumer at another offset
+        CursorLease racing = cursorManager.acquireCursor("group", TOPIC, managedLedger, PositionImpl.get(1, 1),
+                true);
+        assertSame(temporaryCursor, racing.getCursor());
+        verify(cursor, never()).seek(any());
+        racing.release();
+        verify(managedLedger, times(1)).asyncDeleteCursor(eq("temporary-cursor"), any(), any());
+
+        // the leased cursor is not evicted
+        Thread.sleep(10);
+        cursorManager.evictIdleCursors();
+        assertEquals(1, cursorManager.size());
+        lease.release();
+        when(cursor.getReadPosition()).thenReturn(PositionImpl.get(1, 5));
+        assertSame(cursor, getCursor(cursorManager, "group", TOPIC, managedLedger, PositionImpl.get(1, 4), true));
+        assertEquals(1, cursorManager.size());
+    }
+
+    @Test
+    public void testCursorRecreatedAndEvicted() throws Exception {
+        ManagedLedgerImpl oldLedger = mock(ManagedLedgerImpl.class);
+        ManagedLedgerImpl newLedger = mock(ManagedLedgerImpl.class);
+        ManagedCursor oldCursor = mock(ManagedCursor.class);
+        ManagedCursor newCursor = mock(ManagedCursor.class);
+        when(oldCursor.getName()).thenReturn("old-cursor");
+        when(newCursor.getName()).thenReturn("new-cursor");
+        when(oldLedger.newNonDurableCursor(any(), anyString())).thenReturn(oldCursor);
+        when(newLedger.newNonDurableCursor(any(), anyString())).thenReturn(newCursor);
+        RopCursorManager cursorManager = new RopCursorManager(0);
+
+        getCursor(cursorManager, "group", TOPIC, oldLedger, PositionImpl.get(1, 4), true);
+        // the topic is reloaded with a new managed ledger
+        ManagedCursor cursor = getCursor(cursorManager, "group", TOPIC, newLedger, PositionImpl.get(1, 4), true);
+        assertNotSame(oldCursor, cursor);
+        verify(oldLedger, times(1)).asyncDeleteCursor(eq("old-cursor"), any(), any());
+        assertEquals(1, cursorManager.size());
+
+        Thread.sleep(10);
+        cursorManager.evictIdleCursors();
+        verify(newLedger, times(1)).asyncDeleteCursor(eq("new-cursor"), any(), any());
+        assertEquals(0, cursorManager.size());
+    }
+
+    private static ManagedCursor getCursor(RopCursorManager cursorManager, String group, String topic,
+            ManagedLedgerImpl managedLedger, PositionImpl startPosition, boolean seekable) throws Exception {
+        CursorLease lease = cursorManager.acquireCursor(group, topic, managedLedger, startPosition, seekable);
+        lease.release();
+        return lease.getCursor();
+    }
+}
@@ -0,0 +1,247 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.format;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import io.netty.buffer.ByteBuf;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.pulsar.common.api.proto.PulsarApi.MessageMetadata;
+import org.apache.pulsar.common.protocol.Commands;
+import org.apache.rocketmq.common.filter.ExpressionType;
+import org.apache.rocketmq.common.filter.FilterAPI;
+import org.apache.rocketmq.common.message.Message;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.common.message.MessageDecoder;
+import org.apache.rocketmq.common.message.MessageExt;
+import org.apache.rocketmq.common.message.MessageExtBatch;
+import org.apache.rocketmq.common.protocol.heartbeat.SubscriptionData;
+import org.apache.rocketmq.filter.FilterFactory;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.junit.Test;
+import org.streamnative.pulsar.handlers.rocketmq.utils.MessageIdUtils;
+
+/**
+ * Test rop entry formatter.
+ */
+public class RopEntryFormatterTest {
+
+    private static final long STORE_TIMESTAMP = 1600000000000L;
+
+    private final RopEntryFormatter formatter = new RopEntryFormatter();
+
+    @Test
+    public void testDecodeSingleEntry() throws Exception {
+        long offset = MessageIdUtils.getOffset(10L, 20L, 1);
+        List<ByteBuf> messages = new ArrayList<>();
+        ByteBuf entry = formatter.encodeEntry(newMessage(7));
+        try {
+            assertEquals(offset, formatter.decodePulsarMessage(entry, offset, offset, null, messages));
+        } finally {
+            entry.release();
+        }
+        assertEquals(1, messages.size());
+        MessageExt decoded = decode(messages.get(0));
+        assertEquals(offset, decoded.getQueueOffset());
+        assertEquals(7, decoded.getBody()[0]);
+    }
+
+    @Test
+    public void testDecodeBatchedEntry() throws Exception {
+        List<MessageExtBrokerInner> msgs = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            msgs.add(newMessage(i));
+        }
+        long baseOffset = MessageIdUtils.getOffset(10L, 20L, 1);
+        List<ByteBuf> messages = new ArrayList<>();
+        ByteBuf entry = formatter.encodeEntry(msgs);
+        try {
+            assertTrue(entry.isDirect());
+            assertEquals(entry.capacity(), entry.readableBytes());
+            long lastOffset = formatter.decodePulsarMessage(entry, baseOffset, baseOffset + 4, null, messages);
+            assertEquals(baseOffset + 9, lastOffset);
+        } finally {
+            entry.release();
+        }
+        assertEquals(6, messages.size());
+        for (int i = 0; i < messages.size(); i++) {
+            assertEquals(baseOffset + 4 + i, messages.get(i).getLong(28));
+            MessageExt decoded = decode(messages.get(i));
+            assertEquals(baseOffset + 4 + i, decoded.getQueueOffset());
+            assertEquals(4 + i, decoded.getBody()[0]);
+        }
+    }
+
+    @Test
+    public void testPublishTimeIsStoreTimestamp() throws Exception {
+        MessageExtBrokerInner msg = newMessage(1);
+        ByteBuf entry = formatter.encodeEntry(Collections.singletonList(msg));
+        try {
+            MessageMetadata metadata = Commands.parseMessageMetadata(entry);
+            assertEquals(msg.getStoreTimestamp(), metadata.getPublishTime());
+            metadata.recycle();
+        } finally {
+            entry.release();
+        }
+    }
+
+    @Test
+    public void testEncodeEntries() throws Exception {
+        int numMessages = MessageIdUtils.MAX_BATCH_SIZE + 6;
+        List<Message> msgs = new ArrayList<>();
+        for (int i = 0; i < numMessages; i++) {
+            Message msg = new Message("test-topic", "tag-" + (i % 2), "key-" + i, new byte[] {(byte) i});
+            msgs.add(msg);
+        }
+        MessageExtBatch batch = new MessageExtBatch();
+        batch.setTopic("test-topic");
+        batch.setQueueId(3);
+        batch.setBody(MessageDecoder.encodeMessages(msgs));
+        batch.setBornTimestamp(STORE_TIMESTAMP);
+        batch.setBornHost(new InetSocketAddress("127.0.0.1", 10911));
+        batch.setStoreHost(new InetSocketAddress("127.0.0.1", 10911));
+
+        List<RopEntryFormatter.BatchEntry> entries = formatter.encodeEntries(batch);
+        assertEquals(2, entries.size());
+        assertEquals(MessageIdUtils.MAX_BATCH_SIZE, entries.get(0).getNumMessages());
+        assertEquals(6, entries.get(1).getNumMessages());
+        int index = 0;
+        for (RopEntryFormatter.BatchEntry batchEntry : entries) {
+            ByteBuf entry = batchEntry.getEntry();
+            List<ByteBuf> messages = new ArrayList<>();
+            try {
+                assertTrue(entry.isDirect());
+                assertEquals(entry.capacity(), entry.readableBytes());
+                formatter.decodePulsarMessage(entry, 0L, 0L, null, messages);
+            } finally {
+                entry.release();
+            }
+            assertEquals(batchEntry.getNumMessages(), messages.size());
+            for (int i = 0; i < messages.size(); i++, index++) {
+                MessageExt decoded = decode(messages.get(i));
+                assertEquals(3, decoded.getQueueId());
+                assertEquals((byte) index, decoded.getBody()[0]);
+                assertEquals("key-" + index, decoded.getKeys());
+                assertEquals(batchEntry.getStoreTimestamp(), decoded.getStoreTimestamp());
+                assertEquals(MessageExtBrokerInner.tagsString2tagsCode(null, "tag-" + (index % 2)),
+                        batchEntry.getTagsCodes()[i]);
+                assertEquals("key-" + index, batchEntry.getProperties().get(i).get(MessageConst.PROPERTY_KEYS));
+            }
+        }
+        assertEquals(numMessages, index);
+    }
+
+    @Test
+    public void testEncodeEntry() throws Exception {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic("test-topic");
+        msg.setQueueId(3);
+        msg.setBody("hello".getBytes(StandardCharsets.UTF_8));
+        msg.setBornTimestamp(STORE_TIMESTAMP);
+        msg.setBornHost(new InetSocketAddress("127.0.0.1", 10911));
+        msg.setStoreHost(new InetSocketAddress("127.0.0.1", 10911));
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_KEYS, "key-1");
+        msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+
+        long offset = MessageIdUtils.getOffset(10L, 20L, 3);
+        List<ByteBuf> messages = new ArrayList<>();
+        ByteBuf entry = formatter.encodeEntry(msg);
+        try {
+            assertTrue(entry.isDirect());
+            assertEquals(entry.capacity(), entry.readableBytes());
+            MessageMetadata metadata = Commands.parseMessageMetadata(entry.duplicate());
+            assertEquals(msg.getStoreTimestamp(), metadata.getPublishTime());
+            metadata.recycle();
+            formatter.decodePulsarMessage(entry, offset, offset, null, messages);
+        } finally {
+            entry.release();
+        }
+
+        assertEquals(1, messages.size());
+        ByteBuf message = messages.get(0);
+        byte[] bytes = new byte[message.readableBytes()];
+        message.readBytes(bytes);
+        message.release();
+        MessageExt decoded = MessageDecoder.decode(ByteBuffer.wrap(bytes), true, false);
+        assertEquals("test-topic", decoded.getTopic());
+        assertEquals(3, decoded.getQueueId());
+        assertEquals(offset, decoded.getQueueOffset());
+        assertEquals("hello", new String(decoded.getBody(), StandardCharsets.UTF_8));
+        assertEquals("key-1", decoded.getKeys());
+        assertEquals(msg.getStoreTimestamp(), decoded.getStoreTimestamp());
+        assertEquals(msg.getBornHost(), decoded.getBornHost());
+    }
+
+    @Test
+    public void testSql92Filter() throws Exception {
+        SubscriptionData subscriptionData = FilterAPI.build("test-topic", "a > 5 AND TAGS = 'tag-1'",
+                ExpressionType.SQL92);
+        RopMessageFilter filter = new RopMessageFilter(subscriptionData,
+                FilterFactory.INSTANCE.get(ExpressionType.SQL92).compile(subscriptionData.getSubString()));
+
+        List<ByteBuf> messages = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            MessageExtBrokerInner msg = new MessageExtBrokerInner();
+            msg.setTopic("test-topic");
+            msg.setBody("hello".getBytes(StandardCharsets.UTF_8));
+            msg.setBornHost(new InetSocketAddress("127.0.0.1", 10911));
+            msg.setStoreHost(new InetSocketAddress("127.0.0.1", 10911));
+            MessageAccessor.putProperty(msg, "a", String.valueOf(i));
+            MessageAccessor.putProperty(msg, MessageConst.PROPERTY_TAGS, i % 2 == 0 ? "tag-1" : "tag-2");
+            msg.setPropertiesString(MessageDecoder.messageProperties2String(msg.getProperties()));
+            ByteBuf entry = formatter.encodeEntry(msg);
+            try {
+                formatter.decodePulsarMessage(entry, i, 0, filter, messages);
+            } finally {
+                entry.release();
+            }
+        }
+
+        assertEquals(2, messages.size());
+        assertEquals(6, messages.get(0).getLong(20));
+        assertEquals(8, messages.get(1).getLong(20));
+        messages.forEach(ByteBuf::release);
+    }
+
+    private static MessageExtBrokerInner newMessage(int value) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic("test-topic");
+        msg.setBody(new byte[] {(byte) value});
+        msg.setBornTimestamp(STORE_TIMESTAMP);
+        msg.setBornHost(new InetSocketAddress("127.0.0.1", 10911));
+        msg.setStoreHost(new InetSocketAddress("127.0.0.1", 10911));
+        return msg;
+    }
+
+    /**
+     * Decode the message buffer returned by the formatter and release it.
+     */
+    private static MessageExt decode(ByteBuf message) {
+        try {
+            byte[] bytes = new byte[message.readableBytes()];
+            message.getBytes(message.readerIndex(), bytes);
+            return MessageDecoder.decode(ByteBuffer.wrap(bytes), true, false);
+        } finally {
+            message.release();
+        }
+    }
+}
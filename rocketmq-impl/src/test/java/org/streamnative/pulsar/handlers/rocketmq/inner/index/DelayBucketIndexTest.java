@@ -0,0 +1,95 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.pulsar.common.util.FutureUtil;
+import org.junit.Test;
+
+/**
+ * Test delay bucket index.
+ */
+public class DelayBucketIndexTest {
+
+    private static final String PREFIX = "SCHEDULE_TOPIC_XXXX_BUCKET_";
+    private static final long BUCKET_SIZE = 60000L;
+    private static final int RING_SIZE = 4;
+
+    @Test
+    public void testBucketSlots() {
+        DelayBucketIndex index = new DelayBucketIndex(PREFIX, BUCKET_SIZE, RING_SIZE);
+        assertEquals(120000L, index.getBucketStart(179999L));
+        assertEquals(2, index.getSlot(120000L));
+        // the slots are reused by every lap of the ring
+        assertEquals(2, index.getSlot(120000L + RING_SIZE * BUCKET_SIZE));
+        assertEquals(index.getBucketPartition(120000L), index.getBucketPartition(120000L + RING_SIZE * BUCKET_SIZE));
+        assertNotEquals(index.getBucketPartition(120000L), index.getBucketPartition(180000L));
+        assertTrue(index.getBucketPartition(120000L).startsWith(index.getSlotTopic(2)));
+    }
+
+    @Test
+    public void testSlotsCreatedOnce() {
+        DelayBucketIndex index = new DelayBucketIndex(PREFIX, BUCKET_SIZE, RING_SIZE);
+        List<String> created = new ArrayList<>();
+        index.createSlots(topic -> {
+            created.add(topic);
+            return CompletableFuture.completedFuture(null);
+        });
+        assertEquals(RING_SIZE, created.size());
+        assertEquals(Long.valueOf(300000L), index.getOrCreate(301000L, topic -> {
+            created.add(topic);
+            return CompletableFuture.completedFuture(null);
+        }).join());
+        assertEquals(RING_SIZE, created.size());
+        assertTrue(index.getSlotCreation(300000L).isDone());
+    }
+
+    @Test
+    public void testFailedCreationRetried() {
+        DelayBucketIndex index = new DelayBucketIndex(PREFIX, BUCKET_SIZE, RING_SIZE);
+        AtomicInteger creations = new AtomicInteger();
+        CompletableFuture<Long> failed = index.getOrCreate(61000L, topic -> {
+            creations.incrementAndGet();
+            return FutureUtil.failedFuture(new Exception("failed"));
+        });
+        assertTrue(failed.isCompletedExceptionally());
+        assertNull(index.getSlotCreation(60000L));
+
+        CompletableFuture<Void> creation = new CompletableFuture<>();
+        CompletableFuture<Long> created = index.getOrCreate(62000L, topic -> {
+            creations.incrementAndGet();
+            return creation;
+        });
+        index.getOrCreate(119999L, topic -> {
+            creations.incrementAndGet();
+            return creation;
+        });
+        // the bucket is not opened before its slot topic is created
+        assertFalse(index.getSlotCreation(60000L).isDone());
+        creation.complete(null);
+        assertEquals(Long.valueOf(60000L), created.join());
+        assertTrue(index.getSlotCreation(60000L).isDone());
+        assertEquals(2, creations.get());
+    }
+}
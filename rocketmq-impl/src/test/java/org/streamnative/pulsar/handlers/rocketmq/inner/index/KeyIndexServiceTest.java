@@ -0,0 +1,99 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import org.apache.rocketmq.common.UtilAll;
+import org.apache.rocketmq.common.message.MessageAccessor;
+import org.apache.rocketmq.common.message.MessageConst;
+import org.apache.rocketmq.store.MessageExtBrokerInner;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test message key index service.
+ */
+public class KeyIndexServiceTest {
+
+    private static final String TOPIC = "test-topic";
+
+    private File storeDir;
+    private KeyIndexService keyIndexService;
+
+    @Before
+    public void setUp() throws Exception {
+        storeDir = Files.createTempDirectory("rop-index").toFile();
+        keyIndexService = new KeyIndexService(storeDir.getPath(), 72, 128, 512);
+        assertTrue(keyIndexService.load());
+        keyIndexService.start();
+    }
+
+    @After
+    public void tearDown() {
+        keyIndexService.shutdown();
+        UtilAll.deleteFile(storeDir);
+    }
+
+    @Test
+    public void testQueryByKey() throws Exception {
+        keyIndexService.putRequest(newMessage("order-1 order-2"), 100L);
+        keyIndexService.putRequest(newMessage("order-2"), 101L);
+
+        assertEquals(Collections.singletonList(100L), waitForOffsets("order-1", 1));
+        List<Long> offsets = waitForOffsets("order-2", 2);
+        Collections.sort(offsets);
+        assertEquals(101L, (long) offsets.get(1));
+        assertTrue(keyIndexService.queryOffset(TOPIC, "order-3", 32, 0, Long.MAX_VALUE).getPhyOffsets().isEmpty());
+    }
+
+    @Test
+    public void testRollIndexFile() throws Exception {
+        for (int i = 0; i < 600; i++) {
+            keyIndexService.putRequest(newMessage("key-" + i), i);
+        }
+        assertEquals(Collections.singletonList(599L), waitForOffsets("key-599", 1));
+        assertEquals(Collections.singletonList(0L), waitForOffsets("key-0", 1));
+        assertEquals(2, storeDir.listFiles().length);
+    }
+
+    private List<Long> waitForOffsets(String key, int expectedNum) throws InterruptedException {
+        List<Long> offsets = Collections.emptyList();
+        for (int i = 0; i < 100 && offsets.size() < expectedNum; i++) {
+            Thread.sleep(50);
+            offsets = keyIndexService.queryOffset(TOPIC, key, 32, 0, Long.MAX_VALUE).getPhyOffsets();
+        }
+        return offsets;
+    }
+
+    private MessageExtBrokerInner newMessage(String keys) {
+        MessageExtBrokerInner msg = new MessageExtBrokerInner();
+        msg.setTopic(TOPIC);
+        msg.setBody(new byte[16]);
+        msg.setBornTimestamp(System.currentTimeMillis());
+        msg.setBornHost(new InetSocketAddress("127.0.0.1", 10911));
+        msg.setStoreHost(new InetSocketAddress("127.0.0.1", 10911));
+        MessageAccessor.putProperty(msg, MessageConst.PROPERTY_KEYS, keys);
+        msg.setStoreTimestamp(System.currentTimeMillis());
+        return msg;
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.apache.bookkeeper.mledger.proto.MLDataFormats.ManagedLedgerInfo.LedgerInfo;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test tag index.
+ */
+public class TagIndexTest {
+
+    private static final int RANGE_SIZE = 4;
+    private static final int TAG_A = "TagA".hashCode();
+    private static final int TAG_B = "TagB".hashCode();
+
+    private final Map<String, String> properties = new HashMap<>();
+    private final TreeMap<Long, LedgerInfo> ledgers = new TreeMap<>();
+    private ManagedLedgerImpl managedLedger;
+
+    @Before
+    public void setUp() {
+        managedLedger = mock(ManagedLedgerImpl.class);
+        when(managedLedger.getProperties()).thenReturn(properties);
+        when(managedLedger.getFirstPosition()).thenReturn(PositionImpl.get(1L, -1L));
+        when(managedLedger.getLedgersInfo()).thenReturn(ledgers);
+        doAnswer(invocation -> properties.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(managedLedger).asyncSetProperty(eq(TagIndex.TAG_INDEX_PROPERTY), any(), any(), any());
+        ledgers.put(1L, LedgerInfo.newBuilder().setLedgerId(1L).setEntries(10).build());
+        ledgers.put(2L, LedgerInfo.newBuilder().setLedgerId(2L).build());
+    }
+
+    @Test
+    public void testSkipRanges() {
+        TagIndex tagIndex = new TagIndex(managedLedger, RANGE_SIZE, 16);
+        // entries 0 ~ 7 of ledger 1 only contain TagA, entries 8 ~ 9 contain TagB
+        for (long entryId = 0; entryId < 10; entryId++) {
+            tagIndex.add(PositionImpl.get(1L, entryId), new long[] {entryId < 8 ? TAG_A : TAG_B});
+        }
+        tagIndex.add(PositionImpl.get(2L, 0L), new long[] {TAG_A});
+        assertEquals(3, tagIndex.size());
+
+        Set<Integer> tagB = Collections.singleton(TAG_B);
+        assertEquals(PositionImpl.get(1L, 7L), tagIndex.lastSkippablePosition(PositionImpl.get(1L, 2L), tagB));
+        assertNull(tagIndex.lastSkippablePosition(PositionImpl.get(1L, 8L), tagB));
+        // the range being published into is never skipped
+        Set<Integer> tagC = Collections.singleton("TagC".hashCode());
+        assertEquals(PositionImpl.get(1L, 9L), tagIndex.lastSkippablePosition(PositionImpl.get(1L, 0L), tagC));
+        assertNull(tagIndex.lastSkippablePosition(PositionImpl.get(2L, 0L), tagC));
+
+        // the sealed ranges are only persisted when the index is flushed
+        assertTrue(properties.isEmpty());
+        tagIndex.flush();
+        TagIndex reloaded = new TagIndex(managedLedger, RANGE_SIZE, 16);
+        assertEquals(3, reloaded.size());
+        assertEquals(PositionImpl.get(1L, 7L), reloaded.lastSkippablePosition(PositionImpl.get(1L, 0L), tagB));
+    }
+
+    @Test
+    public void testIncompleteRangeNotSealed() {
+        TagIndex tagIndex = new TagIndex(managedLedger, RANGE_SIZE, 16);
+        // entry 2 is published by others
+        tagIndex.add(PositionImpl.get(1L, 0L), new long[] {TAG_A});
+        tagIndex.add(PositionImpl.get(1L, 1L), new long[] {TAG_A});
+        tagIndex.add(PositionImpl.get(1L, 3L), new long[] {TAG_A});
+        tagIndex.add(PositionImpl.get(1L, 4L), new long[] {TAG_A});
+        assertEquals(0, tagIndex.size());
+        assertNull(tagIndex.lastSkippablePosition(PositionImpl.get(1L, 0L), Collections.singleton(TAG_B)));
+    }
+}
@@ -0,0 +1,99 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.index;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.Range;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.bookkeeper.mledger.impl.ManagedLedgerImpl;
+import org.apache.bookkeeper.mledger.impl.PositionImpl;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test time index.
+ */
+public class TimeIndexTest {
+
+    private static final long INTERVAL_MS = 1000L;
+
+    private final Map<String, String> properties = new HashMap<>();
+    private ManagedLedgerImpl managedLedger;
+
+    @Before
+    public void setUp() {
+        managedLedger = mock(ManagedLedgerImpl.class);
+        when(managedLedger.getProperties()).thenReturn(properties);
+        when(managedLedger.getFirstPosition()).thenReturn(PositionImpl.get(1L, -1L));
+        doAnswer(invocation -> properties.put(invocation.getArgument(0), invocation.getArgument(1)))
+                .when(managedLedger).asyncSetProperty(eq(TimeIndex.TIME_INDEX_PROPERTY), any(), any(), any());
+    }
+
+    @Test
+    public void testLookup() {
+        TimeIndex timeIndex = new TimeIndex(managedLedger, INTERVAL_MS, 16);
+        assertEquals(Range.all(), timeIndex.lookup(1000L));
+
+        timeIndex.add(1000L, PositionImpl.get(1L, 0L));
+        assertFalse(timeIndex.shouldSample(1500L));
+        timeIndex.add(1500L, PositionImpl.get(1L, 5L));
+        timeIndex.add(2000L, PositionImpl.get(1L, 10L));
+        timeIndex.add(3000L, PositionImpl.get(2L, 0L));
+        assertEquals(3, timeIndex.size());
+
+        assertEquals(Range.lessThan(PositionImpl.get(1L, 0L)), timeIndex.lookup(999L));
+        assertEquals(Range.closedOpen(PositionImpl.get(1L, 0L), PositionImpl.get(1L, 10L)), timeIndex.lookup(1999L));
+        assertEquals(Range.closedOpen(PositionImpl.get(1L, 10L), PositionImpl.get(2L, 0L)), timeIndex.lookup(2000L));
+        assertEquals(Range.atLeast(PositionImpl.get(2L, 0L)), timeIndex.lookup(5000L));
+    }
+
+    @Test
+    public void testReload() {
+        TimeIndex timeIndex = new TimeIndex(managedLedger, INTERVAL_MS, 16);
+        timeIndex.add(1000L, PositionImpl.get(1L, 0L));
+        timeIndex.add(2000L, PositionImpl.get(1L, 10L));
+
+        TimeIndex reloaded = new TimeIndex(managedLedger, INTERVAL_MS, 16);
+        assertEquals(2, reloaded.size());
+        assertEquals(timeIndex.lookup(1500L), reloaded.lookup(1500L));
+        assertFalse(reloaded.shouldSample(2500L));
+        assertTrue(reloaded.shouldSample(3000L));
+    }
+
+    @Test
+    public void testTrim() {
+        TimeIndex timeIndex = new TimeIndex(managedLedger, INTERVAL_MS, 4);
+        for (int i = 0; i < 5; i++) {
+            timeIndex.add(i * INTERVAL_MS, PositionImpl.get(1L, i));
+        }
+        // halved, the newest sample is kept
+        assertEquals(3, timeIndex.size());
+        assertEquals(Range.atLeast(PositionImpl.get(1L, 4L)), timeIndex.lookup(4 * INTERVAL_MS));
+
+        // the samples of deleted ledgers are dropped
+        when(managedLedger.getFirstPosition()).thenReturn(PositionImpl.get(2L, -1L));
+        timeIndex.add(5 * INTERVAL_MS, PositionImpl.get(2L, 0L));
+        assertEquals(1, timeIndex.size());
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.producer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.pulsar.client.api.Producer;
+import org.apache.pulsar.client.api.PulsarClientException;
+import org.apache.pulsar.common.util.FutureUtil;
+import org.junit.Test;
+import org.streamnative.pulsar.handlers.rocketmq.inner.producer.RopProducerPool.PooledProducer;
+
+/**
+ * Test RoP producer pool.
+ */
+public class RopProducerPoolTest {
+
+    private static final String TOPIC = "persistent://public/default/test-topic-partition-0";
+
+    @Test
+    public void testProducerShared() throws Exception {
+        AtomicInteger created = new AtomicInteger();
+        Producer<byte[]> producer = mock(Producer.class);
+        RopProducerPool pool = new RopProducerPool(topic -> {
+            created.incrementAndGet();
+            return CompletableFuture.completedFuture(producer);
+        }, 0);
+
+        PooledProducer pooled1 = pool.acquire(TOPIC);
+        PooledProducer pooled2 = pool.acquire(TOPIC);
+        assertSame(pooled1, pooled2);
+        assertEquals(1, created.get());
+
+        // referenced producers are never evicted
+        pool.release(pooled1);
+        Thread.sleep(10);
+        pool.evictIdleProducers();
+        assertEquals(1, pool.size());
+        verify(producer, never()).closeAsync();
+
+        pool.release(pooled2);
+        Thread.sleep(10);
+        pool.evictIdleProducers();
+        assertEquals(0, pool.size());
+        verify(producer, times(1)).closeAsync();
+    }
+
+    @Test
+    public void testFailedProducerRemoved() {
+        RopProducerPool pool = new RopProducerPool(
+                topic -> FutureUtil.failedFuture(new PulsarClientException("create failed")), 0);
+        PooledProducer failed = pool.acquire(TOPIC);
+        assertEquals(0, pool.size());
+
+        PooledProducer retried = pool.acquire(TOPIC);
+        assertNotSame(failed, retried);
+        pool.release(failed);
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.streamnative.pulsar.handlers.rocketmq.inner.producer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import io.netty.channel.embedded.EmbeddedChannel;
+import org.apache.pulsar.broker.service.BrokerService;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Test RoP publish throttler.
+ */
+public class RopPublishThrottlerTest {
+
+    private BrokerService brokerService;
+    private RopPublishThrottler throttler;
+
+    @Before
+    public void setUp() {
+        brokerService = mock(BrokerService.class);
+        throttler = new RopPublishThrottler(() -> brokerService, 100, 300);
+    }
+
+    @Test
+    public void testChannelBufferLimiting() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        throttler.startSendOperation(channel, 60);
+        assertTrue(channel.config().isAutoRead());
+        throttler.startSendOperation(channel, 60);
+        assertFalse(channel.config().isAutoRead());
+        assertEquals(120, throttler.getChannelPublishBufferSize(channel));
+
+        // resumed at half of the limit
+        throttler.completedSendOperation(channel, 60);
+        assertFalse(channel.config().isAutoRead());
+        throttler.completedSendOperation(channel, 10);
+        assertTrue(channel.config().isAutoRead());
+        throttler.completedSendOperation(channel, 50);
+        assertEquals(0, throttler.getPublishBufferSize());
+    }
+
+    @Test
+    public void testBrokerPublishBufferFull() {
+        EmbeddedChannel channel1 = new EmbeddedChannel();
+        EmbeddedChannel channel2 = new EmbeddedChannel();
+        throttler.startSendOperation(channel1, 100);
+        throttler.startSendOperation(channel2, 100);
+        assertFalse(throttler.isPublishBufferFull());
+        throttler.startSendOperation(channel2, 100);
+        assertTrue(throttler.isPublishBufferFull());
+        throttler.completedSendOperation(channel1, 100);
+        assertFalse(throttler.isPublishBufferFull());
+    }
+
+    @Test
+    public void testPublishBufferLimiting() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        when(brokerService.isReachMessagePublishBufferThreshold()).thenReturn(true);
+        throttler.startSendOperation(channel, 10);
+        assertFalse(channel.config().isAutoRead());
+
+        throttler.completedSendOperation(channel, 10);
+        throttler.checkPublishBuffer();
+        assertFalse(channel.config().isAutoRead());
+
+        when(brokerService.isReachMessagePublishBufferThreshold()).thenReturn(false);
+        throttler.checkPublishBuffer();
+        assertTrue(channel.config().isAutoRead());
+    }
+
+    @Test
+    public void testMultipleLimitingReasons() {
+        EmbeddedChannel channel = new EmbeddedChannel();
+        throttler.disableAutoRead(channel, RopPublishThrottler.RATE_LIMITING);
+        throttler.disableAutoRead(channel, RopPublishThrottler.TOPIC_LIMITING);
+        assertFalse(channel.config().isAutoRead());
+
+        throttler.enableAutoRead(channel, RopPublishThrottler.TOPIC_LIMITING);
+        assertFalse(channel.config().isAutoRead());
+        throttler.enableAutoRead(channel, RopPublishThrottler.RATE_LIMITING);
+        assertTrue(channel.config().isAutoRead());
+    }
+}
@@ -15,15 +15,21 @@
 package org.streamnative.pulsar.handlers.rocketmq.inner.timer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import lombok.extern.slf4j.Slf4j;
@@ -133,6 +139,48 @@ public class TimerTest {
         );
     }
 
+    @Test
+    public void testRejectedTaskIsRetried() throws Exception {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<>(), new ThreadFactoryBuilder().setNameFormat("test-executor-%d").build());
+        Timer rejectingTimer = SystemTimer.builder()
+                .executorName("test-rejecting")
+                .taskExecutor(executor)
+                .build();
+        try {
+            // occupy the only thread so that the expired task is rejected
+            CountDownLatch blocked = new CountDownLatch(1);
+            executor.execute(() -> {
+                try {
+                    blocked.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            CountDownLatch latch = new CountDownLatch(1);
+            AtomicReference<String> runner = new AtomicReference<>();
+            rejectingTimer.add(new TimerTask(0) {
+                @Override
+                public void run() {
+                    runner.set(Thread.currentThread().getName());
+                    latch.countDown();
+                }
+            });
+            assertEquals(1, rejectingTimer.size());
+            assertNull(runner.get());
+
+            blocked.countDown();
+            long deadline = System.currentTimeMillis() + 3000;
+            while (latch.getCount() > 0 && System.currentTimeMillis() < deadline) {
+                rejectingTimer.advanceClock(SystemTimer.REJECTED_TASK_RETRY_MS);
+            }
+            assertTrue(latch.await(0, TimeUnit.MILLISECONDS));
+            assertTrue(runner.get().startsWith("test-executor-"));
+        } finally {
+            rejectingTimer.shutdown();
+        }
+    }
+
     private static class TestTask extends TimerTask {
 
         private final int id;
@@ -119,6 +119,43 @@ public class MessageIdUtilsTest {
 
     }
 
+    @Test
+    public void testGetBatchOffset() {
+        long baseOffset = MessageIdUtils.getOffset(1234L, 123L, 12);
+        for (int i = 0; i < MessageIdUtils.MAX_BATCH_SIZE; i++) {
+            long offset = MessageIdUtils.getOffset(1234L, 123L, 12, i);
+            assertEquals(baseOffset + i, offset);
+            assertEquals(i, MessageIdUtils.getBatchIndex(offset));
+            MessageIdImpl messageId = MessageIdUtils.getMessageId(offset);
+            assertEquals(1234L, messageId.getLedgerId());
+            assertEquals(123L, messageId.getEntryId());
+            assertEquals(123L, MessageIdUtils.getEntryId(offset));
+            assertEquals(12, messageId.getPartitionIndex());
+            assertEquals(i, MessageIdUtils.getBatchIndex(messageId));
+            assertEquals(offset, MessageIdUtils.getOffset(messageId));
+        }
+
+        long lastOffset = MessageIdUtils.getOffset(1234L, 123L, 12, MessageIdUtils.MAX_BATCH_SIZE - 1);
+        assertEquals(MessageIdUtils.getOffset(1234L, 124L, 12), lastOffset + 1);
+    }
+
+    @Test
+    public void testLegacyOffsetNotSkipping() {
+        // offsets of the layout with 24 bits entry id and no batch index
+        for (long entryId : new long[] {0L, 63L, 64L, 300000L, (1L << 24) - 2L}) {
+            long legacyOffset = (13L << 56) | (1235L << 24) | (entryId + 1L);
+            MessageIdImpl messageId = MessageIdUtils.getMessageId(legacyOffset);
+            assertEquals(12, messageId.getPartitionIndex());
+            assertEquals(1234L, messageId.getLedgerId());
+            Assert.assertTrue(messageId.getEntryId() <= entryId);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testBatchIndexOverflow() {
+        MessageIdUtils.getOffset(1234L, 123L, 12, MessageIdUtils.MAX_BATCH_SIZE);
+    }
+
     public void testGetPosition() {
     }
 